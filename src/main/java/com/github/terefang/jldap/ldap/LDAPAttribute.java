@@ -21,12 +21,17 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.StringTokenizer;
 
 import com.github.terefang.jldap.ldap.client.ArrayEnumeration;
+import com.github.terefang.jldap.ldap.client.AttributeDescriptor;
+import com.github.terefang.jldap.ldap.client.AttributeValueSet;
 import com.github.terefang.jldap.ldap.util.Base64;
+import com.github.terefang.jldap.ldap.util.ValueCodec;
+import com.github.terefang.jldap.ldap.util.ValueCodecs;
 
 /**
  * The name and values of one attribute of a directory entry.
@@ -49,7 +54,11 @@ public class LDAPAttribute implements java.lang.Cloneable,
     private String name;              // full attribute name
     private String baseName;          // cn of cn;lang-ja;phonetic
     private String[] subTypes = null; // lang-ja of cn;lang-ja
-    private Object[] values = null;   // Array of byte[] attribute values
+    private AttributeValueSet values = null; // byte[] attribute values
+    private DecodedValues decoded = null;    // values of the last codec used
+
+    // Values up to this many bytes keep their decoded String, 0 disables
+    private static volatile int stringCacheLimit = 0;
 
 	/**
 	 * This constructor was added to support default Serialization
@@ -83,8 +92,7 @@ public class LDAPAttribute implements java.lang.Cloneable,
         }
         // OK to just copy attributes, as the app only sees a deep copy of them
         if( null != attr.values) {
-            this.values = new Object[ attr.values.length ];
-            System.arraycopy( attr.values, 0, this.values, 0, this.values.length );
+            this.values = (AttributeValueSet)attr.values.clone();
         }
         return;
     }
@@ -101,9 +109,38 @@ public class LDAPAttribute implements java.lang.Cloneable,
         if( attrName == null) {
             throw new IllegalArgumentException("Attribute name cannot be null");
         }
-        this.name = attrName;
-        this.baseName = this.getBaseName( attrName );
-        this.subTypes = this.getSubtypes( attrName );
+        setDescriptor( AttributeDescriptor.intern( attrName ) );
+        return;
+    }
+
+    /**
+     * Constructs an attribute with no values from a parsed attribute
+     * description.
+     *
+     * <p>The name, base name and subtypes are taken from the descriptor
+     * and need not be parsed again.</p>
+     *
+     * @param descriptor The attribute description.
+     *
+     * @throws IllegalArgumentException if descriptor is null
+     *
+     * @see AttributeDescriptor#intern(byte[])
+     */
+    public LDAPAttribute( AttributeDescriptor descriptor )
+    {
+        if( descriptor == null) {
+            throw new IllegalArgumentException("Attribute descriptor cannot be null");
+        }
+        setDescriptor( descriptor );
+        return;
+    }
+
+    private void setDescriptor( AttributeDescriptor descriptor )
+    {
+        this.name = descriptor.getName();
+        this.baseName = descriptor.getBaseName();
+        // shared when empty, otherwise our own copy
+        this.subTypes = descriptor.getSubtypes();
         return;
     }
 
@@ -191,9 +228,8 @@ public class LDAPAttribute implements java.lang.Cloneable,
         try {
             Object newObj = super.clone();
             if( values != null) {
-                System.arraycopy( this.values, 0,
-                                  ((LDAPAttribute)newObj).values, 0,
-                                  this.values.length);
+                ((LDAPAttribute)newObj).values =
+                                  (AttributeValueSet)this.values.clone();
             }
             return newObj;
         } catch( CloneNotSupportedException ce) {
@@ -416,12 +452,13 @@ public class LDAPAttribute implements java.lang.Cloneable,
     {
         if( null == this.values )
             return new byte[ 0 ][];
-        int size = this.values.length;
+        int size = this.values.size();
         byte[][] bva = new byte[ size ][];
         // Deep copy so application cannot change values
         for( int i = 0, u = size; i < u; i++) {
-            bva[i] = new byte[((byte[])values[i]).length];
-            System.arraycopy( this.values[i], 0, bva[i], 0, bva[i].length );
+            byte[] value = this.values.get( i);
+            bva[i] = new byte[ value.length ];
+            System.arraycopy( value, 0, bva[i], 0, bva[i].length );
         }
         return bva;
     }
@@ -436,15 +473,11 @@ public class LDAPAttribute implements java.lang.Cloneable,
     {
         if( null == this.values )
             return new String[ 0 ];
-        int size = values.length;
+        int size = values.size();
+        int limit = stringCacheLimit;
         String[] sva = new String[ size ];
         for( int j = 0; j < size; j++ ) {
-            try {
-                sva[ j ] = new String( (byte[])values[ j ], "UTF-8" );
-            } catch( UnsupportedEncodingException uee ) {
-                // Exception should NEVER get thrown but just in case it does ...
-                throw new RuntimeException( uee.toString());
-            }
+            sva[ j ] = values.getString( j, limit );
         }
         return sva;
     }
@@ -469,11 +502,7 @@ public class LDAPAttribute implements java.lang.Cloneable,
     {
         String rval = null;
         if( this.values != null) {
-            try {
-                rval = new String( (byte[])this.values[ 0 ], "UTF-8" );
-            } catch( UnsupportedEncodingException use ) {
-                throw new RuntimeException( use.toString());
-            }
+            rval = this.values.getString( 0, stringCacheLimit );
         }
         return rval;
     }
@@ -491,12 +520,185 @@ public class LDAPAttribute implements java.lang.Cloneable,
         byte[] bva = null;
         if( this.values != null) {
             // Deep copy so app can't change the value
-            bva = new byte[((byte[])values[0]).length];
-            System.arraycopy( this.values[0], 0, bva, 0, bva.length );
+            byte[] value = this.values.get( 0);
+            bva = new byte[ value.length ];
+            System.arraycopy( value, 0, bva, 0, bva.length );
         }
         return bva;
      }
 
+    /**
+     * Returns the values of the attribute decoded by a codec.
+     *
+     * <p>The decoded values are cached, so repeated calls with the same
+     * codec decode each value only once until the values of the attribute
+     * change.  Only the result of the most recently used codec is kept.</p>
+     *
+     * @param codec  The codec for the syntax of the attribute.
+     *
+     * @return The decoded values, an empty array if there are no values.
+     *
+     * @throws IllegalArgumentException if a value is not valid for the
+     *         syntax of the codec, or codec is null
+     *
+     * @see ValueCodecs
+     */
+    public Object[] getDecodedValues( ValueCodec codec )
+    {
+        Object[] objects = (Object[])decode( codec).clone();
+        for( int i = 0; i < objects.length; i++) {
+            if( objects[i] instanceof byte[]) {
+                // Deep copy so application cannot change cached values
+                objects[i] = ((byte[])objects[i]).clone();
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Returns the values of the attribute decoded according to its syntax
+     * in a schema.
+     *
+     * @param schema  The schema, or null to choose the codec by attribute
+     *                name only.
+     *
+     * @return The decoded values, an empty array if there are no values.
+     *
+     * @throws IllegalArgumentException if a value is not valid for the
+     *         syntax of the attribute
+     *
+     * @see ValueCodecs#getCodec(LDAPSchema, String)
+     */
+    public Object[] getDecodedValues( LDAPSchema schema )
+    {
+        return getDecodedValues( ValueCodecs.getCodec( schema, baseName));
+    }
+
+    /**
+     * Returns the values of the attribute as INTEGER values.
+     *
+     * @return The values, an empty array if there are no values.
+     *
+     * @throws NumberFormatException if a value is not an INTEGER in the
+     *         range of a long
+     */
+    public long[] getLongValues()
+    {
+        Object[] objects = decode( ValueCodecs.INTEGER);
+        long[] longs = new long[ objects.length ];
+        for( int i = 0; i < objects.length; i++) {
+            longs[i] = ((Long)objects[i]).longValue();
+        }
+        return longs;
+    }
+
+    /**
+     * Returns the values of the attribute as GeneralizedTime values.
+     *
+     * @return The values, an empty array if there are no values.
+     *
+     * @throws IllegalArgumentException if a value is not a GeneralizedTime
+     */
+    public Instant[] getInstantValues()
+    {
+        Object[] objects = decode( ValueCodecs.GENERALIZED_TIME);
+        Instant[] instants = new Instant[ objects.length ];
+        System.arraycopy( objects, 0, instants, 0, objects.length);
+        return instants;
+    }
+
+    /**
+     * Returns the first value of the attribute as a Boolean value.
+     *
+     * @return The value, or null if the attribute has no values.
+     *
+     * @throws IllegalArgumentException if the value is not TRUE or FALSE
+     */
+    public Boolean getBooleanValue()
+    {
+        if( this.values == null) {
+            return null;
+        }
+        return (Boolean)decode( ValueCodecs.BOOLEAN)[0];
+    }
+
+    /*
+     * Returns the cached values decoded by a codec, decoding them if the
+     * cache holds the values of another codec.  The array is shared.
+     */
+    private Object[] decode( ValueCodec codec )
+    {
+        if( codec == null) {
+            throw new IllegalArgumentException("Codec cannot be null");
+        }
+        DecodedValues cache = decoded;
+        if( cache != null && cache.codec == codec) {
+            return cache.objects;
+        }
+        int size = size();
+        Object[] objects = new Object[ size ];
+        for( int i = 0; i < size; i++) {
+            objects[i] = codec.decode( this.values.get( i));
+        }
+        decoded = new DecodedValues( codec, objects);
+        return objects;
+    }
+
+    /*
+     * The decoded values of the attribute and the codec that produced
+     * them.  Immutable, so it can be published without synchronization.
+     */
+    private static final class DecodedValues
+    {
+        private final ValueCodec codec;
+        private final Object[] objects;
+
+        private DecodedValues( ValueCodec codec, Object[] objects )
+        {
+            this.codec = codec;
+            this.objects = objects;
+            return;
+        }
+    }
+
+    /**
+     * Sets the maximum length of values whose decoded <code>String</code> is
+     * cached by all LDAPAttribute objects.
+     *
+     * <p>When enabled, {@link #getStringValue()},
+     * {@link #getStringValueArray()} and {@link #getStringValues()} decode
+     * each value at most once and return the same <code>String</code> on
+     * later calls.  Values longer than the limit, typically binary values
+     * such as photos or certificates, are decoded on every call so they are
+     * not kept twice in memory.  The default of zero disables the cache.</p>
+     *
+     * @param maxBytes  The maximum value length in bytes to cache, or zero
+     *                  to disable caching.
+     *
+     * @throws IllegalArgumentException if maxBytes is negative
+     */
+    public static void setStringCacheLimit( int maxBytes )
+    {
+        if( maxBytes < 0) {
+            throw new IllegalArgumentException("String cache limit cannot be negative");
+        }
+        stringCacheLimit = maxBytes;
+        return;
+    }
+
+    /**
+     * Returns the maximum length of values whose decoded <code>String</code>
+     * is cached.
+     *
+     * @return The maximum value length in bytes, zero if caching is disabled.
+     *
+     * @see #setStringCacheLimit(int)
+     */
+    public static int getStringCacheLimit()
+    {
+        return stringCacheLimit;
+    }
+
     /**
      * Returns the language subtype of the attribute, if any.
      *
@@ -716,28 +918,13 @@ public class LDAPAttribute implements java.lang.Cloneable,
         if( null == attrBytes ) {
             throw new IllegalArgumentException("Attribute value cannot be null");
         }
-        for( int i = 0; i < this.values.length; i++ ) {
-            if( equals( attrBytes, (byte[])this.values[ i ] ) ) {
-                if( 0 == i && 1 == this.values.length ) {
-                        // Optimize if first element of a single valued attr
-                        this.values = null;
-                        return;
-                }
-                if( this.values.length == 1) {
-                    this.values = null;
-                } else {
-                    int moved = this.values.length - i - 1;
-                    Object[] tmp = new Object[ this.values.length - 1 ];
-                    if( i != 0) {
-                        System.arraycopy( values, 0, tmp, 0, i );
-                    }
-                    if( moved != 0) {
-                        System.arraycopy( values, i + 1, tmp, i, moved );
-                    }
-                    this.values = tmp;
-                    tmp = null;
-                }
-                break;
+        if( null == this.values ) {
+            return;
+        }
+        if( this.values.remove( attrBytes ) ) {
+            this.decoded = null;
+            if( 0 == this.values.size() ) {
+                this.values = null;
             }
         }
         return;
@@ -750,7 +937,7 @@ public class LDAPAttribute implements java.lang.Cloneable,
      */
     public int size()
     {
-        return null == this.values ? 0 : this.values.length;
+        return null == this.values ? 0 : this.values.size();
     }
 
     /**
@@ -783,19 +970,11 @@ public class LDAPAttribute implements java.lang.Cloneable,
     private void add( byte[] bytes )
     {
         if( null == this.values ) {
-            this.values = new Object[]{ bytes };
-        } else {
-            // Duplicate attribute values not allowed
-            for( int i = 0; i < this.values.length; i++ ) {
-                if( equals( bytes, (byte[])this.values[i] ) ) {
-                    return; // Duplicate, don't add
-                }
-            }
-            Object[] tmp = new Object[ this.values.length + 1 ];
-            System.arraycopy( this.values, 0, tmp, 0, this.values.length );
-            tmp[ this.values.length ] = bytes;
-            this.values = tmp;
-            tmp = null;
+            this.values = new AttributeValueSet();
+        }
+        // Duplicate attribute values not allowed, the value set ignores them
+        if( this.values.add( bytes ) ) {
+            this.decoded = null;
         }
         return;
     }
@@ -807,6 +986,7 @@ public class LDAPAttribute implements java.lang.Cloneable,
      */
     protected void setValue(String value){
         values = null;
+        decoded = null;
         try {
             this.add( value.getBytes( "UTF-8" ) );
         } catch( UnsupportedEncodingException ue ) {
@@ -815,39 +995,6 @@ public class LDAPAttribute implements java.lang.Cloneable,
         return;
     }
 
-   /**
-    * Returns true if the two specified arrays of bytes are equal to each
-    * another.  Matches the logic of Arrays.equals which is not available
-    * in jdk 1.1.x.
-    *
-    * @param e1 the first array to be tested
-    * @param e2 the second array to be tested
-    * @return true if the two arrays are equal
-    */
-    private boolean equals(byte[] e1, byte[] e2)
-    {
-        // If same object, they compare true
-        if (e1==e2)
-            return true;
-
-        // If either but not both are null, they compare false
-        if (e1==null || e2==null)
-            return false;
-
-        // If arrays have different length, they compare false
-        int length = e1.length;
-        if (e2.length != length)
-            return false;
-
-        // If any of the bytes are different, they compare false
-        for (int i=0; i<length; i++) {
-            if (e1[i] != e2[i])
-                return false;
-        }
-
-        return true;
-    }
-
     /**
      * Returns a string representation of this LDAPAttribute
      *
@@ -860,19 +1007,19 @@ public class LDAPAttribute implements java.lang.Cloneable,
             result.append("{type='" + name + "'");
             if( values != null) {
                 result.append(", ");
-                if( values.length == 1) {
+                if( values.size() == 1) {
                     result.append("value='");
                 } else {
                     result.append("values='");
                 }
-                for(int i=0; i < values.length; i++) {
+                for(int i=0; i < values.size(); i++) {
                     if( i != 0) {
                         result.append("','");
                     }
-                    if( ((byte[])values[i]).length == 0) {
+                    if( values.get( i ).length == 0) {
                         continue;
                     }
-                    String sval = new String( (byte[])values[ i ], "UTF-8" );
+                    String sval = new String( values.get( i ), "UTF-8" );
                     if( sval.length() == 0) {
                         // didn't decode well, must be binary
                         result.append("<binary value, length:" + sval.length());
@@ -15,8 +15,9 @@
 
 package com.github.terefang.jldap.ldap;
 
-import java.util.HashMap;
 import java.util.Iterator;
+
+import com.github.terefang.jldap.ldap.client.AttributeNameMap;
 /**
  *
  * A set of {@link LDAPAttribute} objects.
@@ -43,10 +44,10 @@ public class LDAPAttributeSet
      * This is the underlying data structure for this set.
      * <p>HashSet is similar to the functionality of this set.  The difference
      * is we use the name of an attribute as keys in the Map and LDAPAttributes
-     * as the values.  We also do not declare the map as transient, making the
-     * map serializable.</p>
+     * as the values.  Names are hashed and compared ignoring ASCII case by the
+     * map itself, so lookups do not create upper case copies of the name.</p>
      */
-    private HashMap map;
+    private AttributeNameMap map;
 
     /**
      * Constructs an empty set of attributes.
@@ -101,7 +102,7 @@ public class LDAPAttributeSet
      * if there is no exact match.
      */
     public LDAPAttribute getAttribute(String attrName) {
-        return (LDAPAttribute)map.get(attrName.toUpperCase());
+        return (LDAPAttribute)map.get(attrName);
     }
 
     /**
@@ -165,8 +166,10 @@ public class LDAPAttributeSet
      *
      */
     public LDAPAttribute getAttribute(String attrName, String lang) {
-        String key = attrName + ";" + lang;
-        return (LDAPAttribute)map.get(key.toUpperCase());
+        if( lang == null || lang.length() == 0) {
+            return (LDAPAttribute)map.get(attrName);
+        }
+        return (LDAPAttribute)map.get(attrName, lang);
     }
 
     /**
@@ -234,7 +237,7 @@ public class LDAPAttributeSet
      * @return iterator over the attributes in this set
      */
     public Iterator iterator(){
-        return this.map.values().iterator();
+        return this.map.values();
     }
 
     /**
@@ -268,7 +271,7 @@ public class LDAPAttributeSet
      */
     public boolean contains(Object attr) {
         LDAPAttribute attribute = (LDAPAttribute) attr;
-        return this.map.containsKey( attribute.getName().toUpperCase() );
+        return this.map.containsKey( attribute.getName() );
     }
 
     /**
@@ -286,13 +289,7 @@ public class LDAPAttributeSet
     public boolean add(Object attr) {
         //We must enforce that attr is an LDAPAttribute
         LDAPAttribute attribute = (LDAPAttribute) attr;
-        String name = attribute.getName().toUpperCase();
-        if( this.map.containsKey(name))
-            return false;
-        else{
-            this.map.put(name, attribute);
-            return true;
-        }
+        return this.map.putIfAbsent(attribute.getName(), attribute);
     }
 
     /**
@@ -322,14 +319,14 @@ public class LDAPAttributeSet
         if (attributeName == null){
             return false;
         }
-        return (this.map.remove( attributeName.toUpperCase() ) != null );
+        return (this.map.remove( attributeName ) != null );
     }
 
     /**
      * Removes all of the elements from this set.
      */
     public void clear(){
-        this.map = new HashMap();
+        this.map = new AttributeNameMap();
     }
 
     /**
@@ -0,0 +1,250 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999 - 2002 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap;
+
+import java.util.Iterator;
+
+import com.github.terefang.jldap.ldap.asn1.ASN1Object;
+import com.github.terefang.jldap.ldap.asn1.ASN1OctetString;
+import com.github.terefang.jldap.ldap.asn1.ASN1Sequence;
+import com.github.terefang.jldap.ldap.asn1.ASN1Set;
+import com.github.terefang.jldap.ldap.client.AttributeDictionary;
+import com.github.terefang.jldap.ldap.client.AttributeNameMap;
+
+/**
+ * A read-only directory entry with a compact memory layout.
+ *
+ * <p>Compact entries are returned by a search when
+ * {@link LDAPSearchConstraints#setCompactEntries(boolean)} is enabled.  The
+ * attribute descriptions of the entry are stored as ids into an
+ * {@link AttributeDictionary} shared by all entries of the search, and all
+ * attribute values are packed into a single byte array with an offset
+ * table.  Compared to an LDAPEntry holding an LDAPAttributeSet, a compact
+ * entry needs a handful of objects instead of several objects per attribute
+ * and value, which matters when large result sets are kept in memory.</p>
+ *
+ * <p>The read methods of LDAPEntry are supported.  {@link #getAttribute}
+ * and {@link #getAttributeSet()} build new LDAPAttribute objects on each
+ * call; changing them does not change the entry.</p>
+ *
+ * @see LDAPSearchConstraints#setCompactEntries(boolean)
+ */
+public class LDAPCompactEntry extends LDAPEntry
+{
+    private AttributeDictionary dictionary;
+    private int[] names;      // dictionary id of each attribute
+    private int[] first;      // index of the first value of each attribute
+    private int[] offsets;    // start of each value in the arena
+    private byte[] arena;     // all values of the entry
+
+    /**
+     * Constructs a compact copy of an entry.
+     *
+     * @param entry      The entry to copy.
+     *<br><br>
+     * @param dictionary The dictionary holding the attribute descriptions,
+     *                   typically shared with other compact entries.
+     */
+    public LDAPCompactEntry(LDAPEntry entry, AttributeDictionary dictionary)
+    {
+        super( entry.getDN(), null);
+        this.attrs = null;
+        this.dictionary = dictionary;
+
+        LDAPAttributeSet set = entry.getAttributeSet();
+        int attrCount = set.size();
+        int valueCount = 0;
+        int length = 0;
+        Iterator i = set.iterator();
+        while( i.hasNext()) {
+            byte[][] values = ((LDAPAttribute)i.next()).getByteValueArray();
+            valueCount += values.length;
+            for( int j = 0; j < values.length; j++) {
+                length += values[j].length;
+            }
+        }
+        allocate( attrCount, valueCount, length);
+
+        int a = 0, v = 0, pos = 0;
+        i = set.iterator();
+        while( i.hasNext()) {
+            LDAPAttribute attr = (LDAPAttribute)i.next();
+            names[a] = dictionary.intern( attr.getName());
+            first[a++] = v;
+            byte[][] values = attr.getByteValueArray();
+            for( int j = 0; j < values.length; j++) {
+                offsets[v++] = pos;
+                System.arraycopy( values[j], 0, arena, pos, values[j].length);
+                pos += values[j].length;
+            }
+        }
+        first[a] = v;
+        offsets[v] = pos;
+        return;
+    }
+
+    /**
+     * Constructs a compact entry from the attribute list of a search result
+     * entry.
+     *
+     * @param dn         The distinguished name of the entry.
+     *<br><br>
+     * @param attrList   The PartialAttributeList of the search result entry.
+     *<br><br>
+     * @param dictionary The dictionary holding the attribute descriptions.
+     */
+    /* package */
+    LDAPCompactEntry(String dn, ASN1Sequence attrList,
+                     AttributeDictionary dictionary)
+    {
+        super( dn, null);
+        this.attrs = null;
+        this.dictionary = dictionary;
+
+        ASN1Object[] seqArray = attrList.toArray();
+        int valueCount = 0;
+        int length = 0;
+        for( int i = 0; i < seqArray.length; i++) {
+            ASN1Set set = (ASN1Set)((ASN1Sequence)seqArray[i]).get(1);
+            valueCount += set.size();
+            for( int j = 0; j < set.size(); j++) {
+                length += ((ASN1OctetString)set.get(j)).byteValue().length;
+            }
+        }
+        allocate( seqArray.length, valueCount, length);
+
+        int v = 0, pos = 0;
+        for( int i = 0; i < seqArray.length; i++) {
+            ASN1Sequence seq = (ASN1Sequence)seqArray[i];
+            names[i] = dictionary.intern(
+                                ((ASN1OctetString)seq.get(0)).byteValue());
+            first[i] = v;
+            ASN1Set set = (ASN1Set)seq.get(1);
+            for( int j = 0; j < set.size(); j++) {
+                byte[] value = ((ASN1OctetString)set.get(j)).byteValue();
+                offsets[v++] = pos;
+                System.arraycopy( value, 0, arena, pos, value.length);
+                pos += value.length;
+            }
+        }
+        first[seqArray.length] = v;
+        offsets[v] = pos;
+        return;
+    }
+
+    private void allocate(int attrCount, int valueCount, int length)
+    {
+        names = new int[ attrCount ];
+        first = new int[ attrCount + 1 ];
+        offsets = new int[ valueCount + 1 ];
+        arena = new byte[ length ];
+        return;
+    }
+
+   /**
+    * Returns the attribute matching the specified attrName.
+    *
+    * <p>A new LDAPAttribute holding copies of the values is returned on
+    * each call.</p>
+    *
+    * @param attrName The name of the attribute to return.
+    * <br><br>
+    * @return The attribute or <code>null</code> if the entry has no
+    *         attribute of that name.
+    */
+    public LDAPAttribute getAttribute(String attrName)
+    {
+        for( int i = 0; i < names.length; i++) {
+            String name = dictionary.getName( names[i]);
+            if( name.length() == attrName.length()
+                    && AttributeNameMap.regionEquals( name, 0, attrName)) {
+                return toAttribute( i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the attribute set of the entry.
+     *
+     * <p>A new set of new LDAPAttribute objects is returned on each call;
+     * changing it does not change the entry.</p>
+     *
+     * @return The attribute set of the entry.
+     */
+    public LDAPAttributeSet getAttributeSet()
+    {
+        LDAPAttributeSet set = new LDAPAttributeSet();
+        for( int i = 0; i < names.length; i++) {
+            set.add( toAttribute( i));
+        }
+        return set;
+    }
+
+    /**
+     * Returns an attribute set from the entry, consisting of only those
+     * attributes matching the specified subtypes.
+     *
+     * @param subtype  One or more subtype specification(s), separated
+     *                 with semicolons.
+     *
+     * @return An attribute set from the entry with the attributes that
+     *         match the specified subtypes or an empty set if no attributes
+     *         match.
+     *
+     * @see LDAPEntry#getAttributeSet(String)
+     */
+    public LDAPAttributeSet getAttributeSet(String subtype)
+    {
+        return getAttributeSet().getSubset( subtype);
+    }
+
+    /**
+     * Returns the number of attributes in the entry.
+     *
+     * @return The number of attributes.
+     */
+    public int size()
+    {
+        return names.length;
+    }
+
+    private LDAPAttribute toAttribute(int index)
+    {
+        LDAPAttribute attr = new LDAPAttribute( dictionary.getName( names[index]));
+        for( int v = first[index]; v < first[index + 1]; v++) {
+            byte[] value = new byte[ offsets[v + 1] - offsets[v] ];
+            System.arraycopy( arena, offsets[v], value, 0, value.length);
+            attr.addValue( value);
+        }
+        return attr;
+    }
+
+    /**
+     * Returns a string representation of this LDAPCompactEntry
+     *
+     * @return a string representation of this LDAPCompactEntry
+     */
+    public String toString()
+    {
+        StringBuffer result = new StringBuffer("LDAPEntry: ");
+        if( dn != null) {
+            result.append(dn + "; ");
+        }
+        result.append(getAttributeSet().toString());
+        return result.toString();
+    }
+}
@@ -0,0 +1,594 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A read-only view of an {@link LDAPSchema} with the relations between the
+ * schema definitions resolved in advance.
+ *
+ * <p>The view is built once from the schema, and holds for each object class
+ * all its superclasses and the closures of its required and optional
+ * attributes including those inherited from superclasses, and for each
+ * attribute type its chain of supertypes, its subtypes and its effective
+ * syntax and matching rules, inherited from the supertypes when not defined
+ * by the attribute itself.  The query methods are hash lookups, so they can
+ * be used on hot paths such as entry validation.</p>
+ *
+ * <p>Names and OIDs are accepted wherever an attribute type or object class
+ * is expected, names are compared ignoring case.  Sets of attribute types and
+ * object classes are returned as unmodifiable sets of OIDs.  Attribute types
+ * named by an object class but not defined in the schema are represented by
+ * their lower cased name.</p>
+ *
+ * <p>Obtain the view with {@link LDAPSchema#getCompiledSchema()}.  A view may
+ * be used by any number of threads.</p>
+ *
+ * @see LDAPSchema
+ */
+public class LDAPCompiledSchema
+{
+    private static final String[] NONE = new String[0];
+
+    /* Depth limit of superior chains, guards against cycles */
+    private static final int MAX_DEPTH = 64;
+
+    private final HashMap attributes = new HashMap();  // key to AttributeType
+    private final HashMap classes = new HashMap();     // key to ObjectClass
+    private final LDAPSchema schema;
+
+    /* The resolved definition of an attribute type */
+    private static final class AttributeType
+    {
+        private LDAPAttributeSchema definition;
+        private String oid;
+        private String[] supertypes = NONE;     // nearest first
+        private Set supertypeSet = Collections.EMPTY_SET;
+        private Set subtypes = new HashSet();
+        private String syntax;
+        private String equality;
+        private String ordering;
+        private String substring;
+    }
+
+    /* The resolved definition of an object class */
+    private static final class ObjectClass
+    {
+        private LDAPObjectClassSchema definition;
+        private String oid;
+        private Set superclasses;               // not including itself
+        private Set required;
+        private Set optional;
+        private Set allowed;                    // required and optional
+        private boolean resolving = false;
+    }
+
+    /**
+     * Builds the view of a schema.
+     *
+     * @param schema The schema to compile.
+     */
+    /* package */
+    LDAPCompiledSchema(LDAPSchema schema)
+    {
+        this.schema = schema;
+        Enumeration e = schema.getAttributeSchemas();
+        while( e.hasMoreElements()) {
+            LDAPAttributeSchema def = (LDAPAttributeSchema)e.nextElement();
+            AttributeType type = new AttributeType();
+            type.definition = def;
+            type.oid = def.getID();
+            register( attributes, def, type);
+        }
+        e = schema.getObjectClassSchemas();
+        while( e.hasMoreElements()) {
+            LDAPObjectClassSchema def = (LDAPObjectClassSchema)e.nextElement();
+            ObjectClass oc = new ObjectClass();
+            oc.definition = def;
+            oc.oid = def.getID();
+            register( classes, def, oc);
+        }
+
+        // Attribute supertype chains and inherited properties
+        Iterator itr = new HashSet( attributes.values()).iterator();
+        while( itr.hasNext()) {
+            AttributeType type = (AttributeType)itr.next();
+            ArrayList chain = new ArrayList();
+            HashSet seen = new HashSet();
+            AttributeType sup = superior( type);
+            while( sup != null && chain.size() < MAX_DEPTH &&
+                   seen.add( sup.oid) && !sup.oid.equals( type.oid)) {
+                chain.add( sup.oid);
+                sup.subtypes.add( type.oid);
+                sup = superior( sup);
+            }
+            if( !chain.isEmpty()) {
+                type.supertypes =
+                    (String[])chain.toArray( new String[ chain.size() ]);
+                type.supertypeSet = Collections.unmodifiableSet( seen);
+            }
+            type.syntax = inherited( type, 0);
+            type.equality = inherited( type, 1);
+            type.ordering = inherited( type, 2);
+            type.substring = inherited( type, 3);
+        }
+        itr = attributes.values().iterator();
+        while( itr.hasNext()) {
+            AttributeType type = (AttributeType)itr.next();
+            if( !(type.subtypes instanceof HashSet)) {
+                continue; // already wrapped, registered under another key
+            }
+            type.subtypes = Collections.unmodifiableSet( type.subtypes);
+        }
+
+        // Object class closures
+        itr = new HashSet( classes.values()).iterator();
+        while( itr.hasNext()) {
+            resolve( (ObjectClass)itr.next(), 0);
+        }
+        return;
+    }
+
+    /* Enters an element under its OID and its lower cased names */
+    private static void register(HashMap map, LDAPSchemaElement def,
+                                 Object value)
+    {
+        map.put( def.getID(), value);
+        String[] names = def.getNames();
+        if( names != null) {
+            for( int i = 0; i < names.length; i++) {
+                map.put( names[i].toLowerCase( Locale.ENGLISH), value);
+            }
+        }
+        return;
+    }
+
+    private AttributeType superior(AttributeType type)
+    {
+        String sup = type.definition.getSuperior();
+        return sup == null ? null : attribute( sup);
+    }
+
+    /*
+     * Returns a property of an attribute type, taken from the nearest
+     * supertype defining it when the type itself does not.
+     */
+    private String inherited(AttributeType type, int property)
+    {
+        String value = property( type.definition, property);
+        for( int i = 0; value == null && i < type.supertypes.length; i++) {
+            AttributeType sup = attribute( type.supertypes[i]);
+            value = property( sup.definition, property);
+        }
+        return value;
+    }
+
+    private static String property(LDAPAttributeSchema def, int property)
+    {
+        switch( property) {
+        case 0:
+            String syntax = def.getSyntaxString();
+            if( syntax != null && syntax.indexOf('{') >= 0) {
+                // strip the length bound
+                syntax = syntax.substring( 0, syntax.indexOf('{'));
+            }
+            return syntax;
+        case 1:
+            return def.getEqualityMatchingRule();
+        case 2:
+            return def.getOrderingMatchingRule();
+        default:
+            return def.getSubstringMatchingRule();
+        }
+    }
+
+    /* Computes the superclasses and attribute closures of an object class */
+    private void resolve(ObjectClass oc, int depth)
+    {
+        if( oc.superclasses != null || oc.resolving) {
+            return;
+        }
+        oc.resolving = true;
+        HashSet superclasses = new HashSet();
+        HashSet required = new HashSet();
+        HashSet optional = new HashSet();
+        addAttributes( required, oc.definition.getRequiredAttributes());
+        addAttributes( optional, oc.definition.getOptionalAttributes());
+        String[] sups = oc.definition.getSuperiors();
+        if( sups != null) {
+            for( int i = 0; i < sups.length; i++) {
+                ObjectClass sup = objectClass( sups[i]);
+                if( sup == null || sup == oc) {
+                    continue;
+                }
+                if( depth < MAX_DEPTH) {
+                    resolve( sup, depth + 1);
+                }
+                superclasses.add( sup.oid);
+                if( sup.superclasses != null) {
+                    superclasses.addAll( sup.superclasses);
+                    required.addAll( sup.required);
+                    optional.addAll( sup.optional);
+                }
+            }
+        }
+        superclasses.remove( oc.oid);
+        optional.removeAll( required);
+        HashSet allowed = new HashSet( required);
+        allowed.addAll( optional);
+        oc.superclasses = Collections.unmodifiableSet( superclasses);
+        oc.required = Collections.unmodifiableSet( required);
+        oc.optional = Collections.unmodifiableSet( optional);
+        oc.allowed = Collections.unmodifiableSet( allowed);
+        oc.resolving = false;
+        return;
+    }
+
+    private void addAttributes(Set set, String[] names)
+    {
+        if( names != null) {
+            for( int i = 0; i < names.length; i++) {
+                set.add( getAttributeOID( names[i]));
+            }
+        }
+        return;
+    }
+
+    private AttributeType attribute(String name)
+    {
+        if( name == null) {
+            return null;
+        }
+        AttributeType type = (AttributeType)attributes.get( name);
+        if( type == null) {
+            type = (AttributeType)attributes.get(
+                                        name.toLowerCase( Locale.ENGLISH));
+        }
+        return type;
+    }
+
+    private ObjectClass objectClass(String name)
+    {
+        if( name == null) {
+            return null;
+        }
+        ObjectClass oc = (ObjectClass)classes.get( name);
+        if( oc == null) {
+            oc = (ObjectClass)classes.get( name.toLowerCase( Locale.ENGLISH));
+        }
+        return oc;
+    }
+
+    /**
+     * Returns the schema this view was built from.
+     *
+     * @return The schema.
+     */
+    public LDAPSchema getSchema()
+    {
+        return schema;
+    }
+
+    // ******************************************************************
+    //  Attribute types
+    // ******************************************************************
+
+    /**
+     * Returns the OID of an attribute type.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The OID, or the lower cased name if the schema does not
+     *         define the attribute type.
+     */
+    public String getAttributeOID(String name)
+    {
+        AttributeType type = attribute( name);
+        return type != null ? type.oid : name.toLowerCase( Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the definition of an attribute type.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The definition, or null if not found.
+     */
+    public LDAPAttributeSchema getAttributeSchema(String name)
+    {
+        AttributeType type = attribute( name);
+        return type == null ? null : type.definition;
+    }
+
+    /**
+     * Returns the supertypes of an attribute type, nearest first.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The OIDs of the supertypes, an empty array if there are none.
+     */
+    public String[] getSupertypes(String name)
+    {
+        AttributeType type = attribute( name);
+        return type == null || type.supertypes.length == 0 ? NONE
+                              : (String[])type.supertypes.clone();
+    }
+
+    /**
+     * Returns all direct and indirect subtypes of an attribute type.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The set of OIDs of the subtypes, possibly empty.
+     */
+    public Set getSubtypes(String name)
+    {
+        AttributeType type = attribute( name);
+        return type == null ? Collections.EMPTY_SET : type.subtypes;
+    }
+
+    /**
+     * Reports whether an attribute type is the same as or a subtype of
+     * another attribute type.  For example cn is a subtype of name.
+     *
+     * @param name      The name or OID of the attribute type.
+     * @param supertype The name or OID of the possible supertype.
+     *
+     * @return true if the attribute type is supertype or derives from it.
+     */
+    public boolean isSubtypeOf(String name, String supertype)
+    {
+        AttributeType type = attribute( name);
+        AttributeType sup = attribute( supertype);
+        if( type == null || sup == null) {
+            return type == null && sup == null && name.equalsIgnoreCase( supertype);
+        }
+        return type == sup || type.supertypeSet.contains( sup.oid);
+    }
+
+    /**
+     * Returns the syntax OID of an attribute type, inherited from its
+     * supertypes if the type does not define one.  Length bounds are
+     * removed.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The syntax OID, or null if none is defined.
+     */
+    public String getSyntax(String name)
+    {
+        AttributeType type = attribute( name);
+        return type == null ? null : type.syntax;
+    }
+
+    /**
+     * Returns the syntax definition of an attribute type.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The syntax definition, or null if not defined in the schema.
+     */
+    public LDAPSyntaxSchema getSyntaxSchema(String name)
+    {
+        String syntax = getSyntax( name);
+        return syntax == null ? null : schema.getSyntaxSchema( syntax);
+    }
+
+    /**
+     * Returns the equality matching rule of an attribute type, inherited
+     * from its supertypes if the type does not define one.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The name or OID of the rule, or null if none is defined.
+     */
+    public String getEqualityMatchingRule(String name)
+    {
+        AttributeType type = attribute( name);
+        return type == null ? null : type.equality;
+    }
+
+    /**
+     * Returns the ordering matching rule of an attribute type, inherited
+     * from its supertypes if the type does not define one.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The name or OID of the rule, or null if none is defined.
+     */
+    public String getOrderingMatchingRule(String name)
+    {
+        AttributeType type = attribute( name);
+        return type == null ? null : type.ordering;
+    }
+
+    /**
+     * Returns the substring matching rule of an attribute type, inherited
+     * from its supertypes if the type does not define one.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The name or OID of the rule, or null if none is defined.
+     */
+    public String getSubstringMatchingRule(String name)
+    {
+        AttributeType type = attribute( name);
+        return type == null ? null : type.substring;
+    }
+
+    /**
+     * Returns the definition of the equality matching rule of an attribute
+     * type.
+     *
+     * @param name The name or OID of the attribute type.
+     *
+     * @return The rule definition, or null if not defined in the schema.
+     */
+    public LDAPMatchingRuleSchema getEqualityMatchingRuleSchema(String name)
+    {
+        String rule = getEqualityMatchingRule( name);
+        return rule == null ? null : schema.getMatchingRuleSchema( rule);
+    }
+
+    // ******************************************************************
+    //  Object classes
+    // ******************************************************************
+
+    /**
+     * Returns the OID of an object class.
+     *
+     * @param name The name or OID of the object class.
+     *
+     * @return The OID, or null if the schema does not define the class.
+     */
+    public String getObjectClassOID(String name)
+    {
+        ObjectClass oc = objectClass( name);
+        return oc == null ? null : oc.oid;
+    }
+
+    /**
+     * Returns the definition of an object class.
+     *
+     * @param name The name or OID of the object class.
+     *
+     * @return The definition, or null if not found.
+     */
+    public LDAPObjectClassSchema getObjectClassSchema(String name)
+    {
+        ObjectClass oc = objectClass( name);
+        return oc == null ? null : oc.definition;
+    }
+
+    /**
+     * Returns all direct and indirect superclasses of an object class.
+     *
+     * @param name The name or OID of the object class.
+     *
+     * @return The set of OIDs of the superclasses, possibly empty.
+     */
+    public Set getSuperclasses(String name)
+    {
+        ObjectClass oc = objectClass( name);
+        return oc == null ? Collections.EMPTY_SET : oc.superclasses;
+    }
+
+    /**
+     * Reports whether an object class is the same as or derives from
+     * another object class.
+     *
+     * @param name       The name or OID of the object class.
+     * @param superclass The name or OID of the possible superclass.
+     *
+     * @return true if the class is superclass or derives from it.
+     */
+    public boolean isSubclassOf(String name, String superclass)
+    {
+        ObjectClass oc = objectClass( name);
+        ObjectClass sup = objectClass( superclass);
+        if( oc == null || sup == null) {
+            return false;
+        }
+        return oc == sup || oc.superclasses.contains( sup.oid);
+    }
+
+    /**
+     * Returns the attribute types required by an object class, including
+     * those required by its superclasses.
+     *
+     * @param name The name or OID of the object class.
+     *
+     * @return The set of OIDs of the required attribute types.
+     */
+    public Set getRequiredAttributes(String name)
+    {
+        ObjectClass oc = objectClass( name);
+        return oc == null ? Collections.EMPTY_SET : oc.required;
+    }
+
+    /**
+     * Returns the attribute types allowed but not required by an object
+     * class, including those of its superclasses.
+     *
+     * @param name The name or OID of the object class.
+     *
+     * @return The set of OIDs of the optional attribute types.
+     */
+    public Set getOptionalAttributes(String name)
+    {
+        ObjectClass oc = objectClass( name);
+        return oc == null ? Collections.EMPTY_SET : oc.optional;
+    }
+
+    /**
+     * Reports whether an attribute type is required by an object class or
+     * one of its superclasses.
+     *
+     * @param objectClass The name or OID of the object class.
+     * @param attribute   The name or OID of the attribute type.
+     *
+     * @return true if the attribute type is required.
+     */
+    public boolean isRequired(String objectClass, String attribute)
+    {
+        ObjectClass oc = objectClass( objectClass);
+        return oc != null && oc.required.contains( getAttributeOID( attribute));
+    }
+
+    /**
+     * Reports whether an attribute type is required or allowed by an
+     * object class or one of its superclasses.
+     *
+     * @param objectClass The name or OID of the object class.
+     * @param attribute   The name or OID of the attribute type.
+     *
+     * @return true if the attribute type is allowed.
+     */
+    public boolean isAllowed(String objectClass, String attribute)
+    {
+        ObjectClass oc = objectClass( objectClass);
+        return oc != null && oc.allowed.contains( getAttributeOID( attribute));
+    }
+
+    /**
+     * Reports whether an attribute type is required or allowed by any of
+     * the object classes of an entry.
+     *
+     * @param objectClasses The names or OIDs of the object classes.
+     * @param attribute     The name or OID of the attribute type.
+     *
+     * @return true if the attribute type is allowed.
+     */
+    public boolean isAllowed(String[] objectClasses, String attribute)
+    {
+        String oid = getAttributeOID( attribute);
+        for( int i = 0; i < objectClasses.length; i++) {
+            ObjectClass oc = objectClass( objectClasses[i]);
+            if( oc != null && oc.allowed.contains( oid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -15,6 +15,8 @@
 
 package com.github.terefang.jldap.ldap;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Hashtable;
@@ -3517,6 +3519,118 @@ public class LDAPConnection implements Cloneable
                                                  cons.getMaxResults(),
                                                  cons.getServerTimeLimit(),
                                                  typesOnly, cons.getControls());
+        return sendSearchRequest( msg, queue, cons);
+    }
+
+    /**
+     * Synchronously performs a search using a precompiled filter template.
+     *
+     * <p>The filter is bound to the specified values without parsing a
+     * filter string, see {@link LDAPFilterTemplate}.</p>
+     *
+     *  @param base           The base distinguished name to search from.
+     *<br><br>
+     *  @param scope          The scope of the entries to search.
+     *<br><br>
+     *  @param filter         The filter template specifying the search
+     *                        criteria.
+     *<br><br>
+     *  @param values         The values of the template parameters, Strings
+     *                        or byte arrays.
+     *<br><br>
+     *  @param attrs          The names of attributes to retrieve.
+     *<br><br>
+     *  @param typesOnly      If true, returns the names but not the values of
+     *                        the attributes found.  If false, returns the
+     *                        names and values for attributes found.
+     *<br><br>
+     *  @param cons           The constraints specific to the search.
+     *
+     * @exception LDAPException A general exception which includes an error
+     * message and an LDAP error code.
+     */
+    public LDAPSearchResults search(String base,
+                                    int scope,
+                                    LDAPFilterTemplate filter,
+                                    Object[] values,
+                                    String[] attrs,
+                                    boolean typesOnly,
+                                    LDAPSearchConstraints cons)
+        throws LDAPException
+    {
+        LDAPSearchQueue queue =
+            search(base, scope, filter, values, attrs, typesOnly, null, cons);
+
+        if( cons == null )
+            cons = defSearchCons;
+        return new LDAPSearchResults(this, queue, cons);
+    }
+
+    /**
+     * Asynchronously performs a search using a precompiled filter template.
+     *
+     * <p>The filter is bound to the specified values without parsing a
+     * filter string, see {@link LDAPFilterTemplate}.</p>
+     *
+     *  @param base           The base distinguished name to search from.
+     *<br><br>
+     *  @param scope          The scope of the entries to search.
+     *<br><br>
+     *  @param filter         The filter template specifying the search
+     *                        criteria.
+     *<br><br>
+     *  @param values         The values of the template parameters, Strings
+     *                        or byte arrays.
+     *<br><br>
+     *  @param attrs          The names of attributes to retrieve.
+     *<br><br>
+     *  @param typesOnly      If true, returns the names but not the values of
+     *                        the attributes found.  If false, returns the
+     *                        names and values for attributes found.
+     * <br><br>
+     *  @param queue          The queue for messages returned from a server in
+     *                        response to this request. If it is null, a
+     *                        queue object is created internally.
+     *<br><br>
+     *  @param cons           The constraints specific to the search.
+     *
+     * @exception LDAPException A general exception which includes an error
+     * message and an LDAP error code.
+     */
+    public LDAPSearchQueue search(String base,
+                                  int scope,
+                                  LDAPFilterTemplate filter,
+                                  Object[] values,
+                                  String[] attrs,
+                                  boolean typesOnly,
+                                  LDAPSearchQueue queue,
+                                  LDAPSearchConstraints cons)
+        throws LDAPException
+    {
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.apiRequests, name +
+            "search(\"" + base + "\"," + scope + ",\"" + filter + "\")");
+        }
+        if(cons == null)
+            cons = defSearchCons;
+
+        LDAPMessage msg = new LDAPSearchRequest( base, scope,
+                                                 filter.bind( values),
+                                                 attrs, cons.getDereference(),
+                                                 cons.getMaxResults(),
+                                                 cons.getServerTimeLimit(),
+                                                 typesOnly, cons.getControls());
+        return sendSearchRequest( msg, queue, cons);
+    }
+
+    /*
+     * Sends a search request, creating the queue if none is given.
+     */
+    private LDAPSearchQueue sendSearchRequest(LDAPMessage msg,
+                                              LDAPSearchQueue queue,
+                                              LDAPSearchConstraints cons)
+        throws LDAPException
+    {
         MessageAgent agent;
         LDAPSearchQueue myqueue = queue;
         if(myqueue == null) {
@@ -4250,6 +4364,70 @@ public class LDAPConnection implements Cloneable
         return new LDAPSchema(ent);
     }
 
+    /**
+     * Retrieves the schema associated with a particular schema DN, using a
+     * snapshot file to avoid fetching the schema when it has not changed.
+     *
+     * <p>If the snapshot file exists and holds the schema of schemaDN with
+     * the same modifyTimestamp, or createTimestamp, as the subschema entry
+     * on the server, the schema is read from the snapshot.  Otherwise the
+     * schema is fetched from the server and written to the snapshot file.
+     * Checking the timestamps is a single read of two attributes.</p>
+     *
+     * <p>A snapshot that cannot be read is ignored, and a failure to write
+     * the snapshot does not fail the method.  If the server returns neither
+     * timestamp the schema is always fetched.</p>
+     *
+     * @param    schemaDN The schema DN used to fetch the schema.
+     *
+     * @param    snapshot The snapshot file.
+     *
+     * @return    An LDAPSchema entry containing schema attributes.
+     *
+     * @exception LDAPException     This exception occurs if the schema entry
+     *          cannot be retrieved with this connection.
+     * @see #fetchSchema(String)
+     * @see LDAPSchemaSnapshot
+     */
+    public LDAPSchema fetchSchema ( String schemaDN, File snapshot )
+            throws LDAPException
+    {
+        if( snapshot.exists()) {
+            LDAPEntry ent = read(schemaDN, LDAPSchemaSnapshot.timestampNames);
+            String timestamp = LDAPSchemaSnapshot.getTimestamp(ent);
+            if( timestamp != null) {
+                try {
+                    LDAPSchema schema = LDAPSchemaSnapshot.read(snapshot);
+                    if( timestamp.equals(
+                                LDAPSchemaSnapshot.getTimestamp(schema)) &&
+                            LDAPDN.equals(schemaDN, schema.getDN())) {
+                        return schema;
+                    }
+                } catch( IOException ioe) {
+                    if( Debug.LDAP_DEBUG) {
+                        Debug.trace( Debug.all, name +
+                            "Ignoring schema snapshot " + snapshot + ": " + ioe);
+                    }
+                }
+            }
+        }
+        LDAPEntry ent = read(schemaDN,
+                        LDAPSchemaSnapshot.getSnapshotAttributeNames());
+        LDAPSchema schema = new LDAPSchema(ent);
+        if( LDAPSchemaSnapshot.getTimestamp(schema) != null) {
+            try {
+                LDAPSchemaSnapshot.write(schema, snapshot);
+            } catch( IOException ioe) {
+                if( Debug.LDAP_DEBUG) {
+                    Debug.trace( Debug.all, name +
+                        "Could not write schema snapshot " + snapshot + ": " +
+                        ioe);
+                }
+            }
+        }
+        return schema;
+    }
+
     /**
      * Retrieves the Distiguished Name (DN) for the schema advertised in the
      * root DSE of the Directory Server.
@@ -15,6 +15,7 @@
 
 package com.github.terefang.jldap.ldap;
 import com.github.terefang.jldap.ldap.util.DN;
+import com.github.terefang.jldap.ldap.util.NormalizedDN;
 import com.github.terefang.jldap.ldap.util.RDN;
 
 /**
@@ -40,9 +41,7 @@ public class LDAPDN {
     */
 
     public static boolean equals (String dn1, String dn2) {
-        DN dnA = new DN(dn1);
-        DN dnB = new DN(dn2);
-        return dnA.equals(dnB);
+        return NormalizedDN.valueOf(dn1).equals(NormalizedDN.valueOf(dn2));
     }
 
    /**
@@ -159,7 +158,9 @@ public class LDAPDN {
      * @return      a normalized string
      */
     public static String normalize(String dn){
-        DN testDN = new DN(dn);
+        NormalizedDN testDN = NormalizedDN.valueOf(dn);
+        if (testDN.countRDNs() == 0)
+            return null;
         return testDN.toString();
     }
 
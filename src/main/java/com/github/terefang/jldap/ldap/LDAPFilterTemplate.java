@@ -0,0 +1,641 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999 - 2002 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import com.github.terefang.jldap.ldap.asn1.ASN1Choice;
+import com.github.terefang.jldap.ldap.asn1.ASN1Encoder;
+import com.github.terefang.jldap.ldap.asn1.ASN1Identifier;
+import com.github.terefang.jldap.ldap.asn1.ASN1Object;
+import com.github.terefang.jldap.ldap.asn1.ASN1OctetString;
+import com.github.terefang.jldap.ldap.asn1.ASN1Structured;
+import com.github.terefang.jldap.ldap.asn1.ASN1Tagged;
+import com.github.terefang.jldap.ldap.asn1.LBEREncoder;
+import com.github.terefang.jldap.ldap.rfc2251.RfcFilter;
+import com.github.terefang.jldap.ldap.rfc2251.RfcSubstringFilter;
+import com.github.terefang.jldap.ldap.util.FilterEscape;
+
+/**
+ * A search filter that is parsed once and used with different values.
+ *
+ * <p>A template is an RFC 2254 filter string in which assertion values, or
+ * parts of them, are replaced by numbered parameters, for example
+ * <code>(&amp;(uid={0})(objectClass=person))</code> or
+ * <code>(|(cn={0}*)(mail={1}))</code>.  The template is parsed and
+ * validated when it is constructed, and the parts of the filter that do not
+ * depend on a parameter are encoded to BER once.  Binding values to the
+ * parameters then only copies bytes and computes the lengths of the
+ * enclosing elements, the filter string is not parsed again.</p>
+ *
+ * <p>Parameter values are always taken literally: characters such as
+ * <code>*</code>, <code>(</code>, <code>)</code> and <code>\</code> in a
+ * value are part of the assertion value and cannot change the structure of
+ * the filter.  Values need not, and must not, be escaped.  Values are given
+ * as Strings, which are encoded in UTF-8, or as byte arrays.  A value that
+ * makes up a whole initial, any or final substring, as in
+ * <code>(cn={0}*)</code>, must not be empty, since substrings are never
+ * empty; binding an empty value there throws an
+ * IllegalArgumentException.</p>
+ *
+ * <p>Parameters may only appear in assertion values, not in attribute
+ * descriptions or matching rules.  A literal <code>{</code> followed by
+ * digits and <code>}</code> in a template must be escaped as
+ * <code>\7b</code>.</p>
+ *
+ * <p>A template is immutable and may be shared by any number of
+ * threads.</p>
+ *
+ * @see LDAPConnection#search(String, int, LDAPFilterTemplate, Object[],
+ *                            String[], boolean, LDAPSearchConstraints)
+ */
+public class LDAPFilterTemplate implements Serializable
+{
+    // Marks parameters in the filter string given to the parser.  U+FFFE is
+    // not a character and is rejected in attribute descriptions.
+    private static final char MARK = '\uFFFE';
+    private static final byte[] MARK_UTF8 =
+                        { (byte)0xEF, (byte)0xBF, (byte)0xBE };
+
+    private static final int CONSTANT    = 0; // pre-encoded element
+    private static final int CONSTRUCTED = 1; // element with parameters
+    private static final int VALUE       = 2; // octet string with parameters
+
+    private final String template;
+    private final int paramCount;
+    private final Object[] segments;    // String and Integer parameter index
+    private final int[][] substrings;   // parameters making up a substring
+    private final Node root;
+    private final int nodeCount;
+    private final ASN1Identifier rootId;
+
+    /* An element of the compiled filter */
+    private static final class Node implements Serializable
+    {
+        private int id;
+        private int kind;
+        private byte[] head;     // identifier octets, or the whole encoding
+        private Node[] children; // CONSTRUCTED
+        private Object[] parts;  // VALUE: byte[] and Integer parameter index
+    }
+
+    /* Compilation state */
+    private static final class State
+    {
+        private final ASN1Encoder encoder = new LBEREncoder();
+        private int nodes = 0;
+        private int params = 0;
+    }
+
+    /**
+     * Compiles a filter template.
+     *
+     * @param template The filter string, with parameters written as
+     *                 <code>{0}</code>, <code>{1}</code> and so on in
+     *                 assertion values.
+     *
+     * @exception LDAPException if the template is not a valid filter.
+     */
+    public LDAPFilterTemplate(String template)
+            throws LDAPException
+    {
+        if( template == null) {
+            throw new IllegalArgumentException(
+                                        "Filter template cannot be null");
+        }
+        this.template = template;
+
+        ArrayList list = new ArrayList();
+        StringBuffer text = new StringBuffer();
+        StringBuffer marked = new StringBuffer( template.length() + 16);
+        int max = -1;
+        int occurrences = 0;
+        int len = template.length();
+        for( int i = 0; i < len; i++) {
+            char c = template.charAt( i);
+            if( c == MARK) {
+                throw new LDAPLocalException(
+                        "Invalid character in filter template: \\ef\\bf\\be",
+                        LDAPException.FILTER_ERROR);
+            }
+            if( c == '{') {
+                int j = i + 1;
+                int n = 0;
+                while( j < len && j - i <= 4 &&
+                       template.charAt( j) >= '0' && template.charAt( j) <= '9') {
+                    n = n * 10 + (template.charAt( j) - '0');
+                    j++;
+                }
+                if( j > i + 1 && j < len && template.charAt( j) == '}') {
+                    if( text.length() > 0) {
+                        list.add( text.toString());
+                        text.setLength( 0);
+                    }
+                    list.add( new Integer( n));
+                    marked.append( MARK).append( n).append( MARK);
+                    max = Math.max( max, n);
+                    occurrences++;
+                    i = j;
+                    continue;
+                }
+            }
+            text.append( c);
+            marked.append( c);
+        }
+        if( text.length() > 0) {
+            list.add( text.toString());
+        }
+        this.segments = list.toArray();
+        this.paramCount = max + 1;
+
+        RfcFilter filter = new RfcFilter( marked.toString());
+        State state = new State();
+        this.root = compile( filter, state);
+        this.nodeCount = state.nodes;
+        this.rootId = filter.getIdentifier();
+        if( state.params != occurrences) {
+            throw new LDAPLocalException(
+                    "Filter template parameters may only be used in values",
+                    LDAPException.FILTER_ERROR);
+        }
+        ArrayList groups = new ArrayList();
+        findSubstrings( filter, groups);
+        this.substrings = (int[][])groups.toArray( new int[ groups.size() ][]);
+        return;
+    }
+
+    /**
+     * Returns the filter template string.
+     *
+     * @return The template as given to the constructor.
+     */
+    public String getTemplate()
+    {
+        return template;
+    }
+
+    /**
+     * Returns the number of values needed to bind this template, one more
+     * than the highest parameter number.
+     *
+     * @return The number of parameters.
+     */
+    public int getParameterCount()
+    {
+        return paramCount;
+    }
+
+    /**
+     * Binds values to the parameters and returns the BER encoding of the
+     * resulting filter.
+     *
+     * @param values The parameter values, Strings or byte arrays, indexed
+     *               by parameter number.
+     *
+     * @return The BER encoded Filter.
+     */
+    public byte[] encode(Object[] values)
+    {
+        return encode( toOctets( values));
+    }
+
+    /**
+     * Binds values to the parameters and returns the resulting filter, for
+     * use in an {@link LDAPSearchRequest}.
+     *
+     * <p>The returned filter holds its BER encoding.  Its string form and
+     * filter iterator are only built when they are requested.  Byte array
+     * values are not copied and must not be modified while the filter is in
+     * use.</p>
+     *
+     * @param values The parameter values, Strings or byte arrays, indexed
+     *               by parameter number.
+     *
+     * @return The bound filter.
+     */
+    public RfcFilter bind(Object[] values)
+    {
+        byte[][] octets = toOctets( values);
+        return new BoundFilter( this, octets, encode( octets));
+    }
+
+    /**
+     * Binds values to the parameters and returns the resulting filter
+     * string, with the values escaped as required by RFC 2254.
+     *
+     * @param values The parameter values, Strings or byte arrays, indexed
+     *               by parameter number.
+     *
+     * @return The filter string.
+     */
+    public String toFilterString(Object[] values)
+    {
+        byte[][] octets = toOctets( values);
+        StringBuffer buf = new StringBuffer( template.length() + 32);
+        for( int i = 0; i < segments.length; i++) {
+            if( segments[i] instanceof Integer) {
+                FilterEscape.appendValue( octets[((Integer)segments[i]).intValue()], buf);
+            } else {
+                buf.append( (String)segments[i]);
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns the filter template string.
+     *
+     * @return The template.
+     */
+    public String toString()
+    {
+        return template;
+    }
+
+    /*
+     * Compiles a parsed filter element.  Elements without parameters are
+     * encoded at once.
+     */
+    private static Node compile(ASN1Object obj, State state)
+    {
+        if( obj instanceof ASN1Choice) {
+            return compile( ((ASN1Choice)obj).choiceValue(), state);
+        }
+        if( obj instanceof ASN1Tagged && !((ASN1Tagged)obj).isExplicit()) {
+            // the tagged value carries the tag
+            return compile( ((ASN1Tagged)obj).taggedValue(), state);
+        }
+        Node node = new Node();
+        node.id = state.nodes++;
+        if( !hasParameter( obj)) {
+            node.kind = CONSTANT;
+            node.head = obj.getEncoding( state.encoder);
+        } else if( obj instanceof ASN1Tagged) {
+            node.kind = CONSTRUCTED;
+            node.head = identifier( obj.getIdentifier(), state);
+            node.children = new Node[] {
+                compile( ((ASN1Tagged)obj).taggedValue(), state) };
+        } else if( obj instanceof ASN1Structured) {
+            ASN1Object[] elements = ((ASN1Structured)obj).toArray();
+            node.kind = CONSTRUCTED;
+            node.head = identifier( obj.getIdentifier(), state);
+            node.children = new Node[ elements.length ];
+            for( int i = 0; i < elements.length; i++) {
+                node.children[i] = compile( elements[i], state);
+            }
+        } else {
+            node.kind = VALUE;
+            node.head = identifier( obj.getIdentifier(), state);
+            node.parts = split( ((ASN1OctetString)obj).byteValue(), state);
+        }
+        return node;
+    }
+
+    private static boolean hasParameter(ASN1Object obj)
+    {
+        if( obj instanceof ASN1Choice) {
+            return hasParameter( ((ASN1Choice)obj).choiceValue());
+        }
+        if( obj instanceof ASN1Tagged) {
+            return hasParameter( ((ASN1Tagged)obj).taggedValue());
+        }
+        if( obj instanceof ASN1Structured) {
+            ASN1Object[] elements = ((ASN1Structured)obj).toArray();
+            for( int i = 0; i < elements.length; i++) {
+                if( hasParameter( elements[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if( obj instanceof ASN1OctetString) {
+            return indexOfMark( ((ASN1OctetString)obj).byteValue(), 0) >= 0;
+        }
+        return false;
+    }
+
+    /*
+     * Splits the value of an octet string into constant byte arrays and
+     * parameter indexes.
+     */
+    private static Object[] split(byte[] value, State state)
+    {
+        ArrayList parts = new ArrayList();
+        int pos = 0;
+        int mark;
+        while( (mark = indexOfMark( value, pos)) >= 0) {
+            if( mark > pos) {
+                byte[] constant = new byte[ mark - pos ];
+                System.arraycopy( value, pos, constant, 0, constant.length);
+                parts.add( constant);
+            }
+            int n = 0;
+            int i = mark + MARK_UTF8.length;
+            while( value[i] != MARK_UTF8[0]) {
+                n = n * 10 + (value[i++] - '0');
+            }
+            parts.add( new Integer( n));
+            state.params++;
+            pos = i + MARK_UTF8.length;
+        }
+        if( pos < value.length) {
+            byte[] constant = new byte[ value.length - pos ];
+            System.arraycopy( value, pos, constant, 0, constant.length);
+            parts.add( constant);
+        }
+        return parts.toArray();
+    }
+
+    /*
+     * Collects the parameters of the substrings that consist of parameters
+     * only, which must not all be bound to empty values.
+     */
+    private static void findSubstrings(ASN1Object obj, ArrayList groups)
+    {
+        if( obj instanceof ASN1Choice) {
+            findSubstrings( ((ASN1Choice)obj).choiceValue(), groups);
+        } else if( obj instanceof ASN1Tagged) {
+            findSubstrings( ((ASN1Tagged)obj).taggedValue(), groups);
+        } else if( obj instanceof RfcSubstringFilter) {
+            ASN1Object[] substrs = ((ASN1Structured)
+                                ((RfcSubstringFilter)obj).get( 1)).toArray();
+            for( int i = 0; i < substrs.length; i++) {
+                int[] group = parametersOnly( ((ASN1OctetString)
+                        ((ASN1Tagged)substrs[i]).taggedValue()).byteValue());
+                if( group != null) {
+                    groups.add( group);
+                }
+            }
+        } else if( obj instanceof ASN1Structured) {
+            ASN1Object[] elements = ((ASN1Structured)obj).toArray();
+            for( int i = 0; i < elements.length; i++) {
+                findSubstrings( elements[i], groups);
+            }
+        }
+        return;
+    }
+
+    /*
+     * Returns the parameter indexes of a value made of parameters only, or
+     * null if it contains constant text.
+     */
+    private static int[] parametersOnly(byte[] value)
+    {
+        ArrayList params = new ArrayList();
+        int pos = 0;
+        while( pos < value.length && indexOfMark( value, pos) == pos) {
+            int n = 0;
+            int i = pos + MARK_UTF8.length;
+            while( value[i] != MARK_UTF8[0]) {
+                n = n * 10 + (value[i++] - '0');
+            }
+            params.add( new Integer( n));
+            pos = i + MARK_UTF8.length;
+        }
+        if( pos < value.length) {
+            return null;
+        }
+        int[] group = new int[ params.size() ];
+        for( int i = 0; i < group.length; i++) {
+            group[i] = ((Integer)params.get( i)).intValue();
+        }
+        return group;
+    }
+
+    private static int indexOfMark(byte[] value, int from)
+    {
+        for( int i = from; i <= value.length - MARK_UTF8.length; i++) {
+            if( value[i] == MARK_UTF8[0] && value[i + 1] == MARK_UTF8[1] &&
+                value[i + 2] == MARK_UTF8[2]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] identifier(ASN1Identifier id, State state)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            state.encoder.encode( id, out);
+        } catch( IOException e) {
+            throw new RuntimeException( e.toString());
+        }
+        return out.toByteArray();
+    }
+
+    /*
+     * Converts the parameter values to octet strings.
+     */
+    private byte[][] toOctets(Object[] values)
+    {
+        if( values == null) {
+            values = new Object[0];
+        }
+        if( values.length < paramCount) {
+            throw new IllegalArgumentException( "Filter template requires " +
+                    paramCount + " values, " + values.length + " given");
+        }
+        byte[][] octets = new byte[ values.length ][];
+        for( int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if( value instanceof byte[]) {
+                octets[i] = (byte[])value;
+            } else if( value instanceof String) {
+                octets[i] = utf8( (String)value);
+            } else {
+                throw new IllegalArgumentException(
+                    "Filter template value " + i +
+                    " must be a String or a byte array");
+            }
+        }
+        nextGroup:
+        for( int i = 0; i < substrings.length; i++) {
+            for( int j = 0; j < substrings[i].length; j++) {
+                if( octets[substrings[i][j]].length > 0) {
+                    continue nextGroup;
+                }
+            }
+            throw new IllegalArgumentException(
+                    "Filter template value " + substrings[i][0] +
+                    " cannot be empty in a substring");
+        }
+        return octets;
+    }
+
+    private static byte[] utf8(String value)
+    {
+        int len = value.length();
+        byte[] bytes = new byte[ len ];
+        for( int i = 0; i < len; i++) {
+            char c = value.charAt( i);
+            if( c >= 0x80) {
+                try {
+                    return value.getBytes( "UTF-8");
+                } catch( UnsupportedEncodingException uee) {
+                    throw new RuntimeException( uee.toString());
+                }
+            }
+            bytes[i] = (byte)c;
+        }
+        return bytes;
+    }
+
+    /*
+     * Encodes the filter: the content lengths of the elements with
+     * parameters are computed first, then the encoding is written into an
+     * array of the exact size.
+     */
+    private byte[] encode(byte[][] octets)
+    {
+        int[] lengths = new int[ nodeCount ];
+        byte[] out = new byte[ measure( root, octets, lengths) ];
+        write( root, octets, lengths, out, 0);
+        return out;
+    }
+
+    private static int measure(Node node, byte[][] octets, int[] lengths)
+    {
+        if( node.kind == CONSTANT) {
+            return node.head.length;
+        }
+        int len = 0;
+        if( node.kind == CONSTRUCTED) {
+            for( int i = 0; i < node.children.length; i++) {
+                len += measure( node.children[i], octets, lengths);
+            }
+        } else {
+            for( int i = 0; i < node.parts.length; i++) {
+                Object part = node.parts[i];
+                len += (part instanceof Integer)
+                        ? octets[((Integer)part).intValue()].length
+                        : ((byte[])part).length;
+            }
+        }
+        lengths[node.id] = len;
+        return node.head.length + lengthSize( len) + len;
+    }
+
+    private static int write(Node node, byte[][] octets, int[] lengths,
+                             byte[] out, int pos)
+    {
+        System.arraycopy( node.head, 0, out, pos, node.head.length);
+        pos += node.head.length;
+        if( node.kind == CONSTANT) {
+            return pos;
+        }
+        pos = writeLength( lengths[node.id], out, pos);
+        if( node.kind == CONSTRUCTED) {
+            for( int i = 0; i < node.children.length; i++) {
+                pos = write( node.children[i], octets, lengths, out, pos);
+            }
+        } else {
+            for( int i = 0; i < node.parts.length; i++) {
+                Object part = node.parts[i];
+                byte[] bytes = (part instanceof Integer)
+                        ? octets[((Integer)part).intValue()]
+                        : (byte[])part;
+                System.arraycopy( bytes, 0, out, pos, bytes.length);
+                pos += bytes.length;
+            }
+        }
+        return pos;
+    }
+
+    /* Number of octets of a BER definite length, as written by LBEREncoder */
+    private static int lengthSize(int length)
+    {
+        if( length < 0x80) {
+            return 1;
+        }
+        int n = 1;
+        for( ; length != 0; length >>>= 8) {
+            n++;
+        }
+        return n;
+    }
+
+    private static int writeLength(int length, byte[] out, int pos)
+    {
+        if( length < 0x80) {
+            out[pos++] = (byte)length;
+            return pos;
+        }
+        int n = lengthSize( length) - 1;
+        out[pos++] = (byte)(0x80 | n);
+        for( int i = n - 1; i >= 0; i--) {
+            out[pos++] = (byte)(length >>> (i * 8));
+        }
+        return pos;
+    }
+
+    /*
+     * The filter component of a bound filter, written as pre-encoded BER.
+     */
+    private static final class EncodedFilter extends ASN1Object
+    {
+        private final byte[] encoding;
+
+        private EncodedFilter(ASN1Identifier id, byte[] encoding)
+        {
+            super( id);
+            this.encoding = encoding;
+            return;
+        }
+
+        public void encode(ASN1Encoder enc, OutputStream out)
+                throws IOException
+        {
+            out.write( encoding);
+            return;
+        }
+    }
+
+    /*
+     * A filter bound to its values.  The filter tree is only built from the
+     * filter string when it is iterated.
+     */
+    private static final class BoundFilter extends RfcFilter
+    {
+        private final LDAPFilterTemplate template;
+        private final byte[][] values;
+
+        private BoundFilter(LDAPFilterTemplate template, byte[][] values,
+                            byte[] encoding)
+        {
+            super( new EncodedFilter( template.rootId, encoding));
+            this.template = template;
+            this.values = values;
+            return;
+        }
+
+        public Iterator getFilterIterator()
+        {
+            try {
+                return new RfcFilter( template.toFilterString( values))
+                                                        .getFilterIterator();
+            } catch( LDAPException e) {
+                throw new RuntimeException( e.toString());
+            }
+        }
+    }
+}
@@ -15,10 +15,12 @@
 
 package com.github.terefang.jldap.ldap;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 
+import com.github.terefang.jldap.ldap.client.AttributeDescriptor;
 import com.github.terefang.jldap.ldap.client.Debug;
 import com.github.terefang.jldap.ldap.client.EnumeratedIterator;
 
@@ -91,6 +93,9 @@ public class LDAPSchema extends LDAPEntry{
      */
     private HashMap nameTable[] = new HashMap[8];
 
+    /** The compiled view of this schema, built on first use */
+    private transient volatile LDAPCompiledSchema compiled = null;
+
     /**
      * The following lists the LDAP names of subschema attributes for
      *  schema elements (definitions):
@@ -154,109 +159,166 @@ public class LDAPSchema extends LDAPEntry{
      * @param ent          An LDAPEntry containing schema information.
      */
     public LDAPSchema(LDAPEntry ent){
+        this( ent, false);
+        return;
+    }
+
+    /**
+     * Constructs an LDAPSchema object from attributes of an LDAPEntry,
+     * optionally parsing the schema attributes concurrently.
+     *
+     * <p>With parallel set, the definitions of each of the recognized schema
+     * attributes are parsed in a separate thread, which shortens the time to
+     * load a large schema on a multiprocessor.  The resulting schema is the
+     * same as that built by {@link #LDAPSchema(LDAPEntry)}.</p>
+     *
+     * @param ent          An LDAPEntry containing schema information.
+     *
+     * @param parallel     If true, parse the schema attributes concurrently.
+     */
+    public LDAPSchema(LDAPEntry ent, boolean parallel){
         super(ent.getDN(), ent.getAttributeSet());
         //reset all definitions
         for (int i=0; i< schemaTypeNames.length; i++) {
             idTable[i] = new HashMap();
             nameTable[i] = new HashMap();
         }
+        ArrayList parsers = new ArrayList(schemaTypeNames.length);
         Iterator itr = super.getAttributeSet().iterator();
         while(itr.hasNext()) {
-
             LDAPAttribute attr = (LDAPAttribute) itr.next();
-            String value, attrName = attr.getName();
-            Enumeration enumString = attr.getStringValues();
-
-            if(attrName.equalsIgnoreCase( schemaTypeNames[OBJECT_CLASS] )) {
-                LDAPObjectClassSchema classSchema;
-                while(enumString.hasMoreElements()) {
-                    value = (String) enumString.nextElement();
-                    try {
-                        classSchema = new LDAPObjectClassSchema( value );
-                    }
-                    catch (Exception e){
-                        if( Debug.LDAP_DEBUG) {
-                            Debug.trace( Debug.all, "fetchSchema could not "+
-                                "parse the schema definition:" + value);
-                        }
-                        continue; //Error parsing: do not add this definition
-                    }
-                    addElement( OBJECT_CLASS, classSchema );
+            String attrName = attr.getName();
+            for (int i=0; i< schemaTypeNames.length; i++) {
+                if(attrName.equalsIgnoreCase( schemaTypeNames[i] )) {
+                    parsers.add( new DefinitionParser( i, attr));
+                    break;
                 }
             }
-            else if(attrName.equalsIgnoreCase( schemaTypeNames[ATTRIBUTE] )) {
-                LDAPAttributeSchema attrSchema;
+            //All non schema attributes are ignored.
+        }
+
+        if( parallel && parsers.size() > 1) {
+            // Parse the first attribute in this thread, the others in theirs
+            for (int i=1; i< parsers.size(); i++) {
+                ((DefinitionParser)parsers.get(i)).start();
+            }
+            ((DefinitionParser)parsers.get(0)).run();
+            for (int i=1; i< parsers.size(); i++) {
+                ((DefinitionParser)parsers.get(i)).await();
+            }
+        } else {
+            for (int i=0; i< parsers.size(); i++) {
+                ((DefinitionParser)parsers.get(i)).run();
+            }
+        }
+
+        // Add the definitions in attribute order, as later ones replace
+        // earlier ones with the same oid or name
+        for (int i=0; i< parsers.size(); i++) {
+            DefinitionParser parser = (DefinitionParser)parsers.get(i);
+            if( parser.failure instanceof RuntimeException) {
+                throw (RuntimeException)parser.failure;
+            }
+            if( parser.failure instanceof Error) {
+                throw (Error)parser.failure;
+            }
+            for (int j=0; j< parser.elements.size(); j++) {
+                addElement( parser.schemaType,
+                            (LDAPSchemaElement)parser.elements.get(j));
+            }
+        }
+        return;
+    }
+
+    /**
+     * Parses the definitions held by one schema attribute.  Runs either in
+     * the calling thread or, for parallel parsing, in its own thread.
+     */
+    private static final class DefinitionParser extends Thread
+    {
+        private final int schemaType;
+        private final LDAPAttribute attr;
+        private final ArrayList elements = new ArrayList();
+        private Throwable failure = null;
+
+        private DefinitionParser( int schemaType, LDAPAttribute attr)
+        {
+            super( "LDAPSchema " + schemaTypeNames[schemaType]);
+            setDaemon( true);
+            this.schemaType = schemaType;
+            this.attr = attr;
+            return;
+        }
+
+        public void run()
+        {
+            try {
+                Enumeration enumString = attr.getStringValues();
                 while(enumString.hasMoreElements()) {
-                    value = (String) enumString.nextElement();
+                    String value = (String) enumString.nextElement();
+                    LDAPSchemaElement element;
                     try {
-                        attrSchema = new LDAPAttributeSchema( value );
+                        element = parse( value);
                     }
-                    catch (Exception e){
+                    catch (RuntimeException e){
+                        if( schemaType != OBJECT_CLASS &&
+                                schemaType != ATTRIBUTE) {
+                            throw e;
+                        }
                         if( Debug.LDAP_DEBUG) {
                             Debug.trace( Debug.all, "fetchSchema could not "+
                                 "parse the schema definition:" + value);
                         }
                         continue; //Error parsing: do not add this definition
                     }
-                    addElement( ATTRIBUTE, attrSchema );
-                }
-            }
-            else if(attrName.equalsIgnoreCase( schemaTypeNames[SYNTAX] )) {
-                LDAPSyntaxSchema syntaxSchema;
-                while(enumString.hasMoreElements()) {
-                    value = (String) enumString.nextElement();
-                    syntaxSchema = new LDAPSyntaxSchema( value );
-                    addElement( SYNTAX, syntaxSchema );
+                    elements.add( element);
                 }
             }
-            else if(attrName.equalsIgnoreCase( schemaTypeNames[MATCHING] )) {
-                LDAPMatchingRuleSchema matchingRuleSchema;
-                while(enumString.hasMoreElements()) {
-                    value = (String) enumString.nextElement();
-                    matchingRuleSchema =
-                            new LDAPMatchingRuleSchema( value, null );
-                    addElement( MATCHING, matchingRuleSchema );
-                }
+            catch( Throwable t) {
+                failure = t;
             }
-            else if(attrName.equalsIgnoreCase( schemaTypeNames[MATCHING_USE])) {
-                LDAPMatchingRuleUseSchema matchingRuleUseSchema;
-                while(enumString.hasMoreElements()) {
-                    value = (String) enumString.nextElement();
-                    matchingRuleUseSchema =
-                            new LDAPMatchingRuleUseSchema( value );
-                    addElement( MATCHING_USE, matchingRuleUseSchema );
-                }
+            return;
+        }
+
+        private LDAPSchemaElement parse( String value)
+        {
+            switch( schemaType) {
+                case OBJECT_CLASS:
+                    return new LDAPObjectClassSchema( value );
+                case ATTRIBUTE:
+                    return new LDAPAttributeSchema( value );
+                case SYNTAX:
+                    return new LDAPSyntaxSchema( value );
+                case MATCHING:
+                    return new LDAPMatchingRuleSchema( value, null );
+                case MATCHING_USE:
+                    return new LDAPMatchingRuleUseSchema( value );
+                case DITCONTENT:
+                    return new LDAPDITContentRuleSchema( value );
+                case DITSTRUCTURE:
+                    return new LDAPDITStructureRuleSchema( value );
+                default:
+                    return new LDAPNameFormSchema( value );
             }
-            else if(attrName.equalsIgnoreCase( schemaTypeNames[DITCONTENT] )) {
-                LDAPDITContentRuleSchema dITContentRuleSchema;
-                while(enumString.hasMoreElements()) {
-                    value = (String) enumString.nextElement();
-                    dITContentRuleSchema =
-                            new LDAPDITContentRuleSchema( value );
-                    addElement( DITCONTENT, dITContentRuleSchema );
+        }
+
+        /* Waits for the thread to finish, even if interrupted */
+        private void await()
+        {
+            boolean interrupted = false;
+            while( isAlive()) {
+                try {
+                    join();
                 }
-            }
-            else if(attrName.equalsIgnoreCase( schemaTypeNames[DITSTRUCTURE])) {
-                LDAPDITStructureRuleSchema dITStructureRuleSchema;
-                while(enumString.hasMoreElements()) {
-                    value = (String) enumString.nextElement();
-                    dITStructureRuleSchema =
-                            new LDAPDITStructureRuleSchema( value );
-                    addElement( DITSTRUCTURE, dITStructureRuleSchema );
+                catch( InterruptedException e) {
+                    interrupted = true;
                 }
             }
-            else if(attrName.equalsIgnoreCase(schemaTypeNames[NAME_FORM])) {
-                LDAPNameFormSchema nameFormSchema;
-                while(enumString.hasMoreElements()) {
-                    value = (String) enumString.nextElement();
-                    nameFormSchema = new LDAPNameFormSchema( value );
-                    addElement( NAME_FORM, nameFormSchema );
-                }
+            if( interrupted) {
+                Thread.currentThread().interrupt();
             }
-            //All non schema attributes are ignored.
-            continue;
+            return;
         }
-        return;
     }
 
     /**
@@ -530,6 +592,26 @@ public class LDAPSchema extends LDAPEntry{
                 idTable[SYNTAX].values().iterator() );
     }
 
+    /**
+     * Enters the names and OIDs of all attribute definitions of this schema
+     * into the attribute descriptor table shared by all connections.
+     *
+     * <p>Search results naming these attributes then reuse the parsed
+     * descriptors from the first entry on.</p>
+     *
+     * @see AttributeDescriptor#seed(String[])
+     */
+    public void seedAttributeDescriptors()
+    {
+        Iterator itr = idTable[ATTRIBUTE].values().iterator();
+        while( itr.hasNext()) {
+            LDAPSchemaElement element = (LDAPSchemaElement)itr.next();
+            AttributeDescriptor.seed( element.getNames());
+            AttributeDescriptor.seed( new String[] { element.getID() });
+        }
+        return;
+    }
+
 // #######################################################################
 //  The following methods retrieve an Enumeration of Names of a schema type
 // #######################################################################
@@ -611,6 +693,31 @@ public class LDAPSchema extends LDAPEntry{
                 nameTable[OBJECT_CLASS].keySet().iterator() );
     }
 
+    /**
+     * Returns a view of this schema with the object class and attribute type
+     * hierarchies resolved, for fast validation and matching rule lookups.
+     *
+     * <p>The view is built on the first call and shared afterwards.  Only
+     * the first call locks the schema, later calls just read the view.</p>
+     *
+     * @return The compiled view of this schema.
+     *
+     * @see LDAPCompiledSchema
+     */
+    public LDAPCompiledSchema getCompiledSchema()
+    {
+        LDAPCompiledSchema view = compiled;
+        if( view == null) {
+            synchronized( this) {
+                view = compiled;
+                if( view == null) {
+                    view = new LDAPCompiledSchema( this);
+                    compiled = view;
+                }
+            }
+        }
+        return view;
+    }
 
     /**
      * This helper function returns a number that represents the type of schema
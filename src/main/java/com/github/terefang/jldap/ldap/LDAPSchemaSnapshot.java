@@ -0,0 +1,324 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes snapshots of a schema in a compact binary file, so that
+ * a client can start without fetching the schema from the directory.
+ *
+ * <p>A snapshot holds the DN of the subschema entry, its schema attributes
+ * and its modifyTimestamp and createTimestamp attributes if the server
+ * returned them.  {@link LDAPConnection#fetchSchema(String, File)} compares
+ * the timestamps of the snapshot with those of the subschema entry on the
+ * server, and fetches the full schema only if they differ.</p>
+ *
+ * <p>The file starts with a magic number and a version, and ends with a
+ * CRC-32 of its contents, so a truncated or damaged snapshot is detected
+ * when read.  Snapshots are written to a temporary file that is then
+ * renamed, so concurrent readers never see a partial snapshot.</p>
+ *
+ * @see LDAPSchema
+ */
+public class LDAPSchemaSnapshot
+{
+    /** The timestamp attributes of the subschema entry */
+    /*package*/ static final String[] timestampNames =
+    {
+        "modifyTimestamp",
+        "createTimestamp"
+    };
+
+    private static final int MAGIC = 0x4A4C5353; // "JLSS"
+    private static final int VERSION = 1;
+
+    /* A bound on lengths and counts read, to fail early on damaged files */
+    private static final int MAX_LENGTH = 1 << 26;
+
+    private LDAPSchemaSnapshot()
+    {
+        return;
+    }
+
+    /**
+     * Returns the attribute names to read from the subschema entry to build
+     * a schema that can be written to a snapshot: the schema attributes and
+     * the timestamps.
+     *
+     * @return The attribute names.
+     */
+    /*package*/ static String[] getSnapshotAttributeNames()
+    {
+        String[] names = new String[ LDAPSchema.schemaTypeNames.length +
+                                     timestampNames.length ];
+        System.arraycopy( LDAPSchema.schemaTypeNames, 0, names, 0,
+                          LDAPSchema.schemaTypeNames.length);
+        System.arraycopy( timestampNames, 0, names,
+                          LDAPSchema.schemaTypeNames.length,
+                          timestampNames.length);
+        return names;
+    }
+
+    /**
+     * Returns the timestamp identifying the version of a subschema entry,
+     * the modifyTimestamp, or the createTimestamp if the entry was never
+     * modified.
+     *
+     * @param entry The subschema entry or a schema read from it.
+     *
+     * @return The timestamp, or null if the entry has neither attribute.
+     */
+    public static String getTimestamp( LDAPEntry entry)
+    {
+        for( int i = 0; i < timestampNames.length; i++) {
+            LDAPAttribute attr = entry.getAttribute( timestampNames[i]);
+            if( attr != null && attr.getStringValue() != null) {
+                return attr.getStringValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a snapshot of a schema to a stream.
+     *
+     * @param schema The schema.
+     * @param out    The stream, which is flushed but not closed.
+     *
+     * @exception IOException if writing to the stream fails.
+     */
+    public static void write( LDAPSchema schema, OutputStream out)
+            throws IOException
+    {
+        CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream( out, 65536), new CRC32());
+        DataOutputStream dos = new DataOutputStream( checked);
+        dos.writeInt( MAGIC);
+        dos.writeInt( VERSION);
+        writeBytes( dos, utf8( schema.getDN()));
+
+        ArrayList attrs = new ArrayList();
+        String[] names = getSnapshotAttributeNames();
+        Iterator itr = schema.getAttributeSet().iterator();
+        while( itr.hasNext()) {
+            LDAPAttribute attr = (LDAPAttribute)itr.next();
+            if( isSnapshotAttribute( attr.getName(), names)) {
+                attrs.add( attr);
+            }
+        }
+        dos.writeInt( attrs.size());
+        for( int i = 0; i < attrs.size(); i++) {
+            LDAPAttribute attr = (LDAPAttribute)attrs.get( i);
+            writeBytes( dos, utf8( attr.getName()));
+            byte[][] values = attr.getByteValueArray();
+            dos.writeInt( values.length);
+            for( int j = 0; j < values.length; j++) {
+                writeBytes( dos, values[j]);
+            }
+        }
+        dos.flush();
+        // the checksum of everything before it
+        dos.writeLong( checked.getChecksum().getValue());
+        dos.flush();
+        return;
+    }
+
+    /**
+     * Writes a snapshot of a schema to a file.  The snapshot is written to
+     * a temporary file in the same directory, which then replaces the file.
+     *
+     * @param schema The schema.
+     * @param file   The snapshot file.
+     *
+     * @exception IOException if the snapshot cannot be written.
+     */
+    public static void write( LDAPSchema schema, File file)
+            throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile( "." + file.getName() + "-", ".tmp",
+                                        dir);
+        try {
+            OutputStream out = new FileOutputStream( tmp);
+            try {
+                write( schema, out);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move( tmp.toPath(), file.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+            } catch( AtomicMoveNotSupportedException e) {
+                Files.move( tmp.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+        return;
+    }
+
+    /**
+     * Reads a schema from a snapshot in a stream.
+     *
+     * @param in The stream, which is not closed.
+     *
+     * @return The schema.
+     *
+     * @exception IOException if reading fails or the stream does not hold a
+     *            valid snapshot.
+     */
+    public static LDAPSchema read( InputStream in)
+            throws IOException
+    {
+        try {
+            return parse( in);
+        } catch( RuntimeException re) {
+            // damaged data can fail anywhere in decoding or parsing the schema
+            throw new IOException( "Schema snapshot is damaged: " + re, re);
+        }
+    }
+
+    private static LDAPSchema parse( InputStream in)
+            throws IOException
+    {
+        CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream( in, 65536), new CRC32());
+        DataInputStream dis = new DataInputStream( checked);
+        if( dis.readInt() != MAGIC) {
+            throw new IOException( "Not a schema snapshot");
+        }
+        int version = dis.readInt();
+        if( version != VERSION) {
+            throw new IOException(
+                    "Unsupported schema snapshot version " + version);
+        }
+        String dn = string( readBytes( dis));
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        int count = readLength( dis);
+        for( int i = 0; i < count; i++) {
+            LDAPAttribute attr = new LDAPAttribute( string( readBytes( dis)));
+            int values = readLength( dis);
+            for( int j = 0; j < values; j++) {
+                attr.addValue( readBytes( dis));
+            }
+            attrs.add( attr);
+        }
+        long crc = checked.getChecksum().getValue();
+        if( dis.readLong() != crc) {
+            throw new IOException( "Schema snapshot is damaged");
+        }
+        if( ! LDAPDN.isValid( dn)) {
+            throw new IOException( "Schema snapshot is damaged: invalid DN");
+        }
+        return new LDAPSchema( new LDAPEntry( dn, attrs));
+    }
+
+    /**
+     * Reads a schema from a snapshot file.
+     *
+     * @param file The snapshot file.
+     *
+     * @return The schema.
+     *
+     * @exception IOException if the file cannot be read or does not hold a
+     *            valid snapshot.
+     */
+    public static LDAPSchema read( File file)
+            throws IOException
+    {
+        InputStream in = new FileInputStream( file);
+        try {
+            return read( in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isSnapshotAttribute( String name, String[] names)
+    {
+        for( int i = 0; i < names.length; i++) {
+            if( names[i].equalsIgnoreCase( name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeBytes( DataOutputStream dos, byte[] bytes)
+            throws IOException
+    {
+        dos.writeInt( bytes.length);
+        dos.write( bytes);
+        return;
+    }
+
+    private static byte[] readBytes( DataInputStream dis)
+            throws IOException
+    {
+        byte[] bytes = new byte[ readLength( dis) ];
+        dis.readFully( bytes);
+        return bytes;
+    }
+
+    private static int readLength( DataInputStream dis)
+            throws IOException
+    {
+        int length = dis.readInt();
+        if( length < 0 || length > MAX_LENGTH) {
+            throw new IOException( "Schema snapshot is damaged");
+        }
+        return length;
+    }
+
+    private static byte[] utf8( String value)
+    {
+        try {
+            return value.getBytes( "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    private static String string( byte[] value)
+    {
+        try {
+            return new String( value, "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+}
@@ -38,6 +38,7 @@ public class LDAPSearchConstraints extends LDAPConstraints {
     private int serverTimeLimit = 0;
     private int maxResults = 1000;
     private int batchSize = 1;
+    private boolean compactEntries = false;
     private static Object nameLock = new Object(); // protect agentNum
     private static int lSConsNum = 0;  // Debug, LDAPConnection number
     private String name;             // String name for debug
@@ -129,6 +130,7 @@ public class LDAPSearchConstraints extends LDAPConstraints {
             this.dereference = scons.getDereference();
             this.maxResults = scons.getMaxResults();
             this.batchSize = scons.getBatchSize();
+            this.compactEntries = scons.getCompactEntries();
         }
         // Get a unique connection name for debug
         if( Debug.LDAP_DEBUG) {
@@ -251,6 +253,19 @@ public class LDAPSearchConstraints extends LDAPConstraints {
         return batchSize;
     }
 
+    /**
+     * Reports whether search results are returned as compact entries.
+     *
+     * @return true if search results are returned as
+     *         {@link LDAPCompactEntry} objects.
+     *
+     * @see #setCompactEntries(boolean)
+     */
+    public boolean getCompactEntries()
+    {
+        return compactEntries;
+    }
+
     /**
      * Specifies when aliases should be dereferenced.
      *
@@ -327,6 +342,26 @@ public class LDAPSearchConstraints extends LDAPConstraints {
         return;
     }
 
+    /**
+     * Specifies whether search results are returned as compact entries.
+     *
+     * <p>When enabled, the entries returned by
+     * {@link LDAPSearchResults#next()} are read-only {@link LDAPCompactEntry}
+     * objects.  The attribute descriptions are shared by all entries of
+     * the search and the values of each entry are packed into a single
+     * array, which reduces the memory needed to hold large result sets.
+     * The default is false.</p>
+     *
+     * @param compactEntries  true to return compact entries.
+     *
+     * @see #getCompactEntries()
+     */
+    public void setCompactEntries(boolean compactEntries)
+    {
+        this.compactEntries = compactEntries;
+        return;
+    }
+
     /**
      * Sets a preference indicating whether or not aliases should be
      * dereferenced, and if so, when.
@@ -421,7 +421,9 @@ public class LDAPSearchRequest extends LDAPMessage {
      * <li>EXTENSIBLE_MATCH - followed by the name of the matching rule
      *     represented as a String, by the attribute name represented
      *     as a String, and by the attribute value represented as a 
-     *     byte array.
+     *     String, and by whether DN attributes are matched represented
+     *     as a Boolean.  The matching rule or the attribute name is null
+     *     if the filter does not specify it.
      * <li>SUBSTRINGS - followed by the attribute name represented as a
      *     String, by one or more SUBSTRING components (INITIAL, ANY,
      *     or FINAL) followed by the SUBSTRING value.
@@ -22,6 +22,8 @@ import com.github.terefang.jldap.ldap.asn1.ASN1Object;
 import com.github.terefang.jldap.ldap.asn1.ASN1OctetString;
 import com.github.terefang.jldap.ldap.asn1.ASN1Sequence;
 import com.github.terefang.jldap.ldap.asn1.ASN1Set;
+import com.github.terefang.jldap.ldap.client.AttributeDescriptor;
+import com.github.terefang.jldap.ldap.client.AttributeDictionary;
 import com.github.terefang.jldap.ldap.rfc2251.RfcControls;
 import com.github.terefang.jldap.ldap.rfc2251.RfcLDAPMessage;
 import com.github.terefang.jldap.ldap.rfc2251.RfcSearchResultEntry;
@@ -138,8 +140,8 @@ public class LDAPSearchResult extends LDAPMessage
             ASN1Object[] seqArray = attrList.toArray();
             for(int i = 0; i < seqArray.length; i++) {
                 ASN1Sequence seq = (ASN1Sequence)seqArray[i];
-                LDAPAttribute attr =
-                    new LDAPAttribute(((ASN1OctetString)seq.get(0)).stringValue());
+                LDAPAttribute attr = new LDAPAttribute(AttributeDescriptor.intern(
+                    ((ASN1OctetString)seq.get(0)).byteValue()));
 
                 ASN1Set set = (ASN1Set)seq.get(1);
                 Object[] setArray = set.toArray();
@@ -156,6 +158,52 @@ public class LDAPSearchResult extends LDAPMessage
         return entry;
     }
 
+    /**
+     * Returns the entry of a server's search response as a compact entry.
+     *
+     * <p>If the entry has already been created by a previous call to this
+     * method or to {@link #getEntry()}, that entry is returned.</p>
+     *
+     * @param dictionary The dictionary holding the attribute descriptions,
+     *                   typically shared by all results of a search.
+     *
+     * @return The LDAPEntry associated with this LDAPSearchResult
+     *
+     * @see LDAPCompactEntry
+     */
+    public LDAPEntry getEntry(AttributeDictionary dictionary)
+    {
+        if( entry == null) {
+            RfcSearchResultEntry resp =
+                            (RfcSearchResultEntry)message.getResponse();
+            entry = new LDAPCompactEntry(
+                            resp.getObjectName().stringValue(),
+                            resp.getAttributes(),
+                            dictionary);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry of a server's search response as it was decoded,
+     * for writing it out without creating an LDAPEntry.
+     *
+     * <p>The values of the returned object are those of the response and
+     * must not be changed.  Once an entry is created, by {@link #getEntry()}
+     * or when this result is constructed from an entry, the entry is the
+     * data of this result and null is returned.</p>
+     *
+     * @return The decoded search result entry, or null if an LDAPEntry
+     *         was created.
+     */
+    public RfcSearchResultEntry getEntryASN1Object()
+    {
+        if( entry != null) {
+            return null;
+        }
+        return (RfcSearchResultEntry)message.getResponse();
+    }
+
     /**
      * Return a String representation of this object.
      *
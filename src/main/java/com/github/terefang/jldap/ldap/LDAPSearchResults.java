@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.Vector;
 
+import com.github.terefang.jldap.ldap.client.AttributeDictionary;
 import com.github.terefang.jldap.ldap.client.Debug;
 import com.github.terefang.jldap.ldap.client.ReferralInfo;
 import com.github.terefang.jldap.ldap.resources.ExceptionMessages;
@@ -51,6 +52,7 @@ public class LDAPSearchResults
     private LDAPConnection conn;        // LDAPConnection which started search
     private LDAPSearchConstraints cons; // LDAPSearchConstraints for search
     private ArrayList referralConn = null;// Referral Connections
+    private AttributeDictionary dictionary = null; // For compact entries
     
     /**
 	 * This constructor was added to support default Serialization
@@ -94,6 +96,9 @@ public class LDAPSearchResults
 
         this.queue = queue;
         this.batchSize = (batchSize == 0) ? Integer.MAX_VALUE : batchSize;
+        if( cons.getCompactEntries()) {
+            dictionary = new AttributeDictionary();
+        }
 
         if( Debug.LDAP_DEBUG ) {
             synchronized(nameLock) {
@@ -331,7 +336,9 @@ public class LDAPSearchResults
                     }
 
                     if(msg instanceof LDAPSearchResult) { // Search Entry
-                        Object entry = ((LDAPSearchResult)msg).getEntry();
+                        Object entry = (dictionary == null)
+                            ? ((LDAPSearchResult)msg).getEntry()
+                            : ((LDAPSearchResult)msg).getEntry( dictionary);
                         entries.addElement( entry );
                         i++;
                         entryCount++;
@@ -0,0 +1,260 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999 - 2002 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.client;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable, parsed attribute description such as
+ * <code>cn;lang-ja;phonetic</code>.
+ *
+ * <p>Descriptors are obtained through the {@link #intern(byte[])} methods,
+ * which resolve an attribute description to a canonical descriptor held in
+ * a table shared by all connections.  Once a description is in the table,
+ * resolving it again from its raw UTF-8 bytes, as decoded from a search
+ * result, allocates nothing: the name, base name and subtypes are shared.</p>
+ *
+ * <p>The table is bounded, it holds at most {@link #TABLE_SIZE} descriptors.
+ * When two descriptions compete for the same place the newer one replaces
+ * the older, which is then parsed again the next time it is seen.  The
+ * table may be accessed from any number of threads without locking.</p>
+ */
+public final class AttributeDescriptor
+{
+    /**
+     * The number of places in the shared descriptor table.
+     */
+    public static final int TABLE_SIZE = 4096;
+
+    private static final String[] NO_SUBTYPES = new String[0];
+
+    private static final AtomicReferenceArray table =
+                            new AtomicReferenceArray( TABLE_SIZE);
+
+    private final String name;
+    private final String baseName;
+    private final String[] subTypes;
+    private final String lang;
+    private final byte[] encoded;
+    private final int hash;
+
+    private AttributeDescriptor( String name, byte[] encoded, int hash)
+    {
+        this.name = name;
+        this.encoded = encoded;
+        this.hash = hash;
+        int idx = name.indexOf( ';');
+        if( idx == -1) {
+            baseName = name;
+            subTypes = NO_SUBTYPES;
+            lang = null;
+            return;
+        }
+        baseName = name.substring( 0, idx);
+        java.util.StringTokenizer st =
+                    new java.util.StringTokenizer( name.substring( idx), ";");
+        subTypes = new String[ st.countTokens() ];
+        String l = null;
+        for( int i = 0; i < subTypes.length; i++) {
+            subTypes[i] = st.nextToken();
+            if( l == null && subTypes[i].startsWith( "lang-")) {
+                l = subTypes[i];
+            }
+        }
+        lang = l;
+        return;
+    }
+
+    /**
+     * Returns the attribute description, for example cn;lang-ja;phonetic.
+     *
+     * @return The attribute description.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the base name, for example cn of cn;lang-ja;phonetic.
+     *
+     * @return The base name.
+     */
+    public String getBaseName()
+    {
+        return baseName;
+    }
+
+    /**
+     * Returns the subtypes, for example lang-ja and phonetic of
+     * cn;lang-ja;phonetic.
+     *
+     * @return A copy of the subtypes, an empty array if there are none.
+     */
+    public String[] getSubtypes()
+    {
+        return subTypes.length == 0 ? subTypes : (String[])subTypes.clone();
+    }
+
+    /**
+     * Returns the number of subtypes.
+     *
+     * @return The number of subtypes.
+     */
+    public int getSubtypeCount()
+    {
+        return subTypes.length;
+    }
+
+    /**
+     * Returns the language subtype, for example lang-ja of
+     * cn;lang-ja;phonetic.
+     *
+     * @return The language subtype or <code>null</code> if there is none.
+     */
+    public String getLangSubtype()
+    {
+        return lang;
+    }
+
+    /**
+     * Returns the canonical descriptor of the attribute description encoded
+     * in the specified bytes.
+     *
+     * @param name The UTF-8 encoded attribute description.  The array is not
+     *             kept, it may be reused by the caller.
+     *
+     * @return The descriptor.
+     */
+    public static AttributeDescriptor intern( byte[] name)
+    {
+        return intern( name, 0, name.length);
+    }
+
+    /**
+     * Returns the canonical descriptor of the attribute description encoded
+     * in part of the specified array.
+     *
+     * @param buf    The array holding the UTF-8 encoded description.  The
+     *               array is not kept, it may be reused by the caller.
+     * @param offset The start of the description in <code>buf</code>.
+     * @param length The length of the description.
+     *
+     * @return The descriptor.
+     */
+    public static AttributeDescriptor intern( byte[] buf, int offset,
+                                              int length)
+    {
+        int h = 0;
+        for( int i = offset, end = offset + length; i < end; i++) {
+            h = 31 * h + buf[i];
+        }
+        int slot = spread( h);
+        AttributeDescriptor d = (AttributeDescriptor)table.get( slot);
+        if( d != null && d.hash == h && d.matches( buf, offset, length)) {
+            return d;
+        }
+        byte[] encoded = new byte[ length ];
+        System.arraycopy( buf, offset, encoded, 0, length);
+        d = new AttributeDescriptor( AttributeValueSet.decode( encoded),
+                                     encoded, h);
+        table.set( slot, d);
+        return d;
+    }
+
+    /**
+     * Returns the canonical descriptor of the specified attribute
+     * description.
+     *
+     * @param name The attribute description.
+     *
+     * @return The descriptor.
+     */
+    public static AttributeDescriptor intern( String name)
+    {
+        int h = 0;
+        for( int i = 0, len = name.length(); i < len; i++) {
+            char c = name.charAt( i);
+            if( c >= 0x80) {
+                // Not ASCII, the hash must be computed from the UTF-8 bytes
+                try {
+                    return intern( name.getBytes( "UTF-8"));
+                } catch( UnsupportedEncodingException uee) {
+                    throw new RuntimeException( uee.toString());
+                }
+            }
+            h = 31 * h + c;
+        }
+        int slot = spread( h);
+        AttributeDescriptor d = (AttributeDescriptor)table.get( slot);
+        if( d != null && d.hash == h && d.name.equals( name)) {
+            return d;
+        }
+        byte[] encoded = new byte[ name.length() ];
+        for( int i = 0; i < encoded.length; i++) {
+            encoded[i] = (byte)name.charAt( i);
+        }
+        d = new AttributeDescriptor( name, encoded, h);
+        table.set( slot, d);
+        return d;
+    }
+
+    /**
+     * Enters a list of attribute descriptions into the shared table, for
+     * example all attribute names and OIDs of a schema.
+     *
+     * @param names The attribute descriptions.
+     */
+    public static void seed( String[] names)
+    {
+        for( int i = 0; i < names.length; i++) {
+            if( names[i] != null && names[i].length() != 0) {
+                intern( names[i]);
+            }
+        }
+        return;
+    }
+
+    private boolean matches( byte[] buf, int offset, int length)
+    {
+        if( encoded.length != length)
+            return false;
+        for( int i = 0; i < length; i++) {
+            if( encoded[i] != buf[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int spread( int h)
+    {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & (TABLE_SIZE - 1);
+    }
+
+    /**
+     * Returns the attribute description.
+     *
+     * @return The attribute description.
+     */
+    public String toString()
+    {
+        return name;
+    }
+}
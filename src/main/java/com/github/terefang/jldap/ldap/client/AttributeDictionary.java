@@ -0,0 +1,157 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999 - 2002 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.client;
+
+/**
+ * Assigns small integer ids to attribute descriptions.
+ *
+ * <p>A dictionary is shared by all compact entries of a search, so that each
+ * entry only stores the id of its attribute descriptions and every distinct
+ * description is held once.  Descriptions are looked up from their raw UTF-8
+ * encoding as received from the server, a <code>String</code> is only
+ * created the first time a description is seen.  Descriptions are compared
+ * exactly, so the case returned by the server is preserved.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @see com.github.terefang.jldap.ldap.LDAPCompactEntry
+ */
+public class AttributeDictionary
+{
+    private String[] names = new String[ 32 ];
+    private byte[][] encoded = new byte[ 32 ][];
+    private int[] hashes = new int[ 32 ];
+    private int[] slots = new int[ 64 ];     // open addressing, id + 1
+    private int count = 0;
+
+    /**
+     * Returns the id of the description encoded in the specified bytes,
+     * adding the description to the dictionary if it is new.
+     *
+     * @param name The UTF-8 encoded attribute description.  The array is not
+     *             kept, it may be reused by the caller.
+     *
+     * @return The id of the description.
+     */
+    public synchronized int intern( byte[] name)
+    {
+        int hash = hash( name);
+        int mask = slots.length - 1;
+        int s = hash & mask;
+        for( ; slots[s] != 0; s = (s + 1) & mask) {
+            int id = slots[s] - 1;
+            if( hashes[id] == hash && equals( name, encoded[id])) {
+                return id;
+            }
+        }
+        if( count == names.length) {
+            grow();
+            return intern( name);
+        }
+        int id = count++;
+        encoded[id] = (byte[])name.clone();
+        hashes[id] = hash;
+        names[id] = AttributeDescriptor.intern( name).getName();
+        slots[s] = id + 1;
+        return id;
+    }
+
+    /**
+     * Returns the id of the specified description, adding the description
+     * to the dictionary if it is new.
+     *
+     * @param name The attribute description.
+     *
+     * @return The id of the description.
+     */
+    public int intern( String name)
+    {
+        try {
+            return intern( name.getBytes( "UTF-8"));
+        } catch( java.io.UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    /**
+     * Returns the attribute description with the specified id.
+     *
+     * @param id The id returned by {@link #intern(byte[])}.
+     *
+     * @return The attribute description.
+     */
+    public synchronized String getName( int id)
+    {
+        if( id >= count) {
+            throw new ArrayIndexOutOfBoundsException( id);
+        }
+        return names[id];
+    }
+
+    /**
+     * Returns the number of descriptions in the dictionary.
+     *
+     * @return The number of descriptions.
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    private void grow()
+    {
+        int size = names.length << 1;
+        String[] ntmp = new String[ size ];
+        System.arraycopy( names, 0, ntmp, 0, count);
+        names = ntmp;
+        byte[][] etmp = new byte[ size ][];
+        System.arraycopy( encoded, 0, etmp, 0, count);
+        encoded = etmp;
+        int[] htmp = new int[ size ];
+        System.arraycopy( hashes, 0, htmp, 0, count);
+        hashes = htmp;
+        slots = new int[ size << 1 ];
+        int mask = slots.length - 1;
+        for( int id = 0; id < count; id++) {
+            int s = hashes[id] & mask;
+            while( slots[s] != 0) {
+                s = (s + 1) & mask;
+            }
+            slots[s] = id + 1;
+        }
+        return;
+    }
+
+    private static int hash( byte[] name)
+    {
+        int h = 0;
+        for( int i = 0; i < name.length; i++) {
+            h = 31 * h + name[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals( byte[] e1, byte[] e2)
+    {
+        if( e1.length != e2.length)
+            return false;
+        for( int i = 0; i < e1.length; i++) {
+            if( e1[i] != e2[i])
+                return false;
+        }
+        return true;
+    }
+}
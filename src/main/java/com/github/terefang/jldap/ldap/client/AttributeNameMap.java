@@ -0,0 +1,388 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999 - 2002 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.client;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map keyed on attribute descriptions that ignores the case of
+ * ASCII letters.
+ *
+ * <p>Attribute descriptions are restricted to ASCII by RFC 4512, so hashing
+ * and comparing keys only folds the letters a-z, independent of the default
+ * locale.  Keys are hashed and compared in place, lookups never create a
+ * temporary upper or lower case copy of the name.  A description made of a
+ * name and a subtype, such as <code>cn;lang-en</code>, can be looked up from
+ * its two parts without concatenating them.</p>
+ *
+ * <p>This class is not synchronized.</p>
+ */
+public class AttributeNameMap
+{
+    private static final int INITIAL_SIZE = 16;
+
+    private Entry[] table = new Entry[ INITIAL_SIZE ];
+    private int count = 0;
+    private int modCount = 0;
+
+    private static final class Entry
+    {
+        private final String key;
+        private final int hash;
+        private Object value;
+        private Entry next;
+
+        private Entry( String key, int hash, Object value, Entry next)
+        {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Returns the number of mappings in the map.
+     *
+     * @return The number of mappings.
+     */
+    public final int size()
+    {
+        return count;
+    }
+
+    /**
+     * Returns <code>true</code> if the map holds no mappings.
+     *
+     * @return <code>true</code> if the map is empty.
+     */
+    public final boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * Returns the value mapped to the specified name.
+     *
+     * @param name The attribute description, compared ignoring ASCII case.
+     *
+     * @return The mapped value or <code>null</code> if there is none.
+     */
+    public Object get( String name)
+    {
+        Entry e = find( name);
+        return e == null ? null : e.value;
+    }
+
+    /**
+     * Returns the value mapped to the description <code>name;subtype</code>.
+     *
+     * @param name    The attribute name, compared ignoring ASCII case.
+     * @param subtype The subtype appended to the name, compared ignoring
+     *                ASCII case.
+     *
+     * @return The mapped value or <code>null</code> if there is none.
+     */
+    public Object get( String name, String subtype)
+    {
+        int hash = hash( hash( hash( 0, name), ';'), subtype);
+        int length = name.length() + 1 + subtype.length();
+        Entry e = table[ indexFor( hash, table.length) ];
+        for( ; e != null; e = e.next) {
+            if( e.hash == hash && e.key.length() == length
+                    && regionEquals( e.key, 0, name)
+                    && e.key.charAt( name.length()) == ';'
+                    && regionEquals( e.key, name.length() + 1, subtype)) {
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns <code>true</code> if a value is mapped to the specified name.
+     *
+     * @param name The attribute description, compared ignoring ASCII case.
+     *
+     * @return <code>true</code> if the name is mapped.
+     */
+    public boolean containsKey( String name)
+    {
+        return find( name) != null;
+    }
+
+    /**
+     * Maps a value to the specified name, replacing any previous mapping.
+     *
+     * @param name  The attribute description.
+     * @param value The value to map.
+     *
+     * @return The previously mapped value or <code>null</code>.
+     */
+    public Object put( String name, Object value)
+    {
+        Entry e = find( name);
+        if( e != null) {
+            Object old = e.value;
+            e.value = value;
+            return old;
+        }
+        insert( name, value);
+        return null;
+    }
+
+    /**
+     * Maps a value to the specified name if the name is not mapped yet.
+     *
+     * @param name  The attribute description.
+     * @param value The value to map.
+     *
+     * @return <code>true</code> if the value was added.
+     */
+    public boolean putIfAbsent( String name, Object value)
+    {
+        if( find( name) != null) {
+            return false;
+        }
+        insert( name, value);
+        return true;
+    }
+
+    /**
+     * Removes the mapping of the specified name.
+     *
+     * @param name The attribute description, compared ignoring ASCII case.
+     *
+     * @return The removed value or <code>null</code> if the name was not
+     *         mapped.
+     */
+    public Object remove( String name)
+    {
+        int hash = hash( 0, name);
+        int idx = indexFor( hash, table.length);
+        Entry prev = null;
+        for( Entry e = table[idx]; e != null; prev = e, e = e.next) {
+            if( e.hash == hash && e.key.length() == name.length()
+                    && regionEquals( e.key, 0, name)) {
+                unlink( idx, prev, e);
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear()
+    {
+        table = new Entry[ INITIAL_SIZE ];
+        count = 0;
+        modCount++;
+        return;
+    }
+
+    /**
+     * Returns an iterator over the mapped values.  The values are not
+     * returned in any particular order.  The iterator supports
+     * <code>remove</code>.
+     *
+     * @return An iterator over the values.
+     */
+    public Iterator values()
+    {
+        return new ValueIterator();
+    }
+
+    private Entry find( String name)
+    {
+        int hash = hash( 0, name);
+        Entry e = table[ indexFor( hash, table.length) ];
+        for( ; e != null; e = e.next) {
+            if( e.hash == hash && e.key.length() == name.length()
+                    && regionEquals( e.key, 0, name)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private void insert( String name, Object value)
+    {
+        int hash = hash( 0, name);
+        if( count >= (table.length - (table.length >> 2))) {
+            resize( table.length << 1);
+        }
+        int idx = indexFor( hash, table.length);
+        table[idx] = new Entry( name, hash, value, table[idx]);
+        count++;
+        modCount++;
+        return;
+    }
+
+    private void unlink( int idx, Entry prev, Entry e)
+    {
+        if( prev == null) {
+            table[idx] = e.next;
+        } else {
+            prev.next = e.next;
+        }
+        count--;
+        modCount++;
+        return;
+    }
+
+    private void resize( int size)
+    {
+        Entry[] newTable = new Entry[ size ];
+        for( int i = 0; i < table.length; i++) {
+            Entry e = table[i];
+            while( e != null) {
+                Entry next = e.next;
+                int idx = indexFor( e.hash, size);
+                e.next = newTable[idx];
+                newTable[idx] = e;
+                e = next;
+            }
+        }
+        table = newTable;
+        return;
+    }
+
+    private static int indexFor( int hash, int length)
+    {
+        return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+
+    /**
+     * Folds an ASCII lower case letter to upper case, any other character
+     * is returned unchanged.
+     *
+     * @param c The character to fold.
+     *
+     * @return The folded character.
+     */
+    public static char fold( char c)
+    {
+        return (c >= 'a' && c <= 'z') ? (char)(c - ('a' - 'A')) : c;
+    }
+
+    /**
+     * Continues a case insensitive hash over the characters of a string.
+     *
+     * @param hash The hash of the preceding characters, 0 to start.
+     * @param str  The characters to add to the hash.
+     *
+     * @return The hash including the characters of <code>str</code>.
+     */
+    public static int hash( int hash, String str)
+    {
+        for( int i = 0, len = str.length(); i < len; i++) {
+            hash = 31 * hash + fold( str.charAt( i));
+        }
+        return hash;
+    }
+
+    private static int hash( int hash, char c)
+    {
+        return 31 * hash + fold( c);
+    }
+
+    /**
+     * Compares part of a string with another string, ignoring the case of
+     * ASCII letters.
+     *
+     * @param str    The string holding the region.
+     * @param offset The start of the region in <code>str</code>.
+     * @param other  The string to compare the region to, its length is the
+     *               length of the region.
+     *
+     * @return <code>true</code> if the region matches.
+     */
+    public static boolean regionEquals( String str, int offset, String other)
+    {
+        int len = other.length();
+        if( offset + len > str.length()) {
+            return false;
+        }
+        for( int i = 0; i < len; i++) {
+            char c1 = str.charAt( offset + i);
+            char c2 = other.charAt( i);
+            if( c1 != c2 && fold( c1) != fold( c2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class ValueIterator implements Iterator
+    {
+        private int index = 0;
+        private Entry next = null;
+        private Entry current = null;
+        private int expectedModCount = modCount;
+
+        private ValueIterator()
+        {
+            advance();
+        }
+
+        private void advance()
+        {
+            if( next != null) {
+                next = next.next;
+            }
+            while( next == null && index < table.length) {
+                next = table[index++];
+            }
+            return;
+        }
+
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        public Object next()
+        {
+            if( modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if( next == null) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            advance();
+            return current.value;
+        }
+
+        public void remove()
+        {
+            if( current == null) {
+                throw new IllegalStateException();
+            }
+            if( modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            AttributeNameMap.this.remove( current.key);
+            expectedModCount = modCount;
+            current = null;
+            return;
+        }
+    }
+}
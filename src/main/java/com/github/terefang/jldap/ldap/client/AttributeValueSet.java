@@ -0,0 +1,449 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999 - 2002 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.client;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Holds the binary values of a single LDAPAttribute.
+ *
+ * <p>Values are kept in a growable array.  Small value sets are searched
+ * linearly and keep their insertion order.  Once the number of values
+ * reaches {@link #INDEX_THRESHOLD} an open addressing index keyed on the
+ * content hash of each value is built, so that duplicate detection, lookup
+ * and removal no longer depend on the number of values.  Removing a value
+ * from an indexed set moves the last value into the freed position; LDAP
+ * attribute values are unordered so callers must not rely on the order of
+ * large value sets.</p>
+ *
+ * <p>String views of the values can optionally be cached, see
+ * {@link #getString(int, int)}.</p>
+ *
+ * <p>This class is not synchronized.</p>
+ */
+public class AttributeValueSet implements Cloneable
+{
+    /**
+     * The number of values at which the hash index is built.
+     */
+    public static final int INDEX_THRESHOLD = 16;
+
+    private byte[][] values;          // value storage, may have spare room
+    private int count = 0;            // number of used entries in values
+    private int[] hashes = null;      // content hashes, only when indexed
+    private int[] slots = null;       // open addressing table of index + 1
+    private String[] strings = null;  // cached UTF-8 decoded values
+
+    /**
+     * Constructs an empty value set.
+     */
+    public AttributeValueSet()
+    {
+        this( 1);
+        return;
+    }
+
+    /**
+     * Constructs an empty value set with room for the given number of values.
+     *
+     * @param capacity The initial number of values that can be held without
+     *                 growing the storage.
+     */
+    public AttributeValueSet( int capacity)
+    {
+        values = new byte[ capacity < 1 ? 1 : capacity ][];
+        return;
+    }
+
+    /**
+     * Returns the number of values in the set.
+     *
+     * @return The number of values.
+     */
+    public final int size()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the value at the specified position.  The array is not copied.
+     *
+     * @param index The position of the value, 0 &lt;= index &lt; size().
+     *
+     * @return The value at the specified position.
+     */
+    public final byte[] get( int index)
+    {
+        if( index >= count) {
+            throw new ArrayIndexOutOfBoundsException( index);
+        }
+        return values[index];
+    }
+
+    /**
+     * Adds a value unless an equal value is already present.  The array is
+     * stored as is, it is not copied.
+     *
+     * @param value The value to add.
+     *
+     * @return true if the value was added, false if it was a duplicate.
+     */
+    public boolean add( byte[] value)
+    {
+        int hash = hash( value);
+        if( indexOf( value, hash) >= 0) {
+            return false; // Duplicate, don't add
+        }
+        if( count == values.length) {
+            int newSize = values.length < 4 ? 4 : values.length << 1;
+            byte[][] tmp = new byte[ newSize ][];
+            System.arraycopy( values, 0, tmp, 0, count);
+            values = tmp;
+            if( strings != null) {
+                String[] stmp = new String[ newSize ];
+                System.arraycopy( strings, 0, stmp, 0, count);
+                strings = stmp;
+            }
+            if( slots != null) {
+                int[] htmp = new int[ newSize ];
+                System.arraycopy( hashes, 0, htmp, 0, count);
+                hashes = htmp;
+            }
+        }
+        values[count] = value;
+        if( slots != null) {
+            hashes[count] = hash;
+            count++;
+            if( (count << 1) > slots.length) {
+                rehash( slots.length << 1);
+            } else {
+                link( count - 1);
+            }
+        } else {
+            count++;
+            if( count >= INDEX_THRESHOLD) {
+                buildIndex();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes a value from the set.
+     *
+     * @param value The value to remove.
+     *
+     * @return true if the value was present and has been removed.
+     */
+    public boolean remove( byte[] value)
+    {
+        int index = indexOf( value, hash( value));
+        if( index < 0) {
+            return false;
+        }
+        int last = count - 1;
+        if( slots == null) {
+            // Small set, keep the order of the remaining values
+            if( index != last) {
+                System.arraycopy( values, index + 1, values, index, last - index);
+                if( strings != null) {
+                    System.arraycopy( strings, index + 1, strings, index,
+                            last - index);
+                }
+            }
+            values[last] = null;
+            if( strings != null) {
+                strings[last] = null;
+            }
+            count--;
+            return true;
+        }
+        unlink( slotOf( index));
+        if( index != last) {
+            // Move the last value into the hole and repoint its slot
+            slots[ slotOf( last) ] = index + 1;
+            values[index] = values[last];
+            hashes[index] = hashes[last];
+            if( strings != null) {
+                strings[index] = strings[last];
+            }
+        }
+        values[last] = null;
+        if( strings != null) {
+            strings[last] = null;
+        }
+        count--;
+        return true;
+    }
+
+    /**
+     * Returns the value at the specified position decoded as a UTF-8 string.
+     *
+     * <p>If the value is no longer than <code>cacheLimit</code> bytes the
+     * decoded string is kept and returned again by later calls, so repeated
+     * reads do not allocate.  Larger values, typically binary ones, are
+     * decoded on every call so they do not hold on to extra memory.  A limit
+     * of zero disables caching.</p>
+     *
+     * @param index      The position of the value, 0 &lt;= index &lt; size().
+     * @param cacheLimit The maximum length in bytes of values to cache.
+     *
+     * @return The decoded value.
+     */
+    public String getString( int index, int cacheLimit)
+    {
+        if( index >= count) {
+            throw new ArrayIndexOutOfBoundsException( index);
+        }
+        if( strings != null && strings[index] != null) {
+            return strings[index];
+        }
+        byte[] value = values[index];
+        String str = decode( value);
+        if( cacheLimit > 0 && value.length <= cacheLimit) {
+            if( strings == null) {
+                strings = new String[ values.length ];
+            }
+            strings[index] = str;
+        }
+        return str;
+    }
+
+    /**
+     * Drops all cached string views.
+     */
+    public void clearStrings()
+    {
+        strings = null;
+        return;
+    }
+
+    /**
+     * Decodes a UTF-8 value.  Pure ASCII values, the common case for names
+     * and DNs, are converted directly without going through the charset
+     * decoder.
+     *
+     * @param value The UTF-8 encoded value.
+     *
+     * @return The decoded string.
+     */
+    public static String decode( byte[] value)
+    {
+        for( int i = 0; i < value.length; i++) {
+            if( value[i] < 0) {
+                try {
+                    return new String( value, "UTF-8");
+                } catch( UnsupportedEncodingException uee) {
+                    // Exception should NEVER get thrown but just in case ...
+                    throw new RuntimeException( uee.toString());
+                }
+            }
+        }
+        return asciiString( value);
+    }
+
+    /*
+     * The hibyte constructor copies the bytes as chars without decoding.
+     */
+    @SuppressWarnings("deprecation")
+    private static String asciiString( byte[] value)
+    {
+        return new String( value, 0, 0, value.length);
+    }
+
+    /**
+     * Reports whether an equal value is present in the set.
+     *
+     * @param value The value to look for.
+     *
+     * @return true if the value is present.
+     */
+    public boolean contains( byte[] value)
+    {
+        return indexOf( value, hash( value)) >= 0;
+    }
+
+    /**
+     * Returns the position of a value equal to the specified one.
+     *
+     * @param value The value to look for.
+     *
+     * @return The position of the value or -1 if it is not present.
+     */
+    public int indexOf( byte[] value)
+    {
+        return indexOf( value, hash( value));
+    }
+
+    /**
+     * Returns a new array referencing the values of this set.  The values
+     * themselves are not copied.
+     *
+     * @return The values of this set.
+     */
+    public byte[][] toArray()
+    {
+        byte[][] tmp = new byte[ count ][];
+        System.arraycopy( values, 0, tmp, 0, count);
+        return tmp;
+    }
+
+    /**
+     * Returns a copy of this set.  The storage and index are copied, the
+     * value arrays are shared.
+     *
+     * @return A copy of this set.
+     */
+    public Object clone()
+    {
+        try {
+            AttributeValueSet newObj = (AttributeValueSet)super.clone();
+            newObj.values = (byte[][])values.clone();
+            if( strings != null) {
+                newObj.strings = (String[])strings.clone();
+            }
+            if( slots != null) {
+                newObj.slots = (int[])slots.clone();
+                newObj.hashes = (int[])hashes.clone();
+            }
+            return newObj;
+        } catch( CloneNotSupportedException ce) {
+            throw new RuntimeException("Internal error, cannot create clone");
+        }
+    }
+
+    /*
+     * Finds the position of a value, using the index when present.
+     */
+    private int indexOf( byte[] value, int hash)
+    {
+        if( slots == null) {
+            for( int i = 0; i < count; i++) {
+                if( equals( value, values[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = slots.length - 1;
+        for( int s = hash & mask; slots[s] != 0; s = (s + 1) & mask) {
+            int i = slots[s] - 1;
+            if( hashes[i] == hash && equals( value, values[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Finds the slot that refers to the value at the given position.
+     */
+    private int slotOf( int index)
+    {
+        int mask = slots.length - 1;
+        int s = hashes[index] & mask;
+        while( slots[s] != index + 1) {
+            s = (s + 1) & mask;
+        }
+        return s;
+    }
+
+    /*
+     * Enters the value at the given position into the index.
+     */
+    private void link( int index)
+    {
+        int mask = slots.length - 1;
+        int s = hashes[index] & mask;
+        while( slots[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        slots[s] = index + 1;
+        return;
+    }
+
+    /*
+     * Frees a slot, shifting back the following entries of its probe
+     * sequence so that no tombstones are needed.
+     */
+    private void unlink( int hole)
+    {
+        int mask = slots.length - 1;
+        int next = (hole + 1) & mask;
+        while( slots[next] != 0) {
+            int home = hashes[ slots[next] - 1 ] & mask;
+            if( ((next - home) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = 0;
+        return;
+    }
+
+    private void buildIndex()
+    {
+        hashes = new int[ values.length ];
+        for( int i = 0; i < count; i++) {
+            hashes[i] = hash( values[i]);
+        }
+        int size = INDEX_THRESHOLD << 1;
+        while( size < (count << 1)) {
+            size <<= 1;
+        }
+        rehash( size);
+        return;
+    }
+
+    private void rehash( int size)
+    {
+        slots = new int[ size ];
+        for( int i = 0; i < count; i++) {
+            link( i);
+        }
+        return;
+    }
+
+    /*
+     * Content hash of a value, spread so that the low bits used to address
+     * the index are well distributed.
+     */
+    private static int hash( byte[] value)
+    {
+        int h = 1;
+        for( int i = 0; i < value.length; i++) {
+            h = 31 * h + value[i];
+        }
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    private static boolean equals( byte[] e1, byte[] e2)
+    {
+        if( e1 == e2)
+            return true;
+        int length = e1.length;
+        if( e2.length != length)
+            return false;
+        for( int i = 0; i < length; i++) {
+            if( e1[i] != e2[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -17,8 +17,6 @@ package com.github.terefang.jldap.ldap.client;
 
 import java.util.ArrayList;
 import java.util.Enumeration;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
 import java.io.IOException;
 import com.github.terefang.jldap.ldap.LDAPObjectClassSchema;
 import com.github.terefang.jldap.ldap.LDAPAttributeSchema;
@@ -51,19 +49,39 @@ public class SchemaParser{
         int result;
         ArrayList qualifiers = new ArrayList();
 
+    /* Token types, the values match those of java.io.StreamTokenizer */
+    private static final int TT_EOF = -1;
+    private static final int TT_NUMBER = -2;
+    private static final int TT_WORD = -3;
+
+    /* Tokenizer state, the definition being parsed and the current token */
+    private char[] chars;
+    private int pos;
+    private int ttype;
+    private String sval;
+    private boolean backslash;
+    private boolean parenthesized;
+
+    /**
+     * Parses a schema definition as defined in RFC 4512 section 4.1.
+     *
+     * <p>The definition is tokenized in a single pass over its characters.
+     * Tokens are split the same way as by the java.io.StreamTokenizer the
+     * parser used before: words are made of letters, digits and the
+     * characters <code>. / { | } _ ; -</code>, strings are enclosed in
+     * single or double quotes, and backslashes are taken literally.</p>
+     *
+     * @param aString The schema definition.
+     */
 	public SchemaParser( String aString ) throws IOException {
 
-        int index;
-        
-        if((index = aString.indexOf( '\\' )) != -1) {
+        if( aString.indexOf( '\\' ) != -1) {
             /*
-             * Unless we escape the slash, StreamTokenizer will interpret the
-             * single slash and convert it assuming octal values.
-             * Two successive back slashes are intrepreted as one backslash.
-             */ 
-            StringBuffer newString =
-                    new StringBuffer( aString.substring(0,index));
-            for (int i=index; i< aString.length(); i++) {
+             * The raw string keeps the backslashes doubled as they were
+             * passed to StreamTokenizer before.
+             */
+            StringBuffer newString = new StringBuffer( aString.length() + 8);
+            for (int i=0; i< aString.length(); i++) {
                 newString.append( aString.charAt(i));
                 if (aString.charAt(i) == '\\') {
                     newString.append('\\');
@@ -74,273 +92,151 @@ public class SchemaParser{
             rawString = aString;
         }
 
-  		StreamTokenizer st2 = new StreamTokenizer(new StringReader(rawString));
-                st2.ordinaryChar('.');
-                st2.ordinaryChars('0', '9');
-                st2.ordinaryChar('{');
-                st2.ordinaryChar('}');
-                st2.ordinaryChar('_');
-                st2.ordinaryChar(';');
-                st2.wordChars('.', '9');
-                st2.wordChars('{', '}');
-                st2.wordChars('_', '_');
-                st2.wordChars(';', ';');
-            //First parse out the OID
-            try{
-              String currName;
-              if( StreamTokenizer.TT_EOF !=  st2.nextToken()){
-                  if(st2.ttype == '('){
-                  if(StreamTokenizer.TT_WORD ==  st2.nextToken()){
-                    id = st2.sval;
-                  }
-                  while(StreamTokenizer.TT_EOF !=  st2.nextToken()){
-                    if(st2.ttype == StreamTokenizer.TT_WORD ){
-                      if(st2.sval.equalsIgnoreCase("NAME")){
-                        if(st2.nextToken() == '\'' ){
-                            names = new String[1];
-                            names[0] = st2.sval;
+        chars = aString.toCharArray();
+        pos = 0;
+        String[] values;
+        //First parse out the OID
+        if( nextToken() == '(') {
+            if( nextToken() == TT_WORD) {
+                id = sval;
+            }
+            while( nextToken() != TT_EOF) {
+                if( ttype != TT_WORD) {
+                    continue;
+                }
+                String currName = sval;
+                if( currName.equalsIgnoreCase("NAME")) {
+                    if( nextToken() == '\'') {
+                        names = new String[1];
+                        names[0] = sval;
+                    }
+                    else if( ttype == '(') {
+                        ArrayList nameList = new ArrayList();
+                        while( nextToken() == '\'') {
+                            if( sval != null)
+                                nameList.add( sval);
                         }
-                        else if(st2.ttype == '(' ){
-                          ArrayList nameList = new ArrayList();
-                          while( st2.nextToken() == '\''){
-                            if ( st2.sval != null )
-                                nameList.add( st2.sval );
-                          }
-                          if(nameList.size() > 0){
+                        if( nameList.size() > 0) {
                             names = new String[nameList.size()];
                             nameList.toArray(names);
-                          }
-                        }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("DESC")){
-                        if( st2.nextToken() == '\'' ){
-                          description = st2.sval;
-                        }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("SYNTAX")){
-                        result = st2.nextToken();
-                        if(( result == StreamTokenizer.TT_WORD ) ||
-                            (result == '\'')) //Test for non-standard schema
-                        {
-                          syntax = st2.sval;
-                        }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("EQUALITY")){
-                        if( st2.nextToken() == StreamTokenizer.TT_WORD ){
-                          equality = st2.sval;
-                        }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("ORDERING")){
-                        if( st2.nextToken() == StreamTokenizer.TT_WORD ){
-                          ordering = st2.sval;
-                        }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("SUBSTR")){
-                        if( st2.nextToken() == StreamTokenizer.TT_WORD ){
-                          substring = st2.sval;
                         }
-                        continue;
-                      }
-					  if(st2.sval.equalsIgnoreCase("FORM")){
-					    if( st2.nextToken() == StreamTokenizer.TT_WORD ){
-                          nameForm = st2.sval;
-                        }
-                        continue;
-                      }
-					  if(st2.sval.equalsIgnoreCase("OC")){
-					    if( st2.nextToken() == StreamTokenizer.TT_WORD ){
-                          objectClass = st2.sval;
-                        }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("SUP")){
-                        ArrayList values = new ArrayList();
-                        st2.nextToken();
-                        if(st2.ttype == '(' ){
-                          st2.nextToken();
-                          while(st2.ttype != ')' ){
-                            if(st2.ttype != '$'){
-                            	values.add(st2.sval);
-                             }
-                             st2.nextToken();
-                          }
-                        }
-                      	else{
-                      		values.add(st2.sval);
-                        	superior = st2.sval;
-                        }
-                        if(values.size() > 0){
-                            superiors = new String[values.size()];
-                            values.toArray(superiors);
-                          }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("SINGLE-VALUE")){
-                        single = true;
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("OBSOLETE")){
-                        obsolete = true;
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("COLLECTIVE")){
-                        collective = true;
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("NO-USER-MODIFICATION")){
-                        userMod = false;
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("MUST")){
-                        ArrayList values = new ArrayList();
-                        st2.nextToken();
-                        if(st2.ttype == '(' ){
-                          st2.nextToken();
-                          while(st2.ttype != ')' ){
-                            if(st2.ttype != '$'){
-                            	values.add(st2.sval);
-                             }
-                             st2.nextToken();
-                          }
-                        }
-                      	else
-                      		values.add(st2.sval);
-                        if(values.size() > 0){
-                            required = new String[values.size()];
-                            values.toArray(required);
-                          }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("MAY")){
-                        ArrayList values = new ArrayList();
-                        st2.nextToken();
-                        if(st2.ttype == '(' ){
-                          st2.nextToken();
-                          while( st2.ttype != ')' ){
-                            if(st2.ttype != '$'){
-                            	values.add(st2.sval);
-                             }
-                             st2.nextToken();
-                          }
-                        }
-                      	else
-                      		values.add(st2.sval);
-                        if(values.size() > 0){
-                            optional = new String[values.size()];
-                            values.toArray(optional);
-                          }
-                        continue;
-                      }
-					  if(st2.sval.equalsIgnoreCase("NOT")){
-                        ArrayList values = new ArrayList();
-                        st2.nextToken();
-                        if(st2.ttype == '(' ){
-                          st2.nextToken();
-                          while( st2.ttype != ')' ){
-                            if(st2.ttype != '$'){
-                            	values.add(st2.sval);
-                             }
-                             st2.nextToken();
-                          }
+                    }
+                }
+                else if( currName.equalsIgnoreCase("DESC")) {
+                    if( nextToken() == '\'') {
+                        description = sval;
+                    }
+                }
+                else if( currName.equalsIgnoreCase("SYNTAX")) {
+                    result = nextToken();
+                    if(( result == TT_WORD) ||
+                        (result == '\'')) //Test for non-standard schema
+                    {
+                        syntax = sval;
+                    }
+                }
+                else if( currName.equalsIgnoreCase("EQUALITY")) {
+                    if( nextToken() == TT_WORD) {
+                        equality = sval;
+                    }
+                }
+                else if( currName.equalsIgnoreCase("ORDERING")) {
+                    if( nextToken() == TT_WORD) {
+                        ordering = sval;
+                    }
+                }
+                else if( currName.equalsIgnoreCase("SUBSTR")) {
+                    if( nextToken() == TT_WORD) {
+                        substring = sval;
+                    }
+                }
+                else if( currName.equalsIgnoreCase("FORM")) {
+                    if( nextToken() == TT_WORD) {
+                        nameForm = sval;
+                    }
+                }
+                else if( currName.equalsIgnoreCase("OC")) {
+                    if( nextToken() == TT_WORD) {
+                        objectClass = sval;
+                    }
+                }
+                else if( currName.equalsIgnoreCase("SUP")) {
+                    values = parseList();
+                    if( !parenthesized) {
+                        superior = sval;
+                    }
+                    if( values != null)
+                        superiors = values;
+                }
+                else if( currName.equalsIgnoreCase("SINGLE-VALUE")) {
+                    single = true;
+                }
+                else if( currName.equalsIgnoreCase("OBSOLETE")) {
+                    obsolete = true;
+                }
+                else if( currName.equalsIgnoreCase("COLLECTIVE")) {
+                    collective = true;
+                }
+                else if( currName.equalsIgnoreCase("NO-USER-MODIFICATION")) {
+                    userMod = false;
+                }
+                else if( currName.equalsIgnoreCase("MUST")) {
+                    if( (values = parseList()) != null)
+                        required = values;
+                }
+                else if( currName.equalsIgnoreCase("MAY")) {
+                    if( (values = parseList()) != null)
+                        optional = values;
+                }
+                else if( currName.equalsIgnoreCase("NOT")) {
+                    if( (values = parseList()) != null)
+                        precluded = values;
+                }
+                else if( currName.equalsIgnoreCase("AUX")) {
+                    if( (values = parseList()) != null)
+                        auxiliary = values;
+                }
+                else if( currName.equalsIgnoreCase("ABSTRACT")) {
+                    type = LDAPObjectClassSchema.ABSTRACT;
+                }
+                else if( currName.equalsIgnoreCase("STRUCTURAL")) {
+                    type = LDAPObjectClassSchema.STRUCTURAL;
+                }
+                else if( currName.equalsIgnoreCase("AUXILIARY")) {
+                    type = LDAPObjectClassSchema.AUXILIARY;
+                }
+                else if( currName.equalsIgnoreCase("USAGE")) {
+                    if( nextToken() == TT_WORD) {
+                        currName = sval;
+                        if( currName.equalsIgnoreCase("directoryOperation")) {
+                            usage = LDAPAttributeSchema.DIRECTORY_OPERATION;
                         }
-                      	else
-                      		values.add(st2.sval);
-                        if(values.size() > 0){
-                            precluded = new String[values.size()];
-                            values.toArray(precluded);
-                          }
-                        continue;
-                      }
-					  if(st2.sval.equalsIgnoreCase("AUX")){
-                        ArrayList values = new ArrayList();
-                        st2.nextToken();
-                        if(st2.ttype == '(' ){
-                          st2.nextToken();
-                          while( st2.ttype != ')'){
-                            if(st2.ttype != '$'){
-                            	values.add(st2.sval);
-                             }
-                             st2.nextToken();
-                          }
+                        else if( currName.equalsIgnoreCase(
+                                  "distributedOperation")) {
+                            usage = LDAPAttributeSchema.DISTRIBUTED_OPERATION;
                         }
-                      	else
-                      		values.add(st2.sval);
-                        if(values.size() > 0){
-                            auxiliary = new String[values.size()];
-                            values.toArray(auxiliary);
-                          }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("ABSTRACT")){
-                        type = LDAPObjectClassSchema.ABSTRACT;
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("STRUCTURAL")){
-                        type = LDAPObjectClassSchema.STRUCTURAL;
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("AUXILIARY")){
-                        type = LDAPObjectClassSchema.AUXILIARY;
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("USAGE")){
-                        if( st2.nextToken() == StreamTokenizer.TT_WORD ){
-                          currName = st2.sval;
-                          if( currName.equalsIgnoreCase("directoryOperation")){
-                              usage = LDAPAttributeSchema.DIRECTORY_OPERATION;
-                          }
-                          else if( currName.equalsIgnoreCase(
-                                    "distributedOperation")){
-                              usage = LDAPAttributeSchema.DISTRIBUTED_OPERATION;
-                          }
-                          else if( currName.equalsIgnoreCase("dSAOperation")){
-                              usage = LDAPAttributeSchema.DSA_OPERATION;
-                          }
-                          else if( currName.equalsIgnoreCase(
-                                    "userApplications")){
-                              usage = LDAPAttributeSchema.USER_APPLICATIONS;
-                          }
+                        else if( currName.equalsIgnoreCase("dSAOperation")) {
+                            usage = LDAPAttributeSchema.DSA_OPERATION;
                         }
-                        continue;
-                      }
-                      if(st2.sval.equalsIgnoreCase("APPLIES")){
-                        ArrayList values = new ArrayList();
-                        st2.nextToken();
-                        if(st2.ttype == '(' ){
-                          st2.nextToken();
-                          while(st2.ttype != ')' ){
-                            if(st2.ttype != '$'){
-                            	values.add(st2.sval);
-                             }
-                             st2.nextToken();
-                          }
+                        else if( currName.equalsIgnoreCase(
+                                  "userApplications")) {
+                            usage = LDAPAttributeSchema.USER_APPLICATIONS;
                         }
-                      	else
-                      		values.add(st2.sval);
-                        if(values.size() > 0){
-                            applies = new String[values.size()];
-                            values.toArray(applies);
-                          }
-                        continue;
-                      }
-                      currName = st2.sval;
-                      AttributeQualifier q = parseQualifier( st2, currName );
-		      if( q != null)
-                     	qualifiers.add(q);
-                      continue;
                     }
-                  }
-		        }
-              }
-            }
-            catch(IOException e){
-              throw e;
+                }
+                else if( currName.equalsIgnoreCase("APPLIES")) {
+                    if( (values = parseList()) != null)
+                        applies = values;
+                }
+                else {
+                    AttributeQualifier q = parseQualifier( currName );
+                    if( q != null)
+                        qualifiers.add(q);
+                }
             }
+        }
+        chars = null;
+        return;
 	}
 
 	public final void setRawString( String rawString ) {
@@ -423,25 +319,122 @@ public class SchemaParser{
         return nameForm;
     }
 
-    private AttributeQualifier parseQualifier( StreamTokenizer st, String name )
-            throws IOException
+    private AttributeQualifier parseQualifier( String name )
     {
         ArrayList values = new ArrayList(5);
-        try{
-            if(st.nextToken() == '\'' ){
-                values.add(st.sval);
-           	}
-           	else if(st.ttype == '(' ){
-           		while(st.nextToken() == '\'' ){
-           		    values.add(st.sval);
-                }
-           	}
+        if( nextToken() == '\'' ) {
+            values.add( sval);
         }
-        catch(IOException e){
-            throw e;
+        else if( ttype == '(' ) {
+            while( nextToken() == '\'' ) {
+                values.add( sval);
+            }
         }
         String[] valArray = new String[ values.size() ];
         valArray = (String[])values.toArray( valArray);
         return new AttributeQualifier( name, valArray );
     }
+
+    /**
+     * Parses the value of a keyword that takes one oid or a list of oids
+     * separated by '$' in parentheses.  Sets parenthesized if the value
+     * is a list, otherwise the value is left in sval.
+     *
+     * @return The values, or null if there are none.
+     */
+    private String[] parseList()
+    {
+        ArrayList values = new ArrayList();
+        parenthesized = nextToken() == '(';
+        if( parenthesized) {
+            nextToken();
+            while( ttype != ')' && ttype != TT_EOF) {
+                if( ttype != '$') {
+                    values.add( sval);
+                }
+                nextToken();
+            }
+        }
+        else {
+            values.add( sval);
+        }
+        if( values.size() == 0) {
+            return null;
+        }
+        return (String[])values.toArray( new String[values.size()]);
+    }
+
+    /**
+     * Reads the next token of the definition.
+     *
+     * @return The type of the token: TT_WORD for a word, the quote
+     *         character for a quoted string, TT_NUMBER, TT_EOF, or the
+     *         character itself.  sval holds the text of words and strings.
+     */
+    private int nextToken()
+    {
+        char[] c = chars;
+        int len = c.length;
+        int p = pos;
+        sval = null;
+        while( p < len && c[p] <= ' ') {
+            p++;
+        }
+        if( p >= len) {
+            pos = p;
+            return ttype = TT_EOF;
+        }
+        char ch = c[p];
+        if( isWordChar( ch)) {
+            int start = p;
+            while( ++p < len && (isWordChar( c[p]) || c[p] == '-')) {
+                // skip
+            }
+            sval = new String( c, start, p - start);
+            pos = p;
+            return ttype = TT_WORD;
+        }
+        if( ch == '\'' || ch == '"') {
+            int start = ++p;
+            while( p < len && c[p] != ch && c[p] != '\n' && c[p] != '\r') {
+                p++;
+            }
+            sval = new String( c, start, p - start);
+            if( p < len && c[p] == ch) {
+                p++;
+            }
+            pos = p;
+            return ttype = ch;
+        }
+        if( ch == '-' && p + 1 < len &&
+                (c[p + 1] == '.' || (c[p + 1] >= '0' && c[p + 1] <= '9'))) {
+            // a negative number, its value is not used
+            boolean dot = false;
+            while( ++p < len) {
+                if( c[p] == '.' && !dot) {
+                    dot = true;
+                } else if( c[p] < '0' || c[p] > '9') {
+                    break;
+                }
+            }
+            pos = p;
+            return ttype = TT_NUMBER;
+        }
+        if( ch == '\\' && !backslash) {
+            // a backslash outside quotes counts twice, as it was doubled
+            backslash = true;
+            pos = p;
+            return ttype = ch;
+        }
+        backslash = false;
+        pos = p + 1;
+        return ttype = ch;
+    }
+
+    private static boolean isWordChar( char ch)
+    {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') ||
+               (ch >= '.' && ch <= '9') || (ch >= '{' && ch <= '}') ||
+               ch == '_' || ch == ';' || ch >= 160;
+    }
 }
@@ -25,6 +25,7 @@ import java.util.HashMap;
 public class LburpOperationResponse extends LDAPExtendedResponse {
     
     private HashMap response; 
+    private HashMap resultCodes;
     
     public LburpOperationResponse(RfcLDAPMessage rfcMessage)
                                   throws IOException
@@ -35,6 +36,7 @@ public class LburpOperationResponse extends LDAPExtendedResponse {
         String resp;
         
         response = new HashMap(5);
+        resultCodes = new HashMap(5);
         byte [] returnedValue = this.getValue();
         if (returnedValue == null)
                 throw new IOException("No returned value");
@@ -81,6 +83,10 @@ public class LburpOperationResponse extends LDAPExtendedResponse {
                 ByteArrayInputStream ins = new ByteArrayInputStream(bval);
                 int[] compLen = new int[1];
                 ASN1Object asb=dec.decode(ins, compLen);
+                if(asb instanceof ASN1Numeric){
+                    resultCodes.put(new Integer(record),
+                            new Integer(((ASN1Numeric)asb).intValue()));
+                }
 
                 asn1ID.reset(ins);
                 asn1Len.reset(ins);  
@@ -106,5 +112,17 @@ public class LburpOperationResponse extends LDAPExtendedResponse {
         return response;
     }
 
+    /**
+     * Returns the result codes of the operations the server reported,
+     * those that failed.
+     *
+     * @return A map from the operation number, as an Integer, to the
+     *         result code, as an Integer.
+     */
+    public HashMap getResultCodes()
+    {
+        return resultCodes;
+    }
+
 }
 
@@ -139,6 +139,21 @@ public class RfcFilter extends ASN1Choice
        return;
     }
 
+    /**
+     * Constructs a Filter object around a filter component that has already
+     * been built, for example a pre-encoded filter.
+     *
+     * <p>Subclasses whose component is not an ASN1Tagged filter tree must
+     * override {@link #getFilterIterator()}.</p>
+     *
+     * @param filter The ASN.1 encodable filter component.
+     */
+    protected RfcFilter(ASN1Object filter)
+    {
+        super(filter);
+        return;
+    }
+
     /**
      * Constructs a Filter object that will be built up piece by piece.   */
     public RfcFilter() {
@@ -912,12 +927,22 @@ public class RfcFilter extends ASN1Choice
                         break;
                     case EXTENSIBLE_MATCH:
                         String oid = (String)itr.next();
+                        String type = (String)itr.next();
+                        String matchValue = (String)itr.next();
+                        boolean dn = ((Boolean)itr.next()).booleanValue();
 
-                        filter.append((String)itr.next());
-                        filter.append(':');
-                        filter.append(oid);
+                        if (type != null){
+                            filter.append(type);
+                        }
+                        if (dn){
+                            filter.append(":dn");
+                        }
+                        if (oid != null){
+                            filter.append(':');
+                            filter.append(oid);
+                        }
                         filter.append(":=");
-                        filter.append((String)itr.next());
+                        filter.append(matchValue);
                         break;
                     case SUBSTRINGS:{
                         filter.append((String)itr.next());
@@ -1074,12 +1099,28 @@ public class RfcFilter extends ASN1Choice
                     if (index == -1){
                         index = 0;
                     }
-                    toReturn = ((ASN1OctetString)
-                                ((ASN1Tagged)
-                                    exMatch.get(index++)
-                                ).taggedValue()
-                               ).stringValue();
-                    if (index > 2){
+                    // matching rule [1], type [2], value [3] and the
+                    // dnAttributes flag [4], the optional rule and type
+                    // are null when absent and the flag defaults to false
+                    int tag = ++index;
+                    if (tag == 4){
+                        toReturn = Boolean.FALSE;
+                    }
+                    for (int i = 0; i < exMatch.size(); i++){
+                        ASN1Tagged part = (ASN1Tagged)exMatch.get(i);
+                        if (part.getIdentifier().getTag() != tag){
+                            continue;
+                        }
+                        ASN1Object content = part.taggedValue();
+                        if (tag == 4){
+                            toReturn = Boolean.valueOf(
+                                    dnAttributes(content));
+                        } else {
+                            toReturn = ((ASN1OctetString)
+                                        content).stringValue();
+                        }
+                    }
+                    if (index > 3){
                         hasMore = false;
                     }
                 } else if (asn1 instanceof ASN1SetOf){
@@ -1105,6 +1146,22 @@ public class RfcFilter extends ASN1Choice
             throw new java.lang.UnsupportedOperationException(
                     "Remove is not supported on a filter iterator");
         }
+
+        /**
+         * Returns the value of a dnAttributes flag, built as a boolean or
+         * decoded as the octets of an implicitly tagged boolean.
+         */
+        private boolean dnAttributes(ASN1Object flag)
+        {
+            if (flag instanceof ASN1Boolean){
+                return ((ASN1Boolean)flag).booleanValue();
+            }
+            if (flag instanceof ASN1OctetString){
+                byte[] octets = ((ASN1OctetString)flag).byteValue();
+                return octets.length > 0 && octets[0] != 0;
+            }
+            return false;
+        }
     }
 
 /**
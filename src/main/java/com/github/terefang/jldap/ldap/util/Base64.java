@@ -15,6 +15,7 @@
 package com.github.terefang.jldap.ldap.util;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * The Base64 utility class performs base64 encoding and decoding.
@@ -25,6 +26,10 @@ import java.io.UnsupportedEncodingException;
  * encoded data are consistently only about 33 percent larger than the
  * unencoded data.  The base64 encoding algorithm is defined by
  * RFC 2045.
+ *
+ * <p>Besides the String and character APIs, data may be encoded and
+ * decoded between byte arrays or ByteBuffers, into output provided by the
+ * caller.  These methods are table driven and allocate nothing.</p>
  */
 public class Base64
 {
@@ -39,7 +44,7 @@ public class Base64
      *                                                encoded      original
      *                                                character    binary value
      */
-    private static final char emap[] = {
+    private static final byte emap[] = {
      'A',  'B',  'C',  'D',  'E',  'F',  'G',  'H',  // A-H;       0 - 7
      'I',  'J',  'K',  'L',  'M',  'N',  'O',  'P',  // I-P;       8 -15
      'Q',  'R',  'S',  'T',  'U',  'V',  'W',  'X',  // Q-X;       16-23
@@ -80,6 +85,23 @@ public class Base64
     0x29, 0x2a, 0x2b, 0x2c, 0x2d, 0x2e, 0x2f, 0x30, // 112-119 'pqrstuvw'
     0x31, 0x32, 0x33, 0x00, 0x00, 0x00, 0x00, 0x00};// 120-127 'xyz     '
 
+    /** Conversion table for decoding bytes from base64.
+     *
+     * dtable maps every byte value to its 6-bit value, or to -1 if the
+     * byte is not a base64 character, so that invalid input is found with
+     * a single test for each group of four characters.
+     */
+    private static final int dtable[] = new int[256];
+
+    static {
+        for( int i = 0; i < dtable.length; i++) {
+            dtable[i] = -1;
+        }
+        for( int i = 0; i < emap.length; i++) {
+            dtable[ emap[i] ] = i;
+        }
+    }
+
     /**
      * Default constructor, don't allow instances of the
      * utility class to be created.
@@ -116,95 +138,114 @@ public class Base64
      */
     public static final String encode(byte[] inputBytes)
     {
-        int  i, j, k;
-        int t, t1,t2;
-        int  ntb;  // number of three-bytes in inputBytes
-        boolean onePadding = false, twoPaddings = false;
-        char[] encodedChars;     // base64 encoded chars
-        int  len = inputBytes.length;
+        return java.util.Base64.getEncoder().encodeToString( inputBytes);
+    }
 
-        if( len == 0) {
-            // No data, return no data.
-            return new String("");
-        }
+    /**
+     * Returns the length of the base64 encoding of a number of bytes,
+     * padding included.
+     *
+     * @param length  The number of bytes to encode.
+     *
+     * @return The number of base64 characters.
+     */
+    public static final int encodedLength( int length)
+    {
+        return (length + 2) / 3 * 4;
+    }
 
-        // every three bytes will be encoded into four bytes
-        if ( len%3 == 0 ) {
-            ntb = len / 3;
+    /**
+     * Encodes bytes of an array into another array.
+     *
+     * @param src     The array holding the data to encode.
+     * @param off     The index of the first byte to encode.
+     * @param len     The number of bytes to encode.
+     * @param dst     The array receiving the base64 characters, which must
+     *                have room for {@link #encodedLength(int)} of them.
+     * @param dstOff  The index where the first character is stored.
+     *
+     * @return The number of characters stored.
+     */
+    public static final int encode( byte[] src, int off, int len,
+                                    byte[] dst, int dstOff)
+    {
+        byte[] map = emap;
+        int end = off + len - len % 3;
+        int o = dstOff;
+        for( int i = off; i < end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8
+                     | (src[i + 2] & 0xff);
+            dst[o] = map[bits >>> 18];
+            dst[o + 1] = map[(bits >>> 12) & 0x3f];
+            dst[o + 2] = map[(bits >>> 6) & 0x3f];
+            dst[o + 3] = map[bits & 0x3f];
+            o += 4;
         }
-        // the last one or two bytes will be encoded into
-        // four bytes with one or two paddings
-        else {
-            ntb = len / 3 + 1;
+        if( len % 3 != 0) {
+            int b0 = src[end] & 0xff;
+            int b1 = len % 3 == 2 ? src[end + 1] & 0xff : 0;
+            dst[o] = map[b0 >> 2];
+            dst[o + 1] = map[(b0 & 0x03) << 4 | b1 >> 4];
+            dst[o + 2] = len % 3 == 2 ? map[(b1 & 0x0f) << 2] : (byte)'=';
+            dst[o + 3] = '=';
+            o += 4;
         }
+        return o - dstOff;
+    }
 
-        // need two paddings
-        if( (len%3) == 1 ) {
-            twoPaddings = true;
-        }
-        // need one padding
-        else if ( (len%3) == 2 ) {
-                onePadding = true;
+    /**
+     * Encodes the remaining bytes of a buffer into another buffer.  The
+     * position of the source buffer is moved to its limit, and the
+     * position of the destination buffer past the characters stored.
+     *
+     * @param src  The buffer holding the data to encode.
+     * @param dst  The buffer receiving the base64 characters, which must
+     *             have room for {@link #encodedLength(int)} of them.
+     *
+     * @return The number of characters stored.
+     *
+     * @throws java.nio.BufferOverflowException if the destination buffer
+     *         is too small.
+     */
+    public static final int encode( ByteBuffer src, ByteBuffer dst)
+    {
+        int len = src.remaining();
+        int n = encodedLength( len);
+        if( dst.remaining() < n) {
+            throw new java.nio.BufferOverflowException();
         }
-
-        encodedChars = new char[ntb*4];
-
-        // map of decoded and encoded bits
-        //     bits in 3 decoded bytes:   765432  107654  321076  543210
-        //     bits in 4 encoded bytes: 76543210765432107654321076543210
-        //       plain           "AAA":   010000  010100  000101  000001
-        //       base64 encoded "QUFB": 00010000000101000000010100000001
-        // one padding:
-        //     bits in 2 decoded bytes:   765432  10 7654  3210
-        //     bits in 4 encoded bytes: 765432107654 321076543210 '='
-        //       plain            "AA":   010000  010100  0001
-        //       base64 encoded "QUE=": 00010000000101000000010000111101
-        // two paddings:
-        //     bits in 1 decoded bytes:   765432  10
-        //     bits in 4 encoded bytes: 7654321076543210 '=' '='
-        //       plain             "A":   010000  01
-        //       base64 encoded "QQ==": 00010000000100000011110100111101
-        //
-        // note: the encoded bits which have no corresponding decoded bits
-        // are filled with zeros; '=' = 00111101.
-        for ( i = 0, j = 0, k = 1; i < len; i+=3, j+=4, k++) {
-
-            // build encodedChars[j]
-            t = 0x00ff & inputBytes[i];
-            encodedChars[j] = emap[t >> 2];
-
-            // build encodedChars[j+1]
-            if ( (k==ntb) && twoPaddings) {
-                encodedChars[j+1] = emap[(t&0x03) << 4];
-                encodedChars[j+2] = '=';
-                encodedChars[j+3] = '=';
-                break;
-            }
-            else {
-                t1 = 0x00ff & inputBytes[i+1];
-                encodedChars[j+1] =
-                   emap[((t&0x03) << 4) +( (t1&0xf0) >> 4) ];
-            }
-
-            // build encodedChars[j+2]
-            if((k==ntb) && onePadding) {
-                encodedChars[j+2] = emap[(t1&0x0f) << 2];
-                encodedChars[j+3] = '=';
-                break;
+        if( src.hasArray() && dst.hasArray()) {
+            encode( src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+        } else {
+            byte[] map = emap;
+            int p = src.position();
+            int q = dst.position();
+            int end = p + len - len % 3;
+            for( ; p < end; p += 3, q += 4) {
+                int bits = (src.get( p) & 0xff) << 16
+                         | (src.get( p + 1) & 0xff) << 8
+                         | (src.get( p + 2) & 0xff);
+                dst.put( q, map[bits >>> 18]);
+                dst.put( q + 1, map[(bits >>> 12) & 0x3f]);
+                dst.put( q + 2, map[(bits >>> 6) & 0x3f]);
+                dst.put( q + 3, map[bits & 0x3f]);
             }
-            else {
-                t2 = 0x00ff & inputBytes[i+2];
-                encodedChars[j+2] =
-                      (emap[(t1&0x0f) << 2 | (t2&0xc0) >> 6]);
+            if( len % 3 != 0) {
+                int b0 = src.get( p) & 0xff;
+                int b1 = len % 3 == 2 ? src.get( p + 1) & 0xff : 0;
+                dst.put( q, map[b0 >> 2]);
+                dst.put( q + 1, map[(b0 & 0x03) << 4 | b1 >> 4]);
+                dst.put( q + 2, len % 3 == 2 ? map[(b1 & 0x0f) << 2]
+                                             : (byte)'=');
+                dst.put( q + 3, (byte)'=');
             }
-
-            // build encodedChars[j+3]
-            encodedChars[j+3] = (emap[(t2&0x3f)]);
         }
-        return new String(encodedChars);
+        src.position( src.limit());
+        dst.position( dst.position() + n);
+        return n;
     }
 
-
     /**
      * Decodes the input base64 encoded String.
      * The resulting binary data is returned as an array of bytes.
@@ -215,9 +256,7 @@ public class Base64
      */
     public static final byte[] decode(String encodedString)
     {
-        char[] c = new char[encodedString.length()];
-        encodedString.getChars(0, encodedString.length(), c, 0);
-        return decode(c);
+        return decode( encodedString, 0, encodedString.length());
     }
 
     /**
@@ -327,91 +366,299 @@ public class Base64
      */
     public static final byte[] decode(StringBuffer encodedSBuf, int start, int end)
     {
-        int  i, j, k;
-        int  esbLen = end - start;// length of the encoded part
-        int  gn = esbLen/4;      // number of four-bytes group in ebs
-        int  dByteLen;             // length of dbs, default is '0'
-        boolean onePad = false, twoPads = false;
-        byte[] decodedBytes;     // decoded bytes
+        return decode( (CharSequence)encodedSBuf, start, end);
+    }
 
-        if( encodedSBuf.length() == 0) {
+    /**
+     * Decodes part of a sequence of base64 characters.  Characters that
+     * are not base64 characters are decoded as 'A', as by
+     * {@link #decode(char[])}.
+     */
+    private static byte[] decode( CharSequence encoded, int start, int end)
+    {
+        int len = end - start;
+        if( len == 0) {
             return new byte[0];
         }
         // the number of encoded bytes should be multiple of number 4
-        if ( (esbLen%4) != 0) {
+        if( len % 4 != 0) {
             throw new RuntimeException("com.novell.ldap.ldif_dsml."
                 + "Base64Decoder: decode error: mal-formatted encode value");
         }
+        int pads = encoded.charAt( end - 1) != '=' ? 0
+                 : (encoded.charAt( end - 2) != '=' ? 1 : 2);
+        byte[] decodedBytes = new byte[ len / 4 * 3 - pads ];
+        int stop = end - (pads == 0 ? 0 : 4);
+        int o = 0;
+        int i = start;
+        for( ; i < stop; i += 4) {
+            int bits = sextet( encoded.charAt( i)) << 18
+                     | sextet( encoded.charAt( i + 1)) << 12
+                     | sextet( encoded.charAt( i + 2)) << 6
+                     | sextet( encoded.charAt( i + 3));
+            decodedBytes[o++] = (byte)(bits >> 16);
+            decodedBytes[o++] = (byte)(bits >> 8);
+            decodedBytes[o++] = (byte)bits;
+        }
+        if( pads != 0) {
+            int bits = sextet( encoded.charAt( i)) << 18
+                     | sextet( encoded.charAt( i + 1)) << 12
+                     | (pads == 1 ? sextet( encoded.charAt( i + 2)) << 6 : 0);
+            decodedBytes[o++] = (byte)(bits >> 16);
+            if( pads == 1) {
+                decodedBytes[o] = (byte)(bits >> 8);
+            }
+        }
+        return decodedBytes;
+    }
 
-        // every four-bytes in ebs, except the last one if it in the form of
-        // '**==' or '***=' ( can't be '*===' or '===='), will be decoded into
-        // three bytes.
-        if ( (encodedSBuf.charAt(end-1) == (int)'=') &&
-             (encodedSBuf.charAt(end-2) == (int)'=') ) {
-            // the last four bytes of ebs is in the form of '**=='
-            twoPads = true;
-            // the first two bytes of the last four-bytes of ebs will be
-            // decoded into one byte.
-            dByteLen = gn * 3 - 2;
-            decodedBytes = new byte[dByteLen];
+    /**
+     * Returns the 6-bit value of a base64 character from dmap.
+     */
+    private static int sextet( char c)
+    {
+        if( c >= dmap.length) {
+            throw new RuntimeException("com.novell.ldap.ldif_dsml."
+                + "Base64Decoder: decode error: invalid character");
         }
-        else if ( encodedSBuf.charAt(end-1) == (int)'=' ) {
-            // the last four bytes of ebs is in the form of '***='
-            onePad = true;
-            // the first two bytes of the last four-bytes of ebs will be
-            // decoded into two bytes.
-            dByteLen = gn * 3 - 1;
-            decodedBytes = new byte[dByteLen];
+        return dmap[c];
+    }
+
+    /**
+     * Returns the length of the data decoded from base64 characters.  The
+     * trailing padding characters are optional.
+     *
+     * @param src  The array holding the base64 characters.
+     * @param off  The index of the first character.
+     * @param len  The number of characters, padding included.
+     *
+     * @return The number of bytes decoded from the characters.
+     *
+     * @throws IllegalArgumentException if the number of characters is not
+     *         valid for base64 data.
+     */
+    public static final int decodedLength( byte[] src, int off, int len)
+    {
+        int n = len;
+        while( n > 0 && len - n < 2 && src[off + n - 1] == '=') {
+            n--;
         }
-        else {
-            // the last four bytes of ebs is in the form of '****', eg. no pad.
-            dByteLen = gn * 3;
-            decodedBytes = new byte[dByteLen];
+        return decodedLength( len, n);
+    }
+
+    /**
+     * Returns the length of the data decoded from base64 characters in a
+     * buffer.  The trailing padding characters are optional.
+     *
+     * @param src  The buffer holding the base64 characters.
+     * @param off  The index in the buffer of the first character.
+     * @param len  The number of characters, padding included.
+     *
+     * @return The number of bytes decoded from the characters.
+     *
+     * @throws IllegalArgumentException if the number of characters is not
+     *         valid for base64 data.
+     */
+    public static final int decodedLength( ByteBuffer src, int off, int len)
+    {
+        int n = len;
+        while( n > 0 && len - n < 2 && src.get( off + n - 1) == '=') {
+            n--;
         }
+        return decodedLength( len, n);
+    }
 
-        // map of encoded and decoded bits
-        // no padding:
-        //     bits in 4 encoded bytes: 76543210 76543210 76543210 76543210
-        //     bits in 3 decoded bytes:   765432   107654   321076   543210
-        //        base64  string "QUFB":00010000 00010100 000001010 0000001
-        //          plain string  "AAA":   010000  010100  000101  000001
-        // one padding:
-        //     bits in 4 encoded bytes: 76543210 76543210 76543210 76543210
-        //     bits in 2 decoded bytes:   765432   107654   3210
-        //       base64  string "QUE=": 00010000 000101000 0000100 00111101
-        //         plain string   "AA":   010000  010100  0001
-        // two paddings:
-        //     bits in 4 encoded bytes: 76543210 76543210 76543210 76543210
-        //     bits in 1 decoded bytes:   765432   10
-        //       base64  string "QQ==": 00010000 00010000 00111101 00111101
-        //         plain string    "A":   010000  01
-        for ( i=0, j=0, k=1; i<esbLen; i+=4, j+=3,k++ ) {
-            // build decodedBytes[j].
-            decodedBytes[j] =
-                        (byte)( dmap[encodedSBuf.charAt(start+i)]<<2
-                            |  (dmap[encodedSBuf.charAt(start+i+1)]&0x30)>>4 );
+    /**
+     * Returns the decoded length of a number of base64 characters, padding
+     * excluded.
+     */
+    private static int decodedLength( int len, int n)
+    {
+        if( n % 4 == 1 || (len != n && len % 4 != 0)) {
+            throw new IllegalArgumentException( "malformed base64 value");
+        }
+        return n * 3 / 4;
+    }
 
-            // build decodedBytes[j+1]
-            if ( (k==gn) && twoPads ){
-                break;
+    /**
+     * Decodes base64 characters of an array into another array.  The
+     * trailing padding characters are optional.
+     *
+     * @param src     The array holding the base64 characters.
+     * @param off     The index of the first character.
+     * @param len     The number of characters, padding included.
+     * @param dst     The array receiving the data, which must have room
+     *                for {@link #decodedLength(byte[], int, int)} bytes.
+     * @param dstOff  The index where the first byte is stored.
+     *
+     * @return The number of bytes stored.
+     *
+     * @throws IllegalArgumentException if the characters are not valid
+     *         base64 data.
+     */
+    public static final int decode( byte[] src, int off, int len,
+                                    byte[] dst, int dstOff)
+    {
+        int n = decodedLength( src, off, len);
+        int[] table = dtable;
+        int i = off;
+        int o = dstOff;
+        for( int end = o + n - n % 3; o < end; i += 4) {
+            int bits = table[src[i] & 0xff] << 18
+                     | table[src[i + 1] & 0xff] << 12
+                     | table[src[i + 2] & 0xff] << 6
+                     | table[src[i + 3] & 0xff];
+            if( bits < 0) {
+                throw invalid( src, i, 4);
+            }
+            dst[o] = (byte)(bits >> 16);
+            dst[o + 1] = (byte)(bits >> 8);
+            dst[o + 2] = (byte)bits;
+            o += 3;
+        }
+        if( n % 3 != 0) {
+            int bits = table[src[i] & 0xff] << 18
+                     | table[src[i + 1] & 0xff] << 12
+                     | (n % 3 == 2 ? table[src[i + 2] & 0xff] << 6 : 0);
+            if( bits < 0) {
+                throw invalid( src, i, n % 3 + 1);
             }
-            else {
-                decodedBytes[j+1] =
-                        (byte)( (dmap[encodedSBuf.charAt(start+i+1)]&0x0f)<<4
-                              | (dmap[encodedSBuf.charAt(start+i+2)]&0x3c)>>2);
+            dst[o++] = (byte)(bits >> 16);
+            if( n % 3 == 2) {
+                dst[o++] = (byte)(bits >> 8);
             }
+        }
+        return n;
+    }
 
-            // build decodedBytes[j+2]
-            if( (k==gn) && onePad ) {
-                break;
+    /**
+     * Decodes base64 characters of a buffer into an array.  The trailing
+     * padding characters are optional.  The position of the buffer is not
+     * changed.
+     *
+     * @param src     The buffer holding the base64 characters.
+     * @param off     The index in the buffer of the first character.
+     * @param len     The number of characters, padding included.
+     * @param dst     The array receiving the data, which must have room
+     *                for {@link #decodedLength(ByteBuffer, int, int)} bytes.
+     * @param dstOff  The index where the first byte is stored.
+     *
+     * @return The number of bytes stored.
+     *
+     * @throws IllegalArgumentException if the characters are not valid
+     *         base64 data.
+     */
+    public static final int decode( ByteBuffer src, int off, int len,
+                                    byte[] dst, int dstOff)
+    {
+        if( src.hasArray()) {
+            return decode( src.array(), src.arrayOffset() + off, len,
+                           dst, dstOff);
+        }
+        int n = decodedLength( src, off, len);
+        int[] table = dtable;
+        int i = off;
+        int o = dstOff;
+        for( int end = o + n - n % 3; o < end; i += 4) {
+            int bits = table[src.get( i) & 0xff] << 18
+                     | table[src.get( i + 1) & 0xff] << 12
+                     | table[src.get( i + 2) & 0xff] << 6
+                     | table[src.get( i + 3) & 0xff];
+            if( bits < 0) {
+                throw invalid( src, i, 4);
             }
-            else {
-                decodedBytes[j+2] =
-                        (byte)( (dmap[encodedSBuf.charAt(start+i+2)]&0x03)<<6
-                               | dmap[encodedSBuf.charAt(start+i+3)]&0x3f);
+            dst[o] = (byte)(bits >> 16);
+            dst[o + 1] = (byte)(bits >> 8);
+            dst[o + 2] = (byte)bits;
+            o += 3;
+        }
+        if( n % 3 != 0) {
+            int bits = table[src.get( i) & 0xff] << 18
+                     | table[src.get( i + 1) & 0xff] << 12
+                     | (n % 3 == 2 ? table[src.get( i + 2) & 0xff] << 6 : 0);
+            if( bits < 0) {
+                throw invalid( src, i, n % 3 + 1);
+            }
+            dst[o++] = (byte)(bits >> 16);
+            if( n % 3 == 2) {
+                dst[o++] = (byte)(bits >> 8);
             }
         }
-        return decodedBytes;
+        return n;
+    }
+
+    /**
+     * Decodes the remaining base64 characters of a buffer into another
+     * buffer.  The trailing padding characters are optional.  The position
+     * of the source buffer is moved to its limit, and the position of the
+     * destination buffer past the bytes stored.
+     *
+     * @param src  The buffer holding the base64 characters.
+     * @param dst  The buffer receiving the data.
+     *
+     * @return The number of bytes stored.
+     *
+     * @throws IllegalArgumentException if the characters are not valid
+     *         base64 data.
+     * @throws java.nio.BufferOverflowException if the destination buffer
+     *         is too small.
+     */
+    public static final int decode( ByteBuffer src, ByteBuffer dst)
+    {
+        int off = src.position();
+        int len = src.remaining();
+        int n = decodedLength( src, off, len);
+        if( dst.remaining() < n) {
+            throw new java.nio.BufferOverflowException();
+        }
+        if( dst.hasArray()) {
+            decode( src, off, len, dst.array(),
+                    dst.arrayOffset() + dst.position());
+        } else {
+            byte[] chunk = new byte[ Math.min( n, 3 * 1024) ];
+            int done = 0;
+            while( done < n) {
+                // whole groups of characters, up to the size of the chunk
+                int count = Math.min( chunk.length, n - done);
+                int chars = count % 3 == 0 ? count / 3 * 4
+                                           : count / 3 * 4 + count % 3 + 1;
+                decode( src, off, chars, chunk, 0);
+                dst.put( chunk, 0, count);
+                off += chars;
+                done += count;
+            }
+            src.position( src.limit());
+            return n;
+        }
+        src.position( src.limit());
+        dst.position( dst.position() + n);
+        return n;
+    }
+
+    private static IllegalArgumentException invalid( byte[] src, int off,
+                                                     int len)
+    {
+        for( int i = off; i < off + len; i++) {
+            if( dtable[src[i] & 0xff] < 0) {
+                return new IllegalArgumentException(
+                        "invalid base64 character '" + (char)(src[i] & 0xff)
+                        + "'");
+            }
+        }
+        return new IllegalArgumentException( "malformed base64 value");
+    }
+
+    private static IllegalArgumentException invalid( ByteBuffer src, int off,
+                                                     int len)
+    {
+        for( int i = off; i < off + len; i++) {
+            if( dtable[src.get( i) & 0xff] < 0) {
+                return new IllegalArgumentException(
+                        "invalid base64 character '"
+                        + (char)(src.get( i) & 0xff) + "'");
+            }
+        }
+        return new IllegalArgumentException( "malformed base64 value");
     }
 
     /**
@@ -448,38 +695,97 @@ public class Base64
      */
     public static final boolean isLDIFSafe(byte[] bytes)
     {
-        int len = bytes.length;
-        if( len > 0) {
-            int testChar = bytes[0];
-            // unsafe if first character is a NON-SAFE-INIT-CHAR
-            if (      (testChar == 0x00)     // NUL
-                   || (testChar == 0x0A)     // linefeeder
-                   || (testChar == 0x0D)     // carrage return
-                   || (testChar == 0x20)     // space(' ')
-                   || (testChar == 0x3A)     // colon(':')
-                   || (testChar == 0x3C)     // less-than('<')
-                   || (testChar <  0)) {     // non ascii (>127 is negative)
-                return  false;
-            }
-            // unsafe if last character is a space
-            if( bytes[len-1] == ' ') {
-                return false;
-            }
-            // unsafe if contains any non safe character
-            if( len > 1){
-                for ( int i = 1; i < bytes.length; i++ ) {
-                    testChar = bytes[i];
-                    if (      (testChar == 0x00) // NUL
-                           || (testChar == 0x0A) // linefeeder
-                           || (testChar == 0x0D) // carrage return
-                           || (testChar <  0)) { // non ascii (>127 is negative)
-                        return false;
-                    }
-                }
+        return isLDIFSafe( bytes, 0, bytes.length);
+    }
+
+    /**
+     * Checks if part of a byte array contains only safe values, that is,
+     * the data does not need to be encoded for use with LDIF.  The rules
+     * are those of {@link #isLDIFSafe(byte[])}.
+     *
+     * @param bytes  The array holding the bytes to be checked.
+     * @param off    The index of the first byte.
+     * @param len    The number of bytes.
+     *
+     * @return true if encoding not required for LDIF
+     */
+    public static final boolean isLDIFSafe(byte[] bytes, int off, int len)
+    {
+        if( len == 0) {
+            return true;
+        }
+        byte[] table = ldifClass;
+        // unsafe if first character is a NON-SAFE-INIT-CHAR, or last is
+        // a space
+        if( (table[bytes[off] & 0xff] & UNSAFE_INIT) != 0 ||
+            bytes[off + len - 1] == ' ') {
+            return false;
+        }
+        // unsafe if contains any non safe character
+        int unsafe = 0;
+        for( int i = off + 1, end = off + len; i < end; i++) {
+            unsafe |= table[bytes[i] & 0xff];
+        }
+        return (unsafe & UNSAFE) == 0;
+    }
+
+    /** Class of a byte value for LDIF: not safe anywhere in a value */
+    private static final int UNSAFE = 1;
+    /** Class of a byte value for LDIF: not safe as first byte of a value */
+    private static final int UNSAFE_INIT = 2;
+    /** Class of a byte value for LDIF: not a printable ASCII character */
+    private static final int UNPRINTABLE = 4;
+
+    /** ldifClass maps every byte value to its LDIF classes. */
+    private static final byte ldifClass[] = new byte[256];
+
+    static {
+        for( int i = 0x80; i < 0x100; i++) {
+            ldifClass[i] = UNSAFE | UNSAFE_INIT;
+        }
+        for( int i = 0x00; i < 0x20; i++) {
+            ldifClass[i] = UNPRINTABLE;
+        }
+        ldifClass[0x7F] = UNPRINTABLE;             // DEL
+        for( int i = 0x80; i < 0x100; i++) {
+            ldifClass[i] |= UNPRINTABLE;
+        }
+        ldifClass[0x00] |= UNSAFE | UNSAFE_INIT;   // NUL
+        ldifClass[0x0A] |= UNSAFE | UNSAFE_INIT;   // linefeeder
+        ldifClass[0x0D] |= UNSAFE | UNSAFE_INIT;   // carrage return
+        ldifClass[0x20] = UNSAFE_INIT;             // space(' ')
+        ldifClass[0x3A] = UNSAFE_INIT;             // colon(':')
+        ldifClass[0x3C] = UNSAFE_INIT;             // less-than('<')
+    }
+
+    /**
+     * Copies the bytes of a value that are written as is in LDIF, checking
+     * them in the same pass: bytes are copied up to the first one that is
+     * not a printable ASCII character (0x20 to 0x7E).  The rules for the
+     * first and last bytes of a value are left to the caller.
+     *
+     * @param src     The array holding the bytes to copy.
+     * @param off     The index of the first byte.
+     * @param len     The number of bytes.
+     * @param dst     The array to copy the bytes to.
+     * @param dstOff  The index in dst of the first byte copied.
+     *
+     * @return The number of bytes copied, len if all are printable.
+     */
+    public static final int copyPrintable( byte[] src, int off, int len,
+                                           byte[] dst, int dstOff)
+    {
+        byte[] table = ldifClass;
+        for( int i = 0; i < len; i++) {
+            byte b = src[off + i];
+            if( (table[b & 0xff] & UNPRINTABLE) != 0) {
+                return i;
             }
+            dst[dstOff + i] = b;
         }
-        return true;
+        return len;
     }
+
     /**
      * Checks if the input String contains only safe values, that is,
      * the data does not need to be encoded for use with LDIF.
@@ -644,8 +950,28 @@ public class Base64
      */
     public static boolean isValidUTF8(byte[] array, boolean isUCS2Only)
     {
-        int index = 0;
-        while (index < array.length){
+        return isValidUTF8( array, 0, array.length, isUCS2Only);
+    }
+
+    /**
+     * Determines if part of an array of bytes contains only valid UTF-8
+     * characters, as {@link #isValidUTF8(byte[], boolean)}.
+     *
+     * @param array  An array holding the bytes to be tested.
+     * @param off    The index of the first byte.
+     * @param len    The number of bytes.
+     * @param isUCS2Only true if the UTF-8 values must be restricted to fit
+     *               within UCS2 encoding (2 bytes)
+     *
+     * @return true if all values in the part of the array are valid UTF-8
+     *               sequences.
+     */
+    public static boolean isValidUTF8(byte[] array, int off, int len,
+                                      boolean isUCS2Only)
+    {
+        int index = off;
+        int end = off + len;
+        while (index < end){
             int count = getByteCount(array[index]);
             if (count == 0){
                 //anything that qualifies as count=0 is valid UTF-8
@@ -653,7 +979,7 @@ public class Base64
                 continue;
             }
 
-            if (count == -1 || index + count >= array.length ||
+            if (count == -1 || index + count >= end ||
                     (isUCS2Only && count >= 3) ){
                 /* Any count that puts us out of bounds for the index is
                  * invalid.  Valid UCS2 characters can only have 2 additional
@@ -0,0 +1,324 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TreeSet;
+
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.rfc2251.RfcFilter;
+
+/**
+ * <P>The canonical form of a search filter, for use as a cache key.</P>
+ *
+ * <P>Filters that differ only in the way they are written have the same
+ * canonical form.  The canonical form is built from the parsed filter as
+ * follows:</P>
+ * <ul>
+ * <li>attribute descriptions and matching rules are lower cased, and the
+ *     options of an attribute description are sorted</li>
+ * <li>nested AND components are merged into the enclosing AND, and nested
+ *     OR components into the enclosing OR</li>
+ * <li>the operands of AND and OR are sorted and duplicates are dropped; an
+ *     AND or OR with a single operand is replaced by that operand</li>
+ * <li>a double negation is removed</li>
+ * <li>values are escaped in a single way: <code>*</code>, <code>(</code>,
+ *     <code>)</code>, <code>\</code> and NUL as <code>\2a</code> and so on,
+ *     values that are not UTF-8 completely in hex</li>
+ * </ul>
+ *
+ * <P>Values keep their case, since whether case matters depends on the
+ * matching rule of the attribute.  For example
+ * <code>(&amp;(uid=a)(objectClass=person))</code> and
+ * <code>(&amp;(objectclass=person)(UID=a))</code> have the canonical form
+ * <code>(&amp;(objectclass=person)(uid=a))</code>.</P>
+ *
+ * <P>A 64-bit fingerprint of the canonical form is computed as well, which
+ * can serve as a compact key for caches or to detect identical searches
+ * in progress.  Different filters may, rarely, share a fingerprint; use
+ * {@link #equals(Object)} where a collision matters.</P>
+ */
+public final class CanonicalFilter
+{
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String canonical;
+    private final long fingerprint;
+
+    /**
+     * Computes the canonical form of a filter string.
+     *
+     * @param filter  An RFC 2254 search filter.
+     *
+     * @exception LDAPException if the filter cannot be parsed.
+     */
+    public CanonicalFilter( String filter)
+            throws LDAPException
+    {
+        this( new RfcFilter( filter));
+        return;
+    }
+
+    /**
+     * Computes the canonical form of a parsed filter.
+     *
+     * @param filter  The filter.
+     *
+     * @exception LDAPException if the filter contains an unknown component.
+     */
+    public CanonicalFilter( RfcFilter filter)
+            throws LDAPException
+    {
+        this.canonical = canonicalize( filter.getFilterIterator());
+        this.fingerprint = fingerprint( canonical);
+        return;
+    }
+
+    /**
+     * Returns the canonical form of a filter string.
+     *
+     * @param filter  An RFC 2254 search filter.
+     *
+     * @return The canonical filter string.
+     *
+     * @exception LDAPException if the filter cannot be parsed.
+     */
+    public static String canonicalize( String filter)
+            throws LDAPException
+    {
+        return new CanonicalFilter( filter).toString();
+    }
+
+    /**
+     * Returns the 64-bit fingerprint of the canonical form, a FNV-1a hash
+     * of its UTF-8 encoding.
+     *
+     * @return The fingerprint.
+     */
+    public long getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * Compares the canonical forms of two filters.
+     *
+     * @param obj  The object to compare to.
+     *
+     * @return true if obj is a CanonicalFilter with the same canonical form.
+     */
+    public boolean equals( Object obj)
+    {
+        if( obj == this) {
+            return true;
+        }
+        if( !(obj instanceof CanonicalFilter)) {
+            return false;
+        }
+        CanonicalFilter other = (CanonicalFilter)obj;
+        return fingerprint == other.fingerprint &&
+               canonical.equals( other.canonical);
+    }
+
+    /**
+     * Returns a hash code derived from the fingerprint.
+     *
+     * @return The hash code.
+     */
+    public int hashCode()
+    {
+        return (int)(fingerprint ^ (fingerprint >>> 32));
+    }
+
+    /**
+     * Returns the canonical filter string, which is a valid filter.
+     *
+     * @return The canonical form.
+     */
+    public String toString()
+    {
+        return canonical;
+    }
+
+    /*
+     * Builds the canonical string of a filter component from its filter
+     * iterator.
+     */
+    private static String canonicalize( Iterator itr)
+            throws LDAPException
+    {
+        int op = ((Integer)itr.next()).intValue();
+        StringBuffer buf = new StringBuffer();
+        switch( op) {
+        case RfcFilter.AND:
+        case RfcFilter.OR: {
+            TreeSet operands = new TreeSet();
+            String prefix = op == RfcFilter.AND ? "(&" : "(|";
+            while( itr.hasNext()) {
+                String operand = canonicalize( (Iterator)itr.next());
+                if( operand.startsWith( prefix)) {
+                    // merge, the operand is already flat and sorted
+                    operands.addAll( split( operand));
+                } else {
+                    operands.add( operand);
+                }
+            }
+            if( operands.size() == 1) {
+                return (String)operands.first();
+            }
+            buf.append( prefix);
+            for( Iterator i = operands.iterator(); i.hasNext(); ) {
+                buf.append( (String)i.next());
+            }
+            break;
+        }
+        case RfcFilter.NOT: {
+            String operand = canonicalize( (Iterator)itr.next());
+            if( operand.startsWith("(!")) {
+                return operand.substring( 2, operand.length() - 1);
+            }
+            buf.append("(!").append( operand);
+            break;
+        }
+        case RfcFilter.PRESENT:
+            buf.append('(').append( description( (String)itr.next()))
+               .append("=*");
+            break;
+        case RfcFilter.EQUALITY_MATCH:
+        case RfcFilter.GREATER_OR_EQUAL:
+        case RfcFilter.LESS_OR_EQUAL:
+        case RfcFilter.APPROX_MATCH:
+            buf.append('(').append( description( (String)itr.next()));
+            buf.append( op == RfcFilter.EQUALITY_MATCH ? "="
+                      : op == RfcFilter.GREATER_OR_EQUAL ? ">="
+                      : op == RfcFilter.LESS_OR_EQUAL ? "<=" : "~=");
+            FilterEscape.appendValue( (byte[])itr.next(), buf);
+            break;
+        case RfcFilter.SUBSTRINGS: {
+            buf.append('(').append( description( (String)itr.next()))
+               .append('=');
+            StringBuffer initial = new StringBuffer();
+            StringBuffer any = new StringBuffer("*");
+            StringBuffer last = new StringBuffer();
+            while( itr.hasNext()) {
+                int part = ((Integer)itr.next()).intValue();
+                byte[] value = utf8( (String)itr.next());
+                if( part == RfcFilter.INITIAL) {
+                    FilterEscape.appendValue( value, initial);
+                } else if( part == RfcFilter.ANY) {
+                    FilterEscape.appendValue( value, any);
+                    any.append('*');
+                } else {
+                    FilterEscape.appendValue( value, last);
+                }
+            }
+            buf.append( initial).append( any).append( last);
+            break;
+        }
+        case RfcFilter.EXTENSIBLE_MATCH: {
+            String rule = (String)itr.next();
+            String type = (String)itr.next();
+            String value = (String)itr.next();
+            boolean dnAttributes = ((Boolean)itr.next()).booleanValue();
+            buf.append('(');
+            if( type != null) {
+                buf.append( description( type));
+            }
+            if( dnAttributes) {
+                buf.append(":dn");
+            }
+            if( rule != null) {
+                buf.append(':').append( rule.toLowerCase( Locale.ENGLISH));
+            }
+            buf.append(":=");
+            FilterEscape.appendValue( utf8( value), buf);
+            break;
+        }
+        default:
+            throw new LDAPLocalException( "Unsupported filter component " + op,
+                                          LDAPException.FILTER_ERROR);
+        }
+        buf.append(')');
+        return buf.toString();
+    }
+
+    /*
+     * Splits the canonical string of an AND or OR into its operands.
+     */
+    private static ArrayList split( String filter)
+    {
+        ArrayList operands = new ArrayList();
+        int depth = 0;
+        int start = 2;
+        for( int i = 2; i < filter.length() - 1; i++) {
+            char c = filter.charAt( i);
+            // parentheses in values are always escaped
+            if( c == '(') {
+                if( depth++ == 0) {
+                    start = i;
+                }
+            } else if( c == ')') {
+                if( --depth == 0) {
+                    operands.add( filter.substring( start, i + 1));
+                }
+            }
+        }
+        return operands;
+    }
+
+    /* Lower cases an attribute description and sorts its options */
+    private static String description( String name)
+    {
+        String lower = name.toLowerCase( Locale.ENGLISH);
+        int idx = lower.indexOf(';');
+        if( idx < 0) {
+            return lower;
+        }
+        String[] options = lower.substring( idx + 1).split(";");
+        Arrays.sort( options);
+        StringBuffer buf = new StringBuffer( lower.length());
+        buf.append( lower.substring( 0, idx));
+        for( int i = 0; i < options.length; i++) {
+            buf.append(';').append( options[i]);
+        }
+        return buf.toString();
+    }
+
+    private static byte[] utf8( String value)
+    {
+        try {
+            return value.getBytes( "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    private static long fingerprint( String canonical)
+    {
+        long h = FNV_OFFSET;
+        byte[] bytes = utf8( canonical);
+        for( int i = 0; i < bytes.length; i++) {
+            h ^= bytes[i] & 0xFF;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+}
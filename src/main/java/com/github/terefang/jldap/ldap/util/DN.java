@@ -592,6 +592,36 @@ public class DN extends Object
         return true;
     }
 
+    /**
+     * Compares this DN to the specified object.
+     * @param   obj the object to compare to
+     * @return  <code>true</code> if obj is a DN equal to this DN,
+     *          <code>false</code> if it is not or if an OID type would
+     *          have to be compared with a name
+     */
+    public boolean equals( Object obj ){
+        if( !(obj instanceof DN))
+            return false;
+        try {
+            return equals( (DN)obj );
+        } catch( IllegalArgumentException e) {
+            // an OID is not compared to a name, the DNs are not equal
+            return false;
+        }
+    }
+
+    /**
+     * Returns a hash code consistent with {@link #equals(DN)}.  The hash
+     * code changes if RDNs are added to the DN.
+     * @return  the hash code of this DN
+     */
+    public int hashCode(){
+        int h = 0;
+        for(int i=0; i<rdnList.size(); i++)
+            h = 31 * h + rdnList.get(i).hashCode();
+        return h;
+    }
+
     /**
      * return a string array of the individual RDNs contained in the DN
      *
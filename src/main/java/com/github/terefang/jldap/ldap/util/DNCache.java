@@ -0,0 +1,82 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of normalized DNs keyed by the DN string as given.
+ *
+ * <p>Each DN string has a single place in the cache, chosen by its hash
+ * code; a DN replaces whatever DN held its place.  The cache takes no lock
+ * and may be used by any number of threads.</p>
+ *
+ * @see NormalizedDN
+ * @see SchemaDNNormalizer
+ */
+/*package*/ final class DNCache
+{
+    private final AtomicReferenceArray slots;
+    private final int mask;
+
+    /* Entry of the cache */
+    private static final class Entry
+    {
+        private final String key;
+        private final NormalizedDN dn;
+
+        private Entry( String key, NormalizedDN dn)
+        {
+            this.key = key;
+            this.dn = dn;
+        }
+    }
+
+    /**
+     * Constructs a cache.
+     *
+     * @param size  The number of places, a power of two.
+     */
+    /*package*/ DNCache( int size)
+    {
+        this.slots = new AtomicReferenceArray( size);
+        this.mask = size - 1;
+        return;
+    }
+
+    /**
+     * Returns the normalized DN cached for a DN string, or null.
+     */
+    /*package*/ NormalizedDN get( String dn)
+    {
+        Entry e = (Entry)slots.get( slot( dn));
+        return e != null && e.key.equals( dn) ? e.dn : null;
+    }
+
+    /**
+     * Caches the normalized DN of a DN string.
+     */
+    /*package*/ void put( String dn, NormalizedDN ndn)
+    {
+        slots.set( slot( dn), new Entry( dn, ndn));
+        return;
+    }
+
+    private int slot( String dn)
+    {
+        int h = dn.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,332 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <P>An index of distinguished names organized as a tree of RDNs.</P>
+ *
+ * <P>Each registered DN is stored under the path of its normalized RDNs
+ * from the root downward, for example o=acme, then ou=people, then cn=admin.
+ * Finding the registered DNs that contain a DN walks the path of that DN
+ * once, and finding the registered DNs within a subtree first walks to the
+ * base of the subtree.  Both take time proportional to the depth of the DN
+ * (plus the size of the result), not to the number of registered DNs.</P>
+ *
+ * <P>A value may be associated with each registered DN, so the index can
+ * also be used as a map, for example from delegated containers to their
+ * administrators.</P>
+ *
+ * <P>DNs are compared as {@link NormalizedDN}s.  This class is not
+ * synchronized.</P>
+ *
+ * @see NormalizedDN
+ */
+public class DNIndex
+{
+    private Node root = new Node();
+    private int count = 0;
+
+    /* A node of the tree, one per RDN on the path of a registered DN */
+    private static final class Node
+    {
+        private HashMap children = null;   // canonical RDN to Node
+        private NormalizedDN dn = null;    // registered DN of this node
+        private Object value = null;
+
+        private Node child( String rdn)
+        {
+            return children == null ? null : (Node)children.get( rdn);
+        }
+    }
+
+    /**
+     * Registers a DN.
+     *
+     * @param dn  The DN string to register.
+     *
+     * @return true if the DN was not registered before.
+     */
+    public boolean add( String dn)
+    {
+        return add( NormalizedDN.valueOf( dn));
+    }
+
+    /**
+     * Registers a DN.
+     *
+     * @param dn  The DN to register.
+     *
+     * @return true if the DN was not registered before.
+     */
+    public boolean add( NormalizedDN dn)
+    {
+        Node node = path( dn);
+        if( node.dn != null) {
+            return false;
+        }
+        node.dn = dn;
+        count++;
+        return true;
+    }
+
+    /**
+     * Registers a DN with an associated value, replacing the value of a DN
+     * already registered.
+     *
+     * @param dn     The DN to register.
+     * @param value  The value associated with the DN.
+     *
+     * @return The value previously associated with the DN, or null.
+     */
+    public Object put( NormalizedDN dn, Object value)
+    {
+        Node node = path( dn);
+        Object old = node.value;
+        if( node.dn == null) {
+            count++;
+        }
+        node.dn = dn;
+        node.value = value;
+        return old;
+    }
+
+    /**
+     * Returns the value associated with a registered DN.
+     *
+     * @param dn  The DN to look up.
+     *
+     * @return The value associated with the DN, or null if the DN is not
+     *         registered or has no value.
+     */
+    public Object get( NormalizedDN dn)
+    {
+        Node node = find( dn);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Reports whether a DN is registered.
+     *
+     * @param dn  The DN to look up.
+     *
+     * @return true if the DN is registered.
+     */
+    public boolean contains( NormalizedDN dn)
+    {
+        Node node = find( dn);
+        return node != null && node.dn != null;
+    }
+
+    /**
+     * Removes a registered DN.  DNs registered below it are not removed.
+     *
+     * @param dn  The DN to remove.
+     *
+     * @return true if the DN was registered.
+     */
+    public boolean remove( NormalizedDN dn)
+    {
+        int depth = dn.countRDNs();
+        Node[] nodes = new Node[ depth + 1 ];
+        nodes[0] = root;
+        for( int i = 0; i < depth; i++) {
+            nodes[i + 1] = nodes[i].child( dn.getRDN( depth - 1 - i));
+            if( nodes[i + 1] == null) {
+                return false;
+            }
+        }
+        Node node = nodes[depth];
+        if( node.dn == null) {
+            return false;
+        }
+        node.dn = null;
+        node.value = null;
+        count--;
+        // Prune the nodes that no longer lead to a registered DN
+        for( int i = depth; i > 0; i--) {
+            Node n = nodes[i];
+            if( n.dn != null || (n.children != null && !n.children.isEmpty())) {
+                break;
+            }
+            nodes[i - 1].children.remove( dn.getRDN( depth - i));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of registered DNs.
+     *
+     * @return The number of registered DNs.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Removes all registered DNs.
+     */
+    public void clear()
+    {
+        root = new Node();
+        count = 0;
+        return;
+    }
+
+    /**
+     * Returns the registered DNs that contain the specified DN, nearest
+     * container first.
+     *
+     * @param dn           The DN to look up.
+     * @param includeSelf  If true the DN itself is returned when registered.
+     *
+     * @return The list of containing NormalizedDN objects, possibly empty.
+     *
+     * @see NormalizedDN#isDescendantOf(NormalizedDN)
+     */
+    public List getContainers( NormalizedDN dn, boolean includeSelf)
+    {
+        ArrayList result = new ArrayList();
+        int depth = dn.countRDNs();
+        int limit = includeSelf ? depth : depth - 1;
+        Node node = root;
+        if( node.dn != null && limit >= 0) {
+            result.add( node.dn);
+        }
+        for( int i = 0; i < limit; i++) {
+            node = node.child( dn.getRDN( depth - 1 - i));
+            if( node == null) {
+                break;
+            }
+            if( node.dn != null) {
+                result.add( 0, node.dn);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the nearest registered DN that contains the specified DN.
+     *
+     * @param dn           The DN to look up.
+     * @param includeSelf  If true the DN itself is returned when registered.
+     *
+     * @return The nearest containing DN, or null if there is none.
+     */
+    public NormalizedDN getNearestContainer( NormalizedDN dn,
+                                             boolean includeSelf)
+    {
+        int depth = dn.countRDNs();
+        int limit = includeSelf ? depth : depth - 1;
+        Node node = root;
+        NormalizedDN nearest = limit >= 0 ? node.dn : null;
+        for( int i = 0; i < limit; i++) {
+            node = node.child( dn.getRDN( depth - 1 - i));
+            if( node == null) {
+                break;
+            }
+            if( node.dn != null) {
+                nearest = node.dn;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Reports whether any registered DN contains the specified DN.
+     *
+     * @param dn           The DN to look up.
+     * @param includeSelf  If true the DN itself counts when registered.
+     *
+     * @return true if a registered DN contains the DN.
+     */
+    public boolean isContained( NormalizedDN dn, boolean includeSelf)
+    {
+        return getNearestContainer( dn, includeSelf) != null;
+    }
+
+    /**
+     * Returns the registered DNs within the subtree of the specified base.
+     *
+     * @param base         The base DN of the subtree.
+     * @param includeBase  If true the base itself is returned when
+     *                     registered.
+     *
+     * @return The list of NormalizedDN objects in the subtree, possibly
+     *         empty.  The list is not in any particular order.
+     */
+    public List getSubtree( NormalizedDN base, boolean includeBase)
+    {
+        ArrayList result = new ArrayList();
+        Node node = find( base);
+        if( node != null) {
+            if( includeBase && node.dn != null) {
+                result.add( node.dn);
+            }
+            collect( node, result);
+        }
+        return result;
+    }
+
+    private static void collect( Node node, List result)
+    {
+        if( node.children == null) {
+            return;
+        }
+        Iterator i = node.children.values().iterator();
+        while( i.hasNext()) {
+            Node child = (Node)i.next();
+            if( child.dn != null) {
+                result.add( child.dn);
+            }
+            collect( child, result);
+        }
+        return;
+    }
+
+    /* Returns the node of a DN, or null if there is none */
+    private Node find( NormalizedDN dn)
+    {
+        Node node = root;
+        for( int i = dn.countRDNs() - 1; i >= 0 && node != null; i--) {
+            node = node.child( dn.getRDN( i));
+        }
+        return node;
+    }
+
+    /* Returns the node of a DN, creating the missing nodes on its path */
+    private Node path( NormalizedDN dn)
+    {
+        Node node = root;
+        for( int i = dn.countRDNs() - 1; i >= 0; i--) {
+            String rdn = dn.getRDN( i);
+            Node child = node.child( rdn);
+            if( child == null) {
+                child = new Node();
+                if( node.children == null) {
+                    node.children = new HashMap( 4);
+                }
+                node.children.put( rdn, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+}
@@ -0,0 +1,158 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+
+/**
+ * Converts entries between LDIF and entry snapshots, the binary files
+ * written by {@link EntrySnapshotWriter}.
+ *
+ * <p>A snapshot holds the same entries as an LDIF content file, and is
+ * read several times faster: each entry is a length-prefixed BER
+ * SearchResultEntry, with no text to parse and no base64 to decode.
+ * The layout of the file, all integers being big-endian, is:</p>
+ * <pre>
+ *     header:  magic "JLES", version 1, flags (1 if indexed)
+ *              dictionary: count, then for each description
+ *              its length and UTF-8 bytes
+ *     blocks:  length of the records, number of records,
+ *              CRC-32 of the records, records
+ *     record:  length, BER SearchResultEntry
+ *     end:     a length of 0
+ *     index:   number of blocks, then for each block its offset and
+ *              the number of the first record; total number of records,
+ *              offset of the index, magic "JLEI"
+ * </pre>
+ *
+ * <p>The dictionary holds the attribute descriptions found in the first
+ * block.  In a record, the type of an attribute found in the dictionary
+ * is replaced by its index in the dictionary, encoded as an INTEGER;
+ * other types are encoded as an OCTET STRING.  The index is optional,
+ * it is needed to read a file from a given record or by parts.</p>
+ *
+ * @see EntrySnapshotReader
+ * @see EntrySnapshotWriter
+ */
+public class EntrySnapshot
+{
+    /*package*/ static final int MAGIC = 0x4A4C4553; // "JLES"
+    /*package*/ static final int INDEX_MAGIC = 0x4A4C4549; // "JLEI"
+    /*package*/ static final int VERSION = 1;
+
+    /*package*/ static final int INDEXED = 0x1;
+
+    /* The most attribute descriptions held in the dictionary */
+    /*package*/ static final int MAX_DICTIONARY = 1 << 16;
+
+    /* A bound on lengths and counts read, to fail early on damaged files */
+    /*package*/ static final int MAX_LENGTH = 1 << 30;
+
+    private EntrySnapshot()
+    {
+        return;
+    }
+
+    /**
+     * Copies the entries read from a reader to a writer, for example from
+     * an {@link LDIFByteReader} to an {@link EntrySnapshotWriter} or from
+     * an {@link EntrySnapshotReader} to an {@link LDIFByteWriter}.  The
+     * writer is finished, the reader is not closed.
+     *
+     * @param reader  The reader of the entries.
+     * @param writer  The writer of the entries.
+     *
+     * @return The number of entries copied.
+     *
+     * @exception IOException if reading or writing fails.
+     * @exception LDAPException if the data read is not valid, or holds
+     *            change records.
+     */
+    public static long copy( LDAPReader reader, LDAPWriter writer)
+                throws IOException, LDAPException
+    {
+        long count = 0;
+        LDAPMessage message;
+        while( (message = reader.readMessage()) != null) {
+            writer.writeMessage( message);
+            count++;
+        }
+        writer.finish();
+        return count;
+    }
+
+    /**
+     * Converts an LDIF content file to an indexed snapshot.
+     *
+     * @param ldif      The LDIF file.
+     * @param snapshot  The snapshot file, replaced if it exists.
+     *
+     * @return The number of entries converted.
+     *
+     * @exception IOException if reading or writing fails.
+     * @exception LDAPException if the LDIF file is not valid, or holds
+     *            change records.
+     */
+    public static long fromLDIF( File ldif, File snapshot)
+                throws IOException, LDAPException
+    {
+        LDIFByteReader reader = new LDIFByteReader( ldif);
+        try {
+            OutputStream out = new FileOutputStream( snapshot);
+            try {
+                return copy( reader, new EntrySnapshotWriter( out));
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Converts a snapshot to an LDIF content file.
+     *
+     * @param snapshot  The snapshot file.
+     * @param ldif      The LDIF file, replaced if it exists.
+     *
+     * @return The number of entries converted.
+     *
+     * @exception IOException if reading or writing fails, or the snapshot
+     *            is damaged.
+     * @exception LDAPException if writing an entry fails.
+     */
+    public static long toLDIF( File snapshot, File ldif)
+                throws IOException, LDAPException
+    {
+        EntrySnapshotReader reader = new EntrySnapshotReader( snapshot);
+        try {
+            OutputStream out = new FileOutputStream( ldif);
+            try {
+                return copy( reader,
+                             new LDIFByteWriter( out, "1", false));
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPAttributeSet;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPSearchResult;
+import com.github.terefang.jldap.ldap.client.AttributeDescriptor;
+
+/**
+ * Reads the entries of an entry snapshot, a binary file written by
+ * {@link EntrySnapshotWriter}.  The format is described in
+ * {@link EntrySnapshot}.
+ *
+ * <p>The snapshot is read a block at a time, and the checksum of each
+ * block is verified.  Attribute descriptions are resolved once, when the
+ * dictionary of the header is read, and each value is copied once from
+ * the block into the array stored in its attribute.</p>
+ *
+ * <p>When a file holds an index, it may be read from any record, see
+ * {@link #seek(long)}, or by parts, each made of whole blocks.  Parts can
+ * be read concurrently by as many readers:</p>
+ * <pre>
+ *     int blocks = reader.getBlockCount();
+ *     // for each of n threads, t from 0 to n - 1
+ *     int first = blocks * t / n;
+ *     EntrySnapshotReader part = new EntrySnapshotReader( file, first,
+ *                                        blocks * (t + 1) / n - first);
+ * </pre>
+ *
+ * <p>An EntrySnapshotReader is not thread safe.</p>
+ *
+ * @see EntrySnapshotWriter
+ */
+public class EntrySnapshotReader implements LDAPReader
+{
+    // Size of the buffer of a stream
+    private static final int STREAM_BUFFER = 1 << 16;
+
+    private RandomAccessFile      file;           // file being read, or null
+    private InputStream           in;             // stream being read, or null
+    private DataInput             input;
+    private AttributeDescriptor[] dictionary;
+
+    private boolean               indexed;
+    private long[]                blockOffsets;
+    private long[]                blockRecords;
+    private int                   blockCount = -1;
+    private long                  recordCount = -1;
+    private int                   nextBlock;      // block read next
+    private int                   firstBlock;     // first block of the part
+    private int                   endBlock = Integer.MAX_VALUE;
+    private boolean               eof;
+
+    private byte[]                block = new byte[ 1 << 16 ];
+    private int                   pos;            // next record in block
+    private int                   end;            // end of the records
+    private int                   remaining;      // records left in block
+    private CRC32                 crc = new CRC32();
+
+    /**
+     * Constructs a reader of a snapshot file.
+     *
+     * @param file  The snapshot file.
+     *
+     * @exception IOException if the file cannot be read or is not a valid
+     *            snapshot.
+     */
+    public EntrySnapshotReader( File file)
+                throws IOException
+    {
+        this.file = new RandomAccessFile( file, "r");
+        this.input = this.file;
+        try {
+            readHeader();
+            if( this.indexed) {
+                long start = this.file.getFilePointer();
+                readIndex();
+                this.file.seek( start);
+            }
+        } catch( IOException e) {
+            this.file.close();
+            throw e;
+        }
+        return;
+    }
+
+    /**
+     * Constructs a reader of a part of an indexed snapshot file, made of
+     * consecutive blocks.
+     *
+     * @param file   The snapshot file.
+     * @param first  The first block of the part.
+     * @param count  The number of blocks of the part.
+     *
+     * @exception IOException if the file cannot be read or is not a valid
+     *            snapshot.
+     * @exception IllegalArgumentException if the file has no index, or
+     *            the blocks are not in the file.
+     */
+    public EntrySnapshotReader( File file, int first, int count)
+                throws IOException
+    {
+        this( file);
+        if( ! this.indexed ||
+            first < 0 || count < 0 || first + count > this.blockCount) {
+            this.file.close();
+            throw new IllegalArgumentException( ! this.indexed
+                    ? "The snapshot has no index"
+                    : "The blocks " + first + " to " + (first + count) +
+                      " are not in the snapshot");
+        }
+        this.firstBlock = first;
+        this.endBlock = first + count;
+        if( first < this.blockCount) {
+            this.file.seek( this.blockOffsets[first]);
+        }
+        this.nextBlock = first;
+        return;
+    }
+
+    /**
+     * Constructs a reader of a snapshot in a stream.  The stream is read
+     * sequentially, the index is not read.
+     *
+     * @param in  The input stream, closed by {@link #close()}.
+     *
+     * @exception IOException if reading the stream fails or it does not
+     *            hold a valid snapshot.
+     */
+    public EntrySnapshotReader( InputStream in)
+                throws IOException
+    {
+        this.in = in;
+        this.input = new DataInputStream(
+                            new BufferedInputStream( in, STREAM_BUFFER));
+        readHeader();
+        return;
+    }
+
+    /**
+     * Gets the version of the snapshot format.
+     *
+     * @return The version, "1".
+     */
+    public String getVersion()
+    {
+        return String.valueOf( EntrySnapshot.VERSION);
+    }
+
+    /**
+     * Returns false, a snapshot only holds entries.
+     *
+     * @return false.
+     */
+    public boolean isRequest()
+    {
+        return false;
+    }
+
+    /**
+     * Returns whether the index of the snapshot was read, which is needed
+     * to seek and to read parts.
+     *
+     * @return true if the index was read.
+     */
+    public boolean isIndexed()
+    {
+        return this.blockCount >= 0;
+    }
+
+    /**
+     * Returns the number of blocks of the snapshot.
+     *
+     * @return The number of blocks, or -1 if the index was not read.
+     */
+    public int getBlockCount()
+    {
+        return this.blockCount;
+    }
+
+    /**
+     * Returns the number of entries of the snapshot.
+     *
+     * @return The number of entries, or -1 if the index was not read.
+     */
+    public long getRecordCount()
+    {
+        return this.recordCount;
+    }
+
+    /**
+     * Moves to an entry, the next one read.
+     *
+     * @param record  The number of the entry, from 0.  Past the last
+     *                entry, or past the part read, no entry is read.
+     *
+     * @exception IOException if reading the file fails, or it is damaged.
+     * @exception IllegalStateException if the index was not read.
+     * @exception IllegalArgumentException if the record is before the
+     *            part read.
+     */
+    public void seek( long record)
+                throws IOException
+    {
+        if( ! isIndexed()) {
+            throw new IllegalStateException( "The snapshot has no index");
+        }
+        int endBlock = Math.min( this.endBlock, this.blockCount);
+        if( this.firstBlock > 0 && this.firstBlock < endBlock &&
+            record >= 0 && record < this.blockRecords[this.firstBlock]) {
+            throw new IllegalArgumentException( "The entry " + record +
+                    " is before the part read, which starts with the entry "
+                    + this.blockRecords[this.firstBlock]);
+        }
+        this.remaining = 0;
+        long partEnd = endBlock < this.blockCount
+                     ? this.blockRecords[endBlock] : this.recordCount;
+        if( record < 0 || record >= partEnd) {
+            this.eof = true;
+            return;
+        }
+        // the last block of the part starting at or before the record
+        int low = this.firstBlock;
+        int high = endBlock - 1;
+        while( low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if( this.blockRecords[mid] <= record) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        this.eof = false;
+        this.nextBlock = low;
+        this.file.seek( this.blockOffsets[low]);
+        if( ! readBlock()) {
+            return;
+        }
+        for( long i = this.blockRecords[low]; i < record; i++) {
+            this.pos += 4 + getInt( this.pos);
+            this.remaining--;
+        }
+        return;
+    }
+
+    /**
+     * Reads the next entry as a search result.
+     *
+     * @return The next search result, or null at the end of the snapshot.
+     *
+     * @exception IOException if reading fails, or the snapshot is damaged.
+     */
+    public LDAPMessage readMessage()
+                throws IOException
+    {
+        LDAPEntry entry = readEntry();
+        if( entry == null) {
+            return null;
+        }
+        return new LDAPSearchResult( entry, null);
+    }
+
+    /**
+     * Reads the next entry.
+     *
+     * @return The next entry, or null at the end of the snapshot.
+     *
+     * @exception IOException if reading fails, or the snapshot is damaged.
+     */
+    public LDAPEntry readEntry()
+                throws IOException
+    {
+        if( this.remaining == 0 && ! readBlock()) {
+            return null;
+        }
+        int length = getInt( this.pos);
+        this.pos += 4;
+        int recordEnd = this.pos + length;
+        if( length < 0 || recordEnd > this.end) {
+            throw damaged();
+        }
+        int entryEnd = expect( 0x64, recordEnd);
+        int dnEnd = expect( 0x04, entryEnd);
+        String dn = string( this.block, this.pos, dnEnd - this.pos);
+        this.pos = dnEnd;
+        int attrsEnd = expect( 0x30, entryEnd);
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        while( this.pos < attrsEnd) {
+            int attrEnd = expect( 0x30, attrsEnd);
+            AttributeDescriptor d;
+            if( this.pos < attrEnd && this.block[this.pos] == 0x02) {
+                int idEnd = expect( 0x02, attrEnd);
+                int id = 0;
+                while( this.pos < idEnd) {
+                    id = (id << 8) | (this.block[this.pos++] & 0xff);
+                }
+                if( id < 0 || id >= this.dictionary.length) {
+                    throw damaged();
+                }
+                d = this.dictionary[id];
+            } else {
+                int nameEnd = expect( 0x04, attrEnd);
+                d = AttributeDescriptor.intern( this.block, this.pos,
+                                                nameEnd - this.pos);
+                this.pos = nameEnd;
+            }
+            LDAPAttribute attr = new LDAPAttribute( d);
+            int setEnd = expect( 0x31, attrEnd);
+            while( this.pos < setEnd) {
+                int valueEnd = expect( 0x04, setEnd);
+                byte[] value = new byte[ valueEnd - this.pos ];
+                System.arraycopy( this.block, this.pos, value, 0,
+                                  value.length);
+                attr.addValue( value);
+                this.pos = valueEnd;
+            }
+            attrs.add( attr);
+            this.pos = attrEnd;
+        }
+        this.pos = recordEnd;
+        this.remaining--;
+        return new LDAPEntry( dn, attrs);
+    }
+
+    /**
+     * Closes the input.
+     *
+     * @exception IOException if closing the input fails.
+     */
+    public void close()
+                throws IOException
+    {
+        if( this.file != null) {
+            this.file.close();
+        }
+        if( this.in != null) {
+            this.in.close();
+        }
+        return;
+    }
+
+    /**
+     * Reads the header and its dictionary.
+     */
+    private void readHeader()
+                throws IOException
+    {
+        if( this.input.readInt() != EntrySnapshot.MAGIC) {
+            throw new IOException( "Not an entry snapshot");
+        }
+        int version = this.input.readInt();
+        if( version != EntrySnapshot.VERSION) {
+            throw new IOException(
+                    "Unsupported entry snapshot version " + version);
+        }
+        int flags = this.input.readInt();
+        this.indexed = (flags & EntrySnapshot.INDEXED) != 0;
+        int count = this.input.readInt();
+        if( count < 0 || count > EntrySnapshot.MAX_DICTIONARY) {
+            throw damaged();
+        }
+        this.dictionary = new AttributeDescriptor[ count ];
+        byte[] name = new byte[ 256 ];
+        for( int i = 0; i < count; i++) {
+            int length = this.input.readInt();
+            if( length < 0 || length > EntrySnapshot.MAX_LENGTH) {
+                throw damaged();
+            }
+            if( length > name.length) {
+                name = new byte[ length ];
+            }
+            this.input.readFully( name, 0, length);
+            this.dictionary[i] = AttributeDescriptor.intern( name, 0, length);
+        }
+        return;
+    }
+
+    /**
+     * Reads the index at the end of the file.
+     */
+    private void readIndex()
+                throws IOException
+    {
+        long length = this.file.length();
+        if( length < 12) {
+            throw damaged();
+        }
+        this.file.seek( length - 12);
+        long start = this.file.readLong();
+        if( this.file.readInt() != EntrySnapshot.INDEX_MAGIC ||
+            start < 0 || start > length - 12) {
+            throw damaged();
+        }
+        byte[] index = new byte[ (int)Math.min( length - 12 - start,
+                                                EntrySnapshot.MAX_LENGTH) ];
+        this.file.seek( start);
+        this.file.readFully( index);
+        DataInputStream dis = new DataInputStream(
+                                    new ByteArrayInputStream( index));
+        int count = dis.readInt();
+        if( count < 0 || count > (index.length - 12) / 16) {
+            throw damaged();
+        }
+        this.blockOffsets = new long[ count ];
+        this.blockRecords = new long[ count ];
+        for( int i = 0; i < count; i++) {
+            this.blockOffsets[i] = dis.readLong();
+            this.blockRecords[i] = dis.readLong();
+        }
+        this.recordCount = dis.readLong();
+        this.blockCount = count;
+        return;
+    }
+
+    /**
+     * Reads the next block and checks it.
+     *
+     * @return false at the end of the blocks, or of the part read.
+     */
+    private boolean readBlock()
+                throws IOException
+    {
+        if( this.eof || this.nextBlock >= this.endBlock) {
+            this.eof = true;
+            return false;
+        }
+        int length = this.input.readInt();
+        if( length == 0) {
+            this.eof = true;
+            return false;
+        }
+        int count = this.input.readInt();
+        int checksum = this.input.readInt();
+        if( length < 0 || length > EntrySnapshot.MAX_LENGTH || count <= 0) {
+            throw damaged();
+        }
+        if( length > this.block.length) {
+            this.block = new byte[ Math.max( length, this.block.length * 2) ];
+        }
+        this.input.readFully( this.block, 0, length);
+        this.crc.reset();
+        this.crc.update( this.block, 0, length);
+        if( (int)this.crc.getValue() != checksum) {
+            throw damaged();
+        }
+        this.pos = 0;
+        this.end = length;
+        this.remaining = count;
+        this.nextBlock++;
+        return true;
+    }
+
+    /**
+     * Reads the header of an element with the specified tag, which must
+     * end before limit.
+     *
+     * @return The end of the element, pos is at its contents.
+     */
+    private int expect( int tag, int limit)
+                throws IOException
+    {
+        if( this.pos + 2 > limit || (this.block[this.pos] & 0xff) != tag) {
+            throw damaged();
+        }
+        this.pos++;
+        int length = this.block[this.pos++] & 0xff;
+        if( length >= 0x80) {
+            int n = length & 0x7f;
+            if( n == 0 || n > 4 || this.pos + n > limit) {
+                throw damaged();
+            }
+            length = 0;
+            for( int i = 0; i < n; i++) {
+                length = (length << 8) | (this.block[this.pos++] & 0xff);
+            }
+        }
+        if( length < 0 || length > limit - this.pos) {
+            throw damaged();
+        }
+        return this.pos + length;
+    }
+
+    private int getInt( int offset)
+                throws IOException
+    {
+        if( offset + 4 > this.end) {
+            throw damaged();
+        }
+        return ((this.block[offset] & 0xff) << 24) |
+               ((this.block[offset + 1] & 0xff) << 16) |
+               ((this.block[offset + 2] & 0xff) << 8) |
+               (this.block[offset + 3] & 0xff);
+    }
+
+    private static IOException damaged()
+    {
+        return new IOException( "Entry snapshot is damaged");
+    }
+
+    private static String string( byte[] value, int offset, int length)
+    {
+        try {
+            return new String( value, offset, length, "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+}
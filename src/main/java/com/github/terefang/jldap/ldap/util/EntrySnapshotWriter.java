@@ -0,0 +1,535 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPControl;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPSearchResult;
+import com.github.terefang.jldap.ldap.asn1.ASN1OctetString;
+import com.github.terefang.jldap.ldap.asn1.ASN1Sequence;
+import com.github.terefang.jldap.ldap.asn1.ASN1Set;
+import com.github.terefang.jldap.ldap.client.AttributeDictionary;
+import com.github.terefang.jldap.ldap.rfc2251.RfcSearchResultEntry;
+
+/**
+ * Writes entries to an entry snapshot, a binary file read back by
+ * {@link EntrySnapshotReader}.  The format is described in
+ * {@link EntrySnapshot}.
+ *
+ * <p>Entries are encoded in a block buffer, which is written to the
+ * stream when it holds about a block's worth of records, and when
+ * {@link #finish()} is called.  The header is written with the first
+ * block, its dictionary holds the attribute descriptions of that block.
+ * A search result received from a server is encoded straight from the
+ * values of the response, without creating an LDAPEntry.</p>
+ *
+ * <p>Only entries can be written: controls of entries, comments and
+ * errors are not written.  An EntrySnapshotWriter is not thread
+ * safe.</p>
+ *
+ * @see EntrySnapshotReader
+ */
+public class EntrySnapshotWriter implements LDAPWriter
+{
+    // Default number of bytes of records in a block
+    private static final int BLOCK_SIZE = 1 << 20;
+    // Bytes of the header of a block
+    private static final int BLOCK_HEADER = 12;
+
+    private OutputStream        out;
+    private boolean             indexed;
+    private int                 blockSize;
+
+    private AttributeDictionary dictionary = new AttributeDictionary();
+    private int                 dictionarySize =
+                                        EntrySnapshot.MAX_DICTIONARY;
+    private boolean             headerWritten;
+
+    private byte[]              block;
+    private int                 pos = BLOCK_HEADER; // end of the records
+    private int                 records;            // records in block
+    private CRC32               crc = new CRC32();
+
+    private long                offset;             // bytes written
+    private long                recordCount;        // records written
+    private long[]              blockOffsets = new long[64];
+    private long[]              blockRecords = new long[64];
+    private int                 blockCount;
+
+    // the attributes of the entry being encoded
+    private byte[][]            names = new byte[32][];
+    private int[]               ids = new int[32];
+    private byte[][][]          values = new byte[32][][];
+    private int[]               attrLengths = new int[32];
+    private int[]               setLengths = new int[32];
+
+    /**
+     * Constructs a writer of an indexed snapshot.
+     *
+     * @param out  The stream where the snapshot is written.
+     */
+    public EntrySnapshotWriter( OutputStream out)
+    {
+        this( out, true, BLOCK_SIZE);
+        return;
+    }
+
+    /**
+     * Constructs a writer of a snapshot.
+     *
+     * @param out        The stream where the snapshot is written.
+     * @param indexed    If true the index of the blocks is written at the
+     *                   end of the snapshot.
+     * @param blockSize  The number of bytes of records in a block, a block
+     *                   holds at least one record.  Smaller blocks give
+     *                   quicker random access and finer parts, larger ones
+     *                   a smaller index.
+     */
+    public EntrySnapshotWriter( OutputStream out, boolean indexed,
+                                int blockSize)
+    {
+        if( blockSize < 1) {
+            throw new IllegalArgumentException(
+                    "The block size must be at least 1");
+        }
+        this.out = out;
+        this.indexed = indexed;
+        this.blockSize = blockSize;
+        this.block = new byte[ Math.min( blockSize, BLOCK_SIZE) +
+                               BLOCK_HEADER + 4096 ];
+        return;
+    }
+
+    /**
+     * Gets the version of the snapshot format, "1".
+     *
+     * @return The version.
+     */
+    public String getVersion()
+    {
+        return String.valueOf( EntrySnapshot.VERSION);
+    }
+
+    /**
+     * Returns false, a snapshot only holds entries.
+     *
+     * @return false.
+     */
+    public boolean isRequest()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the number of entries written.
+     *
+     * @return The number of entries.
+     */
+    public long getRecordCount()
+    {
+        return this.recordCount + this.records;
+    }
+
+    /**
+     * Writes the entry of a search result.
+     *
+     * @param message  The search result.
+     *
+     * @exception IOException if writing to the stream fails.
+     */
+    public void writeMessage( LDAPMessage message)
+                throws IOException
+    {
+        if( message.getType() != LDAPMessage.SEARCH_RESPONSE) {
+            throw new RuntimeException(
+                        "Attempting to write request in a content stream");
+        }
+        LDAPSearchResult result = (LDAPSearchResult)message;
+        RfcSearchResultEntry response = result.getEntryASN1Object();
+        if( response == null) {
+            writeEntry( result.getEntry());
+            return;
+        }
+        ASN1Sequence attrs = response.getAttributes();
+        int count = attrs.size();
+        ensureAttributes( count);
+        for( int i = 0; i < count; i++) {
+            ASN1Sequence attr = (ASN1Sequence)attrs.get( i);
+            byte[] name = ((ASN1OctetString)attr.get( 0)).byteValue();
+            ASN1Set set = (ASN1Set)attr.get( 1);
+            byte[][] vals = new byte[ set.size() ][];
+            for( int j = 0; j < vals.length; j++) {
+                vals[j] = ((ASN1OctetString)set.get( j)).byteValue();
+            }
+            this.names[i] = name;
+            this.ids[i] = id( this.dictionary.intern( name));
+            this.values[i] = vals;
+        }
+        writeRecord( response.getObjectName().byteValue(), count);
+        return;
+    }
+
+    /**
+     * Writes an entry.
+     *
+     * @param entry  The entry.
+     *
+     * @exception IOException if writing to the stream fails.
+     */
+    public void writeEntry( LDAPEntry entry)
+                throws IOException
+    {
+        int count = entry.getAttributeSet().size();
+        ensureAttributes( count);
+        Iterator itr = entry.getAttributeSet().iterator();
+        int i = 0;
+        while( itr.hasNext()) {
+            LDAPAttribute attr = (LDAPAttribute)itr.next();
+            String name = attr.getName();
+            this.ids[i] = id( this.dictionary.intern( name));
+            this.names[i] = this.ids[i] < 0 ? utf8( name) : null;
+            this.values[i] = attr.getByteValueArray();
+            i++;
+        }
+        writeRecord( utf8( entry.getDN()), i);
+        return;
+    }
+
+    /**
+     * Writes an entry.  The controls are not written.
+     *
+     * @param entry     The entry.
+     * @param controls  The controls of the entry, ignored.
+     *
+     * @exception IOException if writing to the stream fails.
+     */
+    public void writeEntry( LDAPEntry entry, LDAPControl[] controls)
+                throws IOException
+    {
+        writeEntry( entry);
+        return;
+    }
+
+    /**
+     * Does nothing, a snapshot holds no comments.
+     *
+     * @param comments  The comments, ignored.
+     */
+    public void writeComments( String comments)
+    {
+        return;
+    }
+
+    /**
+     * Does nothing, a snapshot holds no errors.
+     *
+     * @param e  The error, ignored.
+     */
+    public void writeError( Exception e)
+    {
+        return;
+    }
+
+    /**
+     * Writes the last block, the end of the blocks and the index, and
+     * flushes the stream.  The stream is not closed.
+     *
+     * @exception IOException if writing to the stream fails.
+     */
+    public void finish()
+                throws IOException
+    {
+        flushBlock();
+        if( ! this.headerWritten) {
+            writeHeader();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                                        this.blockCount * 16 + 32);
+        DataOutputStream dos = new DataOutputStream( bytes);
+        dos.writeInt( 0);
+        if( this.indexed) {
+            dos.writeInt( this.blockCount);
+            for( int i = 0; i < this.blockCount; i++) {
+                dos.writeLong( this.blockOffsets[i]);
+                dos.writeLong( this.blockRecords[i]);
+            }
+            dos.writeLong( this.recordCount);
+            dos.writeLong( this.offset + 4);
+            dos.writeInt( EntrySnapshot.INDEX_MAGIC);
+        }
+        bytes.writeTo( this.out);
+        this.offset += bytes.size();
+        this.out.flush();
+        return;
+    }
+
+    /**
+     * Returns the id to encode for an attribute description, or -1 if the
+     * description is not in the dictionary of the header.
+     */
+    private int id( int id)
+    {
+        return id < this.dictionarySize ? id : -1;
+    }
+
+    /**
+     * Encodes a record in the block buffer, from the attributes gathered
+     * in names, ids and values.
+     */
+    private void writeRecord( byte[] dn, int count)
+                throws IOException
+    {
+        int attrsLength = 0;
+        for( int i = 0; i < count; i++) {
+            int id = this.ids[i];
+            int typeLength = id >= 0 ? tlv( intLength( id))
+                                     : tlv( this.names[i].length);
+            byte[][] vals = this.values[i];
+            int setLength = 0;
+            for( int j = 0; j < vals.length; j++) {
+                setLength += tlv( vals[j].length);
+            }
+            this.setLengths[i] = setLength;
+            this.attrLengths[i] = typeLength + tlv( setLength);
+            attrsLength += tlv( this.attrLengths[i]);
+        }
+        int entryLength = tlv( dn.length) + tlv( attrsLength);
+        int total = tlv( entryLength);
+        ensure( 4 + total);
+
+        putInt( total);
+        putHeader( 0x64, entryLength);              // [APPLICATION 4]
+        putOctets( dn);
+        putHeader( 0x30, attrsLength);
+        for( int i = 0; i < count; i++) {
+            putHeader( 0x30, this.attrLengths[i]);
+            int id = this.ids[i];
+            if( id >= 0) {
+                int length = intLength( id);
+                putHeader( 0x02, length);
+                for( int k = length - 1; k >= 0; k--) {
+                    this.block[this.pos++] = (byte)(id >>> (8 * k));
+                }
+            } else {
+                putOctets( this.names[i]);
+            }
+            putHeader( 0x31, this.setLengths[i]);
+            byte[][] vals = this.values[i];
+            for( int j = 0; j < vals.length; j++) {
+                putOctets( vals[j]);
+            }
+            this.names[i] = null;
+            this.values[i] = null;
+        }
+        this.records++;
+        if( this.pos - BLOCK_HEADER >= this.blockSize) {
+            flushBlock();
+        }
+        return;
+    }
+
+    /**
+     * Writes the records of the block buffer as a block, after the header
+     * if it is the first one.
+     */
+    private void flushBlock()
+                throws IOException
+    {
+        if( this.records == 0) {
+            return;
+        }
+        if( ! this.headerWritten) {
+            writeHeader();
+        }
+        int length = this.pos - BLOCK_HEADER;
+        this.crc.reset();
+        this.crc.update( this.block, BLOCK_HEADER, length);
+        this.pos = 0;
+        putInt( length);
+        putInt( this.records);
+        putInt( (int)this.crc.getValue());
+        this.out.write( this.block, 0, BLOCK_HEADER + length);
+
+        if( this.blockCount == this.blockOffsets.length) {
+            long[] offsets = new long[ this.blockCount * 2 ];
+            long[] firsts = new long[ this.blockCount * 2 ];
+            System.arraycopy( this.blockOffsets, 0, offsets, 0,
+                              this.blockCount);
+            System.arraycopy( this.blockRecords, 0, firsts, 0,
+                              this.blockCount);
+            this.blockOffsets = offsets;
+            this.blockRecords = firsts;
+        }
+        this.blockOffsets[this.blockCount] = this.offset;
+        this.blockRecords[this.blockCount] = this.recordCount;
+        this.blockCount++;
+
+        this.offset += BLOCK_HEADER + length;
+        this.recordCount += this.records;
+        this.records = 0;
+        this.pos = BLOCK_HEADER;
+        return;
+    }
+
+    /**
+     * Writes the header, with the descriptions found so far as its
+     * dictionary.  Descriptions found later are written in the records.
+     */
+    private void writeHeader()
+                throws IOException
+    {
+        this.dictionarySize = Math.min( this.dictionary.size(),
+                                        EntrySnapshot.MAX_DICTIONARY);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                                        this.dictionarySize * 16 + 16);
+        DataOutputStream dos = new DataOutputStream( bytes);
+        dos.writeInt( EntrySnapshot.MAGIC);
+        dos.writeInt( EntrySnapshot.VERSION);
+        dos.writeInt( this.indexed ? EntrySnapshot.INDEXED : 0);
+        dos.writeInt( this.dictionarySize);
+        for( int i = 0; i < this.dictionarySize; i++) {
+            byte[] name = utf8( this.dictionary.getName( i));
+            dos.writeInt( name.length);
+            dos.write( name);
+        }
+        bytes.writeTo( this.out);
+        this.offset += bytes.size();
+        this.headerWritten = true;
+        return;
+    }
+
+    private void ensureAttributes( int count)
+    {
+        if( count > this.ids.length) {
+            int size = Math.max( count, this.ids.length * 2);
+            this.names = new byte[ size ][];
+            this.ids = new int[ size ];
+            this.values = new byte[ size ][][];
+            this.attrLengths = new int[ size ];
+            this.setLengths = new int[ size ];
+        }
+        return;
+    }
+
+    /**
+     * Makes room for n more bytes in the block buffer.
+     */
+    private void ensure( int n)
+    {
+        if( this.pos + n > this.block.length) {
+            byte[] bigger = new byte[ Math.max( this.pos + n,
+                                                this.block.length * 2) ];
+            System.arraycopy( this.block, 0, bigger, 0, this.pos);
+            this.block = bigger;
+        }
+        return;
+    }
+
+    private void putInt( int value)
+    {
+        this.block[this.pos++] = (byte)(value >>> 24);
+        this.block[this.pos++] = (byte)(value >>> 16);
+        this.block[this.pos++] = (byte)(value >>> 8);
+        this.block[this.pos++] = (byte)value;
+        return;
+    }
+
+    private void putHeader( int tag, int length)
+    {
+        this.block[this.pos++] = (byte)tag;
+        if( length < 0x80) {
+            this.block[this.pos++] = (byte)length;
+            return;
+        }
+        int n = lengthLength( length) - 1;
+        this.block[this.pos++] = (byte)(0x80 | n);
+        for( int k = n - 1; k >= 0; k--) {
+            this.block[this.pos++] = (byte)(length >>> (8 * k));
+        }
+        return;
+    }
+
+    private void putOctets( byte[] value)
+    {
+        putHeader( 0x04, value.length);
+        System.arraycopy( value, 0, this.block, this.pos, value.length);
+        this.pos += value.length;
+        return;
+    }
+
+    /**
+     * Returns the length of the encoding of a value of n bytes.
+     */
+    private static int tlv( int n)
+    {
+        return 1 + lengthLength( n) + n;
+    }
+
+    /**
+     * Returns the length of the encoding of a length.
+     */
+    private static int lengthLength( int n)
+    {
+        if( n < 0x80) {
+            return 1;
+        }
+        if( n < 0x100) {
+            return 2;
+        }
+        if( n < 0x10000) {
+            return 3;
+        }
+        if( n < 0x1000000) {
+            return 4;
+        }
+        return 5;
+    }
+
+    /**
+     * Returns the length of the contents of a non negative INTEGER.
+     */
+    private static int intLength( int value)
+    {
+        if( value < 0x80) {
+            return 1;
+        }
+        if( value < 0x8000) {
+            return 2;
+        }
+        if( value < 0x800000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static byte[] utf8( String value)
+    {
+        try {
+            return value.getBytes( "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+}
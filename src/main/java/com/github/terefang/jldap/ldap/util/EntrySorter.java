@@ -0,0 +1,370 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+
+/**
+ * Sorts entries by DN in bounded memory.
+ *
+ * <p>Entries are sorted in memory until their estimated size reaches a
+ * limit; they are then written as a sorted run to a temporary entry
+ * snapshot file.  The runs are merged, at most 64 at a time, as the
+ * sorted entries are read.</p>
+ *
+ * <p>Entries are sorted by their key, the canonical RDNs of their
+ * normalized DN from the root down, so that an entry sorts before the
+ * entries below it.</p>
+ */
+/*package*/ class EntrySorter
+{
+    // Most runs merged at a time
+    private static final int MAX_FAN_IN = 64;
+    // Number of bytes of records in a block of a run
+    private static final int RUN_BLOCK_SIZE = 1 << 18;
+
+    /* Sorts items by key, ascending */
+    private static final Comparator ASCENDING = new Comparator()
+    {
+        public int compare( Object a, Object b)
+        {
+            return ((Item)a).key.compareTo( ((Item)b).key);
+        }
+    };
+
+    /* Sorts items by key, descending */
+    private static final Comparator DESCENDING =
+                                Collections.reverseOrder( ASCENDING);
+
+    private Comparator          order;
+    private long                maxMemory;
+    private File                directory;
+
+    private ArrayList           items = new ArrayList();
+    private long                memory;          // estimated size of items
+    private ArrayList           runs = new ArrayList();
+    private ArrayList           open = new ArrayList();
+
+    /**
+     * An entry and its key.
+     */
+    /*package*/ static final class Item
+    {
+        final String key;
+        final LDAPEntry entry;
+
+        Item( String key, LDAPEntry entry)
+        {
+            this.key = key;
+            this.entry = entry;
+            return;
+        }
+    }
+
+    /**
+     * A sequence of items.
+     */
+    /*package*/ interface Source
+    {
+        /**
+         * Returns the next item, or null at the end.
+         */
+        Item next()
+                throws IOException, LDAPException;
+    }
+
+    /**
+     * Constructs a sorter.
+     *
+     * @param descending  If true entries are sorted in descending order,
+     *                    below entries first.
+     * @param maxMemory   The estimated size of the entries sorted in memory.
+     * @param directory   The directory of the temporary files, or null for
+     *                    the default temporary directory.
+     */
+    /*package*/ EntrySorter( boolean descending, long maxMemory,
+                             File directory)
+    {
+        this.order = descending ? DESCENDING : ASCENDING;
+        this.maxMemory = maxMemory;
+        this.directory = directory;
+        return;
+    }
+
+    /**
+     * Returns the sort key of a DN: its canonical RDNs from the root down,
+     * separated by NUL characters.
+     *
+     * @exception LDAPLocalException if the DN is not valid.
+     */
+    /*package*/ static String key( String dn)
+                throws LDAPLocalException
+    {
+        NormalizedDN ndn;
+        try {
+            ndn = NormalizedDN.valueOf( dn);
+        } catch( IllegalArgumentException e) {
+            throw new LDAPLocalException( "Invalid DN '" + dn + "'",
+                                          LDAPException.INVALID_DN_SYNTAX);
+        }
+        int n = ndn.countRDNs();
+        if( n == 0) {
+            return "";
+        }
+        StringBuffer key = new StringBuffer( dn.length() + n);
+        key.append( ndn.getRDN( n - 1));
+        for( int i = n - 2; i >= 0; i--) {
+            key.append( '\u0000');
+            key.append( ndn.getRDN( i));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns whether an item sorts after another one.
+     */
+    /*package*/ static boolean isAfter( Item item, Item previous)
+    {
+        return ASCENDING.compare( item, previous) > 0;
+    }
+
+    /**
+     * Adds an entry.
+     *
+     * @exception IOException if writing a run fails.
+     * @exception LDAPLocalException if the DN of the entry is not valid.
+     */
+    /*package*/ void add( LDAPEntry entry)
+                throws IOException, LDAPLocalException
+    {
+        this.items.add( new Item( key( entry.getDN()), entry));
+        this.memory += size( entry);
+        if( this.memory >= this.maxMemory) {
+            spill();
+        }
+        return;
+    }
+
+    /**
+     * Returns the sorted entries.  No entry may be added afterwards.
+     *
+     * @exception IOException if writing or reading a run fails.
+     * @exception LDAPException if a run is damaged.
+     */
+    /*package*/ Source sort()
+                throws IOException, LDAPException
+    {
+        if( this.runs.isEmpty()) {
+            Collections.sort( this.items, this.order);
+            final Iterator i = this.items.iterator();
+            return new Source()
+            {
+                public Item next()
+                {
+                    return i.hasNext() ? (Item)i.next() : null;
+                }
+            };
+        }
+        spill();
+        while( this.runs.size() > MAX_FAN_IN) {
+            // merge the oldest runs into a new one
+            ArrayList group = new ArrayList( this.runs.subList( 0,
+                                                                MAX_FAN_IN));
+            File run = createRun();
+            Source merge = merge( group);
+            OutputStream out = new FileOutputStream( run);
+            try {
+                EntrySnapshotWriter writer =
+                        new EntrySnapshotWriter( out, false, RUN_BLOCK_SIZE);
+                Item item;
+                while( (item = merge.next()) != null) {
+                    writer.writeEntry( item.entry);
+                }
+                writer.finish();
+            } finally {
+                out.close();
+            }
+            closeReaders();
+            this.runs.subList( 0, MAX_FAN_IN).clear();
+            for( int i = 0; i < group.size(); i++) {
+                ((File)group.get( i)).delete();
+            }
+        }
+        return merge( this.runs);
+    }
+
+    /**
+     * Closes the runs being read and deletes the temporary files.
+     */
+    /*package*/ void close()
+    {
+        closeReaders();
+        for( int i = 0; i < this.runs.size(); i++) {
+            ((File)this.runs.get( i)).delete();
+        }
+        this.runs.clear();
+        this.items.clear();
+        return;
+    }
+
+    /**
+     * Writes the entries in memory as a sorted run.
+     */
+    private void spill()
+                throws IOException
+    {
+        if( this.items.isEmpty()) {
+            return;
+        }
+        Collections.sort( this.items, this.order);
+        File run = createRun();
+        OutputStream out = new FileOutputStream( run);
+        try {
+            EntrySnapshotWriter writer =
+                    new EntrySnapshotWriter( out, false, RUN_BLOCK_SIZE);
+            for( int i = 0; i < this.items.size(); i++) {
+                writer.writeEntry( ((Item)this.items.get( i)).entry);
+            }
+            writer.finish();
+        } finally {
+            out.close();
+        }
+        this.items.clear();
+        this.memory = 0;
+        return;
+    }
+
+    /**
+     * Creates the file of a new run, the last one.
+     */
+    private File createRun()
+                throws IOException
+    {
+        File run = File.createTempFile( "entries-", ".run", this.directory);
+        run.deleteOnExit();
+        this.runs.add( run);
+        return run;
+    }
+
+    /**
+     * Merges sorted runs.
+     */
+    private Source merge( ArrayList files)
+                throws IOException, LDAPException
+    {
+        final PriorityQueue queue = new PriorityQueue(
+                Math.max( files.size(), 1), new Comparator()
+        {
+            public int compare( Object a, Object b)
+            {
+                return EntrySorter.this.order.compare( ((Cursor)a).item,
+                                                       ((Cursor)b).item);
+            }
+        });
+        for( int i = 0; i < files.size(); i++) {
+            EntrySnapshotReader reader =
+                    new EntrySnapshotReader( (File)files.get( i));
+            this.open.add( reader);
+            Cursor cursor = new Cursor( reader);
+            if( cursor.advance()) {
+                queue.add( cursor);
+            }
+        }
+        return new Source()
+        {
+            public Item next()
+                    throws IOException, LDAPException
+            {
+                Cursor cursor = (Cursor)queue.poll();
+                if( cursor == null) {
+                    return null;
+                }
+                Item item = cursor.item;
+                if( cursor.advance()) {
+                    queue.add( cursor);
+                }
+                return item;
+            }
+        };
+    }
+
+    private void closeReaders()
+    {
+        for( int i = 0; i < this.open.size(); i++) {
+            try {
+                ((EntrySnapshotReader)this.open.get( i)).close();
+            } catch( IOException e) {
+                // the file is deleted anyway
+            }
+        }
+        this.open.clear();
+        return;
+    }
+
+    /**
+     * Returns an estimate of the memory held by an entry.
+     */
+    private static long size( LDAPEntry entry)
+    {
+        long size = 96 + 2 * entry.getDN().length();
+        Iterator i = entry.getAttributeSet().iterator();
+        while( i.hasNext()) {
+            LDAPAttribute attr = (LDAPAttribute)i.next();
+            size += 64 + 2 * attr.getName().length();
+            byte[][] values = attr.getByteValueArray();
+            for( int j = 0; j < values.length; j++) {
+                size += 24 + values[j].length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The current item of a run being merged.
+     */
+    private static final class Cursor
+    {
+        private final EntrySnapshotReader reader;
+        private Item item;
+
+        Cursor( EntrySnapshotReader reader)
+        {
+            this.reader = reader;
+            return;
+        }
+
+        boolean advance()
+                throws IOException, LDAPException
+        {
+            LDAPEntry entry = this.reader.readEntry();
+            this.item = entry == null ? null
+                                      : new Item( key( entry.getDN()), entry);
+            return entry != null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Escapes assertion values written in the string form of search filters,
+ * as specified by RFC 2254.
+ *
+ * <p>The characters <code>*</code>, <code>(</code>, <code>)</code>,
+ * <code>\</code> and NUL are written as a backslash followed by two hex
+ * digits.  Values that are not valid UTF-8 are written completely in
+ * hex.</p>
+ *
+ * @see CanonicalFilter
+ * @see com.github.terefang.jldap.ldap.LDAPFilterTemplate
+ */
+public final class FilterEscape
+{
+    private static final String hex = "0123456789abcdef";
+
+    private FilterEscape()
+    {
+        return;
+    }
+
+    /**
+     * Appends an escaped value to a filter string.
+     *
+     * @param value  The value.
+     * @param buf    The filter string being built.
+     */
+    public static void appendValue( byte[] value, StringBuffer buf)
+    {
+        if( !Base64.isValidUTF8( value, false)) {
+            for( int i = 0; i < value.length; i++) {
+                buf.append('\\').append( hex.charAt( (value[i] >> 4) & 0x0F))
+                                .append( hex.charAt( value[i] & 0x0F));
+            }
+            return;
+        }
+        String s;
+        try {
+            s = new String( value, "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+        for( int i = 0; i < s.length(); i++) {
+            char c = s.charAt( i);
+            if( c == '*' || c == '(' || c == ')' || c == '\\' || c == 0) {
+                buf.append('\\').append( hex.charAt( (c >> 4) & 0x0F))
+                                .append( hex.charAt( c & 0x0F));
+            } else {
+                buf.append( c);
+            }
+        }
+        return;
+    }
+}
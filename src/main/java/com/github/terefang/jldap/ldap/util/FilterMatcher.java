@@ -0,0 +1,650 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPAttributeSchema;
+import com.github.terefang.jldap.ldap.LDAPAttributeSet;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPSchema;
+import com.github.terefang.jldap.ldap.rfc2251.RfcFilter;
+
+/**
+ * <P>Evaluates a search filter against entries held by the client.</P>
+ *
+ * <P>The filter is compiled once into a tree of predicates, which can then
+ * be applied to any number of entries, for example to check whether a
+ * cached entry satisfies a search or to select the changes delivered by a
+ * persistent search.  A matcher does not change after construction and may
+ * be used by any number of threads.</P>
+ *
+ * <P>Without a schema, attribute types are compared ignoring case and all
+ * values are compared with caseIgnoreMatch.  With a schema, attribute
+ * types are also matched by OID and alias, and values are compared with
+ * the equality matching rule of their attribute (see
+ * {@link MatchingRules}).  An attribute description in the filter also
+ * selects the attributes of the entry that have additional options, so
+ * <code>(cn=x)</code> matches a value of <code>cn;lang-en</code>.</P>
+ *
+ * <P>Filter components evaluate to TRUE, FALSE or Undefined as described
+ * in RFC 4511, for example an ordering match of an integer attribute is
+ * Undefined for a value that is not an integer.  NOT of Undefined is
+ * Undefined, and an entry matches only if the whole filter is TRUE.</P>
+ *
+ * <P>The following simplifications apply: approximate matches are
+ * evaluated as equality matches, and ordering and substring matches use
+ * the equality rule of the attribute.  The dnAttributes flag of an
+ * extensible match also tests the attribute values of the RDNs of the DN
+ * when an entry is matched; a set of attributes has no DN.</P>
+ */
+public class FilterMatcher
+{
+    /* The results of a filter component */
+    private static final int FALSE     = 0;
+    private static final int TRUE      = 1;
+    private static final int UNDEFINED = 2;
+
+    private final Node root;
+    private final LDAPSchema schema;
+
+    /**
+     * Compiles a filter string.
+     *
+     * @param filter  An RFC 2254 search filter.
+     *
+     * @exception LDAPException if the filter cannot be parsed.
+     */
+    public FilterMatcher( String filter)
+            throws LDAPException
+    {
+        this( new RfcFilter( filter), null);
+        return;
+    }
+
+    /**
+     * Compiles a filter string for matching according to a schema.
+     *
+     * @param filter  An RFC 2254 search filter.
+     * @param schema  The schema defining the attributes, may be null.
+     *
+     * @exception LDAPException if the filter cannot be parsed.
+     */
+    public FilterMatcher( String filter, LDAPSchema schema)
+            throws LDAPException
+    {
+        this( new RfcFilter( filter), schema);
+        return;
+    }
+
+    /**
+     * Compiles a parsed filter for matching according to a schema.
+     *
+     * @param filter  The filter.
+     * @param schema  The schema defining the attributes, may be null.
+     *
+     * @exception LDAPException if the filter contains an unknown component.
+     */
+    public FilterMatcher( RfcFilter filter, LDAPSchema schema)
+            throws LDAPException
+    {
+        this.schema = schema;
+        this.root = compile( filter.getFilterIterator());
+        return;
+    }
+
+    /**
+     * Reports whether an entry matches the filter.
+     *
+     * @param entry  The entry to test.
+     *
+     * @return true if the filter is TRUE for the entry.
+     */
+    public boolean matches( LDAPEntry entry)
+    {
+        return root.evaluate( entry.getAttributeSet(), entry.getDN()) == TRUE;
+    }
+
+    /**
+     * Reports whether a set of attributes matches the filter.
+     *
+     * @param attrs  The attributes to test.
+     *
+     * @return true if the filter is TRUE for the attributes.
+     */
+    public boolean matches( LDAPAttributeSet attrs)
+    {
+        return root.evaluate( attrs, null) == TRUE;
+    }
+
+    /*
+     * Builds the predicate of a filter component from its filter iterator.
+     */
+    private Node compile( Iterator itr)
+            throws LDAPException
+    {
+        int op = ((Integer)itr.next()).intValue();
+        switch( op) {
+        case RfcFilter.AND:
+        case RfcFilter.OR: {
+            ArrayList list = new ArrayList();
+            while( itr.hasNext()) {
+                list.add( compile( (Iterator)itr.next()));
+            }
+            Node[] nodes = (Node[])list.toArray( new Node[ list.size() ]);
+            return op == RfcFilter.AND ? (Node)new And( nodes)
+                                       : (Node)new Or( nodes);
+        }
+        case RfcFilter.NOT:
+            return new Not( compile( (Iterator)itr.next()));
+        case RfcFilter.PRESENT:
+            return new Present( type( (String)itr.next()));
+        case RfcFilter.EQUALITY_MATCH:
+        case RfcFilter.APPROX_MATCH: {
+            Type type = type( (String)itr.next());
+            return new Equality( type, type.kind, (byte[])itr.next());
+        }
+        case RfcFilter.GREATER_OR_EQUAL:
+        case RfcFilter.LESS_OR_EQUAL: {
+            Type type = type( (String)itr.next());
+            return new Ordering( type, decode( (byte[])itr.next()),
+                                 op == RfcFilter.GREATER_OR_EQUAL);
+        }
+        case RfcFilter.SUBSTRINGS: {
+            Type type = type( (String)itr.next());
+            String initial = null;
+            String last = null;
+            ArrayList any = new ArrayList();
+            while( itr.hasNext()) {
+                int part = ((Integer)itr.next()).intValue();
+                String value = MatchingRules.normalizeSubstring( type.kind,
+                                                    (String)itr.next());
+                if( part == RfcFilter.INITIAL) {
+                    initial = value;
+                } else if( part == RfcFilter.ANY) {
+                    any.add( value);
+                } else {
+                    last = value;
+                }
+            }
+            return new Substrings( type, initial,
+                        (String[])any.toArray( new String[ any.size() ]), last);
+        }
+        case RfcFilter.EXTENSIBLE_MATCH: {
+            String rule = (String)itr.next();
+            String attr = (String)itr.next();
+            String value = (String)itr.next();
+            boolean dnAttributes = ((Boolean)itr.next()).booleanValue();
+            Type type = attr == null ? null : type( attr);
+            int kind = rule != null ? MatchingRules.getKind( rule)
+                     : type != null ? type.kind : MatchingRules.CASE_IGNORE;
+            byte[] octets;
+            try {
+                octets = value.getBytes( "UTF-8");
+            } catch( UnsupportedEncodingException uee) {
+                throw new RuntimeException( uee.toString());
+            }
+            Node node = new Equality( type, kind, octets);
+            return dnAttributes ? new DNAttributes( node) : node;
+        }
+        default:
+            throw new LDAPLocalException( "Unsupported filter component " + op,
+                                          LDAPException.FILTER_ERROR);
+        }
+    }
+
+    /*
+     * Resolves the attribute description of a filter component to the
+     * names its attribute type is known by: all its names and its OID when
+     * the schema defines it, otherwise the name in the filter.
+     */
+    private Type type( String description)
+    {
+        String[] parts = description.split(";");
+        Type type = new Type();
+        type.names = new String[] { parts[0] };
+        type.options = new String[ parts.length - 1 ];
+        System.arraycopy( parts, 1, type.options, 0, type.options.length);
+        type.kind = MatchingRules.CASE_IGNORE;
+        if( schema != null) {
+            LDAPAttributeSchema as = schema.getAttributeSchema( parts[0]);
+            if( as != null) {
+                String[] names = as.getNames();
+                int count = names == null ? 0 : names.length;
+                type.names = new String[ count + 1 ];
+                if( count > 0) {
+                    System.arraycopy( names, 0, type.names, 0, count);
+                }
+                type.names[count] = as.getID();
+            }
+            type.kind = MatchingRules.getKind(
+                            MatchingRules.getEqualityRule( schema, parts[0]));
+        }
+        return type;
+    }
+
+    private static String decode( byte[] value)
+    {
+        try {
+            return new String( value, "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    /*
+     * Parses a normalized integer value, or returns null if it is not an
+     * integer.
+     */
+    private static BigInteger toInteger( String value)
+    {
+        try {
+            return new BigInteger( value);
+        } catch( NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /* The attribute description of a filter component */
+    private static final class Type
+    {
+        private String[] names;
+        private String[] options;
+        private int kind;
+    }
+
+    /* A compiled filter component */
+    private abstract static class Node
+    {
+        /* Returns TRUE, FALSE or UNDEFINED */
+        abstract int evaluate( LDAPAttributeSet attrs, String dn);
+    }
+
+    private static final class And extends Node
+    {
+        private final Node[] nodes;
+
+        And( Node[] nodes)
+        {
+            this.nodes = nodes;
+        }
+
+        int evaluate( LDAPAttributeSet attrs, String dn)
+        {
+            int result = TRUE;
+            for( int i = 0; i < nodes.length; i++) {
+                int r = nodes[i].evaluate( attrs, dn);
+                if( r == FALSE) {
+                    return FALSE;
+                }
+                if( r == UNDEFINED) {
+                    result = UNDEFINED;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Or extends Node
+    {
+        private final Node[] nodes;
+
+        Or( Node[] nodes)
+        {
+            this.nodes = nodes;
+        }
+
+        int evaluate( LDAPAttributeSet attrs, String dn)
+        {
+            int result = FALSE;
+            for( int i = 0; i < nodes.length; i++) {
+                int r = nodes[i].evaluate( attrs, dn);
+                if( r == TRUE) {
+                    return TRUE;
+                }
+                if( r == UNDEFINED) {
+                    result = UNDEFINED;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Not extends Node
+    {
+        private final Node node;
+
+        Not( Node node)
+        {
+            this.node = node;
+        }
+
+        int evaluate( LDAPAttributeSet attrs, String dn)
+        {
+            int r = node.evaluate( attrs, dn);
+            return r == UNDEFINED ? UNDEFINED : r == TRUE ? FALSE : TRUE;
+        }
+    }
+
+    /*
+     * An extensible match with the dnAttributes flag, which also tests the
+     * attribute values of the RDNs of the DN.
+     */
+    private static final class DNAttributes extends Node
+    {
+        private final Node node;
+
+        DNAttributes( Node node)
+        {
+            this.node = node;
+        }
+
+        int evaluate( LDAPAttributeSet attrs, String dn)
+        {
+            int result = node.evaluate( attrs, dn);
+            if( result == TRUE || dn == null) {
+                return result;
+            }
+            LDAPAttributeSet values = new LDAPAttributeSet();
+            try {
+                Iterator i = new DN( dn).getRDNs().iterator();
+                while( i.hasNext()) {
+                    RDN rdn = (RDN)i.next();
+                    String[] types = rdn.getTypes();
+                    String[] rdnValues = rdn.getValues();
+                    for( int j = 0; j < types.length; j++) {
+                        LDAPAttribute attr = values.getAttribute( types[j]);
+                        if( attr == null) {
+                            values.add( new LDAPAttribute( types[j],
+                                                           rdnValues[j]));
+                        } else {
+                            attr.addValue( rdnValues[j]);
+                        }
+                    }
+                }
+            } catch( IllegalArgumentException e) {
+                return result; // not a valid DN
+            }
+            int r = node.evaluate( values, null);
+            return r == TRUE ? TRUE : result == UNDEFINED ? UNDEFINED : r;
+        }
+    }
+
+    /*
+     * A component testing the values of the attributes selected by an
+     * attribute description, or of all attributes when there is none.
+     * Attributes named exactly as the type are looked up directly, only
+     * the names of attributes with options are compared.
+     */
+    private abstract static class Assertion extends Node
+    {
+        private final Type type;
+
+        Assertion( Type type)
+        {
+            this.type = type;
+        }
+
+        int evaluate( LDAPAttributeSet attrs, String dn)
+        {
+            int result = FALSE;
+            if( type == null) {
+                Iterator i = attrs.iterator();
+                while( i.hasNext()) {
+                    int r = test( (LDAPAttribute)i.next());
+                    if( r == TRUE) {
+                        return TRUE;
+                    }
+                    if( r == UNDEFINED) {
+                        result = UNDEFINED;
+                    }
+                }
+                return result;
+            }
+            if( type.options.length == 0) {
+                for( int i = 0; i < type.names.length; i++) {
+                    LDAPAttribute attr = attrs.getAttribute( type.names[i]);
+                    if( attr == null) {
+                        continue;
+                    }
+                    int r = test( attr);
+                    if( r == TRUE) {
+                        return TRUE;
+                    }
+                    if( r == UNDEFINED) {
+                        result = UNDEFINED;
+                    }
+                }
+            }
+            Iterator i = attrs.iterator();
+            while( i.hasNext()) {
+                LDAPAttribute attr = (LDAPAttribute)i.next();
+                String name = attr.getName();
+                int semi = name.indexOf(';');
+                if( semi < 0 || !selects( attr, name, semi)) {
+                    continue;
+                }
+                int r = test( attr);
+                if( r == TRUE) {
+                    return TRUE;
+                }
+                if( r == UNDEFINED) {
+                    result = UNDEFINED;
+                }
+            }
+            return result;
+        }
+
+        /*
+         * Reports whether an attribute with options is selected: its base
+         * name is one of the names of the type and it has all the options
+         * of the filter.
+         */
+        private boolean selects( LDAPAttribute attr, String name, int semi)
+        {
+            boolean named = false;
+            for( int i = 0; i < type.names.length && !named; i++) {
+                named = type.names[i].length() == semi &&
+                        name.regionMatches( true, 0, type.names[i], 0, semi);
+            }
+            if( !named) {
+                return false;
+            }
+            if( type.options.length == 0) {
+                return true;
+            }
+            String[] options = attr.getSubtypes();
+            if( options == null) {
+                return false;
+            }
+            nextOption:
+            for( int i = 0; i < type.options.length; i++) {
+                for( int j = 0; j < options.length; j++) {
+                    if( options[j].equalsIgnoreCase( type.options[i])) {
+                        continue nextOption;
+                    }
+                }
+                return false;
+            }
+            return true;
+        }
+
+        /* Tests the values of a selected attribute */
+        abstract int test( LDAPAttribute attr);
+    }
+
+    private static final class Present extends Assertion
+    {
+        Present( Type type)
+        {
+            super( type);
+        }
+
+        int test( LDAPAttribute attr)
+        {
+            return TRUE;
+        }
+    }
+
+    private static final class Equality extends Assertion
+    {
+        private final int kind;
+        private final byte[] octets;
+        private final String value;
+        private final boolean valid;
+
+        Equality( Type type, int kind, byte[] octets)
+        {
+            super( type);
+            this.kind = kind;
+            this.octets = octets;
+            this.value = kind == MatchingRules.OCTET_STRING ? null
+                       : MatchingRules.normalize( kind, decode( octets));
+            this.valid = kind != MatchingRules.INTEGER ||
+                         toInteger( value) != null;
+        }
+
+        int test( LDAPAttribute attr)
+        {
+            if( !valid) {
+                return UNDEFINED;
+            }
+            if( kind == MatchingRules.OCTET_STRING) {
+                byte[][] values = attr.getByteValueArray();
+                for( int i = 0; i < values.length; i++) {
+                    if( Arrays.equals( octets, values[i])) {
+                        return TRUE;
+                    }
+                }
+                return FALSE;
+            }
+            int result = FALSE;
+            String[] values = attr.getStringValueArray();
+            for( int i = 0; i < values.length; i++) {
+                String v = MatchingRules.normalize( kind, values[i]);
+                if( value.equals( v)) {
+                    return TRUE;
+                }
+                if( kind == MatchingRules.INTEGER && toInteger( v) == null) {
+                    result = UNDEFINED;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Ordering extends Assertion
+    {
+        private final int kind;
+        private final String value;
+        private final BigInteger integer;
+        private final boolean greater;
+
+        Ordering( Type type, String value, boolean greater)
+        {
+            super( type);
+            this.kind = type.kind;
+            this.value = MatchingRules.normalize( kind, value);
+            this.integer = kind == MatchingRules.INTEGER
+                         ? toInteger( this.value) : null;
+            this.greater = greater;
+        }
+
+        int test( LDAPAttribute attr)
+        {
+            if( kind == MatchingRules.INTEGER && integer == null) {
+                return UNDEFINED;
+            }
+            int result = FALSE;
+            String[] values = attr.getStringValueArray();
+            for( int i = 0; i < values.length; i++) {
+                String v = MatchingRules.normalize( kind, values[i]);
+                int cmp;
+                if( kind == MatchingRules.INTEGER) {
+                    BigInteger n = toInteger( v);
+                    if( n == null) {
+                        result = UNDEFINED;
+                        continue;
+                    }
+                    cmp = n.compareTo( integer);
+                } else {
+                    cmp = v.compareTo( value);
+                }
+                if( greater ? cmp >= 0 : cmp <= 0) {
+                    return TRUE;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Substrings extends Assertion
+    {
+        private final int kind;
+        private final String initial;
+        private final String[] any;
+        private final String last;
+
+        Substrings( Type type, String initial, String[] any, String last)
+        {
+            super( type);
+            this.kind = type.kind;
+            this.initial = initial;
+            this.any = any;
+            this.last = last;
+        }
+
+        int test( LDAPAttribute attr)
+        {
+            String[] values = attr.getStringValueArray();
+            for( int i = 0; i < values.length; i++) {
+                if( matches( MatchingRules.normalize( kind, values[i]))) {
+                    return TRUE;
+                }
+            }
+            return FALSE;
+        }
+
+        private boolean matches( String value)
+        {
+            int pos = 0;
+            if( initial != null) {
+                if( !value.startsWith( initial)) {
+                    return false;
+                }
+                pos = initial.length();
+            }
+            for( int i = 0; i < any.length; i++) {
+                int idx = value.indexOf( any[i], pos);
+                if( idx < 0) {
+                    return false;
+                }
+                pos = idx + any[i].length();
+            }
+            if( last != null) {
+                return value.length() - last.length() >= pos &&
+                       value.endsWith( last);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,1066 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import com.github.terefang.jldap.ldap.LDAPAddRequest;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPAttributeSet;
+import com.github.terefang.jldap.ldap.LDAPControl;
+import com.github.terefang.jldap.ldap.LDAPDeleteRequest;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPModification;
+import com.github.terefang.jldap.ldap.LDAPModifyDNRequest;
+import com.github.terefang.jldap.ldap.LDAPModifyRequest;
+import com.github.terefang.jldap.ldap.LDAPSearchResult;
+import com.github.terefang.jldap.ldap.client.AttributeDescriptor;
+
+/**
+ * Reads LDAP entries and LDAP requests from LDIF data without decoding it
+ * to characters.
+ *
+ * <p>Unlike {@link LDIFReader}, which reads lines through a
+ * <code>BufferedReader</code>, this reader scans the LDIF data as bytes in
+ * large {@link ByteBuffer} windows.  A file is memory-mapped, a stream is
+ * read into a growing buffer.  Each value is copied once from the window
+ * into the array stored in its attribute; base64 values are decoded
+ * straight from the window.  Only folded lines are first joined in a
+ * buffer that is reused for the whole input.</p>
+ *
+ * <p>Records are read as specified by RFC 2849.  The version line may be
+ * omitted, and the '-' line closing the last modification of a modify
+ * record may be omitted at the end of the record.  Values given as a URL
+ * (<code>attr:&lt; url</code>) are read from the URL.</p>
+ *
+ * <p>An LDIFByteReader is not thread safe.</p>
+ *
+ * @see LDIFReader
+ */
+public class LDIFByteReader implements LDAPReader
+{
+    /* Size of the buffer first allocated when reading a stream */
+    private static final int STREAM_BUFFER = 1 << 20;
+
+    /* Size of the window first mapped when reading a file */
+    private static final int MAP_WINDOW = 1 << 28;
+
+    /* Marks a scan that needs more input to complete the record */
+    private static final int MORE = -1;
+
+    private static final int PLAIN = 0;
+    private static final int BASE64 = 1;
+    private static final int URL_VALUE = 2;
+
+    private FileChannel        channel;        // file being mapped, or null
+    private InputStream        in;             // stream being read, or null
+    private byte[]             array;          // buffer of the stream
+    private ByteBuffer         buf;            // current window
+    private int                limit;          // end of the data in buf
+    private long               bufOffset;      // input offset of buf[0]
+    private int                window = MAP_WINDOW;
+    private boolean            eof;            // no input after limit
+    private int                pos;            // next byte to scan
+
+    private long               lineNumber;     // lines before pos
+    private long               recordLine;     // first line of the record
+    private long               recordOffset = -1;
+    private boolean            pending;        // record scanned, not read
+    private long               scanOffset;     // offset of the last scan
+    private long               scanLine;       // lines before the last scan
+
+    private String             version = "1";
+    private boolean            requestFile;
+
+    // the logical lines of the scanned record, made of segments, each one
+    // the bytes of a physical line without its leading space and line end
+    private int[]              segStart = new int[64];
+    private int[]              segEnd = new int[64];
+    private int                segCount;
+    private int[]              lineSeg = new int[65];
+    private int                lineCount;
+
+    // the logical line being parsed
+    private ByteBuffer         lb;
+    private int                ls;
+    private int                le;
+    private int                colon;          // index of the first ':'
+    private int                valueType;
+    private int                vs;             // start of the value
+
+    private byte[]             scratch = new byte[1024];
+    private byte[]             nameBuf = new byte[256];
+
+    /**
+     * Constructs a reader of the LDIF data in a file.  The file is
+     * memory-mapped in windows of up to 256 MB.
+     *
+     * @param file  The LDIF file.
+     *
+     * @exception IOException if the file cannot be read.
+     * @exception LDAPLocalException if the file does not start with valid
+     *            LDIF data.
+     */
+    public LDIFByteReader( File file)
+                throws IOException, LDAPLocalException
+    {
+        FileInputStream fis = new FileInputStream( file);
+        this.channel = fis.getChannel();
+        try {
+            map( 0, this.channel.size());
+            start();
+        } catch( IOException e) {
+            this.channel.close();
+            throw e;
+        } catch( LDAPLocalException e) {
+            this.channel.close();
+            throw e;
+        }
+        return;
+    }
+
+    /**
+     * Constructs a reader of the LDIF data in a stream.
+     *
+     * @param in  The input stream, closed by {@link #close()}.
+     *
+     * @exception IOException if reading the stream fails.
+     * @exception LDAPLocalException if the stream does not start with valid
+     *            LDIF data.
+     */
+    public LDIFByteReader( InputStream in)
+                throws IOException, LDAPLocalException
+    {
+        this.in = in;
+        this.array = new byte[ STREAM_BUFFER ];
+        this.buf = ByteBuffer.wrap( this.array);
+        start();
+        return;
+    }
+
+    /**
+     * Constructs a reader of the LDIF data between the position and the
+     * limit of a buffer, which may be a mapped buffer.  The buffer's
+     * position is not changed.
+     *
+     * @param buffer  The LDIF data.
+     *
+     * @exception LDAPLocalException if the buffer does not start with valid
+     *            LDIF data.
+     */
+    public LDIFByteReader( ByteBuffer buffer)
+                throws LDAPLocalException
+    {
+        this( buffer, 0, 0);
+        return;
+    }
+
+    /**
+     * Constructs a reader of a part of a larger input that starts at a
+     * record.  The version line is only looked for at the start of the
+     * input.
+     *
+     * @param buffer  The part of the input.
+     * @param line    The number of lines before the part.
+     * @param offset  The offset of the part in the input.
+     */
+    /*package*/ LDIFByteReader( ByteBuffer buffer, long line, long offset)
+                throws LDAPLocalException
+    {
+        this.buf = buffer.slice();
+        this.limit = this.buf.limit();
+        this.eof = true;
+        this.lineNumber = line;
+        this.bufOffset = offset;
+        if( offset == 0) {
+            try {
+                start();
+            } catch( IOException e) {
+                // not reached, all the input is in the buffer
+                throw new RuntimeException( e.toString());
+            }
+        }
+        return;
+    }
+
+    /**
+     * Skips the version line and finds out whether the data holds entries
+     * or change requests from the first record.
+     */
+    private void start()
+                throws IOException, LDAPLocalException
+    {
+        if( ! scan()) {
+            return;
+        }
+        if( isNamed( 0, "version")) {
+            line( 0);
+            String value = string();
+            if( ! value.equals( "1")) {
+                throw new LDAPLocalException( "LDIFByteReader: version: found '"
+                    + value + "' (on line " + this.recordLine
+                    + "), should be '1'", LDAPException.LOCAL_ERROR);
+            }
+            this.version = value;
+            if( this.lineCount == 1) {
+                // the version line stands alone
+                this.pending = false;
+                if( ! scan()) {
+                    return;
+                }
+            } else {
+                removeFirstLine();
+                this.recordLine++;
+                this.recordOffset = this.bufOffset +
+                                    this.segStart[ this.lineSeg[0] ];
+            }
+        }
+        this.requestFile = this.lineCount > 1 &&
+            ( isNamed( 1, "changetype") || isNamed( 1, "control"));
+        return;
+    }
+
+    /**
+     * Gets the version of the LDIF data.
+     *
+     * @return The version, "1".
+     */
+    public String getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Returns true if the first record of the LDIF data is a change record.
+     *
+     * @return true if the data holds LDAP requests, false if it holds
+     *         entries.
+     */
+    public boolean isRequest()
+    {
+        return this.requestFile;
+    }
+
+    /**
+     * Returns the number of the line starting the record last read.
+     *
+     * @return The line number, starting at 1.
+     */
+    public long getLineNumber()
+    {
+        return this.recordLine;
+    }
+
+    /**
+     * Returns the offset in the input of the record last read.
+     *
+     * @return The byte offset of the first line of the record, or -1 if no
+     *         record was read.
+     */
+    public long getRecordOffset()
+    {
+        return this.recordOffset;
+    }
+
+    /**
+     * Returns the offset where the scan of the record last read started,
+     * before the empty and comment lines preceding it.  Reading from there
+     * reads the record again.
+     */
+    /*package*/ long getScanOffset()
+    {
+        return this.scanOffset;
+    }
+
+    /**
+     * Returns the number of lines before the scan of the record last read.
+     */
+    /*package*/ long getScanLine()
+    {
+        return this.scanLine;
+    }
+
+    /**
+     * Returns the number of lines read so far.
+     */
+    /*package*/ long getLinesRead()
+    {
+        return this.lineNumber;
+    }
+
+    /**
+     * Reads the next record.  A content record is returned as an
+     * {@link LDAPSearchResult}, a change record as an add, delete, modify
+     * DN or modify request.
+     *
+     * @return The next message, or null at the end of the data.
+     *
+     * @exception IOException if reading the input fails.
+     * @exception LDAPLocalException if the record is not valid.
+     */
+    public LDAPMessage readMessage()
+                throws IOException, LDAPException
+    {
+        if( ! nextRecord()) {
+            return null;
+        }
+        LDAPControl[] controls = null;
+        int i = 1;
+        if( i < this.lineCount && isNamed( i, "control")) {
+            ArrayList list = new ArrayList();
+            for( ; i < this.lineCount && isNamed( i, "control"); i++) {
+                list.add( toControl( i));
+            }
+            controls = (LDAPControl[])list.toArray(
+                                            new LDAPControl[ list.size() ]);
+        }
+
+        if( i >= this.lineCount || ! isNamed( i, "changetype")) {
+            if( controls != null) {
+                throw error( "missing changetype after control");
+            }
+            return new LDAPSearchResult( toEntry( 1), null);
+        }
+
+        line( i);
+        String type = string();
+        i++;
+        if( type.equalsIgnoreCase( "add")) {
+            return new LDAPAddRequest( toEntry( i), controls);
+        }
+        String dn = dn();
+        if( type.equalsIgnoreCase( "delete")) {
+            if( i != this.lineCount) {
+                throw error( "unexpected field in delete record");
+            }
+            return new LDAPDeleteRequest( dn, controls);
+        }
+        if( type.equalsIgnoreCase( "modrdn") ||
+            type.equalsIgnoreCase( "moddn")) {
+            return toModifyDN( dn, i, controls);
+        }
+        if( type.equalsIgnoreCase( "modify")) {
+            return new LDAPModifyRequest( dn, toModifications( i), controls);
+        }
+        throw error( "unsupported changetype '" + type + "'");
+    }
+
+    /**
+     * Reads the next content record.
+     *
+     * @return The next entry, or null at the end of the data.
+     *
+     * @exception IOException if reading the input fails.
+     * @exception LDAPLocalException if the record is not valid or is a
+     *            change record.
+     */
+    public LDAPEntry readEntry()
+                throws IOException, LDAPLocalException
+    {
+        if( ! nextRecord()) {
+            return null;
+        }
+        if( this.lineCount > 1 &&
+            ( isNamed( 1, "changetype") || isNamed( 1, "control"))) {
+            throw error( "change record found where an entry was expected");
+        }
+        return toEntry( 1);
+    }
+
+    /**
+     * Reads the next record, content or change, and returns only its DN.
+     * The rest of the record is not parsed.
+     *
+     * @return The DN, or null at the end of the data.
+     */
+    /*package*/ String readDN()
+                throws IOException, LDAPLocalException
+    {
+        if( ! nextRecord()) {
+            return null;
+        }
+        return dn();
+    }
+
+    /**
+     * Closes the input.  Mapped windows are released when they are garbage
+     * collected.
+     *
+     * @exception IOException if closing the input fails.
+     */
+    public void close()
+                throws IOException
+    {
+        if( this.channel != null) {
+            this.channel.close();
+        }
+        if( this.in != null) {
+            this.in.close();
+        }
+        return;
+    }
+
+    /*
+     * Scanning records
+     */
+
+    /**
+     * Makes the next record the current one.
+     *
+     * @return false at the end of the data.
+     */
+    private boolean nextRecord()
+                throws IOException, LDAPLocalException
+    {
+        if( ! this.pending && ! scan()) {
+            return false;
+        }
+        this.pending = false;
+        if( ! isNamed( 0, "dn")) {
+            throw error( "record does not start with 'dn:'");
+        }
+        return true;
+    }
+
+    /**
+     * Finds the lines of the next record, reading input until the record is
+     * complete.
+     *
+     * @return false if there are no more records.
+     */
+    private boolean scan()
+                throws IOException, LDAPLocalException
+    {
+        int next;
+        this.scanOffset = this.bufOffset + this.pos;
+        this.scanLine = this.lineNumber;
+        while( (next = scan( this.pos)) == MORE) {
+            fill();
+        }
+        this.pos = next;
+        this.pending = this.lineCount > 0;
+        return this.pending;
+    }
+
+    /**
+     * Scans a record starting at <code>i</code>, skipping the empty and
+     * comment lines before it.
+     *
+     * @return The index following the record, or MORE if the record does
+     *         not end before the end of the window.
+     */
+    private int scan( int i)
+                throws LDAPLocalException
+    {
+        ByteBuffer b = this.buf;
+        int end = this.limit;
+        long line = this.lineNumber;
+        boolean comment = false;
+        this.segCount = 0;
+        this.lineCount = 0;
+
+        for( ;;) {
+            if( i == end) {
+                if( ! this.eof) {
+                    return MORE;
+                }
+                break;
+            }
+            int eol = i;
+            while( eol < end && b.get( eol) != '\n') {
+                eol++;
+            }
+            if( eol == end && ! this.eof) {
+                return MORE;
+            }
+            int next = eol < end ? eol + 1 : end;
+            if( eol > i && b.get( eol - 1) == '\r') {
+                eol--;
+            }
+            line++;
+
+            if( eol == i) {
+                // an empty line ends the record
+                if( this.lineCount > 0) {
+                    i = next;
+                    break;
+                }
+                comment = false;
+            } else {
+                byte c = b.get( i);
+                if( c == ' ') {
+                    if( ! comment) {
+                        if( this.lineCount == 0) {
+                            // skip the line, so reading can go on
+                            this.pos = next;
+                            this.lineNumber = line;
+                            throw new LDAPLocalException( "LDIFByteReader: "
+                                + "continuation of no line on line " + line,
+                                LDAPException.LOCAL_ERROR);
+                        }
+                        addSegment( i + 1, eol);
+                    }
+                } else if( c == '#') {
+                    comment = true;
+                } else {
+                    comment = false;
+                    if( this.lineCount == 0) {
+                        this.recordLine = line;
+                        this.recordOffset = this.bufOffset + i;
+                    }
+                    addLine( i, eol);
+                }
+            }
+            i = next;
+        }
+        this.lineNumber = line;
+        this.lineSeg[ this.lineCount ] = this.segCount;
+        return i;
+    }
+
+    private void addLine( int start, int end)
+    {
+        if( this.lineCount + 1 >= this.lineSeg.length) {
+            int[] grown = new int[ this.lineSeg.length * 2 ];
+            System.arraycopy( this.lineSeg, 0, grown, 0, this.lineCount);
+            this.lineSeg = grown;
+        }
+        this.lineSeg[ this.lineCount++ ] = this.segCount;
+        addSegment( start, end);
+        return;
+    }
+
+    private void addSegment( int start, int end)
+    {
+        if( this.segCount == this.segStart.length) {
+            int[] grown = new int[ this.segCount * 2 ];
+            System.arraycopy( this.segStart, 0, grown, 0, this.segCount);
+            this.segStart = grown;
+            grown = new int[ this.segCount * 2 ];
+            System.arraycopy( this.segEnd, 0, grown, 0, this.segCount);
+            this.segEnd = grown;
+        }
+        this.segStart[ this.segCount ] = start;
+        this.segEnd[ this.segCount ] = end;
+        this.segCount++;
+        return;
+    }
+
+    private void removeFirstLine()
+    {
+        this.lineCount--;
+        System.arraycopy( this.lineSeg, 1, this.lineSeg, 0,
+                          this.lineCount + 1);
+        return;
+    }
+
+    /**
+     * Makes more input available after the current position, keeping the
+     * bytes from the current position on.
+     */
+    private void fill()
+                throws IOException
+    {
+        if( this.channel != null) {
+            long start = this.bufOffset + this.pos;
+            long size = this.channel.size() - start;
+            if( this.pos == 0) {
+                // a record larger than the window
+                if( this.window == Integer.MAX_VALUE) {
+                    throw new IOException( "LDIFByteReader: record at offset "
+                        + start + " is larger than 2 GB");
+                }
+                this.window = (int)Math.min( 2L * this.window,
+                                             Integer.MAX_VALUE);
+            }
+            map( start, size);
+            return;
+        }
+
+        if( this.pos > 0) {
+            System.arraycopy( this.array, this.pos, this.array, 0,
+                              this.limit - this.pos);
+            this.limit -= this.pos;
+            this.bufOffset += this.pos;
+            this.pos = 0;
+        }
+        if( this.limit == this.array.length) {
+            byte[] grown = new byte[ this.array.length * 2 ];
+            System.arraycopy( this.array, 0, grown, 0, this.limit);
+            this.array = grown;
+            this.buf = ByteBuffer.wrap( grown);
+        }
+        int n = this.in.read( this.array, this.limit,
+                              this.array.length - this.limit);
+        if( n < 0) {
+            this.eof = true;
+        } else {
+            this.limit += n;
+        }
+        return;
+    }
+
+    private void map( long start, long size)
+                throws IOException
+    {
+        int length = (int)Math.min( size, this.window);
+        this.buf = this.channel.map( FileChannel.MapMode.READ_ONLY, start,
+                                     length);
+        this.bufOffset = start;
+        this.pos = 0;
+        this.limit = length;
+        this.eof = length == size;
+        return;
+    }
+
+    /*
+     * Parsing lines
+     */
+
+    /**
+     * Makes logical line <code>n</code> of the record the current line,
+     * joining its segments if it is folded, and finds its value.
+     */
+    private void line( int n)
+                throws LDAPLocalException
+    {
+        int first = this.lineSeg[n];
+        int last = this.lineSeg[n + 1];
+        if( last - first == 1) {
+            this.lb = this.buf;
+            this.ls = this.segStart[first];
+            this.le = this.segEnd[first];
+        } else {
+            int length = 0;
+            for( int s = first; s < last; s++) {
+                length += this.segEnd[s] - this.segStart[s];
+            }
+            if( length > this.scratch.length) {
+                this.scratch = new byte[ Math.max( length,
+                                                   this.scratch.length * 2) ];
+            }
+            int at = 0;
+            ByteBuffer src = this.buf.duplicate();
+            for( int s = first; s < last; s++) {
+                src.limit( this.segEnd[s]).position( this.segStart[s]);
+                int count = src.remaining();
+                src.get( this.scratch, at, count);
+                at += count;
+            }
+            this.lb = ByteBuffer.wrap( this.scratch);
+            this.ls = 0;
+            this.le = length;
+        }
+
+        // trailing spaces are not part of the value
+        while( this.le > this.ls && this.lb.get( this.le - 1) == ' ') {
+            this.le--;
+        }
+        int c = this.ls;
+        while( c < this.le && this.lb.get( c) != ':') {
+            c++;
+        }
+        if( c == this.le) {
+            throw error( "missing ':' after '" + text( this.ls, this.le) + "'");
+        }
+        this.colon = c;
+        c++;
+        this.valueType = PLAIN;
+        if( c < this.le) {
+            byte t = this.lb.get( c);
+            if( t == ':') {
+                this.valueType = BASE64;
+                c++;
+            } else if( t == '<') {
+                this.valueType = URL_VALUE;
+                c++;
+            }
+        }
+        while( c < this.le && this.lb.get( c) == ' ') {
+            c++;
+        }
+        this.vs = c;
+        return;
+    }
+
+    /**
+     * Returns true if the name of logical line <code>n</code>, before the
+     * first ':', is the specified name, ignoring case.
+     */
+    private boolean isNamed( int n, String name)
+    {
+        ByteBuffer b = this.buf;
+        int seg = this.lineSeg[n];
+        int i = this.segStart[seg];
+        int end = this.segEnd[seg];
+        int length = name.length();
+        if( end - i <= length || b.get( i + length) != ':') {
+            return false;
+        }
+        for( int k = 0; k < length; k++) {
+            int c = b.get( i + k);
+            if( c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if( c != name.charAt( k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the current line is a single '-'.
+     */
+    private boolean isSeparator( int n)
+    {
+        int seg = this.lineSeg[n];
+        int i = this.segStart[seg];
+        int end = this.segEnd[seg];
+        while( end > i && this.buf.get( end - 1) == ' ') {
+            end--;
+        }
+        return end - i == 1 && this.buf.get( i) == '-' &&
+               this.lineSeg[n + 1] - seg == 1;
+    }
+
+    /**
+     * Returns the attribute description of the current line.
+     */
+    private AttributeDescriptor descriptor()
+    {
+        int length = this.colon - this.ls;
+        if( this.lb.hasArray()) {
+            return AttributeDescriptor.intern( this.lb.array(),
+                        this.lb.arrayOffset() + this.ls, length);
+        }
+        if( length > this.nameBuf.length) {
+            this.nameBuf = new byte[ length ];
+        }
+        for( int k = 0; k < length; k++) {
+            this.nameBuf[k] = this.lb.get( this.ls + k);
+        }
+        return AttributeDescriptor.intern( this.nameBuf, 0, length);
+    }
+
+    /**
+     * Returns the value of the current line, decoded if it is base64
+     * encoded, or read from its URL.
+     */
+    private byte[] value()
+                throws IOException, LDAPLocalException
+    {
+        switch( this.valueType) {
+            case BASE64:
+                return decode( this.lb, this.vs, this.le);
+            case URL_VALUE:
+                return readURL( text( this.vs, this.le));
+            default:
+                byte[] value = new byte[ this.le - this.vs ];
+                if( this.lb.hasArray()) {
+                    System.arraycopy( this.lb.array(),
+                                      this.lb.arrayOffset() + this.vs,
+                                      value, 0, value.length);
+                } else {
+                    ByteBuffer src = this.lb.duplicate();
+                    src.limit( this.le).position( this.vs);
+                    src.get( value);
+                }
+                return value;
+        }
+    }
+
+    /**
+     * Returns the value of the current line as a string.
+     */
+    private String string()
+                throws LDAPLocalException
+    {
+        if( this.valueType == BASE64) {
+            return utf8( decode( this.lb, this.vs, this.le));
+        }
+        if( this.valueType == URL_VALUE) {
+            throw error( "URL value not allowed for this field");
+        }
+        return text( this.vs, this.le);
+    }
+
+    private String text( int start, int end)
+    {
+        byte[] bytes = new byte[ end - start ];
+        for( int k = 0; k < bytes.length; k++) {
+            bytes[k] = this.lb.get( start + k);
+        }
+        return utf8( bytes);
+    }
+
+    private String dn()
+                throws LDAPLocalException
+    {
+        line( 0);
+        return string();
+    }
+
+    /*
+     * Building entries and requests
+     */
+
+    /**
+     * Builds the entry of the record from the attribute lines starting at
+     * line <code>first</code>.
+     */
+    private LDAPEntry toEntry( int first)
+                throws IOException, LDAPLocalException
+    {
+        String dn = dn();
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        AttributeDescriptor last = null;
+        LDAPAttribute attr = null;
+        for( int i = first; i < this.lineCount; i++) {
+            line( i);
+            AttributeDescriptor d = descriptor();
+            if( d != last) {
+                attr = attrs.getAttribute( d.getName());
+                if( attr == null) {
+                    attr = new LDAPAttribute( d);
+                    attrs.add( attr);
+                }
+                last = d;
+            }
+            attr.addValue( value());
+        }
+        return new LDAPEntry( dn, attrs);
+    }
+
+    /**
+     * Builds a control from a line
+     * <code>control: oid [criticality] [value-spec]</code>.
+     */
+    private LDAPControl toControl( int n)
+                throws IOException, LDAPLocalException
+    {
+        line( n);
+        if( this.valueType != PLAIN) {
+            throw error( "malformed control");
+        }
+        int i = this.vs;
+        while( i < this.le) {
+            byte c = this.lb.get( i);
+            if( c != '.' && ( c < '0' || c > '9')) {
+                break;
+            }
+            i++;
+        }
+        if( i == this.vs) {
+            throw error( "control with no oid");
+        }
+        String oid = text( this.vs, i);
+        while( i < this.le && this.lb.get( i) == ' ') {
+            i++;
+        }
+        boolean critical = false;
+        if( matches( i, "true")) {
+            critical = true;
+            i += 4;
+        } else if( matches( i, "false")) {
+            i += 5;
+        }
+        while( i < this.le && this.lb.get( i) == ' ') {
+            i++;
+        }
+        if( i == this.le) {
+            // an empty value, as LDIFReader, so getControls() works
+            return new LDAPControl( oid, critical, new byte[0]);
+        }
+        if( this.lb.get( i) != ':') {
+            throw error( "malformed control '" + oid + "'");
+        }
+        // the value-spec is parsed as the value of a field
+        this.valueType = PLAIN;
+        i++;
+        if( i < this.le && this.lb.get( i) == ':') {
+            this.valueType = BASE64;
+            i++;
+        } else if( i < this.le && this.lb.get( i) == '<') {
+            this.valueType = URL_VALUE;
+            i++;
+        }
+        while( i < this.le && this.lb.get( i) == ' ') {
+            i++;
+        }
+        this.vs = i;
+        return new LDAPControl( oid, critical, value());
+    }
+
+    private boolean matches( int i, String word)
+    {
+        if( this.le - i < word.length()) {
+            return false;
+        }
+        for( int k = 0; k < word.length(); k++) {
+            if( this.lb.get( i + k) != word.charAt( k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private LDAPMessage toModifyDN( String dn, int i, LDAPControl[] controls)
+                throws LDAPException
+    {
+        if( i >= this.lineCount || ! isNamed( i, "newrdn")) {
+            throw error( "malformed newrdn field");
+        }
+        line( i++);
+        String newRdn = string();
+
+        if( i >= this.lineCount || ! isNamed( i, "deleteoldrdn")) {
+            throw error( "malformed deleteoldrdn field");
+        }
+        line( i++);
+        String delete = string();
+        if( ! delete.equals( "0") && ! delete.equals( "1")) {
+            throw error( "value for deleteoldrdn field should be '0' or '1', "
+                + "found '" + delete + "'");
+        }
+
+        String newSuperior = null;
+        if( i < this.lineCount) {
+            if( ! isNamed( i, "newsuperior")) {
+                throw error( "malformed newsuperior field");
+            }
+            line( i++);
+            newSuperior = string();
+            if( i < this.lineCount) {
+                throw error( "unexpected field after newsuperior");
+            }
+        }
+        return new LDAPModifyDNRequest( dn, newRdn, newSuperior,
+                                        delete.equals( "1"), controls);
+    }
+
+    private LDAPModification[] toModifications( int i)
+                throws IOException, LDAPLocalException
+    {
+        ArrayList mods = new ArrayList();
+        while( i < this.lineCount) {
+            int op;
+            if( isNamed( i, "add")) {
+                op = LDAPModification.ADD;
+            } else if( isNamed( i, "delete")) {
+                op = LDAPModification.DELETE;
+            } else if( isNamed( i, "replace")) {
+                op = LDAPModification.REPLACE;
+            } else {
+                line( i);
+                throw error( "unsupported modify operation '"
+                    + text( this.ls, this.colon) + "'");
+            }
+            line( i++);
+            String name = string();
+            LDAPAttribute attr = new LDAPAttribute( name);
+            for( ; i < this.lineCount && ! isSeparator( i); i++) {
+                line( i);
+                AttributeDescriptor d = descriptor();
+                if( ! d.getName().equalsIgnoreCase( name)) {
+                    throw error( "found attribute name '" + d.getName()
+                        + "', should be '" + name + "'");
+                }
+                attr.addValue( value());
+            }
+            if( op == LDAPModification.ADD && attr.size() == 0) {
+                throw error( "no value specified for attribute '" + name
+                    + "' to add");
+            }
+            mods.add( new LDAPModification( op, attr));
+            // skip the '-'
+            i++;
+        }
+        return (LDAPModification[])mods.toArray(
+                                        new LDAPModification[ mods.size() ]);
+    }
+
+    /*
+     * Value decoding
+     */
+
+    /**
+     * Decodes base64 data between two indexes of a buffer into an array of
+     * the exact decoded length.
+     */
+    private byte[] decode( ByteBuffer b, int start, int end)
+                throws LDAPLocalException
+    {
+        try {
+            int length = end - start;
+            byte[] out = new byte[ Base64.decodedLength( b, start, length) ];
+            Base64.decode( b, start, length, out, 0);
+            return out;
+        } catch( IllegalArgumentException e) {
+            throw error( e.getMessage());
+        }
+    }
+
+    private static byte[] readURL( String url)
+                throws IOException
+    {
+        InputStream is = new URL( url).openStream();
+        try {
+            byte[] data = new byte[ 8192 ];
+            int length = 0;
+            int n;
+            while( (n = is.read( data, length, data.length - length)) >= 0) {
+                length += n;
+                if( length == data.length) {
+                    byte[] grown = new byte[ data.length * 2 ];
+                    System.arraycopy( data, 0, grown, 0, length);
+                    data = grown;
+                }
+            }
+            byte[] value = new byte[ length ];
+            System.arraycopy( data, 0, value, 0, length);
+            return value;
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String utf8( byte[] bytes)
+    {
+        try {
+            return new String( bytes, "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    private LDAPLocalException error( String message)
+    {
+        return new LDAPLocalException( "LDIFByteReader: " + message
+            + " in the record starting on line " + this.recordLine + ".",
+            LDAPException.LOCAL_ERROR);
+    }
+}
@@ -0,0 +1,787 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+import com.github.terefang.jldap.ldap.LDAPAddRequest;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPControl;
+import com.github.terefang.jldap.ldap.LDAPDeleteRequest;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPModification;
+import com.github.terefang.jldap.ldap.LDAPModifyDNRequest;
+import com.github.terefang.jldap.ldap.LDAPModifyRequest;
+import com.github.terefang.jldap.ldap.LDAPSearchResult;
+import com.github.terefang.jldap.ldap.asn1.ASN1OctetString;
+import com.github.terefang.jldap.ldap.asn1.ASN1Sequence;
+import com.github.terefang.jldap.ldap.asn1.ASN1Set;
+import com.github.terefang.jldap.ldap.rfc2251.RfcSearchResultEntry;
+
+/**
+ * Writes LDIF content or change records to an OutputStream, formatting
+ * them directly as bytes.
+ *
+ * <p>LDIFByteWriter writes the same records as {@link LDIFWriter}, for
+ * large exports.  Lines are formatted in a reusable output buffer, with
+ * no intermediate Strings: values are checked and copied, or base64
+ * encoded, straight into the buffer, and lines longer than 76 bytes are
+ * folded as they are written.  The buffer is written to the stream when
+ * full, and when {@link #finish()} is called.  The output may be gzip
+ * compressed as it is written.</p>
+ *
+ * <p>A search result received from a server is written straight from
+ * the values of the response, without creating an LDAPEntry and its
+ * attributes.</p>
+ *
+ * <p>Values are written as is when they only hold printable ASCII
+ * characters and are safe for LDIF, and base64 encoded otherwise.
+ * The deleteoldrdn field of a modify DN record is written as 0 or 1.</p>
+ *
+ * <p>An LDIFByteWriter is not thread safe.</p>
+ *
+ * @see LDIFByteReader
+ */
+public class LDIFByteWriter implements LDAPWriter
+{
+    // Size of the output buffer
+    private static final int BUFFER_SIZE = 1 << 20;
+    // Size of the buffer of the compressor
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+    // Longest line written before folding
+    private static final int LINE_WIDTH = 76;
+
+    private static final byte[] commentPrefix = { '#', ' ' };
+
+    private OutputStream     out;
+    private GZIPOutputStream gzip;
+    private Boolean          requestFile;      // request file=true
+    private String           version;
+    private byte[]           lineSeparator;
+
+    private byte[]           buffer;
+    private int              pos;              // end of the data in buffer
+    private int              column;           // bytes on the current line
+
+    /**
+     * Constructs an LDIFByteWriter writing LDIF version 1.  The type of
+     * file written is determined by the first message written, as with
+     * {@link LDIFWriter#LDIFWriter(OutputStream)}.
+     *
+     * @param out     The OutputStream where the LDIF data will be written.
+     *
+     * @throws IOException for errors writing to the stream.
+     */
+    public LDIFByteWriter( OutputStream out)
+                throws IOException
+    {
+        this( out, "1", null, false);
+        return;
+    }
+
+    /**
+     * Constructs an LDIFByteWriter writing the specified type of file.
+     *
+     * @param out     The OutputStream where the LDIF data will be written.
+     *
+     * @param version The version to set in the LDIF file, must be "1".
+     *
+     * @param request If true sets the out file type to request (change) data,
+     * else the file type will be content.
+     *
+     * @throws IOException for errors writing to the stream.
+     */
+    public LDIFByteWriter( OutputStream out, String version, boolean request)
+                throws IOException
+    {
+        this( out, version, new Boolean( request), false);
+        return;
+    }
+
+    /**
+     * Constructs an LDIFByteWriter writing the specified type of file,
+     * optionally gzip compressed.
+     *
+     * @param out      The OutputStream where the LDIF data will be written.
+     *
+     * @param version  The version to set in the LDIF file, must be "1".
+     *
+     * @param request  If true sets the out file type to request (change)
+     * data, else the file type will be content.
+     *
+     * @param compress If true the data is written in gzip format.
+     *
+     * @throws IOException for errors writing to the stream.
+     */
+    public LDIFByteWriter( OutputStream out, String version, boolean request,
+                           boolean compress)
+                throws IOException
+    {
+        this( out, version, new Boolean( request), compress);
+        return;
+    }
+
+    private LDIFByteWriter( OutputStream out, String version, Boolean request,
+                            boolean compress)
+                throws IOException
+    {
+        if( out == null) {
+            throw new IllegalArgumentException( "An output stream is required");
+        }
+        if( ! "1".equals( version)) {
+            throw new IllegalArgumentException(
+                        "LDIFByteWriter: LDIF version: found: " + version
+                        + ", Should be: 1");
+        }
+        this.version = version;
+        this.requestFile = request;
+        if( compress) {
+            this.gzip = new GZIPOutputStream( out, GZIP_BUFFER_SIZE);
+            this.out = this.gzip;
+        } else {
+            this.out = out;
+        }
+        this.lineSeparator = bytes( System.getProperty( "line.separator"));
+        this.buffer = new byte[ BUFFER_SIZE ];
+        writeComments( "This LDIF file was generated by the LDIF APIs. " +
+                       "of Novell's Java LDAP SDK");
+        putAscii( "version: ");
+        putAscii( version);
+        newLine();
+        newLine();
+        return;
+    }
+
+    /**
+     * Writes an entry as LDIF content data.
+     *
+     * @param entry The entry to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeEntry( LDAPEntry entry)
+                throws IOException
+    {
+        writeEntry( entry, null);
+        return;
+    }
+
+    /**
+     * Writes an entry as LDIF content data.  Content data has no controls,
+     * the controls are ignored.
+     *
+     * @param entry    The entry to write.
+     *
+     * @param controls Controls that were returned with this entry.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeEntry( LDAPEntry entry, LDAPControl[] controls)
+                throws IOException
+    {
+        this.requestFile = Boolean.FALSE; // This is a content file
+        writeAdd( entry, controls);
+        newLine();
+        return;
+    }
+
+    /**
+     * Writes a message as an LDIF record.  A search result is written as
+     * content data, an LDAPAddRequest, LDAPDeleteRequest,
+     * LDAPModifyDNRequest or LDAPModifyRequest as change data.  A search
+     * result whose entry was not created is written from its response.
+     *
+     * <p>You are not allowed to mix request data and content data</p>
+     *
+     * @param message The message to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeMessage( LDAPMessage message)
+                throws IOException
+    {
+        boolean content = message.getType() == LDAPMessage.SEARCH_RESPONSE;
+        switch( message.getType()) {
+            case LDAPMessage.SEARCH_RESPONSE:
+            case LDAPMessage.ADD_REQUEST:
+            case LDAPMessage.DEL_REQUEST:
+            case LDAPMessage.MODIFY_RDN_REQUEST:
+            case LDAPMessage.MODIFY_REQUEST:
+                break;
+            default:
+                throw new RuntimeException( "Unsupported request type: " +
+                        message.toString());
+        }
+        if( this.requestFile == null) {
+            this.requestFile = content ? Boolean.FALSE : Boolean.TRUE;
+        }
+        if( content == isRequest()) {
+            throw new RuntimeException( content ?
+                        "Attempting to write content in a request stream" :
+                        "Attempting to write request in a content stream");
+        }
+
+        LDAPControl[] controls = message.getControls();
+        switch( message.getType()) {
+            case LDAPMessage.SEARCH_RESPONSE:
+                LDAPSearchResult result = (LDAPSearchResult)message;
+                RfcSearchResultEntry response = result.getEntryASN1Object();
+                if( response != null) {
+                    writeResponse( response);
+                } else {
+                    writeAdd( result.getEntry(), controls);
+                }
+                break;
+            case LDAPMessage.ADD_REQUEST:
+                writeAdd( ((LDAPAddRequest)message).getEntry(), controls);
+                break;
+            case LDAPMessage.DEL_REQUEST:
+                writeDN( ((LDAPDeleteRequest)message).getDN());
+                writeControls( controls);
+                putAscii( "changetype: delete");
+                newLine();
+                break;
+            case LDAPMessage.MODIFY_RDN_REQUEST:
+                LDAPModifyDNRequest rreq = (LDAPModifyDNRequest)message;
+                writeModifyDN( rreq.getDN(), rreq.getNewRDN(),
+                               rreq.getDeleteOldRDN(), rreq.getParentDN(),
+                               controls);
+                break;
+            case LDAPMessage.MODIFY_REQUEST:
+                LDAPModifyRequest mreq = (LDAPModifyRequest)message;
+                writeModify( mreq.getDN(), mreq.getModifications(), controls);
+                break;
+        }
+        // write an empty line to separate records
+        newLine();
+        return;
+    }
+
+    /**
+     * Writes comment lines.  Each line of the text is written after a
+     * '#' character, and is not folded.
+     *
+     * @param comments The comment lines to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeComments( String comments)
+                throws IOException
+    {
+        int len = comments.length();
+        int start = 0;
+        while( start < len) {
+            int end = start;
+            char c = 0;
+            while( end < len && (c = comments.charAt( end)) != '\n' &&
+                   c != '\r') {
+                end++;
+            }
+            byte[] line = bytes( comments.substring( start, end));
+            write( commentPrefix, 0, commentPrefix.length);
+            write( line, 0, line.length);
+            newLine();
+            start = end + 1;
+            if( c == '\r' && start < len && comments.charAt( start) == '\n') {
+                start++;
+            }
+        }
+        return;
+    }
+
+    /**
+     * Writes an exception as a comment.
+     *
+     * @param e  Exception to be written.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeError( Exception e)
+                throws IOException
+    {
+        writeComments( e.toString());
+        return;
+    }
+
+    /**
+     * Gets the version of the LDIF data written.
+     *
+     * @return the version number
+     */
+    public String getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Returns true if request data is written, or false if content data.
+     *
+     * @return true if request data is written.
+     */
+    public boolean isRequest()
+    {
+        return this.requestFile.booleanValue();
+    }
+
+    /**
+     * Writes the buffered data to the stream and flushes it.  Compressed
+     * data is finished, nothing more may be written.  The stream is not
+     * closed.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void finish()
+                throws IOException
+    {
+        flushBuffer();
+        if( this.gzip != null) {
+            this.gzip.finish();
+        }
+        this.out.flush();
+        return;
+    }
+
+    private void writeAdd( LDAPEntry entry, LDAPControl[] controls)
+                throws IOException
+    {
+        writeDN( entry.getDN());
+        if( isRequest()) {
+            writeControls( controls);
+            putAscii( "changetype: add");
+            newLine();
+        }
+        Iterator i = entry.getAttributeSet().iterator();
+        while( i.hasNext()) {
+            LDAPAttribute attr = (LDAPAttribute)i.next();
+            writeValues( attr.getName(), attr.getByteValueArray());
+        }
+        return;
+    }
+
+    /**
+     * Writes a content record from the decoded entry of a search response:
+     * the name and values are written from the octet strings received.
+     */
+    private void writeResponse( RfcSearchResultEntry response)
+                throws IOException
+    {
+        byte[] dn = response.getObjectName().byteValue();
+        putAscii( "dn");
+        if( Base64.isLDIFSafe( dn, 0, dn.length)) {
+            putAscii( ": ");
+            put( dn, 0, dn.length);
+        } else {
+            putAscii( ":: ");
+            putBase64( dn);
+        }
+        newLine();
+        ASN1Sequence attrs = response.getAttributes();
+        for( int i = 0, n = attrs.size(); i < n; i++) {
+            ASN1Sequence attr = (ASN1Sequence)attrs.get( i);
+            byte[] name = ((ASN1OctetString)attr.get( 0)).byteValue();
+            ASN1Set values = (ASN1Set)attr.get( 1);
+            for( int j = 0, m = values.size(); j < m; j++) {
+                put( name, 0, name.length);
+                writeValue( ((ASN1OctetString)values.get( j)).byteValue());
+            }
+        }
+        return;
+    }
+
+    private void writeModify( String dn, LDAPModification[] mods,
+                              LDAPControl[] controls)
+                throws IOException
+    {
+        writeDN( dn);
+        writeControls( controls);
+        putAscii( "changetype: modify");
+        newLine();
+        for( int i = 0; i < mods.length; i++) {
+            LDAPAttribute attr = mods[i].getAttribute();
+            switch( mods[i].getOp()) {
+                case LDAPModification.ADD:
+                    putAscii( "add: ");
+                    break;
+                case LDAPModification.DELETE:
+                    putAscii( "delete: ");
+                    break;
+                case LDAPModification.REPLACE:
+                    putAscii( "replace: ");
+                    break;
+                default:
+                    throw new RuntimeException( "Unsupported modification: "
+                                                + mods[i].getOp());
+            }
+            putString( attr.getName());
+            newLine();
+            writeValues( attr.getName(), attr.getByteValueArray());
+            putAscii( "-");
+            newLine();
+        }
+        return;
+    }
+
+    private void writeModifyDN( String dn, String newRDN,
+                                boolean deleteOldRDN, String newSuperior,
+                                LDAPControl[] controls)
+                throws IOException
+    {
+        writeDN( dn);
+        writeControls( controls);
+        putAscii( "changetype: moddn");
+        newLine();
+        writeString( "newrdn", newRDN);
+        putAscii( deleteOldRDN ? "deleteoldrdn: 1" : "deleteoldrdn: 0");
+        newLine();
+        if( newSuperior != null) {
+            writeString( "newsuperior", newSuperior);
+        }
+        return;
+    }
+
+    private void writeDN( String dn)
+                throws IOException
+    {
+        writeString( "dn", dn);
+        return;
+    }
+
+    private void writeControls( LDAPControl[] controls)
+                throws IOException
+    {
+        if( controls == null) {
+            return;
+        }
+        for( int i = 0; i < controls.length; i++) {
+            putAscii( "control: ");
+            putString( controls[i].getID());
+            putAscii( controls[i].isCritical() ? " true" : " false");
+            byte[] value = controls[i].getValue();
+            if( value != null && value.length > 0) {
+                putAscii( ":: ");
+                putBase64( value);
+            }
+            newLine();
+        }
+        return;
+    }
+
+    /**
+     * Writes a field with a String value, base64 encoded if it is not
+     * safe per {@link Base64#isLDIFSafe(String)}.
+     */
+    private void writeString( String name, String value)
+                throws IOException
+    {
+        putAscii( name);
+        int len = value.length();
+        boolean safe = true;
+        if( len > 0) {
+            char c = value.charAt( 0);
+            safe = c != ' ' && c != ':' && c != '<' &&
+                   value.charAt( len - 1) != ' ';
+            for( int i = 0; safe && i < len; i++) {
+                c = value.charAt( i);
+                safe = c != 0 && c != '\n' && c != '\r' && c < 0x80;
+            }
+        }
+        if( safe) {
+            putAscii( ": ");
+            putAscii( value);
+        } else {
+            putAscii( ":: ");
+            putBase64( bytes( value));
+        }
+        newLine();
+        return;
+    }
+
+    /**
+     * Writes an attribute value line for each value.  A value is written
+     * as is if it only holds printable ASCII characters and is safe per
+     * {@link Base64#isLDIFSafe(byte[])}, base64 encoded otherwise.
+     */
+    private void writeValues( String name, byte[][] values)
+                throws IOException
+    {
+        for( int i = 0; i < values.length; i++) {
+            putString( name);
+            writeValue( values[i]);
+        }
+        return;
+    }
+
+    /**
+     * Writes the value of an attribute value line, after the name.  A value
+     * that fits in the buffer is checked while it is copied, and taken back
+     * to be base64 encoded if it is not printable.
+     */
+    private void writeValue( byte[] value)
+                throws IOException
+    {
+        int len = value.length;
+        boolean printable;
+        if( len > 0 && (value[0] == ' ' || value[0] == ':' ||
+                        value[0] == '<' || value[len - 1] == ' ')) {
+            printable = false;
+        } else {
+            // room for the value and the folds it may need
+            int room = 2 + len + ((this.column + 2 + len) / (LINE_WIDTH - 1)
+                                  + 1) * (this.lineSeparator.length + 1);
+            if( room <= this.buffer.length) {
+                ensure( room);
+                printable = putPrintable( value);
+            } else if( isPrintable( value)) {
+                putAscii( ": ");
+                put( value, 0, len);
+                printable = true;
+            } else {
+                printable = false;
+            }
+        }
+        if( ! printable) {
+            putAscii( ":: ");
+            putBase64( value);
+        }
+        newLine();
+        return;
+    }
+
+    /**
+     * Writes ": " and a value to the current line, folding it, if the
+     * value only holds printable characters.  Otherwise nothing is written.
+     * The buffer must have room for the value and its folds.
+     */
+    private boolean putPrintable( byte[] value)
+                throws IOException
+    {
+        int startPos = this.pos;
+        int startColumn = this.column;
+        putAscii( ": ");
+        int off = 0;
+        int len = value.length;
+        while( off < len) {
+            if( this.column == LINE_WIDTH) {
+                fold();
+            }
+            int n = Math.min( len - off, LINE_WIDTH - this.column);
+            int copied = Base64.copyPrintable( value, off, n, this.buffer,
+                                               this.pos);
+            this.pos += copied;
+            this.column += copied;
+            if( copied < n) {
+                this.pos = startPos;
+                this.column = startColumn;
+                return false;
+            }
+            off += n;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a value may be written as is: it only holds
+     * printable ASCII characters, does not start with a space, ':' or '<',
+     * and does not end with a space.
+     */
+    private static boolean isPrintable( byte[] value)
+    {
+        int len = value.length;
+        if( len == 0) {
+            return true;
+        }
+        byte b = value[0];
+        if( b == ' ' || b == ':' || b == '<' || value[len - 1] == ' ') {
+            return false;
+        }
+        for( int i = 0; i < len; i++) {
+            b = value[i];
+            if( b < 0x20 || b > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes room for a number of bytes, not more than a line, in the
+     * buffer.
+     */
+    private void ensure( int length)
+                throws IOException
+    {
+        if( this.pos + length > this.buffer.length) {
+            flushBuffer();
+        }
+        return;
+    }
+
+    private void flushBuffer()
+                throws IOException
+    {
+        if( this.pos > 0) {
+            this.out.write( this.buffer, 0, this.pos);
+            this.pos = 0;
+        }
+        return;
+    }
+
+    /**
+     * Ends the current line.
+     */
+    private void newLine()
+                throws IOException
+    {
+        byte[] sep = this.lineSeparator;
+        ensure( sep.length);
+        for( int i = 0; i < sep.length; i++) {
+            this.buffer[this.pos++] = sep[i];
+        }
+        this.column = 0;
+        return;
+    }
+
+    /**
+     * Folds the current line, it is continued on a line starting with
+     * a space.
+     */
+    private void fold()
+                throws IOException
+    {
+        newLine();
+        ensure( 1);
+        this.buffer[this.pos++] = ' ';
+        this.column = 1;
+        return;
+    }
+
+    /**
+     * Writes bytes to the current line, folding it at 76 bytes.
+     */
+    private void put( byte[] bytes, int off, int len)
+                throws IOException
+    {
+        while( len > 0) {
+            if( this.column == LINE_WIDTH) {
+                fold();
+            }
+            int n = Math.min( len, LINE_WIDTH - this.column);
+            ensure( n);
+            System.arraycopy( bytes, off, this.buffer, this.pos, n);
+            this.pos += n;
+            this.column += n;
+            off += n;
+            len -= n;
+        }
+        return;
+    }
+
+    /**
+     * Writes bytes with no folding, as for comments.
+     */
+    private void write( byte[] bytes, int off, int len)
+                throws IOException
+    {
+        if( this.pos + len > this.buffer.length) {
+            flushBuffer();
+            if( len > this.buffer.length) {
+                this.out.write( bytes, off, len);
+                return;
+            }
+        }
+        System.arraycopy( bytes, off, this.buffer, this.pos, len);
+        this.pos += len;
+        return;
+    }
+
+    /**
+     * Writes a String known to hold ASCII characters only.
+     */
+    private void putAscii( String s)
+                throws IOException
+    {
+        int len = s.length();
+        for( int i = 0; i < len; i++) {
+            if( this.column == LINE_WIDTH) {
+                fold();
+            }
+            ensure( 1);
+            this.buffer[this.pos++] = (byte)s.charAt( i);
+            this.column++;
+        }
+        return;
+    }
+
+    /**
+     * Writes a String, UTF-8 encoded.
+     */
+    private void putString( String s)
+                throws IOException
+    {
+        int len = s.length();
+        for( int i = 0; i < len; i++) {
+            if( s.charAt( i) >= 0x80) {
+                byte[] b = bytes( s);
+                put( b, 0, b.length);
+                return;
+            }
+        }
+        putAscii( s);
+        return;
+    }
+
+    /**
+     * Base64 encodes bytes into the current line.  The groups of
+     * characters that fit on the line are encoded straight into the
+     * buffer, a group split by a fold goes through a small array.
+     */
+    private void putBase64( byte[] bytes)
+                throws IOException
+    {
+        int off = 0;
+        int len = bytes.length;
+        while( off < len) {
+            int n = Math.min( (LINE_WIDTH - this.column) / 4 * 3, len - off);
+            if( n > 0) {
+                int chars = Base64.encodedLength( n);
+                ensure( chars);
+                this.pos += Base64.encode( bytes, off, n, this.buffer,
+                                           this.pos);
+                this.column += chars;
+            } else {
+                n = Math.min( 3, len - off);
+                byte[] group = new byte[ 4 ];
+                Base64.encode( bytes, off, n, group, 0);
+                put( group, 0, 4);
+            }
+            off += n;
+        }
+        return;
+    }
+
+    private static byte[] bytes( String s)
+    {
+        try {
+            return s.getBytes( "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+}
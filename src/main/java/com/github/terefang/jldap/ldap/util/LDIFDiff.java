@@ -0,0 +1,387 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import com.github.terefang.jldap.ldap.LDAPAddRequest;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPAttributeSet;
+import com.github.terefang.jldap.ldap.LDAPDeleteRequest;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPModification;
+import com.github.terefang.jldap.ldap.LDAPModifyRequest;
+import com.github.terefang.jldap.ldap.LDAPSearchResult;
+
+/**
+ * Computes the change records turning one set of entries into another,
+ * for example two LDIF dumps of a directory taken at different times.
+ *
+ * <p>The entries of both sources are merged in DN order, so only a few
+ * entries are held in memory at a time.  Unless the sources are declared
+ * sorted, each one is first sorted with an external merge sort: entries
+ * are sorted in memory up to a limit, written as sorted runs to temporary
+ * files, and the runs are merged.  Dumps much larger than the heap can so
+ * be compared.</p>
+ *
+ * <p>Entries are ordered by the canonical RDNs of their normalized DN
+ * (see {@link NormalizedDN}) from the root down, so that an entry comes
+ * before the entries below it.  The change records are written in an
+ * order in which they can be applied to a directory: the adds and
+ * modifies first, parents before children, then the deletes, children
+ * before parents.</p>
+ *
+ * <p>Modifications are computed at the value level, values being compared
+ * as bytes:</p>
+ * <ul>
+ *   <li>an attribute only in the old entry is deleted;</li>
+ *   <li>an attribute only in the new entry is added;</li>
+ *   <li>an attribute none of whose values is kept is replaced;</li>
+ *   <li>otherwise the values removed are deleted and the values added
+ *       are added.</li>
+ * </ul>
+ * <p>An entry whose DN changed is deleted and added.</p>
+ *
+ * <p>Sample code:</p>
+ * <pre>
+ *     LDIFWriter writer = new LDIFWriter( out, "1", true);
+ *     LDIFDiff diff = new LDIFDiff( writer);
+ *     diff.diff( new LDIFByteReader( oldDump), new LDIFByteReader( newDump));
+ *     writer.finish();
+ * </pre>
+ *
+ * <p>An LDIFDiff is not thread safe.</p>
+ *
+ * @see LDIFWriter
+ */
+public class LDIFDiff
+{
+    private LDAPWriter  writer;
+    private boolean     sorted;
+    private long        maxMemory = 64L << 20;
+    private File        tempDirectory;
+
+    private long        adds;
+    private long        deletes;
+    private long        modifies;
+
+    /**
+     * Constructs a diff writing its change records to a writer, typically
+     * an {@link LDIFWriter} of change records.
+     *
+     * @param writer  The writer of the change records.
+     */
+    public LDIFDiff( LDAPWriter writer)
+    {
+        this.writer = writer;
+        return;
+    }
+
+    /**
+     * Declares whether the sources are sorted.  The default is false, the
+     * sources are sorted before they are compared.
+     *
+     * <p>Sorted sources must be in the order of the DNs described above,
+     * with no DN given twice.  A source found out of order fails the diff,
+     * no change record is written for it past the first entry out of
+     * order.</p>
+     *
+     * @param sorted  true if the sources are sorted.
+     */
+    public void setSorted( boolean sorted)
+    {
+        this.sorted = sorted;
+        return;
+    }
+
+    /**
+     * Sets the estimated size of the entries sorted in memory before they
+     * are written to a temporary file.  The default is 64 MB.  Each source
+     * and the deletes are sorted with this limit.
+     *
+     * @param maxMemory  The size in bytes.
+     */
+    public void setMaxMemory( long maxMemory)
+    {
+        if( maxMemory < 1) {
+            throw new IllegalArgumentException(
+                    "The memory size must be at least 1");
+        }
+        this.maxMemory = maxMemory;
+        return;
+    }
+
+    /**
+     * Sets the directory of the temporary files of the sorts.
+     *
+     * @param directory  The directory, or null for the default temporary
+     *                   directory.
+     */
+    public void setTempDirectory( File directory)
+    {
+        this.tempDirectory = directory;
+        return;
+    }
+
+    /**
+     * Writes the change records turning the entries of one source into
+     * those of another.  The writer is not finished.
+     *
+     * @param from  The reader of the old entries.
+     * @param to    The reader of the new entries.
+     *
+     * @return The number of change records written.
+     *
+     * @exception IOException if reading, writing or sorting fails.
+     * @exception LDAPException if a source is not valid, holds change
+     *            records or a DN twice, or is not sorted when declared
+     *            sorted.
+     */
+    public long diff( LDAPReader from, LDAPReader to)
+                throws IOException, LDAPException
+    {
+        this.adds = 0;
+        this.deletes = 0;
+        this.modifies = 0;
+        ArrayList sorters = new ArrayList();
+        try {
+            EntrySorter.Source older = open( from, sorters);
+            EntrySorter.Source newer = open( to, sorters);
+            // deletes are written last, children first
+            EntrySorter removed = new EntrySorter( true, this.maxMemory,
+                                                   this.tempDirectory);
+            sorters.add( removed);
+
+            EntrySorter.Item a = older.next();
+            EntrySorter.Item b = newer.next();
+            while( a != null || b != null) {
+                int c = a == null ? 1 : b == null ? -1
+                                              : a.key.compareTo( b.key);
+                if( c < 0) {
+                    removed.add( new LDAPEntry( a.entry.getDN()));
+                    a = older.next();
+                } else if( c > 0) {
+                    this.writer.writeMessage(
+                                    new LDAPAddRequest( b.entry, null));
+                    this.adds++;
+                    b = newer.next();
+                } else {
+                    LDAPModification[] mods = compare( a.entry, b.entry);
+                    if( mods.length != 0) {
+                        this.writer.writeMessage( new LDAPModifyRequest(
+                                    b.entry.getDN(), mods, null));
+                        this.modifies++;
+                    }
+                    a = older.next();
+                    b = newer.next();
+                }
+            }
+
+            EntrySorter.Source deleted = removed.sort();
+            EntrySorter.Item d;
+            while( (d = deleted.next()) != null) {
+                this.writer.writeMessage(
+                                new LDAPDeleteRequest( d.entry.getDN(), null));
+                this.deletes++;
+            }
+        } finally {
+            for( int i = 0; i < sorters.size(); i++) {
+                ((EntrySorter)sorters.get( i)).close();
+            }
+        }
+        return this.adds + this.deletes + this.modifies;
+    }
+
+    /**
+     * Returns the number of add records written by the last diff.
+     *
+     * @return The number of adds.
+     */
+    public long getAddCount()
+    {
+        return this.adds;
+    }
+
+    /**
+     * Returns the number of delete records written by the last diff.
+     *
+     * @return The number of deletes.
+     */
+    public long getDeleteCount()
+    {
+        return this.deletes;
+    }
+
+    /**
+     * Returns the number of modify records written by the last diff.
+     *
+     * @return The number of modifies.
+     */
+    public long getModifyCount()
+    {
+        return this.modifies;
+    }
+
+    /**
+     * Returns the entries of a source in DN order, sorting them unless the
+     * source is declared sorted.  The order is checked as they are read.
+     */
+    private EntrySorter.Source open( final LDAPReader reader,
+                                     ArrayList sorters)
+                throws IOException, LDAPException
+    {
+        EntrySorter.Source source = new EntrySorter.Source()
+        {
+            public EntrySorter.Item next()
+                    throws IOException, LDAPException
+            {
+                LDAPEntry entry = readEntry( reader);
+                return entry == null ? null
+                        : new EntrySorter.Item(
+                                EntrySorter.key( entry.getDN()), entry);
+            }
+        };
+        if( ! this.sorted) {
+            EntrySorter sorter = new EntrySorter( false, this.maxMemory,
+                                                  this.tempDirectory);
+            sorters.add( sorter);
+            LDAPEntry entry;
+            while( (entry = readEntry( reader)) != null) {
+                sorter.add( entry);
+            }
+            source = sorter.sort();
+        }
+        final EntrySorter.Source items = source;
+        return new EntrySorter.Source()
+        {
+            private EntrySorter.Item previous;
+
+            public EntrySorter.Item next()
+                    throws IOException, LDAPException
+            {
+                EntrySorter.Item item = items.next();
+                if( item != null && this.previous != null &&
+                    ! EntrySorter.isAfter( item, this.previous)) {
+                    throw new LDAPLocalException( "LDIFDiff: " +
+                            ( item.key.equals( this.previous.key)
+                              ? "duplicate DN '" : "DN out of order '") +
+                            item.entry.getDN() + "'",
+                            LDAPException.LOCAL_ERROR);
+                }
+                this.previous = item;
+                return item;
+            }
+        };
+    }
+
+    private static LDAPEntry readEntry( LDAPReader reader)
+                throws IOException, LDAPException
+    {
+        LDAPMessage message = reader.readMessage();
+        if( message == null) {
+            return null;
+        }
+        if( ! (message instanceof LDAPSearchResult)) {
+            throw new LDAPLocalException( "LDIFDiff: change record found " +
+                    "where an entry was expected", LDAPException.LOCAL_ERROR);
+        }
+        return ((LDAPSearchResult)message).getEntry();
+    }
+
+    /**
+     * Returns the modifications turning an entry into another one.
+     */
+    private static LDAPModification[] compare( LDAPEntry older,
+                                               LDAPEntry newer)
+    {
+        ArrayList mods = new ArrayList();
+        Iterator i = older.getAttributeSet().iterator();
+        while( i.hasNext()) {
+            LDAPAttribute oa = (LDAPAttribute)i.next();
+            LDAPAttribute na = newer.getAttribute( oa.getName());
+            if( na == null) {
+                mods.add( new LDAPModification( LDAPModification.DELETE,
+                                        new LDAPAttribute( oa.getName())));
+            } else {
+                compare( oa, na, mods);
+            }
+        }
+        LDAPAttributeSet attrs = newer.getAttributeSet();
+        i = attrs.iterator();
+        while( i.hasNext()) {
+            LDAPAttribute na = (LDAPAttribute)i.next();
+            if( older.getAttribute( na.getName()) == null) {
+                mods.add( new LDAPModification( LDAPModification.ADD, na));
+            }
+        }
+        return (LDAPModification[])mods.toArray(
+                                        new LDAPModification[ mods.size() ]);
+    }
+
+    /**
+     * Adds the modifications turning the values of an attribute into
+     * those of another one.
+     */
+    private static void compare( LDAPAttribute older, LDAPAttribute newer,
+                                 ArrayList mods)
+    {
+        byte[][] ov = older.getByteValueArray();
+        byte[][] nv = newer.getByteValueArray();
+        HashSet oldValues = new HashSet();
+        for( int i = 0; i < ov.length; i++) {
+            oldValues.add( ByteBuffer.wrap( ov[i]));
+        }
+        HashSet newValues = new HashSet();
+        for( int i = 0; i < nv.length; i++) {
+            newValues.add( ByteBuffer.wrap( nv[i]));
+        }
+        LDAPAttribute removed = new LDAPAttribute( older.getName());
+        for( int i = 0; i < ov.length; i++) {
+            if( ! newValues.contains( ByteBuffer.wrap( ov[i]))) {
+                removed.addValue( ov[i]);
+            }
+        }
+        LDAPAttribute added = new LDAPAttribute( newer.getName());
+        for( int i = 0; i < nv.length; i++) {
+            if( ! oldValues.contains( ByteBuffer.wrap( nv[i]))) {
+                added.addValue( nv[i]);
+            }
+        }
+        if( removed.size() == 0 && added.size() == 0) {
+            return;
+        }
+        if( removed.size() == ov.length) {
+            // no value is kept
+            mods.add( new LDAPModification( LDAPModification.REPLACE, newer));
+            return;
+        }
+        if( removed.size() != 0) {
+            mods.add( new LDAPModification( LDAPModification.DELETE,
+                                            removed));
+        }
+        if( added.size() != 0) {
+            mods.add( new LDAPModification( LDAPModification.ADD, added));
+        }
+        return;
+    }
+}
@@ -0,0 +1,395 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import com.github.terefang.jldap.ldap.LDAPConnection;
+import com.github.terefang.jldap.ldap.LDAPControl;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPMessageQueue;
+import com.github.terefang.jldap.ldap.LDAPResponse;
+import com.github.terefang.jldap.ldap.LDAPSearchConstraints;
+import com.github.terefang.jldap.ldap.LDAPSearchRequest;
+import com.github.terefang.jldap.ldap.controls.LDAPPagedResultsControl;
+import com.github.terefang.jldap.ldap.controls.LDAPPagedResultsResponse;
+
+/**
+ * Exports the entries of one or more subtrees, or branches, to an
+ * {@link LDAPWriter}, typically an {@link LDIFByteWriter}.
+ *
+ * <p>The branches are searched concurrently, up to a number at a time,
+ * on one or more connections.  All the searches share one response queue
+ * and the results are written as they arrive, so the entries of different
+ * branches are interleaved in the output.  With an LDIFByteWriter the
+ * entries are written straight from the decoded responses, no LDAPEntry
+ * or LDAPAttribute is created.</p>
+ *
+ * <p>If a page size is set, each branch is searched with the simple paged
+ * results control, page after page on the same connection, which keeps
+ * the server from holding a whole large subtree for a single search.</p>
+ *
+ * <p>Sample code:</p>
+ * <pre>
+ *     LDIFByteWriter writer = new LDIFByteWriter( out, "1", false, true);
+ *     LDIFExporter exporter = new LDIFExporter( connections);
+ *     exporter.setPageSize( 1000);
+ *     exporter.export( new String[] { "ou=sales,o=example",
+ *                                     "ou=staff,o=example" },
+ *                      LDAPConnection.SCOPE_SUB, null, null, writer);
+ *     writer.finish();
+ * </pre>
+ *
+ * <p>Search result references are counted but not written.  An
+ * LDIFExporter is not thread safe.</p>
+ *
+ * @see LDIFLoader
+ */
+public class LDIFExporter
+{
+    private LDAPConnection[]      conns;
+    private int                   pageSize = 0;
+    private int                   maxSearches = 4;
+    private LDAPSearchConstraints constraints;
+
+    private LDAPMessageQueue      queue;
+    private HashMap               active = new HashMap(); // id to Branch
+
+    private long                  entries;
+    private long                  references;
+    private long                  pages;
+    private long                  startTime;
+    private long                  endTime;
+
+    /**
+     * Constructs an exporter searching on a connection.
+     *
+     * @param conn  The connection, bound with enough rights.
+     */
+    public LDIFExporter( LDAPConnection conn)
+    {
+        this( new LDAPConnection[] { conn });
+        return;
+    }
+
+    /**
+     * Constructs an exporter searching on several connections, typically
+     * to the same server or to replicas holding the same data.  Branches
+     * are given to the connections in turn.
+     *
+     * @param conns  The connections, bound with enough rights.
+     *
+     * @throws IllegalArgumentException if no connection is given.
+     */
+    public LDIFExporter( LDAPConnection[] conns)
+    {
+        if( conns == null || conns.length == 0) {
+            throw new IllegalArgumentException(
+                    "At least one connection is required");
+        }
+        for( int i = 0; i < conns.length; i++) {
+            if( conns[i] == null) {
+                throw new IllegalArgumentException(
+                        "At least one connection is required");
+            }
+        }
+        this.conns = (LDAPConnection[])conns.clone();
+        return;
+    }
+
+    /**
+     * Sets the page size of the searches.  The default is 0, the branches
+     * are searched with no paging.
+     *
+     * @param pageSize  The number of entries of a page, or 0 not to page.
+     */
+    public void setPageSize( int pageSize)
+    {
+        if( pageSize < 0) {
+            throw new IllegalArgumentException(
+                    "The page size cannot be negative");
+        }
+        this.pageSize = pageSize;
+        return;
+    }
+
+    /**
+     * Sets the number of branches searched at a time.  The default is 4.
+     *
+     * @param maxSearches  The number of searches, at least 1.
+     */
+    public void setMaxSearches( int maxSearches)
+    {
+        if( maxSearches < 1) {
+            throw new IllegalArgumentException(
+                    "At least one search must be outstanding");
+        }
+        this.maxSearches = maxSearches;
+        return;
+    }
+
+    /**
+     * Sets the constraints of the searches: dereferencing, size and time
+     * limits and controls.  The default search constraints of the
+     * connection of each branch are used if none are set, except for the
+     * size limit, which is then 0: the whole branch is exported.
+     *
+     * @param constraints  The constraints, or null for the default ones.
+     */
+    public void setConstraints( LDAPSearchConstraints constraints)
+    {
+        this.constraints = constraints;
+        return;
+    }
+
+    /**
+     * Exports the entries of branches.
+     *
+     * @param bases   The base DNs of the branches.
+     * @param scope   The scope of the searches, such as
+     *                LDAPConnection.SCOPE_SUB.
+     * @param filter  The search filter, or null for all entries.
+     * @param attrs   The attributes to export, or null for all user
+     *                attributes.
+     * @param writer  The writer of the entries.
+     *
+     * @return The number of entries exported.
+     *
+     * @exception IOException if writing an entry fails.
+     * @exception LDAPException if a search fails.  The searches still
+     *            outstanding are abandoned.
+     */
+    public long export( String[] bases, int scope, String filter,
+                        String[] attrs, LDAPWriter writer)
+                throws IOException, LDAPException
+    {
+        if( filter == null) {
+            filter = "objectclass=*";
+        }
+        this.queue = null;
+        this.active.clear();
+        this.entries = 0;
+        this.references = 0;
+        this.pages = 0;
+        this.startTime = System.currentTimeMillis();
+        this.endTime = 0;
+        boolean done = false;
+        try {
+            int next = 0;
+            while( next < bases.length || ! this.active.isEmpty()) {
+                while( next < bases.length &&
+                       this.active.size() < this.maxSearches) {
+                    Branch branch = new Branch( bases[next], scope, filter,
+                            attrs, this.conns[next % this.conns.length]);
+                    next++;
+                    search( branch, null);
+                }
+                LDAPMessage message = this.queue.getResponse();
+                if( message == null) {
+                    // not reached, there are outstanding searches
+                    throw new LDAPLocalException( "No outstanding search",
+                                                  LDAPException.LOCAL_ERROR);
+                }
+                switch( message.getType()) {
+                    case LDAPMessage.SEARCH_RESPONSE:
+                        writer.writeMessage( message);
+                        this.entries++;
+                        break;
+                    case LDAPMessage.SEARCH_RESULT_REFERENCE:
+                        this.references++;
+                        break;
+                    case LDAPMessage.SEARCH_RESULT:
+                        completed( (LDAPResponse)message);
+                        break;
+                    default:
+                        // intermediate responses
+                        break;
+                }
+            }
+            done = true;
+        } finally {
+            this.endTime = System.currentTimeMillis();
+            if( ! done) {
+                abandon();
+            }
+        }
+        return this.entries;
+    }
+
+    /**
+     * Returns the number of entries exported by the last export.
+     *
+     * @return The number of entries.
+     */
+    public long getEntryCount()
+    {
+        return this.entries;
+    }
+
+    /**
+     * Returns the number of search result references received by the
+     * last export.
+     *
+     * @return The number of references.
+     */
+    public long getReferenceCount()
+    {
+        return this.references;
+    }
+
+    /**
+     * Returns the number of searches, pages included, done by the last
+     * export.
+     *
+     * @return The number of searches.
+     */
+    public long getSearchCount()
+    {
+        return this.pages;
+    }
+
+    /**
+     * Returns the number of entries exported per second by the last
+     * export, so far if it is not finished.
+     *
+     * @return The rate, 0 if no export was started.
+     */
+    public double getEntriesPerSecond()
+    {
+        if( this.startTime == 0) {
+            return 0;
+        }
+        long end = this.endTime != 0 ? this.endTime
+                                     : System.currentTimeMillis();
+        long millis = Math.max( end - this.startTime, 1);
+        return this.entries * 1000.0 / millis;
+    }
+
+    /**
+     * Sends the search of a branch, or of its next page.
+     */
+    private void search( Branch branch, byte[] cookie)
+                throws LDAPException
+    {
+        LDAPSearchConstraints cons = this.constraints != null
+                ? this.constraints : branch.conn.getSearchConstraints();
+        // the size limit of the connection defaults to 1000 entries
+        int sizeLimit = this.constraints != null ? cons.getMaxResults() : 0;
+        LDAPControl[] controls = cons.getControls();
+        if( this.pageSize > 0) {
+            LDAPControl paged = new LDAPPagedResultsControl(
+                                        this.pageSize, cookie, true);
+            if( controls == null) {
+                controls = new LDAPControl[] { paged };
+            } else {
+                LDAPControl[] all = new LDAPControl[ controls.length + 1 ];
+                System.arraycopy( controls, 0, all, 0, controls.length);
+                all[controls.length] = paged;
+                controls = all;
+            }
+        }
+        LDAPSearchRequest request = new LDAPSearchRequest( branch.base,
+                branch.scope, branch.filter, branch.attrs,
+                cons.getDereference(), sizeLimit,
+                cons.getServerTimeLimit(), false, controls);
+        this.queue = branch.conn.sendRequest( request, this.queue, cons);
+        this.active.put( new Integer( request.getMessageID()), branch);
+        this.pages++;
+        return;
+    }
+
+    /**
+     * Handles the end of the search of a branch, or of one of its pages.
+     */
+    private void completed( LDAPResponse response)
+                throws LDAPException
+    {
+        Branch branch = (Branch)this.active.remove(
+                                new Integer( response.getMessageID()));
+        if( branch == null) {
+            return;
+        }
+        if( response.getResultCode() != LDAPException.SUCCESS) {
+            throw new LDAPException( response.getErrorMessage(),
+                                     response.getResultCode(),
+                                     response.getErrorMessage(),
+                                     response.getMatchedDN());
+        }
+        if( this.pageSize == 0) {
+            return;
+        }
+        LDAPControl[] controls = response.getControls();
+        if( controls == null) {
+            return;
+        }
+        for( int i = 0; i < controls.length; i++) {
+            if( controls[i] instanceof LDAPPagedResultsResponse) {
+                byte[] cookie =
+                        ((LDAPPagedResultsResponse)controls[i]).getCookie();
+                if( cookie != null) {
+                    search( branch, cookie);
+                }
+                return;
+            }
+        }
+        return;
+    }
+
+    /**
+     * Abandons the outstanding searches after a failure.
+     */
+    private void abandon()
+    {
+        Iterator i = this.active.keySet().iterator();
+        while( i.hasNext()) {
+            Integer id = (Integer)i.next();
+            Branch branch = (Branch)this.active.get( id);
+            try {
+                branch.conn.abandon( id.intValue());
+            } catch( LDAPException e) {
+                // the connection failed, nothing to abandon
+            }
+        }
+        this.active.clear();
+        return;
+    }
+
+    /**
+     * A branch and the connection it is searched on.
+     */
+    private static final class Branch
+    {
+        final String base;
+        final int scope;
+        final String filter;
+        final String[] attrs;
+        final LDAPConnection conn;
+
+        Branch( String base, int scope, String filter, String[] attrs,
+                LDAPConnection conn)
+        {
+            this.base = base;
+            this.scope = scope;
+            this.filter = filter;
+            this.attrs = attrs;
+            this.conn = conn;
+            return;
+        }
+    }
+}
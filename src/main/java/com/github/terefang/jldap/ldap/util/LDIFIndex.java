@@ -0,0 +1,499 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPSearchResult;
+
+/**
+ * Finds the records of an LDIF file by DN, through an index file built
+ * by scanning the LDIF file once.
+ *
+ * <p>The index holds, for each record, a 64-bit hash of its normalized DN
+ * (see {@link NormalizedDN}), its offset and its length in the LDIF file,
+ * sorted by hash.  Both files are memory-mapped: a lookup is a binary
+ * search in the index, followed by the parsing of the matching record
+ * only, with an {@link LDIFByteReader}.  DNs are compared after reading
+ * the record, so a hash collision cannot return the wrong record.</p>
+ *
+ * <p>The index records the length and modification time of the LDIF file
+ * it was built from, an index that no longer matches its LDIF file is
+ * refused.  {@link #open(File, File)} builds the index when it is missing
+ * or out of date.</p>
+ *
+ * <p>Sample code:</p>
+ * <pre>
+ *     LDIFIndex index = LDIFIndex.open( ldif, new File( "dump.ldif.idx"));
+ *     LDAPEntry entry = index.getEntry( "cn=admin,o=example");
+ *     index.close();
+ * </pre>
+ *
+ * <p>Building an index holds 20 bytes per record in memory.  An LDIFIndex
+ * is not thread safe.</p>
+ *
+ * @see LDIFByteReader
+ */
+public class LDIFIndex
+{
+    private static final int MAGIC = 0x4A4C4458; // "JLDX"
+    private static final int VERSION = 1;
+
+    // Bytes of the header, and of each record, of the index file
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 20;
+
+    // Number of records of the index mapped at a time
+    private static final int SEGMENT_RECORDS = 1 << 26;
+
+    // Size of the windows of the LDIF file mapped to read records
+    private static final int MAP_WINDOW = 1 << 28;
+
+    private FileChannel         ldifChannel;
+    private FileChannel         indexChannel;
+    private long                ldifSize;
+    private long                count;
+    private MappedByteBuffer[]  segments;
+
+    private MappedByteBuffer    window;           // mapped part of the LDIF
+    private long                windowStart;
+
+    /**
+     * Opens the index of an LDIF file.
+     *
+     * @param ldif   The LDIF file.
+     * @param index  The index file, built by {@link #build(File, File)}.
+     *
+     * @exception IOException if a file cannot be read, the index file is
+     *            not valid, or it does not match the LDIF file.
+     */
+    public LDIFIndex( File ldif, File index)
+                throws IOException
+    {
+        this.ldifChannel = new FileInputStream( ldif).getChannel();
+        try {
+            this.indexChannel = new FileInputStream( index).getChannel();
+            try {
+                ByteBuffer header = this.indexChannel.map(
+                        FileChannel.MapMode.READ_ONLY, 0,
+                        Math.min( HEADER_SIZE, this.indexChannel.size()));
+                if( header.limit() < HEADER_SIZE ||
+                    header.getInt() != MAGIC) {
+                    throw new IOException( "Not an LDIF index: " + index);
+                }
+                int version = header.getInt();
+                if( version != VERSION) {
+                    throw new IOException(
+                            "Unsupported LDIF index version " + version);
+                }
+                this.ldifSize = this.ldifChannel.size();
+                if( header.getLong() != this.ldifSize ||
+                    header.getLong() != ldif.lastModified()) {
+                    throw new IOException( "The index " + index +
+                                           " is out of date");
+                }
+                this.count = header.getLong();
+                if( this.count < 0 || this.indexChannel.size() !=
+                        HEADER_SIZE + this.count * RECORD_SIZE) {
+                    throw new IOException( "LDIF index is damaged");
+                }
+                this.segments = new MappedByteBuffer[
+                        (int)((this.count + SEGMENT_RECORDS - 1) /
+                              SEGMENT_RECORDS) ];
+            } catch( IOException e) {
+                this.indexChannel.close();
+                throw e;
+            }
+        } catch( IOException e) {
+            this.ldifChannel.close();
+            throw e;
+        }
+        return;
+    }
+
+    /**
+     * Opens the index of an LDIF file, building it first if it does not
+     * exist or is out of date.
+     *
+     * @param ldif   The LDIF file.
+     * @param index  The index file.
+     *
+     * @return The index.
+     *
+     * @exception IOException if a file cannot be read or written.
+     * @exception LDAPException if the LDIF file is not valid.
+     */
+    public static LDIFIndex open( File ldif, File index)
+                throws IOException, LDAPException
+    {
+        if( index.exists()) {
+            try {
+                return new LDIFIndex( ldif, index);
+            } catch( IOException e) {
+                // out of date or damaged, built again
+            }
+        }
+        build( ldif, index);
+        return new LDIFIndex( ldif, index);
+    }
+
+    /**
+     * Builds the index of an LDIF file.  The index is written to a
+     * temporary file in the same directory, which then replaces the index
+     * file.
+     *
+     * @param ldif   The LDIF file, content or change records.
+     * @param index  The index file.
+     *
+     * @return The number of records indexed.
+     *
+     * @exception IOException if a file cannot be read or written.
+     * @exception LDAPException if the LDIF file is not valid, or a DN is
+     *            not valid.
+     */
+    public static long build( File ldif, File index)
+                throws IOException, LDAPException
+    {
+        long modified = ldif.lastModified();
+        long size = ldif.length();
+        long[] hashes = new long[1024];
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int n = 0;
+
+        LDIFByteReader reader = new LDIFByteReader( ldif);
+        try {
+            String dn;
+            while( (dn = reader.readDN()) != null) {
+                if( n == hashes.length) {
+                    long[] h = new long[ n * 2 ];
+                    long[] o = new long[ n * 2 ];
+                    int[] l = new int[ n * 2 ];
+                    System.arraycopy( hashes, 0, h, 0, n);
+                    System.arraycopy( offsets, 0, o, 0, n);
+                    System.arraycopy( lengths, 0, l, 0, n);
+                    hashes = h;
+                    offsets = o;
+                    lengths = l;
+                }
+                if( n > 0) {
+                    // up to the scan of this record
+                    lengths[n - 1] =
+                            (int)(reader.getScanOffset() - offsets[n - 1]);
+                }
+                try {
+                    hashes[n] = hash( NormalizedDN.valueOf( dn));
+                } catch( IllegalArgumentException e) {
+                    throw new LDAPLocalException( "LDIFIndex: invalid DN '" +
+                            dn + "' (on line " + reader.getLineNumber() +
+                            ")", LDAPException.INVALID_DN_SYNTAX);
+                }
+                offsets[n] = reader.getRecordOffset();
+                n++;
+            }
+        } finally {
+            reader.close();
+        }
+        if( n > 0) {
+            lengths[n - 1] = (int)(size - offsets[n - 1]);
+        }
+        sort( hashes, offsets, lengths, 0, n);
+
+        File dir = index.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile( "." + index.getName() + "-", ".tmp",
+                                        dir);
+        try {
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream( tmp), 65536));
+            try {
+                dos.writeInt( MAGIC);
+                dos.writeInt( VERSION);
+                dos.writeLong( size);
+                dos.writeLong( modified);
+                dos.writeLong( n);
+                for( int i = 0; i < n; i++) {
+                    dos.writeLong( hashes[i]);
+                    dos.writeLong( offsets[i]);
+                    dos.writeInt( lengths[i]);
+                }
+            } finally {
+                dos.close();
+            }
+            try {
+                Files.move( tmp.toPath(), index.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+            } catch( AtomicMoveNotSupportedException e) {
+                Files.move( tmp.toPath(), index.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of records of the LDIF file.
+     *
+     * @return The number of records.
+     */
+    public long size()
+    {
+        return this.count;
+    }
+
+    /**
+     * Reads the entry with the specified DN.
+     *
+     * @param dn  The DN of the entry, compared as a {@link NormalizedDN}.
+     *
+     * @return The entry, or null if the LDIF file has no record with
+     *         that DN.
+     *
+     * @exception IOException if reading a file fails.
+     * @exception LDAPException if the record is not valid or is a change
+     *            record.
+     * @exception IllegalArgumentException if the DN is not valid.
+     */
+    public LDAPEntry getEntry( String dn)
+                throws IOException, LDAPException
+    {
+        LDAPMessage message = getMessage( dn);
+        if( message == null) {
+            return null;
+        }
+        if( ! (message instanceof LDAPSearchResult)) {
+            throw new LDAPLocalException( "LDIFIndex: change record found " +
+                    "where an entry was expected", LDAPException.LOCAL_ERROR);
+        }
+        return ((LDAPSearchResult)message).getEntry();
+    }
+
+    /**
+     * Reads the first record with the specified DN, in the order of the
+     * LDIF file.  A content record is returned as an
+     * {@link LDAPSearchResult}, a change record as a request, as by
+     * {@link LDIFByteReader#readMessage()}.
+     *
+     * @param dn  The DN of the record, compared as a {@link NormalizedDN}.
+     *
+     * @return The record, or null if the LDIF file has no record with
+     *         that DN.
+     *
+     * @exception IOException if reading a file fails.
+     * @exception LDAPException if the record is not valid.
+     * @exception IllegalArgumentException if the DN is not valid.
+     */
+    public LDAPMessage getMessage( String dn)
+                throws IOException, LDAPException
+    {
+        NormalizedDN ndn = NormalizedDN.valueOf( dn);
+        long hash = hash( ndn);
+        // the first record with the hash
+        long low = 0;
+        long high = this.count;
+        while( low < high) {
+            long mid = (low + high) >>> 1;
+            if( hashAt( mid) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for( long i = low; i < this.count && hashAt( i) == hash; i++) {
+            ByteBuffer segment = segment( i);
+            int p = (int)(i % SEGMENT_RECORDS) * RECORD_SIZE;
+            long offset = segment.getLong( p + 8);
+            int length = segment.getInt( p + 16);
+            ByteBuffer record = record( offset, length);
+            String found = new LDIFByteReader( record, 0, offset).readDN();
+            if( found != null && ndn.equals( NormalizedDN.valueOf( found))) {
+                return new LDIFByteReader( record, 0, offset).readMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the files.  Mapped buffers are released when they are garbage
+     * collected.
+     *
+     * @exception IOException if closing a file fails.
+     */
+    public void close()
+                throws IOException
+    {
+        try {
+            this.indexChannel.close();
+        } finally {
+            this.ldifChannel.close();
+        }
+        return;
+    }
+
+    private long hashAt( long i)
+                throws IOException
+    {
+        return segment( i).getLong( (int)(i % SEGMENT_RECORDS) * RECORD_SIZE);
+    }
+
+    /**
+     * Returns the mapped segment of the index holding record i.
+     */
+    private ByteBuffer segment( long i)
+                throws IOException
+    {
+        int s = (int)(i / SEGMENT_RECORDS);
+        if( this.segments[s] == null) {
+            long first = (long)s * SEGMENT_RECORDS;
+            long records = Math.min( SEGMENT_RECORDS, this.count - first);
+            this.segments[s] = this.indexChannel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE + first * RECORD_SIZE, records * RECORD_SIZE);
+        }
+        return this.segments[s];
+    }
+
+    /**
+     * Returns the bytes of a record of the LDIF file, mapping a window of
+     * the file starting at the record if it is not in the current window.
+     */
+    private ByteBuffer record( long offset, int length)
+                throws IOException
+    {
+        if( offset < 0 || length < 0 || offset + length > this.ldifSize) {
+            throw new IOException( "LDIF index is damaged");
+        }
+        if( this.window == null || offset < this.windowStart ||
+            offset + length > this.windowStart + this.window.capacity()) {
+            long size = Math.min( Math.max( MAP_WINDOW, length),
+                                  this.ldifSize - offset);
+            this.window = this.ldifChannel.map( FileChannel.MapMode.READ_ONLY,
+                                                offset, size);
+            this.windowStart = offset;
+        }
+        ByteBuffer record = this.window.duplicate();
+        int start = (int)(offset - this.windowStart);
+        record.limit( start + length);
+        record.position( start);
+        return record;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the canonical form of a DN.
+     */
+    private static long hash( NormalizedDN dn)
+    {
+        String canonical = dn.getCanonical();
+        long h = 0xcbf29ce484222325L;
+        for( int i = 0, len = canonical.length(); i < len; i++) {
+            char c = canonical.charAt( i);
+            h = (h ^ (c & 0xff)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Sorts the records from <code>from</code> to <code>to</code> by hash,
+     * then offset.
+     */
+    private static void sort( long[] hashes, long[] offsets, int[] lengths,
+                              int from, int to)
+    {
+        while( to - from > 16) {
+            int mid = (from + to) >>> 1;
+            // median of three as the pivot
+            if( less( hashes, offsets, mid, from)) {
+                swap( hashes, offsets, lengths, mid, from);
+            }
+            if( less( hashes, offsets, to - 1, from)) {
+                swap( hashes, offsets, lengths, to - 1, from);
+            }
+            if( less( hashes, offsets, to - 1, mid)) {
+                swap( hashes, offsets, lengths, to - 1, mid);
+            }
+            long ph = hashes[mid];
+            long po = offsets[mid];
+            int i = from;
+            int j = to - 1;
+            while( i <= j) {
+                while( hashes[i] < ph || (hashes[i] == ph && offsets[i] < po)) {
+                    i++;
+                }
+                while( hashes[j] > ph || (hashes[j] == ph && offsets[j] > po)) {
+                    j--;
+                }
+                if( i <= j) {
+                    swap( hashes, offsets, lengths, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller part, loop on the larger one
+            if( j + 1 - from < to - i) {
+                sort( hashes, offsets, lengths, from, j + 1);
+                from = i;
+            } else {
+                sort( hashes, offsets, lengths, i, to);
+                to = j + 1;
+            }
+        }
+        for( int i = from + 1; i < to; i++) {
+            for( int j = i; j > from && less( hashes, offsets, j, j - 1); j--) {
+                swap( hashes, offsets, lengths, j, j - 1);
+            }
+        }
+        return;
+    }
+
+    private static boolean less( long[] hashes, long[] offsets, int a, int b)
+    {
+        return hashes[a] < hashes[b] ||
+               (hashes[a] == hashes[b] && offsets[a] < offsets[b]);
+    }
+
+    private static void swap( long[] hashes, long[] offsets, int[] lengths,
+                              int a, int b)
+    {
+        long h = hashes[a];
+        hashes[a] = hashes[b];
+        hashes[b] = h;
+        long o = offsets[a];
+        offsets[a] = offsets[b];
+        offsets[b] = o;
+        int l = lengths[a];
+        lengths[a] = lengths[b];
+        lengths[b] = l;
+        return;
+    }
+}
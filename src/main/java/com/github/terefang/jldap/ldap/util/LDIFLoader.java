@@ -0,0 +1,561 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import com.github.terefang.jldap.ldap.LDAPAddRequest;
+import com.github.terefang.jldap.ldap.LDAPConnection;
+import com.github.terefang.jldap.ldap.LDAPDeleteRequest;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPModifyDNRequest;
+import com.github.terefang.jldap.ldap.LDAPModifyRequest;
+import com.github.terefang.jldap.ldap.LDAPResponse;
+import com.github.terefang.jldap.ldap.LDAPResponseQueue;
+import com.github.terefang.jldap.ldap.LDAPSearchResult;
+
+/**
+ * Applies the records read from an LDIF file, or from any
+ * {@link LDAPReader}, to a directory, keeping many operations outstanding
+ * on one or more connections.
+ *
+ * <p>Rather than waiting for the result of each record before sending the
+ * next one, the loader sends records with
+ * {@link LDAPConnection#sendRequest(LDAPMessage,
+ * com.github.terefang.jldap.ldap.LDAPMessageQueue)} until a window of
+ * outstanding operations is full, spreading them over the connections, and
+ * reads the results from a single queue shared by all the connections.
+ * Content records are added as entries.</p>
+ *
+ * <p>A record is not sent while an outstanding operation applies to the
+ * same entry, to one of its superiors or to one of its subordinates, so an
+ * entry is added before its children, and changes to an entry are made in
+ * the order of the file.</p>
+ *
+ * <p>Records failing with a transient error (busy, unavailable, server down,
+ * timeout, connect error) are sent again after a delay, up to a number of
+ * times.  A record that cannot be sent on a connection is sent on another
+ * one, and goes through the same retries if it cannot be sent on any.
+ * Records that cannot be applied, and records that cannot be
+ * read, are written to an optional reject writer, each one preceded by
+ * a comment giving the error, so the reject file can be corrected and
+ * loaded again.</p>
+ *
+ * <p>Sample code:</p>
+ * <pre>
+ *     LDIFLoader loader = new LDIFLoader( connections, 64);
+ *     loader.setRejectWriter( new LDIFWriter( rejects, "1", true));
+ *     loader.load( new LDIFByteReader( file));
+ *     System.out.println( loader.getLoadedCount() + " records, "
+ *                         + loader.getRecordsPerSecond() + "/s");
+ * </pre>
+ *
+ * <p>An LDIFLoader is not thread safe.</p>
+ */
+public class LDIFLoader
+{
+    private LDAPConnection[]   connections;
+    private int                window;
+    private LDAPWriter         rejects;
+    private int                maxRetries = 3;
+    private long               retryDelay = 1000;
+
+    private LDAPResponseQueue  queue;
+    private int[]              load;          // outstanding per connection
+    private int                outstanding;
+    private HashMap            sent = new HashMap();  // message id to Pending
+    private ArrayList          active = new ArrayList(); // sent and waiting
+    private LinkedList         retries = new LinkedList(); // in retry order
+
+    private long               records;
+    private long               loaded;
+    private long               rejected;
+    private long               retried;
+    private long               startTime;
+    private long               endTime;
+
+    /**
+     * Constructs a loader sending records on the specified connections.
+     *
+     * @param connections  The connections, bound with enough rights.
+     * @param window       The maximum number of operations outstanding on
+     *                     all the connections together.
+     *
+     * @throws IllegalArgumentException if there are no connections or the
+     *         window is less than 1.
+     */
+    public LDIFLoader( LDAPConnection[] connections, int window)
+    {
+        if( connections == null || connections.length == 0) {
+            throw new IllegalArgumentException(
+                    "At least one connection is required");
+        }
+        if( window < 1) {
+            throw new IllegalArgumentException(
+                    "The window must be at least 1");
+        }
+        this.connections = (LDAPConnection[])connections.clone();
+        this.window = window;
+        return;
+    }
+
+    /**
+     * Sets the writer of the records that could not be applied or read.
+     * A record of an LDIF content file is written as an add request, so
+     * the writer must accept requests.
+     *
+     * @param rejects  The writer, or null to discard the records.
+     */
+    public void setRejectWriter( LDAPWriter rejects)
+    {
+        this.rejects = rejects;
+        return;
+    }
+
+    /**
+     * Sets how many times a record failing with a transient error is sent
+     * again.  The default is 3.
+     *
+     * @param maxRetries  The number of retries, 0 not to retry.
+     */
+    public void setMaxRetries( int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+        return;
+    }
+
+    /**
+     * Sets the delay before a record failing with a transient error is sent
+     * again.  The delay is multiplied by the number of the retry.  The
+     * default is one second.
+     *
+     * @param millis  The delay in milliseconds.
+     */
+    public void setRetryDelay( long millis)
+    {
+        this.retryDelay = millis;
+        return;
+    }
+
+    /**
+     * Applies all the records of a reader to the directory, returning when
+     * all the records are applied or rejected.
+     *
+     * @param reader  The reader of the records.
+     *
+     * @return The number of records applied.
+     *
+     * @exception IOException if reading the records or writing rejects
+     *            fails.
+     * @exception LDAPException if writing rejects fails.
+     */
+    public long load( LDAPReader reader)
+                throws IOException, LDAPException
+    {
+        this.queue = null;
+        this.load = new int[ this.connections.length ];
+        this.outstanding = 0;
+        this.sent.clear();
+        this.active.clear();
+        this.retries.clear();
+        this.records = 0;
+        this.loaded = 0;
+        this.rejected = 0;
+        this.retried = 0;
+        this.startTime = System.currentTimeMillis();
+        this.endTime = 0;
+        Pending next = null;
+        boolean eof = false;
+        try {
+            for( ;;) {
+                Pending retry = readyRetry();
+                if( retry != null) {
+                    send( retry);
+                    continue;
+                }
+                if( next == null && ! eof) {
+                    next = read( reader);
+                    if( next == null) {
+                        eof = true;
+                    } else if( next.message == null) {
+                        // could not be read, already rejected
+                        next = null;
+                        continue;
+                    }
+                }
+                if( next != null && this.outstanding < this.window &&
+                    ! conflicts( next)) {
+                    send( next);
+                    next = null;
+                    continue;
+                }
+                if( this.outstanding > 0) {
+                    receive();
+                } else if( ! this.retries.isEmpty()) {
+                    sleepUntil( ((Pending)this.retries.getFirst()).notBefore);
+                } else if( eof && next == null) {
+                    break;
+                }
+            }
+        } finally {
+            this.endTime = System.currentTimeMillis();
+        }
+        return this.loaded;
+    }
+
+    /**
+     * Returns the number of records read by the last load.
+     *
+     * @return The number of records.
+     */
+    public long getRecordCount()
+    {
+        return this.records;
+    }
+
+    /**
+     * Returns the number of records applied to the directory by the last
+     * load.
+     *
+     * @return The number of records.
+     */
+    public long getLoadedCount()
+    {
+        return this.loaded;
+    }
+
+    /**
+     * Returns the number of records rejected by the last load.
+     *
+     * @return The number of records.
+     */
+    public long getRejectedCount()
+    {
+        return this.rejected;
+    }
+
+    /**
+     * Returns the number of times a record was sent again after a transient
+     * error during the last load.
+     *
+     * @return The number of retries.
+     */
+    public long getRetryCount()
+    {
+        return this.retried;
+    }
+
+    /**
+     * Returns the number of records applied or rejected per second by the
+     * last load, so far if it is not finished.
+     *
+     * @return The rate, 0 if no load was started.
+     */
+    public double getRecordsPerSecond()
+    {
+        if( this.startTime == 0) {
+            return 0;
+        }
+        long end = this.endTime != 0 ? this.endTime
+                                     : System.currentTimeMillis();
+        long millis = Math.max( end - this.startTime, 1);
+        return (this.loaded + this.rejected) * 1000.0 / millis;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return The record, a record with no message if it could not be
+     *         read, or null at the end of the data.
+     */
+    private Pending read( LDAPReader reader)
+                throws IOException, LDAPException
+    {
+        LDAPMessage message;
+        try {
+            message = reader.readMessage();
+        } catch( LDAPLocalException e) {
+            this.records++;
+            reject( null, e.toString());
+            return new Pending( null, null);
+        }
+        if( message == null) {
+            return null;
+        }
+        this.records++;
+        if( message instanceof LDAPSearchResult) {
+            LDAPSearchResult result = (LDAPSearchResult)message;
+            message = new LDAPAddRequest( result.getEntry(),
+                                          result.getControls());
+        }
+        try {
+            return new Pending( message, dns( message));
+        } catch( IllegalArgumentException e) {
+            reject( message, "invalid DN: " + e.getMessage());
+            return new Pending( null, null);
+        }
+    }
+
+    /**
+     * Returns the DNs of the entries a request applies to.
+     */
+    private static NormalizedDN[] dns( LDAPMessage message)
+    {
+        switch( message.getType()) {
+            case LDAPMessage.ADD_REQUEST:
+                return new NormalizedDN[] { NormalizedDN.valueOf(
+                            ((LDAPAddRequest)message).getEntry().getDN()) };
+            case LDAPMessage.DEL_REQUEST:
+                return new NormalizedDN[] { NormalizedDN.valueOf(
+                            ((LDAPDeleteRequest)message).getDN()) };
+            case LDAPMessage.MODIFY_REQUEST:
+                return new NormalizedDN[] { NormalizedDN.valueOf(
+                            ((LDAPModifyRequest)message).getDN()) };
+            case LDAPMessage.MODIFY_RDN_REQUEST:
+                LDAPModifyDNRequest request = (LDAPModifyDNRequest)message;
+                if( request.getParentDN() == null) {
+                    return new NormalizedDN[] {
+                                NormalizedDN.valueOf( request.getDN()) };
+                }
+                return new NormalizedDN[] {
+                            NormalizedDN.valueOf( request.getDN()),
+                            NormalizedDN.valueOf( request.getParentDN()) };
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported request type: " + message.getType());
+        }
+    }
+
+    /**
+     * Returns true if an outstanding operation or a record waiting to be
+     * retried applies to an entry related to the entries of a record.
+     */
+    private boolean conflicts( Pending pending)
+    {
+        for( int i = 0; i < this.active.size(); i++) {
+            if( related( pending, (Pending)this.active.get( i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean related( Pending p1, Pending p2)
+    {
+        for( int i = 0; i < p1.dns.length; i++) {
+            for( int j = 0; j < p2.dns.length; j++) {
+                NormalizedDN dn1 = p1.dns[i];
+                NormalizedDN dn2 = p2.dns[j];
+                if( dn1.equals( dn2) || dn1.isDescendantOf( dn2) ||
+                    dn2.isDescendantOf( dn1)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a record on the connection with the fewest outstanding
+     * operations.  A connection failing with a transient error is not
+     * tried again for the record; if all of them fail, the record goes
+     * through the retries like a transient result.
+     */
+    private void send( Pending pending)
+                throws IOException, LDAPException
+    {
+        boolean[] tried = new boolean[ this.connections.length ];
+        LDAPException failure = null;
+        while( true) {
+            int c = -1;
+            for( int i = 0; i < this.connections.length; i++) {
+                if( ! tried[i] && this.connections[i] != null &&
+                    this.connections[i].isConnected() &&
+                    ( c == -1 || this.load[i] < this.load[c])) {
+                    c = i;
+                }
+            }
+            if( c == -1) {
+                break;
+            }
+            tried[c] = true;
+            try {
+                this.queue = (LDAPResponseQueue)this.connections[c].
+                                sendRequest( pending.message, this.queue);
+            } catch( LDAPException e) {
+                failure = e;
+                if( isTransient( e.getResultCode())) {
+                    // try another connection
+                    continue;
+                }
+                failed( pending, e.getResultCode(), e.toString());
+                return;
+            }
+            pending.connection = c;
+            this.load[c]++;
+            this.outstanding++;
+            this.sent.put( new Integer( pending.message.getMessageID()),
+                           pending);
+            if( ! this.active.contains( pending)) {
+                this.active.add( pending);
+            }
+            return;
+        }
+        if( failure == null) {
+            failure = new LDAPLocalException( "No connection to send to",
+                                              LDAPException.CONNECT_ERROR);
+        }
+        failed( pending, failure.getResultCode(), failure.toString());
+        return;
+    }
+
+    /**
+     * Waits for the result of an outstanding operation.
+     */
+    private void receive()
+                throws IOException, LDAPException
+    {
+        LDAPMessage message = this.queue.getResponse();
+        if( message == null) {
+            // not reached, there are outstanding operations
+            throw new LDAPLocalException( "No outstanding operation",
+                                          LDAPException.LOCAL_ERROR);
+        }
+        Pending pending = (Pending)this.sent.remove(
+                                new Integer( message.getMessageID()));
+        if( pending == null) {
+            return;
+        }
+        this.load[ pending.connection ]--;
+        this.outstanding--;
+        LDAPResponse response = (LDAPResponse)message;
+        int resultCode = response.getResultCode();
+        if( resultCode == LDAPException.SUCCESS) {
+            this.active.remove( pending);
+            this.loaded++;
+            return;
+        }
+        String text = "result " + resultCode + " ("
+                + LDAPException.resultCodeToString( resultCode) + ")";
+        if( response.getErrorMessage() != null &&
+            response.getErrorMessage().length() != 0) {
+            text += ": " + response.getErrorMessage();
+        }
+        failed( pending, resultCode, text);
+        return;
+    }
+
+    /**
+     * Schedules a failed record for a retry, or rejects it.
+     */
+    private void failed( Pending pending, int resultCode, String text)
+                throws IOException, LDAPException
+    {
+        if( isTransient( resultCode) && pending.attempts < this.maxRetries) {
+            pending.attempts++;
+            pending.notBefore = System.currentTimeMillis() +
+                                this.retryDelay * pending.attempts;
+            this.retried++;
+            // keep it active, so related records still wait for it
+            if( ! this.active.contains( pending)) {
+                this.active.add( pending);
+            }
+            this.retries.add( pending);
+            return;
+        }
+        this.active.remove( pending);
+        reject( pending.message, text);
+        return;
+    }
+
+    private Pending readyRetry()
+    {
+        if( this.retries.isEmpty() || this.outstanding >= this.window) {
+            return null;
+        }
+        Pending pending = (Pending)this.retries.getFirst();
+        if( pending.notBefore > System.currentTimeMillis()) {
+            return null;
+        }
+        return (Pending)this.retries.removeFirst();
+    }
+
+    private static boolean isTransient( int resultCode)
+    {
+        switch( resultCode) {
+            case LDAPException.BUSY:
+            case LDAPException.UNAVAILABLE:
+            case LDAPException.SERVER_DOWN:
+            case LDAPException.LDAP_TIMEOUT:
+            case LDAPException.CONNECT_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void reject( LDAPMessage message, String text)
+                throws IOException, LDAPException
+    {
+        this.rejected++;
+        if( this.rejects == null) {
+            return;
+        }
+        this.rejects.writeComments( text);
+        if( message != null) {
+            this.rejects.writeMessage( message);
+        }
+        return;
+    }
+
+    private static void sleepUntil( long time)
+                throws IOException
+    {
+        long millis = time - System.currentTimeMillis();
+        if( millis > 0) {
+            try {
+                Thread.sleep( millis);
+            } catch( InterruptedException e) {
+                throw new InterruptedIOException( e.toString());
+            }
+        }
+        return;
+    }
+
+    /**
+     * A record being applied.
+     */
+    private static final class Pending
+    {
+        final LDAPMessage message;
+        final NormalizedDN[] dns;
+        int connection;
+        int attempts;
+        long notBefore;
+
+        Pending( LDAPMessage message, NormalizedDN[] dns)
+        {
+            this.message = message;
+            this.dns = dns;
+            return;
+        }
+    }
+}
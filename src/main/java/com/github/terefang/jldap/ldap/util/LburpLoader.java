@@ -0,0 +1,676 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import com.github.terefang.jldap.ldap.LDAPAddRequest;
+import com.github.terefang.jldap.ldap.LDAPConnection;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPExtendedRequest;
+import com.github.terefang.jldap.ldap.LDAPExtendedResponse;
+import com.github.terefang.jldap.ldap.LDAPLburpRequest;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPMessageQueue;
+import com.github.terefang.jldap.ldap.LDAPResponse;
+import com.github.terefang.jldap.ldap.LDAPSearchResult;
+import com.github.terefang.jldap.ldap.asn1.ASN1Object;
+import com.github.terefang.jldap.ldap.asn1.ASN1SequenceOf;
+import com.github.terefang.jldap.ldap.asn1.LBEREncoder;
+import com.github.terefang.jldap.ldap.extensions.LburpConstants;
+import com.github.terefang.jldap.ldap.extensions.LburpEndRequest;
+import com.github.terefang.jldap.ldap.extensions.LburpOperationRequest;
+import com.github.terefang.jldap.ldap.extensions.LburpOperationResponse;
+import com.github.terefang.jldap.ldap.extensions.LburpStartRequest;
+import com.github.terefang.jldap.ldap.extensions.LburpStartResponse;
+
+/**
+ * Applies the records read from an LDIF file, or from any
+ * {@link LDAPReader}, to an eDirectory server with the LDAP Bulk Update
+ * and Replication Protocol (LBURP).
+ *
+ * <p>The loader starts an LBURP session, packs the add, delete, modify and
+ * modify DN requests into {@link LburpOperationRequest} packets and ends
+ * the session.  A packet is closed when it holds the maximum number of
+ * operations, the smaller of the value set and the transaction size
+ * returned by the server, or when the encoded size of its operations
+ * reaches a byte budget.  Several packets are outstanding at a time.
+ * Content records are added as entries.</p>
+ *
+ * <p>The server reports the operations of a packet that failed, numbered
+ * from 1 in the packet; they are mapped back to their records.  Since the
+ * server may apply the operations of a packet in any order, an operation
+ * that failed because of that order, with noSuchObject, for example an
+ * entry added in the same packet as its parent, or notAllowedOnNonLeaf,
+ * is sent again alone in a packet of its own, up to a number of times.
+ * So is an operation that failed because the server was busy or
+ * unavailable.  Failed operations are sent again once the outstanding
+ * packets are answered, in the order they were read.
+ * Records that fail with any other error, such as entryAlreadyExists or
+ * objectClassViolation, or still fail after the retries, are rejected at
+ * once: they are written to an optional reject writer, each one preceded
+ * by a comment giving the error.</p>
+ *
+ * <p>Sample code:</p>
+ * <pre>
+ *     LburpLoader loader = new LburpLoader( connection);
+ *     loader.setRejectWriter( new LDIFWriter( rejects, "1", true));
+ *     loader.load( new LDIFByteReader( file));
+ * </pre>
+ *
+ * <p>An LburpLoader is not thread safe.</p>
+ *
+ * @see LDIFLoader
+ */
+public class LburpLoader
+{
+    private LDAPConnection     conn;
+    private String             protocolOID;
+    private int                maxOperations = 1000;
+    private int                maxBytes = 1 << 20;
+    private int                maxPackets = 4;
+    private int                maxRetries = 3;
+    private LDAPWriter         rejects;
+
+    private LDAPMessageQueue   queue;
+    private HashMap            sent = new HashMap();  // message id to Packet
+    private LinkedList         retries = new LinkedList(); // Records
+    private int                sequence;
+    private int                packetOperations;
+
+    private long               records;
+    private long               loaded;
+    private long               rejected;
+    private long               retried;
+    private long               packets;
+    private long               startTime;
+    private long               endTime;
+
+    /**
+     * Constructs a loader using incremental update, which leaves the
+     * entries not in the records in place.
+     *
+     * @param conn  The connection, bound with enough rights.
+     */
+    public LburpLoader( LDAPConnection conn)
+    {
+        this( conn, LburpConstants.LBURPIncUpdateOID);
+        return;
+    }
+
+    /**
+     * Constructs a loader using the specified update protocol.
+     *
+     * @param conn         The connection, bound with enough rights.
+     * @param protocolOID  {@link LburpConstants#LBURPIncUpdateOID} or
+     *                     {@link LburpConstants#LBURPFullUpdateOID}.
+     *
+     * @throws IllegalArgumentException if conn or protocolOID is null.
+     */
+    public LburpLoader( LDAPConnection conn, String protocolOID)
+    {
+        if( conn == null || protocolOID == null) {
+            throw new IllegalArgumentException(
+                    "A connection and a protocol are required");
+        }
+        this.conn = conn;
+        this.protocolOID = protocolOID;
+        return;
+    }
+
+    /**
+     * Sets the maximum number of operations in a packet.  The transaction
+     * size returned by the server, if smaller, is used instead.  The
+     * default is 1000.
+     *
+     * @param maxOperations  The number of operations, at least 1.
+     */
+    public void setMaxOperations( int maxOperations)
+    {
+        if( maxOperations < 1) {
+            throw new IllegalArgumentException(
+                    "A packet holds at least one operation");
+        }
+        this.maxOperations = maxOperations;
+        return;
+    }
+
+    /**
+     * Sets the byte budget of a packet.  A packet is sent when the encoded
+     * size of its operations reaches the budget, so a single larger
+     * operation is still sent.  The default is 1 MB.
+     *
+     * @param maxBytes  The budget in bytes.
+     */
+    public void setMaxBytes( int maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        return;
+    }
+
+    /**
+     * Sets the number of packets outstanding at a time.  The default is 4.
+     *
+     * @param maxPackets  The number of packets, at least 1.
+     */
+    public void setMaxPackets( int maxPackets)
+    {
+        if( maxPackets < 1) {
+            throw new IllegalArgumentException(
+                    "At least one packet must be outstanding");
+        }
+        this.maxPackets = maxPackets;
+        return;
+    }
+
+    /**
+     * Sets how many times an operation failing with noSuchObject,
+     * notAllowedOnNonLeaf, busy or unavailable is sent again alone.  The
+     * default is 3.
+     *
+     * @param maxRetries  The number of retries, 0 not to retry.
+     */
+    public void setMaxRetries( int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+        return;
+    }
+
+    /**
+     * Sets the writer of the records that could not be applied or read.
+     * A record of an LDIF content file is written as an add request, so
+     * the writer must accept requests.
+     *
+     * @param rejects  The writer, or null to discard the records.
+     */
+    public void setRejectWriter( LDAPWriter rejects)
+    {
+        this.rejects = rejects;
+        return;
+    }
+
+    /**
+     * Applies all the records of a reader in an LBURP session.
+     *
+     * @param reader  The reader of the records.
+     *
+     * @return The number of records applied.
+     *
+     * @exception IOException if reading the records or writing rejects
+     *            fails.
+     * @exception LDAPException if the session cannot be started or ended,
+     *            or a packet cannot be sent.
+     */
+    public long load( LDAPReader reader)
+                throws IOException, LDAPException
+    {
+        this.queue = null;
+        this.sent.clear();
+        this.retries.clear();
+        this.sequence = 0;
+        this.records = 0;
+        this.loaded = 0;
+        this.rejected = 0;
+        this.retried = 0;
+        this.packets = 0;
+        this.startTime = System.currentTimeMillis();
+        this.endTime = 0;
+        try {
+            start();
+            ArrayList packet = new ArrayList();
+            int bytes = 0;
+            boolean eof = false;
+            for( ;;) {
+                if( ! this.retries.isEmpty()) {
+                    retry();
+                    continue;
+                }
+                if( eof || this.sent.size() >= this.maxPackets) {
+                    if( this.sent.isEmpty()) {
+                        break;
+                    }
+                    receive();
+                    continue;
+                }
+                Record record = read( reader);
+                if( record == null) {
+                    eof = true;
+                } else if( record.message != null) {
+                    packet.add( record);
+                    bytes += record.size;
+                }
+                if( packet.size() == this.packetOperations ||
+                    bytes >= this.maxBytes || ( eof && ! packet.isEmpty())) {
+                    send( packet);
+                    packet = new ArrayList();
+                    bytes = 0;
+                }
+            }
+            end();
+        } finally {
+            this.endTime = System.currentTimeMillis();
+        }
+        return this.loaded;
+    }
+
+    /**
+     * Returns the number of records read by the last load.
+     *
+     * @return The number of records.
+     */
+    public long getRecordCount()
+    {
+        return this.records;
+    }
+
+    /**
+     * Returns the number of records applied by the last load.
+     *
+     * @return The number of records.
+     */
+    public long getLoadedCount()
+    {
+        return this.loaded;
+    }
+
+    /**
+     * Returns the number of records rejected by the last load.
+     *
+     * @return The number of records.
+     */
+    public long getRejectedCount()
+    {
+        return this.rejected;
+    }
+
+    /**
+     * Returns the number of times an operation was sent again alone during
+     * the last load.
+     *
+     * @return The number of retries.
+     */
+    public long getRetryCount()
+    {
+        return this.retried;
+    }
+
+    /**
+     * Returns the number of packets sent by the last load.
+     *
+     * @return The number of packets.
+     */
+    public long getPacketCount()
+    {
+        return this.packets;
+    }
+
+    /**
+     * Returns the number of records applied or rejected per second by the
+     * last load, so far if it is not finished.
+     *
+     * @return The rate, 0 if no load was started.
+     */
+    public double getRecordsPerSecond()
+    {
+        if( this.startTime == 0) {
+            return 0;
+        }
+        long end = this.endTime != 0 ? this.endTime
+                                     : System.currentTimeMillis();
+        long millis = Math.max( end - this.startTime, 1);
+        return (this.loaded + this.rejected) * 1000.0 / millis;
+    }
+
+    private void start()
+                throws LDAPException
+    {
+        LDAPExtendedResponse response = this.conn.extendedOperation(
+                        new LburpStartRequest( this.protocolOID));
+        check( response);
+        this.packetOperations = this.maxOperations;
+        if( response instanceof LburpStartResponse) {
+            int size = ((LburpStartResponse)response).getTranSize();
+            if( size > 0 && size < this.packetOperations) {
+                this.packetOperations = size;
+            }
+        }
+        return;
+    }
+
+    private void end()
+                throws LDAPException
+    {
+        check( this.conn.extendedOperation(
+                        new LburpEndRequest( this.sequence)));
+        return;
+    }
+
+    private static void check( LDAPResponse response)
+                throws LDAPException
+    {
+        if( response.getResultCode() != LDAPException.SUCCESS) {
+            throw new LDAPException( response.getErrorMessage(),
+                                     response.getResultCode(),
+                                     response.getErrorMessage(),
+                                     response.getMatchedDN());
+        }
+        return;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return The record, a record with no message if it could not be
+     *         read, or null at the end of the data.
+     */
+    private Record read( LDAPReader reader)
+                throws IOException, LDAPException
+    {
+        LDAPMessage message;
+        try {
+            message = reader.readMessage();
+        } catch( LDAPLocalException e) {
+            this.records++;
+            reject( null, e.toString());
+            return new Record( null, this.records);
+        }
+        if( message == null) {
+            return null;
+        }
+        this.records++;
+        if( message instanceof LDAPSearchResult) {
+            LDAPSearchResult result = (LDAPSearchResult)message;
+            message = new LDAPAddRequest( result.getEntry(),
+                                          result.getControls());
+        }
+        switch( message.getType()) {
+            case LDAPMessage.ADD_REQUEST:
+            case LDAPMessage.DEL_REQUEST:
+            case LDAPMessage.MODIFY_REQUEST:
+            case LDAPMessage.MODIFY_RDN_REQUEST:
+                break;
+            default:
+                reject( message, "unsupported request type "
+                                 + message.getType());
+                return new Record( null, this.records);
+        }
+        Record record = new Record( message, this.records);
+        record.op = new LDAPLburpRequest( message);
+        record.size = encodedSize( record.op);
+        return record;
+    }
+
+    /**
+     * Sends the records that failed in a packet again, each one alone, once
+     * all the packets sent before are answered.  They are sent in the order
+     * they were read, so that an entry is added before its children.
+     */
+    private void retry()
+                throws IOException, LDAPException
+    {
+        while( ! this.sent.isEmpty()) {
+            receive();
+        }
+        ArrayList retrying = new ArrayList( this.retries);
+        this.retries.clear();
+        Collections.sort( retrying, READ_ORDER);
+        for( int i = 0; i < retrying.size(); i++) {
+            while( this.sent.size() >= this.maxPackets) {
+                receive();
+            }
+            ArrayList single = new ArrayList( 1);
+            single.add( retrying.get( i));
+            send( single);
+        }
+        return;
+    }
+
+    /**
+     * Sends the records of a list in a packet.
+     */
+    private void send( ArrayList records)
+                throws LDAPException
+    {
+        LDAPLburpRequest[] ops = new LDAPLburpRequest[ records.size() ];
+        for( int i = 0; i < ops.length; i++) {
+            ops[i] = ((Record)records.get( i)).op;
+        }
+        Packet packet = new Packet( ++this.sequence, records);
+        LDAPExtendedRequest request = new LDAPExtendedRequest(
+                    new LburpOperationRequest( ops, packet.sequence), null);
+        this.queue = this.conn.sendRequest( request, this.queue);
+        this.sent.put( new Integer( request.getMessageID()), packet);
+        this.packets++;
+        return;
+    }
+
+    /**
+     * Waits for the response to an outstanding packet.
+     */
+    private void receive()
+                throws IOException, LDAPException
+    {
+        LDAPMessage message = this.queue.getResponse();
+        if( message == null) {
+            // not reached, there are outstanding packets
+            throw new LDAPLocalException( "No outstanding packet",
+                                          LDAPException.LOCAL_ERROR);
+        }
+        Packet packet = (Packet)this.sent.remove(
+                                new Integer( message.getMessageID()));
+        if( packet == null) {
+            return;
+        }
+        LDAPResponse response = (LDAPResponse)message;
+        int resultCode = response.getResultCode();
+        if( resultCode != LDAPException.SUCCESS) {
+            // the whole packet failed
+            String text = text( resultCode, response.getErrorMessage());
+            for( int i = 0; i < packet.records.size(); i++) {
+                failed( (Record)packet.records.get( i), resultCode, text);
+            }
+            return;
+        }
+
+        HashMap codes = null;
+        HashMap messages = null;
+        if( response instanceof LburpOperationResponse) {
+            codes = ((LburpOperationResponse)response).getResultCodes();
+            messages = ((LburpOperationResponse)response).getResponse();
+        }
+        boolean[] failed = new boolean[ packet.records.size() ];
+        if( codes != null) {
+            Iterator itr = codes.keySet().iterator();
+            while( itr.hasNext()) {
+                Integer number = (Integer)itr.next();
+                int code = ((Integer)codes.get( number)).intValue();
+                int index = number.intValue() - 1;
+                if( code == LDAPException.SUCCESS || index < 0 ||
+                    index >= failed.length) {
+                    continue;
+                }
+                failed[index] = true;
+                failed( (Record)packet.records.get( index), code,
+                        text( code, (String)messages.get( number)));
+            }
+        }
+        for( int i = 0; i < failed.length; i++) {
+            if( ! failed[i]) {
+                this.loaded++;
+            }
+        }
+        return;
+    }
+
+    /**
+     * Schedules a failed record to be sent again alone, or rejects it.
+     */
+    private void failed( Record record, int resultCode, String text)
+                throws IOException, LDAPException
+    {
+        if( isRetryable( resultCode) && record.attempts < this.maxRetries) {
+            record.attempts++;
+            this.retried++;
+            this.retries.add( record);
+            return;
+        }
+        reject( record.message, text);
+        return;
+    }
+
+    /**
+     * Reports whether an operation failing with a result code may succeed
+     * when sent again: the error depends on the order of the operations
+     * in a packet, or is transient.
+     */
+    private static boolean isRetryable( int resultCode)
+    {
+        switch( resultCode) {
+            case LDAPException.NO_SUCH_OBJECT:
+            case LDAPException.NOT_ALLOWED_ON_NONLEAF:
+            case LDAPException.BUSY:
+            case LDAPException.UNAVAILABLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String text( int resultCode, String message)
+    {
+        String text = "result " + resultCode + " ("
+                + LDAPException.resultCodeToString( resultCode) + ")";
+        if( message != null && message.length() != 0) {
+            text += ": " + message;
+        }
+        return text;
+    }
+
+    private void reject( LDAPMessage message, String text)
+                throws IOException, LDAPException
+    {
+        this.rejected++;
+        if( this.rejects == null) {
+            return;
+        }
+        this.rejects.writeComments( text);
+        if( message != null) {
+            this.rejects.writeMessage( message);
+        }
+        return;
+    }
+
+    /**
+     * Returns the size of the protocol operation and controls of an
+     * operation, as encoded in a packet.
+     */
+    private static int encodedSize( LDAPLburpRequest op)
+    {
+        CountingStream counter = new CountingStream();
+        LBEREncoder encoder = new LBEREncoder();
+        try {
+            ASN1Object request = op.getRequestASN1Sequence();
+            if( request == null) {
+                request = op.getRequestASN1OcString();
+            }
+            request.encode( encoder, counter);
+            ASN1SequenceOf controls = op.getControlsASN1Object();
+            if( controls != null) {
+                controls.encode( encoder, counter);
+            }
+        } catch( IOException e) {
+            // not reached, the stream does not throw
+            throw new RuntimeException( e.toString());
+        }
+        return counter.count;
+    }
+
+    /**
+     * Orders records as they were read.
+     */
+    private static final Comparator READ_ORDER = new Comparator()
+    {
+        public int compare( Object o1, Object o2)
+        {
+            long n1 = ((Record)o1).number;
+            long n2 = ((Record)o2).number;
+            return n1 < n2 ? -1 : (n1 == n2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * A record, its position in the data and the number of times it was
+     * sent again.
+     */
+    private static final class Record
+    {
+        final LDAPMessage message;
+        final long number;
+        LDAPLburpRequest op;
+        int size;
+        int attempts;
+
+        Record( LDAPMessage message, long number)
+        {
+            this.message = message;
+            this.number = number;
+            return;
+        }
+    }
+
+    /**
+     * The records of an outstanding packet, in the order of the packet.
+     */
+    private static final class Packet
+    {
+        final int sequence;
+        final ArrayList records;
+
+        Packet( int sequence, ArrayList records)
+        {
+            this.sequence = sequence;
+            this.records = records;
+            return;
+        }
+    }
+
+    /**
+     * Counts the bytes written to it.
+     */
+    private static final class CountingStream extends OutputStream
+    {
+        int count;
+
+        public void write( int b)
+        {
+            this.count++;
+            return;
+        }
+
+        public void write( byte[] b, int off, int len)
+        {
+            this.count += len;
+            return;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+import com.github.terefang.jldap.ldap.LDAPCompiledSchema;
+import com.github.terefang.jldap.ldap.LDAPSchema;
+
+/**
+ * <P>Client side implementation of the common equality matching rules.</P>
+ *
+ * <P>A matching rule is reduced to a normalization of the assertion and
+ * attribute values: two values match when their normalized forms are
+ * equal.  The rules of RFC 4517 that are in common use are recognized by
+ * name and by OID.  Unknown rules, and attributes without an equality
+ * rule, are treated as caseIgnoreMatch, which is how DN components have
+ * always been compared by this library.</P>
+ *
+ * <P>String preparation is simplified to the ASCII space handling of
+ * RFC 4518: leading and trailing spaces are removed and inner runs of
+ * spaces are reduced to one.  Case folding does not depend on the default
+ * locale.</P>
+ */
+public final class MatchingRules
+{
+    /** caseIgnoreMatch, caseIgnoreIA5Match, caseIgnoreListMatch and
+     *  unknown rules */
+    public static final int CASE_IGNORE    = 0;
+    /** caseExactMatch and caseExactIA5Match */
+    public static final int CASE_EXACT     = 1;
+    /** numericStringMatch */
+    public static final int NUMERIC_STRING = 2;
+    /** telephoneNumberMatch */
+    public static final int TELEPHONE      = 3;
+    /** integerMatch */
+    public static final int INTEGER        = 4;
+    /** octetStringMatch, bitStringMatch and other binary rules */
+    public static final int OCTET_STRING   = 5;
+    /** booleanMatch */
+    public static final int BOOLEAN        = 6;
+    /** distinguishedNameMatch */
+    public static final int DN             = 7;
+    /** generalizedTimeMatch */
+    public static final int GENERALIZED_TIME = 8;
+
+    private static final HashMap rules = new HashMap();
+
+    static {
+        rule( CASE_IGNORE,    "caseIgnoreMatch",        "2.5.13.2");
+        rule( CASE_IGNORE,    "caseIgnoreIA5Match",
+                                        "1.3.6.1.4.1.1466.109.114.2");
+        rule( CASE_IGNORE,    "caseIgnoreListMatch",    "2.5.13.11");
+        rule( CASE_EXACT,     "caseExactMatch",         "2.5.13.5");
+        rule( CASE_EXACT,     "caseExactIA5Match",
+                                        "1.3.6.1.4.1.1466.109.114.1");
+        rule( NUMERIC_STRING, "numericStringMatch",     "2.5.13.8");
+        rule( TELEPHONE,      "telephoneNumberMatch",   "2.5.13.20");
+        rule( INTEGER,        "integerMatch",           "2.5.13.14");
+        rule( OCTET_STRING,   "octetStringMatch",       "2.5.13.17");
+        rule( OCTET_STRING,   "bitStringMatch",         "2.5.13.16");
+        rule( OCTET_STRING,   "uuidMatch",              "1.3.6.1.1.16.2");
+        rule( BOOLEAN,        "booleanMatch",           "2.5.13.13");
+        rule( DN,             "distinguishedNameMatch", "2.5.13.1");
+        rule( GENERALIZED_TIME, "generalizedTimeMatch", "2.5.13.27");
+    }
+
+    private MatchingRules()
+    {
+    }
+
+    private static void rule( int kind, String name, String oid)
+    {
+        Integer k = Integer.valueOf( kind);
+        rules.put( name.toLowerCase( Locale.ENGLISH), k);
+        rules.put( oid, k);
+        return;
+    }
+
+    /**
+     * Returns the kind of a matching rule.
+     *
+     * @param rule  The name or OID of the matching rule, may be null.
+     *
+     * @return One of the rule constants of this class, CASE_IGNORE for an
+     *         unknown or null rule.
+     */
+    public static int getKind( String rule)
+    {
+        if( rule == null) {
+            return CASE_IGNORE;
+        }
+        Integer kind = (Integer)rules.get( rule.toLowerCase( Locale.ENGLISH));
+        return kind == null ? CASE_IGNORE : kind.intValue();
+    }
+
+    /**
+     * Returns the equality matching rule of an attribute, inherited from
+     * its superior attribute types when the attribute has none, as resolved
+     * by the compiled schema.
+     *
+     * @param schema  The schema holding the attribute definitions.
+     * @param attr    The name or OID of the attribute.
+     *
+     * @return The name or OID of the equality rule, or null if neither the
+     *         attribute nor its superiors define one.
+     *
+     * @see LDAPCompiledSchema#getEqualityMatchingRule(String)
+     */
+    public static String getEqualityRule( LDAPSchema schema, String attr)
+    {
+        return schema.getCompiledSchema().getEqualityMatchingRule( attr);
+    }
+
+    /**
+     * Normalizes a value according to a matching rule.
+     *
+     * @param kind   One of the rule constants of this class.
+     * @param value  The value to normalize.
+     *
+     * @return The normalized value.
+     */
+    public static String normalize( int kind, String value)
+    {
+        switch( kind) {
+        case CASE_EXACT:
+            return collapseSpaces( value);
+        case NUMERIC_STRING:
+            return removeChars( value, " ");
+        case TELEPHONE:
+            return removeChars( value, " -").toLowerCase( Locale.ENGLISH);
+        case INTEGER:
+            return normalizeInteger( value);
+        case OCTET_STRING:
+            return value;
+        case BOOLEAN:
+            return value.trim().toUpperCase( Locale.ENGLISH);
+        case GENERALIZED_TIME:
+            return value.trim().toUpperCase( Locale.ENGLISH);
+        case DN:
+            try {
+                return NormalizedDN.valueOf( value.trim()).getCanonical();
+            } catch( IllegalArgumentException e) {
+                return collapseSpaces( value).toLowerCase( Locale.ENGLISH);
+            }
+        case CASE_IGNORE:
+        default:
+            return collapseSpaces( value).toLowerCase( Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Normalizes a substring of a substring assertion according to the
+     * equality rule of its attribute.  Unlike {@link #normalize}, spaces at
+     * the ends of the substring are kept, reduced to one, since they must
+     * be present in the value around the substring.
+     *
+     * @param kind   One of the rule constants of this class.
+     * @param value  The substring to normalize.
+     *
+     * @return The normalized substring.
+     */
+    public static String normalizeSubstring( int kind, String value)
+    {
+        switch( kind) {
+        case CASE_EXACT:
+            return collapseInnerSpaces( value);
+        case NUMERIC_STRING:
+        case TELEPHONE:
+        case OCTET_STRING:
+            return normalize( kind, value);
+        default:
+            return collapseInnerSpaces( value).toLowerCase( Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Reports whether two values match according to a matching rule.
+     *
+     * @param kind  One of the rule constants of this class.
+     * @param v1    The first value.
+     * @param v2    The second value.
+     *
+     * @return true if the values match.
+     */
+    public static boolean matches( int kind, String v1, String v2)
+    {
+        return normalize( kind, v1).equals( normalize( kind, v2));
+    }
+
+    /*
+     * Removes leading and trailing spaces and reduces inner runs of spaces
+     * to a single space.
+     */
+    private static String collapseSpaces( String value)
+    {
+        int len = value.length();
+        StringBuffer buf = null;
+        boolean space = false;
+        for( int i = 0; i < len; i++) {
+            char c = value.charAt( i);
+            if( c == ' ') {
+                space = true;
+                continue;
+            }
+            if( buf == null) {
+                if( !space && i == 0 && value.indexOf( "  ") < 0
+                        && value.charAt( len - 1) != ' ') {
+                    return value; // nothing to collapse
+                }
+                buf = new StringBuffer( len);
+            } else if( space) {
+                buf.append(' ');
+            }
+            space = false;
+            buf.append( c);
+        }
+        return buf == null ? "" : buf.toString();
+    }
+
+    /*
+     * Reduces all runs of spaces to a single space, including those at the
+     * ends of the value.
+     */
+    private static String collapseInnerSpaces( String value)
+    {
+        if( value.indexOf( "  ") < 0) {
+            return value;
+        }
+        int len = value.length();
+        StringBuffer buf = new StringBuffer( len);
+        for( int i = 0; i < len; i++) {
+            char c = value.charAt( i);
+            if( c != ' ' || i == 0 || value.charAt( i - 1) != ' ') {
+                buf.append( c);
+            }
+        }
+        return buf.toString();
+    }
+
+    private static String removeChars( String value, String chars)
+    {
+        StringBuffer buf = new StringBuffer( value.length());
+        for( int i = 0; i < value.length(); i++) {
+            char c = value.charAt( i);
+            if( chars.indexOf( c) < 0) {
+                buf.append( c);
+            }
+        }
+        return buf.toString();
+    }
+
+    private static String normalizeInteger( String value)
+    {
+        String v = value.trim();
+        boolean negative = v.startsWith("-");
+        int i = negative ? 1 : 0;
+        while( i < v.length() - 1 && v.charAt( i) == '0') {
+            i++;
+        }
+        v = v.substring( i);
+        if( negative && !v.equals("0")) {
+            return "-" + v;
+        }
+        return v;
+    }
+}
@@ -0,0 +1,355 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Vector;
+
+/**
+ * <P>An immutable, normalized distinguished name.</P>
+ *
+ * <P>A NormalizedDN is parsed once from its string form and reduced to a
+ * canonical form in which attribute types and values are lower case and the
+ * components of multivalued RDNs are sorted.  Two NormalizedDNs are equal
+ * when their canonical forms are equal, which matches the case-ignore
+ * comparison of {@link DN#equals(DN)}.  The hash code is computed once, so
+ * NormalizedDNs are cheap to compare and suitable as keys of hash tables.</P>
+ *
+ * <P>Instances are obtained with {@link #valueOf(String)}, which keeps
+ * recently parsed DNs in a bounded cache shared by all threads, keyed by
+ * the DN string as given.  A DN string seen again is not parsed again.</P>
+ *
+ * <P>Attribute types given as OIDs are not translated to names; a DN using
+ * an OID and a DN using the corresponding name are not equal.  Use a
+ * {@link SchemaDNNormalizer} to compare DNs according to the schema.</P>
+ *
+ * @see DN
+ * @see SchemaDNNormalizer
+ */
+public final class NormalizedDN
+{
+    /**
+     * The number of places in the shared parse cache.
+     */
+    public static final int CACHE_SIZE = 8192;
+
+    private static final DNCache cache = new DNCache( CACHE_SIZE);
+
+    private static final NormalizedDN ROOT =
+                            new NormalizedDN( "", new String[0]);
+
+    private final String display;   // the DN as formatted by DN.toString()
+    private final String[] rdns;    // canonical RDNs, leftmost first
+    private final String canonical; // canonical RDNs joined by commas
+    private final int hash;
+
+    /* package */
+    NormalizedDN( String display, String[] rdns)
+    {
+        this.display = display;
+        this.rdns = rdns;
+        StringBuffer buf = new StringBuffer();
+        for( int i = 0; i < rdns.length; i++) {
+            if( i != 0) {
+                buf.append(',');
+            }
+            buf.append( rdns[i]);
+        }
+        this.canonical = buf.toString();
+        this.hash = canonical.hashCode();
+        return;
+    }
+
+    /**
+     * Constructs a NormalizedDN from a parsed DN.
+     *
+     * @param dn  The DN to normalize.
+     */
+    public NormalizedDN( DN dn)
+    {
+        this( dn.countRDNs() == 0 ? "" : dn.toString(), canonicalRDNs( dn));
+        return;
+    }
+
+    /**
+     * Returns the NormalizedDN for the specified DN string, parsing it only
+     * if it is not found in the shared cache.
+     *
+     * @param dn  A string representation of the distinguished name.
+     *
+     * @return The normalized DN.
+     *
+     * @exception  IllegalArgumentException  if the the value of the dn
+     *               parameter does not adhere to the syntax described in
+     *               RFC 2253
+     */
+    public static NormalizedDN valueOf( String dn)
+    {
+        if( dn.length() == 0) {
+            return ROOT;
+        }
+        NormalizedDN ndn = cache.get( dn);
+        if( ndn == null) {
+            ndn = new NormalizedDN( new DN( dn));
+            cache.put( dn, ndn);
+        }
+        return ndn;
+    }
+
+    /*
+     * Builds the canonical form of each RDN: lower case types and values,
+     * the components of multivalued RDNs sorted.
+     */
+    private static String[] canonicalRDNs( DN dn)
+    {
+        return canonicalRDNs( dn, null);
+    }
+
+    /*
+     * Builds the canonical form of each RDN.  The normalizer, when given,
+     * supplies the canonical types and values.
+     */
+    /* package */
+    static String[] canonicalRDNs( DN dn, SchemaDNNormalizer normalizer)
+    {
+        Vector list = dn.getRDNs();
+        String[] rdns = new String[ list.size() ];
+        for( int i = 0; i < rdns.length; i++) {
+            RDN rdn = (RDN)list.elementAt( i);
+            String[] types = rdn.getTypes();
+            String[] values = rdn.getValues();
+            String[] parts = new String[ types.length ];
+            for( int j = 0; j < parts.length; j++) {
+                if( normalizer == null) {
+                    parts[j] = types[j].toLowerCase( Locale.ENGLISH) + "="
+                                + canonicalValue( values[j]);
+                } else {
+                    parts[j] = normalizer.canonicalComponent(
+                                types[j], unescapeValue( values[j]));
+                }
+            }
+            if( parts.length == 1) {
+                rdns[i] = parts[0];
+                continue;
+            }
+            Arrays.sort( parts);
+            StringBuffer buf = new StringBuffer( parts[0]);
+            for( int j = 1; j < parts.length; j++) {
+                buf.append('+').append( parts[j]);
+            }
+            rdns[i] = buf.toString();
+        }
+        return rdns;
+    }
+
+    /*
+     * DN parses some escaped characters with and some without their
+     * backslash, so escape all special characters the same way.
+     */
+    private static String canonicalValue( String value)
+    {
+        return escapeValue( unescapeValue( value)).toLowerCase( Locale.ENGLISH);
+    }
+
+    /**
+     * Removes the backslashes escaping special characters from an RDN
+     * value as returned by {@link RDN#getValues()}.
+     */
+    /* package */
+    static String unescapeValue( String value)
+    {
+        if( value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuffer buf = new StringBuffer( value.length());
+        for( int i = 0, len = value.length(); i < len; i++) {
+            char c = value.charAt( i);
+            if( c == '\\' && i + 1 < len && isSpecial( value.charAt( i + 1))) {
+                c = value.charAt( ++i);
+            }
+            buf.append( c);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Escapes the special characters of an unescaped RDN value.
+     */
+    /* package */
+    static String escapeValue( String value)
+    {
+        StringBuffer buf = new StringBuffer( value.length());
+        for( int i = 0, len = value.length(); i < len; i++) {
+            char c = value.charAt( i);
+            if( isSpecial( c)) {
+                buf.append('\\');
+            }
+            buf.append( c);
+        }
+        return buf.toString();
+    }
+
+    private static boolean isSpecial( char c)
+    {
+        return c == ',' || c == '+' || c == '"' || c == ';' || c == '<'
+            || c == '>' || c == '\\' || c == '=';
+    }
+
+    /**
+     * Returns the canonical form of this DN.  DNs that are equal have the
+     * same canonical form.
+     *
+     * @return The canonical form.
+     */
+    public String getCanonical()
+    {
+        return canonical;
+    }
+
+    /**
+     * Returns the number of RDNs in this DN.
+     *
+     * @return The count of RDNs.
+     */
+    public int countRDNs()
+    {
+        return rdns.length;
+    }
+
+    /**
+     * Returns the canonical form of an RDN of this DN.
+     *
+     * @param index  The position of the RDN, 0 for the leftmost RDN.
+     *
+     * @return The canonical RDN.
+     */
+    public String getRDN( int index)
+    {
+        return rdns[index];
+    }
+
+    /**
+     * Returns the parent of this DN.
+     *
+     * @return The parent DN, the DN itself if it has no RDN.
+     */
+    public NormalizedDN getParent()
+    {
+        if( rdns.length == 0) {
+            return this;
+        }
+        if( rdns.length == 1) {
+            return ROOT;
+        }
+        String[] parent = new String[ rdns.length - 1 ];
+        System.arraycopy( rdns, 1, parent, 0, parent.length);
+        int idx = firstRDNEnd( display);
+        return new NormalizedDN(
+                    idx < 0 ? "" : display.substring( idx + 1), parent);
+    }
+
+    /**
+     * Determines if this DN is contained by the DN passed in.  A DN does
+     * not contain itself.
+     *
+     * @param containerDN  The DN of a container.
+     *
+     * @return true if containerDN contains this DN.
+     *
+     * @see DN#isDescendantOf(DN)
+     */
+    public boolean isDescendantOf( NormalizedDN containerDN)
+    {
+        int i = containerDN.rdns.length - 1;
+        int j = this.rdns.length - 1;
+        if( i >= j) {
+            return false;
+        }
+        for( ; i >= 0; i--, j--) {
+            if( !rdns[j].equals( containerDN.rdns[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a new DN object for this DN.
+     *
+     * @return A parsed DN.
+     */
+    public DN toDN()
+    {
+        return new DN( display);
+    }
+
+    /**
+     * Compares this DN to the specified object.
+     *
+     * @param obj  The object to compare to.
+     *
+     * @return true if obj is a NormalizedDN with the same canonical form.
+     */
+    public boolean equals( Object obj)
+    {
+        if( obj == this) {
+            return true;
+        }
+        if( !(obj instanceof NormalizedDN)) {
+            return false;
+        }
+        NormalizedDN other = (NormalizedDN)obj;
+        return hash == other.hash && canonical.equals( other.canonical);
+    }
+
+    /**
+     * Returns the hash code of the canonical form.
+     *
+     * @return The hash code.
+     */
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    /**
+     * Returns the DN in the form produced by {@link DN#toString()}, which
+     * preserves the case of types and values.
+     *
+     * @return A DN string, empty for the root DN.
+     */
+    public String toString()
+    {
+        return display;
+    }
+
+    /*
+     * Finds the comma ending the first RDN of a DN string as produced by
+     * DN.toString(), skipping escaped characters.
+     */
+    private static int firstRDNEnd( String dn)
+    {
+        for( int i = 0; i < dn.length(); i++) {
+            char c = dn.charAt( i);
+            if( c == '\\') {
+                i++;
+            } else if( c == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
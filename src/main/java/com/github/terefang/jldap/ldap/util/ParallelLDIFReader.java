@@ -0,0 +1,474 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+
+/**
+ * Reads the records of an LDIF file on several threads.
+ *
+ * <p>The file is split into chunks of about 8 MB at empty lines, which
+ * always end a record since continuation lines start with a space.  Each
+ * chunk is parsed by an {@link LDIFByteReader} in a task of a
+ * {@link ForkJoinPool}, while {@link #readMessage()} returns the records
+ * of the chunks already parsed.  Only a few chunks are parsed ahead of the
+ * reader, to bound the memory used.</p>
+ *
+ * <p>Records are returned in the order of the file, or, if the reader is
+ * not ordered, chunk by chunk as they are parsed, the records of a chunk
+ * still in order.  Errors in a record are thrown when the record would
+ * have been returned, with the line number of the record in the file, and
+ * reading can go on with the next record.</p>
+ *
+ * <p>A ParallelLDIFReader is not thread safe.</p>
+ *
+ * @see LDIFByteReader
+ */
+public class ParallelLDIFReader implements LDAPReader
+{
+    /* Size of the chunks the file is split into */
+    private static final int CHUNK_SIZE = 8 << 20;
+
+    /* Size of the part of the file searched for a record boundary */
+    private static final int PROBE_SIZE = 1 << 16;
+
+    private FileChannel        channel;
+    private long               size;
+    private ForkJoinPool       pool;
+    private boolean            ownPool;       // pool created by the reader
+    private boolean            ordered;
+    private int                maxPending;
+
+    private long               nextStart;     // offset of the next chunk
+    private ArrayList          chunks = new ArrayList();
+    private int                running;
+    private LinkedList         queue = new LinkedList(); // ordered futures
+    private ExecutorCompletionService completion;
+
+    private ArrayList          lineBases = new ArrayList(); // lines before
+    private Chunk              current;
+    private int                next;          // next record of current
+    private int                recordChunk;   // chunk of the last record
+    private long               recordLine;    // its line in the chunk
+
+    private String             version;
+    private boolean            requestFile;
+
+    /**
+     * Constructs a reader returning the records of a file in order,
+     * parsing on as many threads as there are processors.
+     *
+     * @param file  The LDIF file.
+     *
+     * @exception IOException if the file cannot be read.
+     * @exception LDAPLocalException if the file does not start with valid
+     *            LDIF data.
+     */
+    public ParallelLDIFReader( File file)
+                throws IOException, LDAPLocalException
+    {
+        this( file, null, true);
+        return;
+    }
+
+    /**
+     * Constructs a reader of a file parsing in the specified pool.
+     *
+     * @param file     The LDIF file.
+     * @param pool     The pool parsing the chunks, or null to parse on a
+     *                 new pool with as many threads as there are
+     *                 processors, shut down by {@link #close()}.
+     * @param ordered  true to return the records in the order of the file,
+     *                 false to return the records of each chunk as soon as
+     *                 the chunk is parsed.
+     *
+     * @exception IOException if the file cannot be read.
+     * @exception LDAPLocalException if the file does not start with valid
+     *            LDIF data.
+     */
+    public ParallelLDIFReader( File file, ForkJoinPool pool, boolean ordered)
+                throws IOException, LDAPLocalException
+    {
+        FileInputStream fis = new FileInputStream( file);
+        this.channel = fis.getChannel();
+        try {
+            this.size = this.channel.size();
+            // the version line and the kind of records, from the start
+            LDIFByteReader first = new LDIFByteReader(
+                        map( 0, Math.min( this.size, PROBE_SIZE)));
+            this.version = first.getVersion();
+            this.requestFile = first.isRequest();
+        } catch( IOException e) {
+            this.channel.close();
+            throw e;
+        } catch( LDAPLocalException e) {
+            this.channel.close();
+            throw e;
+        }
+        if( pool == null) {
+            pool = new ForkJoinPool();
+            this.ownPool = true;
+        }
+        this.pool = pool;
+        this.ordered = ordered;
+        this.maxPending = 2 * pool.getParallelism();
+        if( ! ordered) {
+            this.completion = new ExecutorCompletionService( pool);
+        }
+        this.lineBases.add( new Long( 0));
+        return;
+    }
+
+    /**
+     * Gets the version of the LDIF data.
+     *
+     * @return The version, "1".
+     */
+    public String getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Returns true if the first record of the file is a change record.
+     *
+     * @return true if the file holds LDAP requests, false if it holds
+     *         entries.
+     */
+    public boolean isRequest()
+    {
+        return this.requestFile;
+    }
+
+    /**
+     * Reads the next record.  A content record is returned as an
+     * {@link com.github.terefang.jldap.ldap.LDAPSearchResult}, a change
+     * record as an add, delete, modify DN or modify request.
+     *
+     * @return The next message, or null at the end of the file.
+     *
+     * @exception IOException if reading the file fails.
+     * @exception LDAPLocalException if the record is not valid.
+     */
+    public LDAPMessage readMessage()
+                throws IOException, LDAPException
+    {
+        while( this.current == null ||
+               this.next == this.current.records.size()) {
+            if( this.current != null) {
+                // let the records be collected
+                this.current.records = null;
+                this.current.lines = null;
+                this.current = null;
+            }
+            submit();
+            if( this.running == 0) {
+                return null;
+            }
+            this.current = take();
+            this.next = 0;
+        }
+        Chunk chunk = this.current;
+        Object record = chunk.records.get( this.next);
+        this.recordChunk = chunk.index;
+        this.recordLine = chunk.lines[ this.next ];
+        this.next++;
+        if( record instanceof Failure) {
+            fail( chunk, (Failure)record);
+        }
+        return (LDAPMessage)record;
+    }
+
+    /**
+     * Returns the number of the line starting the record last read.  If
+     * the reader is not ordered, this waits until all the chunks before
+     * the record are parsed.
+     *
+     * @return The line number, starting at 1, or -1 if it cannot be
+     *         known because a chunk before the record could not be read.
+     */
+    public long getLineNumber()
+    {
+        try {
+            return lineBase( this.recordChunk) + this.recordLine;
+        } catch( IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Closes the file, and shuts down the pool if it was created by the
+     * reader.  Chunks being parsed are abandoned.
+     *
+     * @exception IOException if closing the file fails.
+     */
+    public void close()
+                throws IOException
+    {
+        for( int i = 0; i < this.chunks.size(); i++) {
+            Future future = ((Chunk)this.chunks.get( i)).future;
+            if( future != null) {
+                future.cancel( false);
+            }
+        }
+        if( this.ownPool) {
+            this.pool.shutdownNow();
+        }
+        this.channel.close();
+        return;
+    }
+
+    /**
+     * Splits off and submits chunks until enough are being parsed or the
+     * end of the file is reached.
+     */
+    private void submit()
+                throws IOException
+    {
+        while( this.running < this.maxPending && this.nextStart < this.size) {
+            long start = this.nextStart;
+            long end = boundary( start + CHUNK_SIZE);
+            Chunk chunk = new Chunk( this.chunks.size(), start, end - start);
+            this.chunks.add( chunk);
+            if( this.ordered) {
+                chunk.future = this.pool.submit( chunk);
+                this.queue.add( chunk.future);
+            } else {
+                chunk.future = this.completion.submit( chunk);
+            }
+            this.nextStart = end;
+            this.running++;
+        }
+        return;
+    }
+
+    /**
+     * Returns the next chunk parsed, the first of the file if ordered.
+     */
+    private Chunk take()
+                throws IOException
+    {
+        Future future;
+        if( this.ordered) {
+            future = (Future)this.queue.removeFirst();
+        } else {
+            try {
+                future = this.completion.take();
+            } catch( InterruptedException e) {
+                throw new InterruptedIOException( e.toString());
+            }
+        }
+        this.running--;
+        return get( future);
+    }
+
+    private static Chunk get( Future future)
+                throws IOException
+    {
+        try {
+            return (Chunk)future.get();
+        } catch( InterruptedException e) {
+            throw new InterruptedIOException( e.toString());
+        } catch( ExecutionException e) {
+            Throwable cause = e.getCause();
+            if( cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if( cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if( cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException( cause.toString());
+        }
+    }
+
+    /**
+     * Returns the number of lines in the file before a chunk, waiting for
+     * the chunks before it to be parsed.
+     */
+    private long lineBase( int index)
+                throws IOException
+    {
+        while( this.lineBases.size() <= index) {
+            int known = this.lineBases.size() - 1;
+            Chunk chunk = get( ((Chunk)this.chunks.get( known)).future);
+            long base = ((Long)this.lineBases.get( known)).longValue();
+            this.lineBases.add( new Long( base + chunk.lineCount));
+        }
+        return ((Long)this.lineBases.get( index)).longValue();
+    }
+
+    /**
+     * Throws the exception of a record that could not be read.  An
+     * LDAPLocalException is thrown again by reading the record again, with
+     * the line numbers in the file.
+     */
+    private void fail( Chunk chunk, Failure failure)
+                throws IOException, LDAPException
+    {
+        if( failure.exception instanceof LDAPLocalException) {
+            long end = chunk.start + chunk.length;
+            LDIFByteReader reader = new LDIFByteReader(
+                        map( failure.offset, end - failure.offset),
+                        lineBase( chunk.index) + failure.line, failure.offset);
+            reader.readMessage();
+            throw (LDAPLocalException)failure.exception;
+        }
+        throw (IOException)failure.exception;
+    }
+
+    /**
+     * Returns the offset of the first record starting at or after an
+     * offset, which follows an empty line.
+     */
+    private long boundary( long offset)
+                throws IOException
+    {
+        if( offset >= this.size) {
+            return this.size;
+        }
+        // start on the line end before the offset
+        long at = offset - 1;
+        int probe = PROBE_SIZE;
+        for( ;;) {
+            int length = (int)Math.min( this.size - at, probe);
+            ByteBuffer b = map( at, length);
+            for( int i = 0; i < length; i++) {
+                if( b.get( i) != '\n') {
+                    continue;
+                }
+                int j = i + 1;
+                if( j < length && b.get( j) == '\r') {
+                    j++;
+                }
+                if( j < length && b.get( j) == '\n') {
+                    return at + j + 1;
+                }
+                if( j >= length && at + length < this.size) {
+                    // the line end may be cut by the probe
+                    break;
+                }
+            }
+            if( at + length >= this.size) {
+                return this.size;
+            }
+            // search again, further
+            at += Math.max( length - 2, 1);
+            probe = Math.min( probe * 2, CHUNK_SIZE);
+        }
+    }
+
+    private ByteBuffer map( long start, long length)
+                throws IOException
+    {
+        return this.channel.map( FileChannel.MapMode.READ_ONLY, start,
+                                 length);
+    }
+
+    /**
+     * A part of the file parsed by a task.
+     */
+    private final class Chunk implements Callable
+    {
+        final int index;
+        final long start;
+        final long length;
+        Future future;
+
+        // set by the task, LDAPMessages and Failures
+        ArrayList records;
+        long[] lines;                     // lines before each record
+        long lineCount;
+
+        Chunk( int index, long start, long length)
+        {
+            this.index = index;
+            this.start = start;
+            this.length = length;
+            return;
+        }
+
+        public Object call()
+                throws IOException, LDAPException
+        {
+            LDIFByteReader reader = new LDIFByteReader(
+                        map( this.start, this.length), 0, this.start);
+            ArrayList records = new ArrayList();
+            long[] lines = new long[ 1024 ];
+            for( ;;) {
+                Object record;
+                try {
+                    record = reader.readMessage();
+                    if( record == null) {
+                        break;
+                    }
+                } catch( LDAPLocalException e) {
+                    record = new Failure( reader.getScanOffset(),
+                                          reader.getScanLine(), e);
+                } catch( IOException e) {
+                    record = new Failure( reader.getScanOffset(),
+                                          reader.getScanLine(), e);
+                }
+                if( records.size() == lines.length) {
+                    long[] grown = new long[ lines.length * 2 ];
+                    System.arraycopy( lines, 0, grown, 0, lines.length);
+                    lines = grown;
+                }
+                lines[ records.size() ] = reader.getLineNumber();
+                records.add( record);
+            }
+            this.records = records;
+            this.lines = lines;
+            this.lineCount = reader.getLinesRead();
+            return this;
+        }
+    }
+
+    /**
+     * A record that could not be read, in place of its message.
+     */
+    private static final class Failure
+    {
+        final long offset;                // offset of the scan
+        final long line;                  // lines before the scan
+        final Exception exception;
+
+        Failure( long offset, long line, Exception exception)
+        {
+            this.offset = offset;
+            this.line = line;
+            this.exception = exception;
+            return;
+        }
+    }
+}
@@ -98,6 +98,55 @@ public class RDN extends Object
         return true;
     }
 
+    /**
+     * Compares the RDN to the specified object.
+     *
+     * @param obj the object to compare to
+     *
+     * @return true if obj is an RDN equal to this RDN, false if it is not
+     * or if an OID type would have to be compared with a name
+     */
+    public boolean equals(Object obj){
+        if (!(obj instanceof RDN))
+            return false;
+        try {
+            return equals((RDN)obj);
+        } catch (IllegalArgumentException e) {
+            // an OID is not compared to a name, the RDNs are not equal
+            return false;
+        }
+    }
+
+    /**
+     * Returns a hash code consistent with {@link #equals(RDN)}: types and
+     * values are hashed ignoring case and the order of the values of a
+     * multivalued RDN does not matter.
+     *
+     * @return the hash code of this RDN
+     */
+    public int hashCode(){
+        int h = 0;
+        for (int i=0; i<values.size(); i++){
+            h += foldedHash((String)types.get(i))
+                ^ foldedHash((String)values.get(i));
+        }
+        return h;
+    }
+
+    /**
+     * Hashes a string folding the case of each character as
+     * String.equalsIgnoreCase does, so that strings equal ignoring case
+     * have the same hash.
+     */
+    private static int foldedHash(String s){
+        int h = 0;
+        for (int i=0; i<s.length(); i++){
+            h = 31 * h + Character.toLowerCase(
+                                Character.toUpperCase(s.charAt(i)));
+        }
+        return h;
+    }
+
     /**
      * Internal function used by equal to compare Attribute types.  Because
      * attribute types could either be an OID or a name.  There needs to be a
@@ -0,0 +1,189 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.terefang.jldap.ldap.LDAPAttributeSchema;
+import com.github.terefang.jldap.ldap.LDAPSchema;
+
+/**
+ * <P>Normalizes distinguished names using the schema of a directory.</P>
+ *
+ * <P>Attribute types are replaced by the OID of their definition, so that
+ * <code>cn=admin</code> and <code>2.5.4.3=admin</code> normalize to the same
+ * DN.  Values are normalized according to the equality matching rule of
+ * their attribute (see {@link MatchingRules}), so for example the values of
+ * caseExactMatch attributes keep their case while those of
+ * telephoneNumberMatch attributes lose their spaces and hyphens.  Types that
+ * are not defined in the schema are lower cased and their values compared
+ * ignoring case.</P>
+ *
+ * <P>Normalized DNs are kept in a bounded cache keyed by the DN string as
+ * given, so each distinct DN is normalized once.  The NormalizedDNs returned
+ * by a normalizer should only be compared with NormalizedDNs returned by the
+ * same normalizer.  A normalizer may be used by any number of threads.</P>
+ *
+ * @see NormalizedDN
+ */
+public class SchemaDNNormalizer
+{
+    /**
+     * The number of places in the cache of a normalizer.
+     */
+    public static final int CACHE_SIZE = 8192;
+
+    private final LDAPSchema schema;
+    private final DNCache cache = new DNCache( CACHE_SIZE);
+    private final ConcurrentHashMap types = new ConcurrentHashMap();
+
+    /* Resolved attribute type: canonical type and matching rule kind */
+    private static final class Type
+    {
+        private final String canonical;
+        private final int rule;
+
+        private Type( String canonical, int rule)
+        {
+            this.canonical = canonical;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * Constructs a normalizer for the specified schema.
+     *
+     * @param schema  The schema used to resolve attribute types and their
+     *                matching rules.
+     */
+    public SchemaDNNormalizer( LDAPSchema schema)
+    {
+        if( schema == null) {
+            throw new IllegalArgumentException("Schema cannot be null");
+        }
+        this.schema = schema;
+        return;
+    }
+
+    /**
+     * Returns the normalized form of a DN string.
+     *
+     * @param dn  A string representation of the distinguished name.
+     *
+     * @return The normalized DN.
+     *
+     * @exception  IllegalArgumentException  if the the value of the dn
+     *               parameter does not adhere to the syntax described in
+     *               RFC 2253
+     */
+    public NormalizedDN normalize( String dn)
+    {
+        NormalizedDN ndn = cache.get( dn);
+        if( ndn == null) {
+            ndn = normalize( new DN( dn));
+            cache.put( dn, ndn);
+        }
+        return ndn;
+    }
+
+    /**
+     * Returns the normalized form of a parsed DN.  The result is not
+     * cached.
+     *
+     * @param dn  The DN to normalize.
+     *
+     * @return The normalized DN.
+     */
+    public NormalizedDN normalize( DN dn)
+    {
+        return new NormalizedDN( dn.countRDNs() == 0 ? "" : dn.toString(),
+                                 NormalizedDN.canonicalRDNs( dn, this));
+    }
+
+    /**
+     * Compares two DN strings using the schema.
+     *
+     * @param dn1  The first DN.
+     * @param dn2  The second DN.
+     *
+     * @return true if the DNs are equal.
+     */
+    public boolean equals( String dn1, String dn2)
+    {
+        return normalize( dn1).equals( normalize( dn2));
+    }
+
+    /**
+     * Returns the canonical form of an attribute type: the OID of its
+     * definition, or the lower cased type if the schema does not define it.
+     *
+     * @param type  The name or OID of an attribute type.
+     *
+     * @return The canonical type.
+     */
+    public String getCanonicalType( String type)
+    {
+        return resolve( type).canonical;
+    }
+
+    /**
+     * Normalizes a value of the specified attribute type according to its
+     * equality matching rule.
+     *
+     * @param type   The name or OID of an attribute type.
+     * @param value  The unescaped value.
+     *
+     * @return The normalized value.
+     */
+    public String normalizeValue( String type, String value)
+    {
+        return MatchingRules.normalize( resolve( type).rule, value);
+    }
+
+    /*
+     * Returns the canonical type=value form of an RDN component.
+     */
+    /* package */
+    String canonicalComponent( String type, String value)
+    {
+        Type t = resolve( type);
+        String v;
+        if( value.length() > 0 && value.charAt( 0) == '#') {
+            // BER encoded value, compared as given
+            v = value.toLowerCase( Locale.ENGLISH);
+        } else {
+            v = NormalizedDN.escapeValue( MatchingRules.normalize( t.rule, value));
+        }
+        return t.canonical + "=" + v;
+    }
+
+    private Type resolve( String type)
+    {
+        String key = type.toLowerCase( Locale.ENGLISH);
+        Type t = (Type)types.get( key);
+        if( t == null) {
+            LDAPAttributeSchema as = schema.getAttributeSchema( type);
+            if( as == null) {
+                t = new Type( key, MatchingRules.CASE_IGNORE);
+            } else {
+                t = new Type( as.getID(), MatchingRules.getKind(
+                            MatchingRules.getEqualityRule( schema, type)));
+            }
+            types.put( key, t);
+        }
+        return t;
+    }
+}
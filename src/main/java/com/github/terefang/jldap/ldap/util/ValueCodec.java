@@ -0,0 +1,52 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+/**
+ * Converts attribute values of one LDAP syntax between their encoded form,
+ * as sent over the protocol, and a Java object.
+ *
+ * <P>Codecs are registered with {@link ValueCodecs} by syntax OID.
+ * Implementations must be thread safe, and decoded objects should be
+ * immutable since {@link com.github.terefang.jldap.ldap.LDAPAttribute}
+ * caches them.</P>
+ *
+ * @see ValueCodecs
+ */
+public interface ValueCodec
+{
+    /**
+     * Decodes a value.
+     *
+     * @param value  The encoded value, which must not be modified.
+     *
+     * @return The decoded object.
+     *
+     * @exception IllegalArgumentException if the value is not valid for the
+     *            syntax.
+     */
+    public Object decode( byte[] value);
+
+    /**
+     * Encodes an object as a value of the syntax.
+     *
+     * @param object  The object to encode.
+     *
+     * @return The encoded value.
+     *
+     * @exception IllegalArgumentException if the object cannot be encoded.
+     */
+    public byte[] encode( Object object);
+}
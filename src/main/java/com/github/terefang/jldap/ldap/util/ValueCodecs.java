@@ -0,0 +1,513 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.github.terefang.jldap.ldap.util;
+
+import java.io.UnsupportedEncodingException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPSchema;
+import com.github.terefang.jldap.ldap.client.AttributeValueSet;
+
+/**
+ * <P>The registry of {@link ValueCodec}s, and codecs for the common
+ * syntaxes of RFC 4517.</P>
+ *
+ * <P>Codecs are looked up by the OID of the syntax of an attribute.  When
+ * no schema is available, or the schema does not define the attribute, a
+ * codec is chosen by attribute name for well known operational and
+ * account attributes such as modifyTimestamp, uidNumber or loginDisabled.
+ * Both tables can be extended by the application.</P>
+ *
+ * <P>The predefined codecs decode values to:</P>
+ * <ul>
+ * <li>{@link #INTEGER}: <code>Long</code></li>
+ * <li>{@link #BOOLEAN}: <code>Boolean</code></li>
+ * <li>{@link #GENERALIZED_TIME}: <code>java.time.Instant</code></li>
+ * <li>{@link #OCTET_STRING}: a copy of the <code>byte[]</code></li>
+ * <li>{@link #DIRECTORY_STRING}: <code>String</code></li>
+ * </ul>
+ *
+ * <P>Active Directory times such as pwdLastSet or lockoutTime have the
+ * Large Integer syntax, a count of 100 nanosecond intervals since 1601
+ * (a FILETIME), and are decoded by {@link #INTEGER} to that count.</P>
+ *
+ * @see com.github.terefang.jldap.ldap.LDAPAttribute#getDecodedValues
+ */
+public final class ValueCodecs
+{
+    /** The OID of the Integer syntax */
+    public static final String INTEGER_SYNTAX =
+                                        "1.3.6.1.4.1.1466.115.121.1.27";
+    /** The OID of the Boolean syntax */
+    public static final String BOOLEAN_SYNTAX =
+                                        "1.3.6.1.4.1.1466.115.121.1.7";
+    /** The OID of the Generalized Time syntax */
+    public static final String GENERALIZED_TIME_SYNTAX =
+                                        "1.3.6.1.4.1.1466.115.121.1.24";
+    /** The OID of the Octet String syntax */
+    public static final String OCTET_STRING_SYNTAX =
+                                        "1.3.6.1.4.1.1466.115.121.1.40";
+    /** The OID of the Directory String syntax */
+    public static final String DIRECTORY_STRING_SYNTAX =
+                                        "1.3.6.1.4.1.1466.115.121.1.15";
+    /** The OID of the Active Directory Large Integer (Integer8) syntax */
+    public static final String LARGE_INTEGER_SYNTAX =
+                                        "1.2.840.113556.1.4.906";
+
+    /** Decodes INTEGER values to Long.  Values out of the range of a long
+     *  are rejected with a NumberFormatException. */
+    public static final ValueCodec INTEGER = new IntegerCodec();
+
+    /** Decodes TRUE and FALSE, in any case, to Boolean */
+    public static final ValueCodec BOOLEAN = new BooleanCodec();
+
+    /** Decodes GeneralizedTime values to Instant, encodes in UTC */
+    public static final ValueCodec GENERALIZED_TIME = new TimeCodec();
+
+    /** Decodes to a copy of the value */
+    public static final ValueCodec OCTET_STRING = new OctetStringCodec();
+
+    /** Decodes UTF-8 values to String */
+    public static final ValueCodec DIRECTORY_STRING = new StringCodec();
+
+    private static final ConcurrentHashMap syntaxes = new ConcurrentHashMap();
+    private static final ConcurrentHashMap attributes =
+                                                    new ConcurrentHashMap();
+
+    static {
+        String prefix = "1.3.6.1.4.1.1466.115.121.1.";
+        registerSyntax( INTEGER_SYNTAX, INTEGER);
+        registerSyntax( LARGE_INTEGER_SYNTAX, INTEGER);
+        registerSyntax( BOOLEAN_SYNTAX, BOOLEAN);
+        registerSyntax( GENERALIZED_TIME_SYNTAX, GENERALIZED_TIME);
+        // Binary, Bit String, Certificate, Certificate List,
+        // Certificate Pair, JPEG, Octet String
+        String[] binary = { "5", "6", "8", "9", "10", "28", "40" };
+        for( int i = 0; i < binary.length; i++) {
+            registerSyntax( prefix + binary[i], OCTET_STRING);
+        }
+        // Country String, DN, Directory String, IA5 String, Numeric String,
+        // OID, Postal Address, Printable String, Telephone Number
+        String[] strings = { "11", "12", "15", "26", "36", "38", "41", "44",
+                             "50" };
+        for( int i = 0; i < strings.length; i++) {
+            registerSyntax( prefix + strings[i], DIRECTORY_STRING);
+        }
+
+        String[] times = { "createTimestamp", "modifyTimestamp",
+                           "pwdChangedTime", "pwdAccountLockedTime",
+                           "pwdFailureTime", "pwdGraceUseTime",
+                           "pwdLastSuccess", "loginTime",
+                           "loginExpirationTime", "passwordExpirationTime" };
+        for( int i = 0; i < times.length; i++) {
+            registerAttribute( times[i], GENERALIZED_TIME_SYNTAX);
+        }
+        // FILETIME counts in Active Directory
+        String[] filetimes = { "lockoutTime", "pwdLastSet", "accountExpires",
+                               "lastLogon", "lastLogonTimestamp",
+                               "lastLogoff", "badPasswordTime" };
+        for( int i = 0; i < filetimes.length; i++) {
+            registerAttribute( filetimes[i], LARGE_INTEGER_SYNTAX);
+        }
+        String[] integers = { "uidNumber", "gidNumber", "shadowLastChange",
+                              "shadowMin", "shadowMax", "shadowWarning",
+                              "shadowInactive", "shadowExpire",
+                              "loginGraceRemaining", "loginGraceLimit",
+                              "loginIntruderAttempts",
+                              "passwordMinimumLength" };
+        for( int i = 0; i < integers.length; i++) {
+            registerAttribute( integers[i], INTEGER_SYNTAX);
+        }
+        String[] booleans = { "loginDisabled", "lockedByIntruder",
+                              "passwordRequired", "passwordAllowChange",
+                              "pwdReset" };
+        for( int i = 0; i < booleans.length; i++) {
+            registerAttribute( booleans[i], BOOLEAN_SYNTAX);
+        }
+        String[] octets = { "userPassword", "jpegPhoto", "userCertificate",
+                            "cACertificate", "certificateRevocationList",
+                            "authorityRevocationList", "objectGUID",
+                            "GUID" };
+        for( int i = 0; i < octets.length; i++) {
+            registerAttribute( octets[i], OCTET_STRING_SYNTAX);
+        }
+    }
+
+    private ValueCodecs()
+    {
+    }
+
+    /**
+     * Registers the codec of a syntax, replacing any previous codec.
+     *
+     * @param oid    The OID of the syntax.
+     * @param codec  The codec.
+     *
+     * @exception IllegalArgumentException if oid or codec is null.
+     */
+    public static void registerSyntax( String oid, ValueCodec codec)
+    {
+        if( oid == null || codec == null) {
+            throw new IllegalArgumentException(
+                                    "Syntax OID and codec cannot be null");
+        }
+        syntaxes.put( oid, codec);
+        return;
+    }
+
+    /**
+     * Registers the syntax of an attribute, used when the attribute cannot
+     * be found in a schema.
+     *
+     * @param attr  The name of the attribute, without options.
+     * @param oid   The OID of the syntax of the attribute.
+     *
+     * @exception IllegalArgumentException if attr or oid is null.
+     */
+    public static void registerAttribute( String attr, String oid)
+    {
+        if( attr == null || oid == null) {
+            throw new IllegalArgumentException(
+                                "Attribute name and syntax cannot be null");
+        }
+        attributes.put( attr.toLowerCase( Locale.ENGLISH), oid);
+        return;
+    }
+
+    /**
+     * Returns the codec of a syntax.
+     *
+     * @param oid  The OID of the syntax, a length bound such as
+     *             <code>{64}</code> is ignored.
+     *
+     * @return The codec, or null if none is registered.
+     */
+    public static ValueCodec getSyntaxCodec( String oid)
+    {
+        if( oid == null) {
+            return null;
+        }
+        int idx = oid.indexOf( '{');
+        if( idx >= 0) {
+            oid = oid.substring( 0, idx);
+        }
+        return (ValueCodec)syntaxes.get( oid.trim());
+    }
+
+    /**
+     * Returns the codec registered for an attribute name.
+     *
+     * @param attr  The attribute name, options are ignored.
+     *
+     * @return The codec, or null if the attribute is not registered.
+     */
+    public static ValueCodec getAttributeCodec( String attr)
+    {
+        String oid = (String)attributes.get(
+                LDAPAttribute.getBaseName( attr).toLowerCase( Locale.ENGLISH));
+        return getSyntaxCodec( oid);
+    }
+
+    /**
+     * Returns the codec for the values of an attribute: the codec of its
+     * syntax in the schema, inherited from its superior types, else the
+     * codec registered for its name, else {@link #DIRECTORY_STRING}.
+     *
+     * @param schema  The schema, may be null.
+     * @param attr    The attribute name, options are ignored.
+     *
+     * @return The codec.
+     */
+    public static ValueCodec getCodec( LDAPSchema schema, String attr)
+    {
+        ValueCodec codec = null;
+        if( schema != null) {
+            codec = getSyntaxCodec( schema.getCompiledSchema().getSyntax(
+                                        LDAPAttribute.getBaseName( attr)));
+        }
+        if( codec == null) {
+            codec = getAttributeCodec( attr);
+        }
+        return codec == null ? DIRECTORY_STRING : codec;
+    }
+
+    private static byte[] utf8( String value)
+    {
+        try {
+            return value.getBytes( "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    /* Integer syntax, decoded to Long */
+    private static final class IntegerCodec implements ValueCodec
+    {
+        public Object decode( byte[] value)
+        {
+            int len = value.length;
+            int i = 0;
+            boolean negative = len > 0 && value[0] == '-';
+            if( negative) {
+                i++;
+            }
+            if( i == len) {
+                throw new NumberFormatException( "Invalid INTEGER value");
+            }
+            // accumulate negatively so Long.MIN_VALUE can be represented
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long result = 0;
+            for( ; i < len; i++) {
+                int digit = value[i] - '0';
+                if( digit < 0 || digit > 9) {
+                    throw new NumberFormatException( "Invalid INTEGER value");
+                }
+                if( result < (limit + digit) / 10) {
+                    throw new NumberFormatException(
+                                            "INTEGER value out of range");
+                }
+                result = result * 10 - digit;
+            }
+            return Long.valueOf( negative ? result : -result);
+        }
+
+        public byte[] encode( Object object)
+        {
+            if( !(object instanceof Number)) {
+                throw new IllegalArgumentException( "Not a number: " + object);
+            }
+            return utf8( object.toString());
+        }
+    }
+
+    /* Boolean syntax */
+    private static final class BooleanCodec implements ValueCodec
+    {
+        public Object decode( byte[] value)
+        {
+            String s = AttributeValueSet.decode( value);
+            if( s.equalsIgnoreCase( "TRUE")) {
+                return Boolean.TRUE;
+            }
+            if( s.equalsIgnoreCase( "FALSE")) {
+                return Boolean.FALSE;
+            }
+            throw new IllegalArgumentException( "Invalid Boolean value: " + s);
+        }
+
+        public byte[] encode( Object object)
+        {
+            if( !(object instanceof Boolean)) {
+                throw new IllegalArgumentException( "Not a Boolean: " + object);
+            }
+            return utf8( ((Boolean)object).booleanValue() ? "TRUE" : "FALSE");
+        }
+    }
+
+    /* Generalized Time syntax, decoded to Instant */
+    private static final class TimeCodec implements ValueCodec
+    {
+        public Object decode( byte[] value)
+        {
+            int[] pos = { 0 };
+            int year = digits( value, pos, 4);
+            int month = digits( value, pos, 2);
+            int day = digits( value, pos, 2);
+            int hour = digits( value, pos, 2);
+            int minute = 0;
+            int second = 0;
+            long unit = 3600;   // seconds in the unit a fraction applies to
+            if( isDigit( value, pos[0])) {
+                minute = digits( value, pos, 2);
+                unit = 60;
+                if( isDigit( value, pos[0])) {
+                    second = digits( value, pos, 2);
+                    unit = 1;
+                }
+            }
+            long fraction = 0;
+            long scale = 1;
+            if( pos[0] < value.length &&
+                    (value[pos[0]] == '.' || value[pos[0]] == ',')) {
+                pos[0]++;
+                if( !isDigit( value, pos[0])) {
+                    throw invalid();
+                }
+                while( isDigit( value, pos[0])) {
+                    // digits beyond nanoseconds are dropped
+                    if( scale < 1000000000L) {
+                        fraction = fraction * 10 + (value[pos[0]] - '0');
+                        scale *= 10;
+                    }
+                    pos[0]++;
+                }
+            }
+            int offset = 0;   // seconds east of UTC
+            if( pos[0] >= value.length) {
+                throw invalid();
+            }
+            byte tz = value[pos[0]++];
+            if( tz == '+' || tz == '-') {
+                int hh = digits( value, pos, 2);
+                int mm = isDigit( value, pos[0]) ? digits( value, pos, 2) : 0;
+                if( hh > 23 || mm > 59) {
+                    throw invalid();
+                }
+                offset = (hh * 60 + mm) * 60;
+                if( tz == '-') {
+                    offset = -offset;
+                }
+            } else if( tz != 'Z') {
+                throw invalid();
+            }
+            if( pos[0] != value.length) {
+                throw invalid();
+            }
+            boolean leap = second == 60;
+            long epoch;
+            try {
+                epoch = LocalDateTime.of( year, month, day, hour, minute,
+                                          leap ? 59 : second)
+                            .toEpochSecond( ZoneOffset.UTC) - offset;
+            } catch( DateTimeException e) {
+                throw invalid();
+            }
+            if( leap) {
+                epoch++;
+            }
+            // the fraction of the last unit given, in seconds and nanos
+            long total = fraction * unit;
+            epoch += total / scale;
+            long nanos = (total % scale) * 1000000000L / scale;
+            return Instant.ofEpochSecond( epoch, nanos);
+        }
+
+        public byte[] encode( Object object)
+        {
+            Instant instant;
+            if( object instanceof Instant) {
+                instant = (Instant)object;
+            } else if( object instanceof Date) {
+                instant = ((Date)object).toInstant();
+            } else {
+                throw new IllegalArgumentException( "Not a time: " + object);
+            }
+            LocalDateTime t;
+            try {
+                t = LocalDateTime.ofEpochSecond( instant.getEpochSecond(),
+                                    instant.getNano(), ZoneOffset.UTC);
+            } catch( DateTimeException e) {
+                throw new IllegalArgumentException( e.toString());
+            }
+            if( t.getYear() < 0 || t.getYear() > 9999) {
+                throw new IllegalArgumentException(
+                                    "Year out of range: " + t.getYear());
+            }
+            StringBuffer buf = new StringBuffer( 24);
+            pad( buf, t.getYear(), 4);
+            pad( buf, t.getMonthValue(), 2);
+            pad( buf, t.getDayOfMonth(), 2);
+            pad( buf, t.getHour(), 2);
+            pad( buf, t.getMinute(), 2);
+            pad( buf, t.getSecond(), 2);
+            int nanos = t.getNano();
+            if( nanos != 0) {
+                int digits = 9;
+                while( nanos % 10 == 0) {
+                    nanos /= 10;
+                    digits--;
+                }
+                buf.append( '.');
+                pad( buf, nanos, digits);
+            }
+            buf.append( 'Z');
+            return utf8( buf.toString());
+        }
+
+        private static void pad( StringBuffer buf, int value, int width)
+        {
+            String s = Integer.toString( value);
+            for( int i = s.length(); i < width; i++) {
+                buf.append( '0');
+            }
+            buf.append( s);
+            return;
+        }
+
+        private static boolean isDigit( byte[] value, int pos)
+        {
+            return pos < value.length && value[pos] >= '0' && value[pos] <= '9';
+        }
+
+        private static int digits( byte[] value, int[] pos, int count)
+        {
+            int result = 0;
+            for( int i = 0; i < count; i++) {
+                if( !isDigit( value, pos[0])) {
+                    throw invalid();
+                }
+                result = result * 10 + (value[pos[0]++] - '0');
+            }
+            return result;
+        }
+
+        private static IllegalArgumentException invalid()
+        {
+            return new IllegalArgumentException(
+                                    "Invalid GeneralizedTime value");
+        }
+    }
+
+    /* Octet String and other binary syntaxes, decoded to a copy */
+    private static final class OctetStringCodec implements ValueCodec
+    {
+        public Object decode( byte[] value)
+        {
+            return value.clone();
+        }
+
+        public byte[] encode( Object object)
+        {
+            if( !(object instanceof byte[])) {
+                throw new IllegalArgumentException( "Not a byte array");
+            }
+            return (byte[])((byte[])object).clone();
+        }
+    }
+
+    /* String syntaxes */
+    private static final class StringCodec implements ValueCodec
+    {
+        public Object decode( byte[] value)
+        {
+            return AttributeValueSet.decode( value);
+        }
+
+        public byte[] encode( Object object)
+        {
+            if( object == null) {
+                throw new IllegalArgumentException( "Value cannot be null");
+            }
+            return utf8( object.toString());
+        }
+    }
+}
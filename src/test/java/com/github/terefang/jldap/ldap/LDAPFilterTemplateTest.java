@@ -0,0 +1,192 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.github.terefang.jldap.ldap.asn1.LBEREncoder;
+import com.github.terefang.jldap.ldap.rfc2251.RfcFilter;
+
+/**
+ * Tests of {@link LDAPFilterTemplate}.
+ */
+public class LDAPFilterTemplateTest
+{
+    /* The encoding of a filter string parsed as usual */
+    private static byte[] parsed( String filter)
+            throws LDAPException
+    {
+        return new RfcFilter( filter).getEncoding( new LBEREncoder());
+    }
+
+    /* Checks that a bound template encodes as its filter string does */
+    private static void assertBinds( String template, Object[] values,
+                                     String filter)
+            throws LDAPException
+    {
+        LDAPFilterTemplate t = new LDAPFilterTemplate( template);
+        assertEquals( filter, t.toFilterString( values));
+        assertArrayEquals( template, parsed( filter), t.encode( values));
+        assertArrayEquals( template, parsed( filter),
+                           t.bind( values).getEncoding( new LBEREncoder()));
+        return;
+    }
+
+    @Test
+    public void testEquality()
+            throws LDAPException
+    {
+        assertBinds( "(&(uid={0})(objectClass=person))",
+                     new Object[] { "jdoe" },
+                     "(&(uid=jdoe)(objectClass=person))");
+        return;
+    }
+
+    @Test
+    public void testAllFilterTypes()
+            throws LDAPException
+    {
+        assertBinds( "(|(a={0})(!(b>={1}))(c<={2})(d~={3})(e=*)" +
+                     "(f:caseExactMatch:={4})(g:dn:={5}))",
+                     new Object[] { "1", "2", "3", "4", "5", "6" },
+                     "(|(a=1)(!(b>=2))(c<=3)(d~=4)(e=*)" +
+                     "(f:caseExactMatch:=5)(g:dn:=6))");
+        return;
+    }
+
+    @Test
+    public void testSubstrings()
+            throws LDAPException
+    {
+        assertBinds( "(cn={0}*)", new Object[] { "Jo" }, "(cn=Jo*)");
+        assertBinds( "(cn=*{0}*{1})", new Object[] { "a", "b" },
+                     "(cn=*a*b)");
+        assertBinds( "(cn=x{0}*y)", new Object[] { "" }, "(cn=x*y)");
+        assertBinds( "(cn={0}{1}*)", new Object[] { "", "b" }, "(cn=b*)");
+        return;
+    }
+
+    @Test
+    public void testValuesAreLiteral()
+            throws LDAPException
+    {
+        assertBinds( "(cn={0})", new Object[] { "*)(uid=*" },
+                     "(cn=\\2a\\29\\28uid=\\2a)");
+        assertBinds( "(cn={0}*)", new Object[] { "a\\b" }, "(cn=a\\5cb*)");
+        assertBinds( "(cn={0})", new Object[] { "Jörg" },
+                     "(cn=Jörg)");
+        return;
+    }
+
+    @Test
+    public void testByteValues()
+            throws LDAPException
+    {
+        assertBinds( "(objectGUID={0})",
+                     new Object[] { new byte[] { 0, (byte)0xff, 0x2a } },
+                     "(objectGUID=\\00\\ff\\2a)");
+        return;
+    }
+
+    @Test
+    public void testEmptyEqualityValue()
+            throws LDAPException
+    {
+        assertBinds( "(cn={0})", new Object[] { "" }, "(cn=)");
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyInitialSubstring()
+            throws LDAPException
+    {
+        new LDAPFilterTemplate( "(cn={0}*)").encode( new Object[] { "" });
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyAnySubstring()
+            throws LDAPException
+    {
+        new LDAPFilterTemplate( "(cn=a*{0}*b)").bind( new Object[] { "" });
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyFinalSubstring()
+            throws LDAPException
+    {
+        new LDAPFilterTemplate( "(cn=*{0}{1})")
+                    .encode( new Object[] { "", new byte[0] });
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValue()
+            throws LDAPException
+    {
+        new LDAPFilterTemplate( "(&(cn={0})(sn={1}))")
+                    .encode( new Object[] { "a" });
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongValueType()
+            throws LDAPException
+    {
+        new LDAPFilterTemplate( "(cn={0})")
+                    .encode( new Object[] { new Integer( 1) });
+        return;
+    }
+
+    @Test(expected = LDAPException.class)
+    public void testInvalidTemplate()
+            throws LDAPException
+    {
+        new LDAPFilterTemplate( "(cn={0}");
+        return;
+    }
+
+    @Test
+    public void testParameterCount()
+            throws LDAPException
+    {
+        LDAPFilterTemplate t = new LDAPFilterTemplate( "(|(cn={2})(sn={0}))");
+        assertEquals( 3, t.getParameterCount());
+        assertEquals( "(|(cn={2})(sn={0}))", t.getTemplate());
+        assertEquals( 0,
+                new LDAPFilterTemplate( "(cn=x)").getParameterCount());
+        return;
+    }
+
+    @Test
+    public void testBoundFilterIterator()
+            throws LDAPException
+    {
+        RfcFilter filter = new LDAPFilterTemplate( "(cn={0})")
+                                    .bind( new Object[] { "a*" });
+        Iterator itr = filter.getFilterIterator();
+        assertEquals( new Integer( RfcFilter.EQUALITY_MATCH), itr.next());
+        assertEquals( "cn", itr.next());
+        assertArrayEquals( new byte[] { 'a', '*' }, (byte[])itr.next());
+        return;
+    }
+}
@@ -0,0 +1,181 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link Base64}.
+ */
+public class Base64Test
+{
+    private static byte[] ascii( String value)
+    {
+        byte[] bytes = new byte[ value.length() ];
+        for( int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)value.charAt( i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testArrayRoundTrip()
+    {
+        Random random = new Random( 1);
+        for( int len = 0; len < 64; len++) {
+            byte[] data = new byte[ len ];
+            random.nextBytes( data);
+            byte[] expected = ascii( Base64.encode( data));
+
+            // offsets in both arrays, and the bytes around them untouched
+            byte[] chars = new byte[ Base64.encodedLength( len) + 4 ];
+            int n = Base64.encode( data, 0, len, chars, 2);
+            assertEquals( expected.length, n);
+            assertArrayEquals( expected, Arrays.copyOfRange( chars, 2, 2 + n));
+            assertEquals( 0, chars[0] | chars[1] | chars[n + 2] | chars[n + 3]);
+
+            assertEquals( len, Base64.decodedLength( chars, 2, n));
+            byte[] decoded = new byte[ len + 1 ];
+            assertEquals( len, Base64.decode( chars, 2, n, decoded, 1));
+            assertArrayEquals( data, Arrays.copyOfRange( decoded, 1, len + 1));
+        }
+        return;
+    }
+
+    @Test
+    public void testBufferRoundTrip()
+    {
+        Random random = new Random( 2);
+        for( int len = 0; len < 5000; len += 1 + len / 3) {
+            byte[] data = new byte[ len ];
+            random.nextBytes( data);
+            byte[] expected = ascii( Base64.encode( data));
+            for( int direct = 0; direct < 2; direct++) {
+                ByteBuffer src = allocate( direct == 1, len);
+                src.put( data).flip();
+                ByteBuffer chars = allocate( direct == 1, expected.length);
+                assertEquals( expected.length, Base64.encode( src, chars));
+                assertEquals( src.limit(), src.position());
+                assertFalse( chars.hasRemaining());
+                chars.flip();
+                byte[] encoded = new byte[ chars.remaining() ];
+                chars.duplicate().get( encoded);
+                assertArrayEquals( expected, encoded);
+
+                ByteBuffer decoded = allocate( direct == 1, len);
+                assertEquals( len, Base64.decode( chars, decoded));
+                assertFalse( decoded.hasRemaining());
+                byte[] result = new byte[ len ];
+                ((ByteBuffer)decoded.flip()).get( result);
+                assertArrayEquals( data, result);
+            }
+        }
+        return;
+    }
+
+    private static ByteBuffer allocate( boolean direct, int capacity)
+    {
+        return direct ? ByteBuffer.allocateDirect( capacity)
+                      : ByteBuffer.allocate( capacity);
+    }
+
+    @Test
+    public void testOptionalPadding()
+    {
+        byte[] decoded = new byte[ 2 ];
+        assertEquals( 1, Base64.decode( ascii( "YQ"), 0, 2, decoded, 0));
+        assertEquals( 'a', decoded[0]);
+        assertEquals( 2, Base64.decode( ascii( "YWI"), 0, 3, decoded, 0));
+        assertArrayEquals( ascii( "ab"), decoded);
+        assertEquals( 2, Base64.decode( ascii( "YWI="), 0, 4, decoded, 0));
+        assertArrayEquals( ascii( "ab"), decoded);
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCharacter()
+    {
+        Base64.decode( ascii( "YW*j"), 0, 4, new byte[ 3 ], 0);
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLength()
+    {
+        Base64.decodedLength( ascii( "YWJjZ"), 0, 5);
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMisplacedPadding()
+    {
+        Base64.decodedLength( ascii( "YQ="), 0, 3);
+        return;
+    }
+
+    @Test(expected = java.nio.BufferOverflowException.class)
+    public void testSmallBuffer()
+    {
+        Base64.encode( ByteBuffer.wrap( ascii( "abcd")), ByteBuffer.allocate( 7));
+        return;
+    }
+
+    @Test
+    public void testLDIFSafe()
+    {
+        assertTrue( Base64.isLDIFSafe( ascii( "")));
+        assertTrue( Base64.isLDIFSafe( ascii( "cn=a b,dc=ex")));
+        assertTrue( Base64.isLDIFSafe( ascii( "a:b<c")));
+        assertFalse( Base64.isLDIFSafe( ascii( " a")));
+        assertFalse( Base64.isLDIFSafe( ascii( ":a")));
+        assertFalse( Base64.isLDIFSafe( ascii( "<a")));
+        assertFalse( Base64.isLDIFSafe( ascii( "a ")));
+        assertFalse( Base64.isLDIFSafe( ascii( "a\nb")));
+        assertFalse( Base64.isLDIFSafe( ascii( "a\rb")));
+        assertFalse( Base64.isLDIFSafe( ascii( "a\0b")));
+        assertFalse( Base64.isLDIFSafe( new byte[] { 'a', (byte)0xc3, (byte)0xa9 }));
+        // the range is checked, not the whole array
+        assertTrue( Base64.isLDIFSafe( ascii( " ab "), 1, 2));
+        assertTrue( Base64.isLDIFSafe( "plain"));
+        assertFalse( Base64.isLDIFSafe( "Jörg"));
+        return;
+    }
+
+    @Test
+    public void testCopyPrintable()
+    {
+        byte[] dst = new byte[ 8 ];
+        assertEquals( 4, Base64.copyPrintable( ascii( "xa b~y"), 1, 4, dst, 2));
+        assertArrayEquals( ascii( "\0\0a b~\0\0"), dst);
+
+        // stops at the first byte that is not printable ASCII
+        assertEquals( 2, Base64.copyPrintable( ascii( "ab\tc"), 0, 4, dst, 0));
+        assertEquals( 1, Base64.copyPrintable(
+                new byte[] { 'a', (byte)0x80 }, 0, 2, dst, 0));
+        assertEquals( 0, Base64.copyPrintable( ascii( "\u007f"), 0, 1, dst, 0));
+        assertEquals( 0, Base64.copyPrintable( ascii( ""), 0, 0, dst, 0));
+        return;
+    }
+}
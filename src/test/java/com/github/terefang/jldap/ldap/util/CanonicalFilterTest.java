@@ -0,0 +1,162 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.github.terefang.jldap.ldap.LDAPException;
+
+/**
+ * Tests of {@link CanonicalFilter}.
+ */
+public class CanonicalFilterTest
+{
+    private static void assertSameKey( String a, String b)
+            throws LDAPException
+    {
+        CanonicalFilter ca = new CanonicalFilter( a);
+        CanonicalFilter cb = new CanonicalFilter( b);
+        assertEquals( a + " / " + b, ca, cb);
+        assertEquals( ca.hashCode(), cb.hashCode());
+        assertEquals( ca.getFingerprint(), cb.getFingerprint());
+        return;
+    }
+
+    private static void assertDifferentKey( String a, String b)
+            throws LDAPException
+    {
+        CanonicalFilter ca = new CanonicalFilter( a);
+        CanonicalFilter cb = new CanonicalFilter( b);
+        assertNotEquals( a + " / " + b, ca, cb);
+        assertNotEquals( ca.toString(), cb.toString());
+        return;
+    }
+
+    @Test
+    public void testCaseAndOrder()
+            throws LDAPException
+    {
+        assertEquals( "(&(objectclass=person)(uid=a))",
+                CanonicalFilter.canonicalize( "(&(uid=a)(objectClass=person))"));
+        assertSameKey( "(&(uid=a)(objectClass=person))",
+                       "(&(objectclass=person)(UID=a))");
+        return;
+    }
+
+    @Test
+    public void testValuesKeepCase()
+            throws LDAPException
+    {
+        assertDifferentKey( "(cn=Foo)", "(cn=foo)");
+        return;
+    }
+
+    @Test
+    public void testFlattening()
+            throws LDAPException
+    {
+        assertEquals( "(|(a=1)(b=2)(c=3))",
+                CanonicalFilter.canonicalize( "(|(a=1)(|(b=2)(c=3)))"));
+        assertEquals( "(a=1)", CanonicalFilter.canonicalize( "(&(a=1))"));
+        assertEquals( "(cn=x)", CanonicalFilter.canonicalize( "(&(cn=x)(cn=x))"));
+        assertEquals( "(cn=x)", CanonicalFilter.canonicalize( "(!(!(cn=x)))"));
+        // AND and OR are not merged into each other
+        assertDifferentKey( "(&(a=1)(|(b=2)(c=3)))", "(&(a=1)(b=2)(c=3))");
+        return;
+    }
+
+    @Test
+    public void testOptions()
+            throws LDAPException
+    {
+        assertSameKey( "(cn;lang-en;binary=x)", "(cn;binary;lang-en=x)");
+        assertDifferentKey( "(cn;lang-en=x)", "(cn=x)");
+        return;
+    }
+
+    @Test
+    public void testDnAttributes()
+            throws LDAPException
+    {
+        // the dnAttributes flag changes which entries match
+        assertDifferentKey( "(ou:dn:=people)", "(ou:=people)");
+        assertDifferentKey( "(cn:dn:caseExactMatch:=Foo)",
+                            "(cn:caseExactMatch:=Foo)");
+        assertEquals( "(ou:dn:=people)",
+                      CanonicalFilter.canonicalize( "(OU:dn:=people)"));
+        assertEquals( "(cn:dn:caseexactmatch:=Foo)",
+                CanonicalFilter.canonicalize( "(CN:dn:caseExactMatch:=Foo)"));
+        assertEquals( "(:dn:2.5.13.5:=x)",
+                      CanonicalFilter.canonicalize( "(:dn:2.5.13.5:=x)"));
+        return;
+    }
+
+    @Test
+    public void testEscaping()
+            throws LDAPException
+    {
+        assertEquals( "(cn=a\\2ab*c*)",
+                      CanonicalFilter.canonicalize( "(cn=a\\2Ab*c*)"));
+        assertEquals( "(cn=\\00)", CanonicalFilter.canonicalize( "(cn=\\00)"));
+        assertDifferentKey( "(cn=a\\2a)", "(cn=a*)");
+        return;
+    }
+
+    @Test
+    public void testRoundTrip()
+            throws LDAPException
+    {
+        String[] filters = {
+            "(&(uid=a)(objectClass=person))",
+            "(|(a=1)(!(b>=2))(c<=3)(d~=4)(e=*))",
+            "(cn=a*b*c)",
+            "(ou:dn:=people)",
+            "(cn;binary;lang-en=x)",
+            "(cn=\\ff\\00)"
+        };
+        for( int i = 0; i < filters.length; i++) {
+            String canonical = CanonicalFilter.canonicalize( filters[i]);
+            // the canonical form is a filter with itself as canonical form
+            assertEquals( filters[i], canonical,
+                          CanonicalFilter.canonicalize( canonical));
+        }
+        return;
+    }
+
+    @Test
+    public void testEqualsOtherTypes()
+            throws LDAPException
+    {
+        CanonicalFilter filter = new CanonicalFilter( "(cn=x)");
+        assertTrue( filter.equals( filter));
+        assertFalse( filter.equals( "(cn=x)"));
+        assertFalse( filter.equals( null));
+        return;
+    }
+
+    @Test(expected = LDAPException.class)
+    public void testInvalidFilter()
+            throws LDAPException
+    {
+        new CanonicalFilter( "(cn=x");
+        return;
+    }
+}
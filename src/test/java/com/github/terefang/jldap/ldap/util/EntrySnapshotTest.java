@@ -0,0 +1,314 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPAttributeSet;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+
+/**
+ * Tests of {@link EntrySnapshotWriter}, {@link EntrySnapshotReader} and
+ * {@link EntrySnapshot}.
+ */
+public class EntrySnapshotTest
+{
+    private static final int COUNT = 100;
+
+    private File file;
+
+    @After
+    public void deleteFile()
+    {
+        if( this.file != null) {
+            this.file.delete();
+        }
+        return;
+    }
+
+    private static LDAPEntry entry( int i)
+    {
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        attrs.add( new LDAPAttribute( "cn", "value " + i));
+        LDAPAttribute classes = new LDAPAttribute( "objectClass", "top");
+        classes.addValue( "person");
+        attrs.add( classes);
+        // attribute descriptions past the dictionary of the first block
+        attrs.add( new LDAPAttribute( "attr" + i % 7 + ";binary",
+                        new byte[] { 0, (byte)i, (byte)0xff }));
+        return new LDAPEntry( "cn=e" + i + ",o=x", attrs);
+    }
+
+    private static void assertEntry( int i, LDAPEntry entry)
+    {
+        LDAPEntry expected = entry( i);
+        assertEquals( expected.getDN(), entry.getDN());
+        assertEquals( 3, entry.getAttributeSet().size());
+        assertEquals( "value " + i, entry.getAttribute( "cn").getStringValue());
+        assertArrayEquals( new String[] { "top", "person" },
+                entry.getAttribute( "objectClass").getStringValueArray());
+        assertArrayEquals( new byte[] { 0, (byte)i, (byte)0xff },
+                entry.getAttribute( "attr" + i % 7 + ";binary")
+                                                    .getByteValue());
+        return;
+    }
+
+    private static byte[] write( boolean indexed, int blockSize)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EntrySnapshotWriter writer =
+                        new EntrySnapshotWriter( out, indexed, blockSize);
+        for( int i = 0; i < COUNT; i++) {
+            writer.writeEntry( entry( i));
+        }
+        writer.finish();
+        assertEquals( COUNT, writer.getRecordCount());
+        return out.toByteArray();
+    }
+
+    private File toFile( byte[] snapshot)
+            throws IOException
+    {
+        this.file = File.createTempFile( "snapshot", ".bin");
+        OutputStream out = new FileOutputStream( this.file);
+        try {
+            out.write( snapshot);
+        } finally {
+            out.close();
+        }
+        return this.file;
+    }
+
+    @Test
+    public void testStream()
+            throws IOException
+    {
+        for( int indexed = 0; indexed < 2; indexed++) {
+            EntrySnapshotReader reader = new EntrySnapshotReader(
+                new ByteArrayInputStream( write( indexed == 1, 300)));
+            for( int i = 0; i < COUNT; i++) {
+                assertEntry( i, reader.readEntry());
+            }
+            assertNull( reader.readEntry());
+            assertFalse( reader.isIndexed());
+            reader.close();
+        }
+        return;
+    }
+
+    @Test
+    public void testFile()
+            throws IOException
+    {
+        EntrySnapshotReader reader =
+                    new EntrySnapshotReader( toFile( write( true, 300)));
+        assertTrue( reader.isIndexed());
+        assertEquals( COUNT, reader.getRecordCount());
+        assertTrue( reader.getBlockCount() > 3);
+        for( int i = 0; i < COUNT; i++) {
+            assertEntry( i, reader.readEntry());
+        }
+        assertNull( reader.readEntry());
+        reader.close();
+        return;
+    }
+
+    @Test
+    public void testSeek()
+            throws IOException
+    {
+        EntrySnapshotReader reader =
+                    new EntrySnapshotReader( toFile( write( true, 300)));
+        int[] records = { 57, 0, COUNT - 1, 3, 58 };
+        for( int i = 0; i < records.length; i++) {
+            reader.seek( records[i]);
+            assertEntry( records[i], reader.readEntry());
+        }
+        assertEntry( 59, reader.readEntry());
+        reader.seek( COUNT);
+        assertNull( reader.readEntry());
+        reader.seek( -1);
+        assertNull( reader.readEntry());
+        reader.seek( 10);
+        assertEntry( 10, reader.readEntry());
+        reader.close();
+        return;
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSeekWithoutIndex()
+            throws IOException
+    {
+        new EntrySnapshotReader( toFile( write( false, 300))).seek( 1);
+        return;
+    }
+
+    @Test
+    public void testParts()
+            throws IOException
+    {
+        File snapshot = toFile( write( true, 300));
+        EntrySnapshotReader whole = new EntrySnapshotReader( snapshot);
+        int blocks = whole.getBlockCount();
+        whole.close();
+
+        // parts of one, two and three blocks cover every entry once
+        int next = 0;
+        int block = 0;
+        for( int size = 1; block < blocks; size = size % 3 + 1) {
+            int count = Math.min( size, blocks - block);
+            EntrySnapshotReader part =
+                        new EntrySnapshotReader( snapshot, block, count);
+            LDAPEntry entry;
+            while( (entry = part.readEntry()) != null) {
+                assertEntry( next++, entry);
+            }
+            part.close();
+            block += count;
+        }
+        assertEquals( COUNT, next);
+        return;
+    }
+
+    @Test
+    public void testSeekInPart()
+            throws IOException
+    {
+        File snapshot = toFile( write( true, 300));
+        EntrySnapshotReader whole = new EntrySnapshotReader( snapshot);
+        int blocks = whole.getBlockCount();
+        whole.close();
+
+        EntrySnapshotReader part =
+                    new EntrySnapshotReader( snapshot, blocks / 3, blocks / 3);
+        int first = number( part.readEntry());
+        int last = first;
+        LDAPEntry entry;
+        while( (entry = part.readEntry()) != null) {
+            last = number( entry);
+        }
+        assertTrue( first > 0 && last < COUNT - 1);
+
+        part.seek( first + 1);
+        assertEntry( first + 1, part.readEntry());
+        part.seek( last);
+        assertEntry( last, part.readEntry());
+        assertNull( part.readEntry());
+        // past the part nothing is read
+        part.seek( last + 1);
+        assertNull( part.readEntry());
+        part.seek( first);
+        assertEntry( first, part.readEntry());
+        try {
+            part.seek( first - 1);
+            fail( "seek before the part");
+        } catch( IllegalArgumentException e) {
+            // expected
+        }
+        part.close();
+        return;
+    }
+
+    /* The number of an entry written by entry(int) */
+    private static int number( LDAPEntry entry)
+    {
+        String dn = entry.getDN();
+        return Integer.parseInt( dn.substring( 4, dn.indexOf( ',')));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPartOutsideFile()
+            throws IOException
+    {
+        File snapshot = toFile( write( true, 300));
+        EntrySnapshotReader whole = new EntrySnapshotReader( snapshot);
+        int blocks = whole.getBlockCount();
+        whole.close();
+        new EntrySnapshotReader( snapshot, blocks - 1, 2);
+        return;
+    }
+
+    @Test
+    public void testDamaged()
+            throws IOException
+    {
+        byte[] snapshot = write( false, 300);
+        // a byte in the records of the first block
+        snapshot[ snapshot.length / 4 ] ^= 0x10;
+        EntrySnapshotReader reader = new EntrySnapshotReader(
+                                new ByteArrayInputStream( snapshot));
+        try {
+            while( reader.readEntry() != null) {
+                // read everything
+            }
+            fail( "damaged snapshot read");
+        } catch( IOException e) {
+            // expected
+        }
+        return;
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASnapshot()
+            throws IOException
+    {
+        new EntrySnapshotReader( new ByteArrayInputStream(
+                        "version: 1\n\ndn: cn=a\n".getBytes( "UTF-8")));
+        return;
+    }
+
+    @Test
+    public void testLDIFConversion()
+            throws IOException, LDAPException
+    {
+        File snapshot = toFile( write( true, 300));
+        File ldif = File.createTempFile( "snapshot", ".ldif");
+        File copy = File.createTempFile( "snapshot", ".bin");
+        try {
+            assertEquals( COUNT, EntrySnapshot.toLDIF( snapshot, ldif));
+            assertEquals( COUNT, EntrySnapshot.fromLDIF( ldif, copy));
+            EntrySnapshotReader reader = new EntrySnapshotReader( copy);
+            assertTrue( reader.isIndexed());
+            for( int i = 0; i < COUNT; i++) {
+                assertEntry( i, reader.readEntry());
+            }
+            assertNull( reader.readEntry());
+            reader.close();
+        } finally {
+            ldif.delete();
+            copy.delete();
+        }
+        return;
+    }
+}
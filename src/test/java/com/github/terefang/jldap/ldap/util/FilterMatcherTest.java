@@ -0,0 +1,188 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPAttributeSet;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPSchema;
+
+/**
+ * Tests of {@link FilterMatcher}.
+ */
+public class FilterMatcherTest
+{
+    private static LDAPSchema schema()
+    {
+        LDAPAttribute types = new LDAPAttribute( "attributeTypes");
+        types.addValue( "( 2.5.4.3 NAME ( 'cn' 'commonName' ) " +
+                "EQUALITY caseIgnoreMatch SUBSTR caseIgnoreSubstringsMatch " +
+                "SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )");
+        types.addValue( "( 1.2.3.4 NAME 'x' EQUALITY integerMatch " +
+                "ORDERING integerOrderingMatch " +
+                "SYNTAX 1.3.6.1.4.1.1466.115.121.1.27 )");
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        attrs.add( types);
+        return new LDAPSchema( new LDAPEntry( "cn=schema", attrs));
+    }
+
+    /* An entry from pairs of attribute names and values */
+    private static LDAPEntry entry( String dn, String[] values)
+    {
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        for( int i = 0; i < values.length; i += 2) {
+            LDAPAttribute attr = attrs.getAttribute( values[i]);
+            if( attr == null) {
+                attrs.add( new LDAPAttribute( values[i], values[i + 1]));
+            } else {
+                attr.addValue( values[i + 1]);
+            }
+        }
+        return new LDAPEntry( dn, attrs);
+    }
+
+    private static final LDAPEntry ENTRY = entry( "cn=a b,ou=People,dc=ex",
+            new String[] {
+                "cn", "a  B",
+                "commonName;lang-en", "Zed",
+                "2.5.4.3", "oidval",
+                "x", "abc"
+            });
+
+    private static boolean matches( String filter, LDAPSchema schema)
+            throws LDAPException
+    {
+        return new FilterMatcher( filter, schema).matches( ENTRY);
+    }
+
+    @Test
+    public void testNotOfUndefined()
+            throws LDAPException
+    {
+        LDAPSchema schema = schema();
+        // x is not an integer, so ordering matches are Undefined
+        assertFalse( matches( "(x>=5)", schema));
+        assertFalse( matches( "(!(x>=5))", schema));
+        assertFalse( matches( "(!(!(x>=5)))", schema));
+        assertFalse( matches( "(&(x>=5)(cn=a b))", schema));
+        assertTrue( matches( "(|(x>=5)(cn=a b))", schema));
+        // FALSE in an AND decides it despite the Undefined component
+        assertTrue( matches( "(!(&(x>=5)(cn=zz)))", schema));
+        // an assertion value that is not an integer
+        assertFalse( matches( "(x=five)", schema));
+        assertFalse( matches( "(!(x=five))", schema));
+        return;
+    }
+
+    @Test
+    public void testNotOfFalse()
+            throws LDAPException
+    {
+        assertTrue( matches( "(!(sn=x))", null));
+        assertTrue( matches( "(!(cn=zz))", schema()));
+        return;
+    }
+
+    @Test
+    public void testAttributeNames()
+            throws LDAPException
+    {
+        LDAPSchema schema = schema();
+        assertTrue( matches( "(commonname=zed)", schema));
+        assertTrue( matches( "(2.5.4.3=a b)", schema));
+        assertTrue( matches( "(cn=oidval)", schema));
+        // without a schema, names are only compared ignoring case
+        assertTrue( matches( "(CN=A B)", null));
+        assertFalse( matches( "(commonName=a b)", null));
+        return;
+    }
+
+    @Test
+    public void testOptions()
+            throws LDAPException
+    {
+        LDAPSchema schema = schema();
+        assertTrue( matches( "(cn;lang-en=zed)", schema));
+        assertFalse( matches( "(cn;lang-de=zed)", schema));
+        assertTrue( matches( "(cn=zed)", schema));
+        return;
+    }
+
+    @Test
+    public void testPresence()
+            throws LDAPException
+    {
+        assertTrue( matches( "(cn=*)", null));
+        assertFalse( matches( "(sn=*)", null));
+        return;
+    }
+
+    @Test
+    public void testSubstrings()
+            throws LDAPException
+    {
+        LDAPSchema schema = schema();
+        // inner spaces collapse, spaces next to a wildcard are kept
+        assertTrue( matches( "(cn=a b*)", schema));
+        assertTrue( matches( "(cn=* b*)", schema));
+        assertTrue( matches( "(cn=*a b*)", schema));
+        assertFalse( matches( "(cn=* c*)", schema));
+        assertFalse( matches( "(cn=*b *)", schema));
+        assertFalse( matches( "(cn= a*)", schema));
+        return;
+    }
+
+    @Test
+    public void testIntegers()
+            throws LDAPException
+    {
+        LDAPSchema schema = schema();
+        LDAPEntry entry = entry( "cn=n", new String[] { "x", "10" });
+        assertTrue( new FilterMatcher( "(x>=5)", schema).matches( entry));
+        assertFalse( new FilterMatcher( "(x<=5)", schema).matches( entry));
+        assertTrue( new FilterMatcher( "(!(x<=5))", schema).matches( entry));
+        assertTrue( new FilterMatcher( "(x=010)", schema).matches( entry));
+        return;
+    }
+
+    @Test
+    public void testDnAttributes()
+            throws LDAPException
+    {
+        LDAPSchema schema = schema();
+        assertTrue( matches( "(ou:dn:=people)", schema));
+        assertFalse( matches( "(ou:=people)", schema));
+        assertFalse( matches( "(!(ou:dn:=people))", schema));
+        // a set of attributes has no DN
+        assertFalse( new FilterMatcher( "(ou:dn:=people)", schema)
+                                    .matches( ENTRY.getAttributeSet()));
+        return;
+    }
+
+    @Test(expected = LDAPException.class)
+    public void testInvalidFilter()
+            throws LDAPException
+    {
+        new FilterMatcher( "(cn=a");
+        return;
+    }
+}
@@ -0,0 +1,263 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.github.terefang.jldap.ldap.LDAPAddRequest;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPDeleteRequest;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPModification;
+import com.github.terefang.jldap.ldap.LDAPModifyDNRequest;
+import com.github.terefang.jldap.ldap.LDAPModifyRequest;
+
+/**
+ * Tests of {@link LDIFByteReader}.
+ */
+public class LDIFByteReaderTest
+{
+    private static final String CONTENT =
+        "version: 1\n" +
+        "# a comment\n" +
+        "  continued\n" +
+        "\n" +
+        "dn: cn=a,dc=ex\n" +
+        "cn: a\n" +
+        "description: long\n" +
+        "  folded\n" +
+        "sn:: SsO2cmc=\n" +
+        "objectClass: top\n" +
+        "objectClass: person\n" +
+        "\n" +
+        "\n" +
+        "dn:: Y249YixkYz1leA==\r\n" +
+        "cn: b\r\n";
+
+    private static final String CHANGES =
+        "version: 1\n" +
+        "\n" +
+        "dn: cn=a,dc=ex\n" +
+        "changetype: add\n" +
+        "cn: a\n" +
+        "\n" +
+        "dn: cn=a,dc=ex\n" +
+        "changetype: modify\n" +
+        "replace: cn\n" +
+        "cn: x\n" +
+        "-\n" +
+        "add: sn\n" +
+        "sn: y\n" +
+        "\n" +
+        "dn: cn=a,dc=ex\n" +
+        "changetype: moddn\n" +
+        "newrdn: cn=b\n" +
+        "deleteoldrdn: 1\n" +
+        "newsuperior: dc=other\n" +
+        "\n" +
+        "dn: cn=b,dc=other\n" +
+        "control: 1.2.840.113556.1.4.805 true\n" +
+        "changetype: delete\n";
+
+    private static byte[] utf8( String value)
+    {
+        try {
+            return value.getBytes( "UTF-8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    private static void assertContent( LDIFByteReader reader)
+            throws IOException, LDAPException
+    {
+        LDAPEntry entry = reader.readEntry();
+        assertEquals( "cn=a,dc=ex", entry.getDN());
+        assertEquals( 5, reader.getLineNumber());
+        assertEquals( CONTENT.indexOf( "dn: cn=a"), reader.getRecordOffset());
+        assertEquals( "long folded",
+                      entry.getAttribute( "description").getStringValue());
+        assertEquals( "Jörg", entry.getAttribute( "sn").getStringValue());
+        assertArrayEquals( new String[] { "top", "person" },
+                entry.getAttribute( "objectClass").getStringValueArray());
+        assertFalse( reader.isRequest());
+        assertEquals( "1", reader.getVersion());
+
+        entry = reader.readEntry();
+        assertEquals( "cn=b,dc=ex", entry.getDN());
+        assertEquals( 14, reader.getLineNumber());
+        assertEquals( "b", entry.getAttribute( "cn").getStringValue());
+        assertNull( reader.readEntry());
+        assertNull( reader.readEntry());
+        reader.close();
+        return;
+    }
+
+    @Test
+    public void testBuffer()
+            throws IOException, LDAPException
+    {
+        assertContent( new LDIFByteReader( ByteBuffer.wrap( utf8( CONTENT))));
+        return;
+    }
+
+    @Test
+    public void testStream()
+            throws IOException, LDAPException
+    {
+        assertContent( new LDIFByteReader(
+                        new ByteArrayInputStream( utf8( CONTENT))));
+        return;
+    }
+
+    @Test
+    public void testFile()
+            throws IOException, LDAPException
+    {
+        File file = File.createTempFile( "ldif", ".ldif");
+        try {
+            OutputStream out = new FileOutputStream( file);
+            try {
+                out.write( utf8( CONTENT));
+            } finally {
+                out.close();
+            }
+            assertContent( new LDIFByteReader( file));
+        } finally {
+            file.delete();
+        }
+        return;
+    }
+
+    @Test
+    public void testWithoutVersion()
+            throws IOException, LDAPException
+    {
+        LDIFByteReader reader = new LDIFByteReader(
+                    ByteBuffer.wrap( utf8( "dn: cn=a\ncn: a\n")));
+        assertEquals( "cn=a", reader.readEntry().getDN());
+        assertNull( reader.readEntry());
+        return;
+    }
+
+    @Test
+    public void testLargeStream()
+            throws IOException, LDAPException
+    {
+        // more than the first buffer of a stream, and a value split by it
+        StringBuffer ldif = new StringBuffer( "version: 1\n");
+        int count = 40000;
+        for( int i = 0; i < count; i++) {
+            ldif.append( "\ndn: cn=e").append( i).append( ",dc=ex\n");
+            ldif.append( "description: value of entry ").append( i)
+                .append( '\n');
+        }
+        LDIFByteReader reader = new LDIFByteReader(
+                        new ByteArrayInputStream( utf8( ldif.toString())));
+        for( int i = 0; i < count; i++) {
+            LDAPEntry entry = reader.readEntry();
+            assertEquals( "cn=e" + i + ",dc=ex", entry.getDN());
+            assertEquals( "value of entry " + i,
+                    entry.getAttribute( "description").getStringValue());
+        }
+        assertNull( reader.readEntry());
+        return;
+    }
+
+    @Test
+    public void testChanges()
+            throws IOException, LDAPException
+    {
+        LDIFByteReader reader = new LDIFByteReader(
+                    new ByteArrayInputStream( utf8( CHANGES)));
+        LDAPMessage message = reader.readMessage();
+        assertTrue( reader.isRequest());
+        assertTrue( message instanceof LDAPAddRequest);
+        assertEquals( "cn=a,dc=ex",
+                      ((LDAPAddRequest)message).getEntry().getDN());
+
+        LDAPModification[] mods =
+                ((LDAPModifyRequest)reader.readMessage()).getModifications();
+        assertEquals( 2, mods.length);
+        assertEquals( LDAPModification.REPLACE, mods[0].getOp());
+        assertEquals( "x", mods[0].getAttribute().getStringValue());
+        assertEquals( LDAPModification.ADD, mods[1].getOp());
+        assertEquals( "sn", mods[1].getAttribute().getName());
+
+        LDAPModifyDNRequest moddn = (LDAPModifyDNRequest)reader.readMessage();
+        assertEquals( "cn=b", moddn.getNewRDN());
+        assertTrue( moddn.getDeleteOldRDN());
+        assertEquals( "dc=other", moddn.getParentDN());
+
+        message = reader.readMessage();
+        assertTrue( message instanceof LDAPDeleteRequest);
+        assertEquals( 1, message.getControls().length);
+        assertEquals( "1.2.840.113556.1.4.805",
+                      message.getControls()[0].getID());
+        assertTrue( message.getControls()[0].isCritical());
+        assertNull( reader.readMessage());
+        return;
+    }
+
+    private static void assertInvalid( String ldif)
+            throws IOException
+    {
+        try {
+            new LDIFByteReader( ByteBuffer.wrap( utf8( ldif))).readEntry();
+        } catch( LDAPLocalException e) {
+            return;
+        }
+        throw new AssertionError( "no error reading " + ldif);
+    }
+
+    @Test
+    public void testInvalid()
+            throws IOException
+    {
+        assertInvalid( "dn: cn=a\nsn:: !!!!\n");
+        assertInvalid( "dn: cn=a\nchangetype: delete\n");
+        assertInvalid( "cn: a\n");
+        assertInvalid( "dn: cn=a\nnocolon\n");
+        assertInvalid( "version: 2\n\ndn: cn=a\n");
+        return;
+    }
+
+    @Test(expected = LDAPLocalException.class)
+    public void testUnknownChangeType()
+            throws IOException, LDAPException
+    {
+        new LDIFByteReader( ByteBuffer.wrap(
+                    utf8( "dn: cn=a\nchangetype: frob\n"))).readMessage();
+        return;
+    }
+}
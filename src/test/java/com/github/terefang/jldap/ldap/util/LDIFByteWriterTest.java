@@ -0,0 +1,250 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.github.terefang.jldap.ldap.LDAPAddRequest;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPAttributeSet;
+import com.github.terefang.jldap.ldap.LDAPControl;
+import com.github.terefang.jldap.ldap.LDAPDeleteRequest;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPModification;
+import com.github.terefang.jldap.ldap.LDAPModifyDNRequest;
+import com.github.terefang.jldap.ldap.LDAPModifyRequest;
+
+/**
+ * Tests of {@link LDIFByteWriter}.
+ */
+public class LDIFByteWriterTest
+{
+    /* Characters of random values, with some that force base64 */
+    private static final String CHARS =
+        "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789" +
+        "     ,=+:<#\\\"éü中\n\r\u0000";
+
+    private static String randomValue( Random random, int max)
+    {
+        int len = random.nextInt( max);
+        StringBuffer buf = new StringBuffer( len);
+        for( int i = 0; i < len; i++) {
+            buf.append( CHARS.charAt( random.nextInt( CHARS.length())));
+        }
+        return buf.toString();
+    }
+
+    private static LDAPEntry[] randomEntries( int count)
+    {
+        Random random = new Random( 3);
+        LDAPEntry[] entries = new LDAPEntry[ count ];
+        for( int i = 0; i < count; i++) {
+            LDAPAttributeSet attrs = new LDAPAttributeSet();
+            int n = 1 + random.nextInt( 5);
+            for( int j = 0; j < n; j++) {
+                LDAPAttribute attr = new LDAPAttribute( "attr" + j);
+                int values = 1 + random.nextInt( 3);
+                for( int k = 0; k < values; k++) {
+                    // long values are folded
+                    attr.addValue( k + randomValue( random, 200));
+                }
+                attrs.add( attr);
+            }
+            byte[] binary = new byte[ random.nextInt( 100) ];
+            random.nextBytes( binary);
+            attrs.add( new LDAPAttribute( "data;binary", binary));
+            entries[i] = new LDAPEntry( "cn=" + i + randomValue( random, 5) +
+                                        ",dc=ex", attrs);
+        }
+        return entries;
+    }
+
+    @Test
+    public void testSameAsLDIFWriter()
+            throws IOException
+    {
+        LDAPEntry[] entries = randomEntries( 500);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LDIFByteWriter writer = new LDIFByteWriter( bytes, "1", false);
+        ByteArrayOutputStream chars = new ByteArrayOutputStream();
+        LDIFWriter expected = new LDIFWriter( chars, "1", false);
+        for( int i = 0; i < entries.length; i++) {
+            writer.writeEntry( entries[i]);
+            expected.writeEntry( entries[i]);
+        }
+        writer.finish();
+        expected.finish();
+        assertArrayEquals( chars.toByteArray(), bytes.toByteArray());
+        return;
+    }
+
+    private static void assertSameEntry( LDAPEntry expected, LDAPEntry entry)
+    {
+        assertEquals( expected.getDN(), entry.getDN());
+        LDAPAttributeSet attrs = entry.getAttributeSet();
+        assertEquals( expected.getAttributeSet().size(), attrs.size());
+        Iterator itr = expected.getAttributeSet().iterator();
+        while( itr.hasNext()) {
+            LDAPAttribute attr = (LDAPAttribute)itr.next();
+            LDAPAttribute read = attrs.getAttribute( attr.getName());
+            assertArrayEquals( attr.getName(), attr.getByteValueArray(),
+                               read.getByteValueArray());
+        }
+        return;
+    }
+
+    @Test
+    public void testRoundTrip()
+            throws IOException, LDAPException
+    {
+        LDAPEntry[] entries = randomEntries( 500);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LDIFByteWriter writer = new LDIFByteWriter( out, "1", false);
+        for( int i = 0; i < entries.length; i++) {
+            writer.writeEntry( entries[i]);
+        }
+        writer.finish();
+
+        LDIFByteReader reader = new LDIFByteReader(
+                        new ByteArrayInputStream( out.toByteArray()));
+        for( int i = 0; i < entries.length; i++) {
+            assertSameEntry( entries[i], reader.readEntry());
+        }
+        assertNull( reader.readEntry());
+        return;
+    }
+
+    @Test
+    public void testCompressed()
+            throws IOException, LDAPException
+    {
+        LDAPEntry[] entries = randomEntries( 50);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LDIFByteWriter writer = new LDIFByteWriter( out, "1", false, true);
+        for( int i = 0; i < entries.length; i++) {
+            writer.writeEntry( entries[i]);
+        }
+        writer.finish();
+
+        LDIFByteReader reader = new LDIFByteReader( new GZIPInputStream(
+                        new ByteArrayInputStream( out.toByteArray())));
+        for( int i = 0; i < entries.length; i++) {
+            assertSameEntry( entries[i], reader.readEntry());
+        }
+        assertNull( reader.readEntry());
+        return;
+    }
+
+    @Test
+    public void testChanges()
+            throws IOException, LDAPException
+    {
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        attrs.add( new LDAPAttribute( "cn", " leading space"));
+        LDAPControl[] controls = {
+            new LDAPControl( "1.2.840.113556.1.4.805", true, new byte[] { 1 })
+        };
+        LDAPModification[] mods = {
+            new LDAPModification( LDAPModification.REPLACE,
+                                  new LDAPAttribute( "cn", "x")),
+            new LDAPModification( LDAPModification.DELETE,
+                                  new LDAPAttribute( "sn"))
+        };
+        LDAPMessage[] messages = {
+            new LDAPAddRequest( new LDAPEntry( "cn=a,dc=ex", attrs), null),
+            new LDAPModifyRequest( "cn=a,dc=ex", mods, null),
+            new LDAPModifyDNRequest( "cn=a,dc=ex", "cn=b", "dc=other", true,
+                                     null),
+            new LDAPDeleteRequest( "cn=b,dc=other", controls)
+        };
+
+        // LDIFWriter writes deleteoldrdn as true rather than 1, so only
+        // the other records are compared with it
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LDIFByteWriter writer = new LDIFByteWriter( bytes);
+        ByteArrayOutputStream chars = new ByteArrayOutputStream();
+        LDIFWriter expected = new LDIFWriter( chars);
+        for( int i = 0; i < messages.length; i++) {
+            if( !(messages[i] instanceof LDAPModifyDNRequest)) {
+                writer.writeMessage( messages[i]);
+                expected.writeMessage( messages[i]);
+            }
+        }
+        writer.finish();
+        expected.finish();
+        assertArrayEquals( chars.toByteArray(), bytes.toByteArray());
+
+        bytes.reset();
+        writer = new LDIFByteWriter( bytes);
+        for( int i = 0; i < messages.length; i++) {
+            writer.writeMessage( messages[i]);
+        }
+        writer.finish();
+        assertTrue( writer.isRequest());
+
+        LDIFByteReader reader = new LDIFByteReader(
+                        new ByteArrayInputStream( bytes.toByteArray()));
+        LDAPMessage message = null;
+        for( int i = 0; i < messages.length; i++) {
+            message = reader.readMessage();
+            assertEquals( messages[i].getType(), message.getType());
+            if( message instanceof LDAPModifyDNRequest) {
+                LDAPModifyDNRequest moddn = (LDAPModifyDNRequest)message;
+                assertEquals( "cn=b", moddn.getNewRDN());
+                assertTrue( moddn.getDeleteOldRDN());
+                assertEquals( "dc=other", moddn.getParentDN());
+            }
+        }
+        // the control of the delete record
+        assertEquals( "1.2.840.113556.1.4.805",
+                      message.getControls()[0].getID());
+        assertNull( reader.readMessage());
+        return;
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMixedContent()
+            throws IOException, LDAPException
+    {
+        LDIFByteWriter writer = new LDIFByteWriter(
+                        new ByteArrayOutputStream(), "1", false);
+        writer.writeMessage(
+                new LDAPDeleteRequest( "cn=a,dc=ex", null));
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVersion()
+            throws IOException
+    {
+        new LDIFByteWriter( new ByteArrayOutputStream(), "2", false);
+        return;
+    }
+}
@@ -0,0 +1,447 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.terefang.jldap.ldap.LDAPAddRequest;
+import com.github.terefang.jldap.ldap.LDAPAttribute;
+import com.github.terefang.jldap.ldap.LDAPAttributeSet;
+import com.github.terefang.jldap.ldap.LDAPControl;
+import com.github.terefang.jldap.ldap.LDAPDeleteRequest;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+import com.github.terefang.jldap.ldap.LDAPMessage;
+import com.github.terefang.jldap.ldap.LDAPModification;
+import com.github.terefang.jldap.ldap.LDAPModifyRequest;
+
+/**
+ * Tests of {@link LDIFDiff}.
+ */
+public class LDIFDiffTest
+{
+    /* A writer keeping the messages written */
+    private static final class Messages implements LDAPWriter
+    {
+        private final ArrayList list = new ArrayList();
+
+        public String getVersion()
+        {
+            return "1";
+        }
+
+        public boolean isRequest()
+        {
+            return true;
+        }
+
+        public void writeMessage( LDAPMessage message)
+        {
+            list.add( message);
+            return;
+        }
+
+        public void writeEntry( LDAPEntry entry)
+        {
+            throw new IllegalStateException( "entry written");
+        }
+
+        public void writeEntry( LDAPEntry entry, LDAPControl[] controls)
+        {
+            throw new IllegalStateException( "entry written");
+        }
+
+        public void writeComments( String comments)
+        {
+            return;
+        }
+
+        public void writeError( Exception e)
+        {
+            return;
+        }
+
+        public void finish()
+        {
+            return;
+        }
+    }
+
+    private static LDIFByteReader reader( String ldif)
+            throws IOException, LDAPException
+    {
+        return new LDIFByteReader( ByteBuffer.wrap( ldif.getBytes( "UTF-8")));
+    }
+
+    private static final String OLD =
+        "dn: o=x\no: x\n\n" +
+        "dn: ou=old,o=x\nou: old\n\n" +
+        "dn: cn=c,ou=old,o=x\ncn: c\n\n" +
+        "dn: cn=a,o=x\ncn: a\nsn: 1\nsn: 2\nmail: m\n" +
+        "description: d1\ndescription: d2\n\n" +
+        "dn: cn=b,o=x\ncn: b\n";
+
+    private static final String NEW =
+        "dn: cn=A, o=X\ncn: a\nsn: 2\nsn: 3\ntitle: t\ndescription: d3\n\n" +
+        "dn: o=x\no: x\n\n" +
+        "dn: cn=k,ou=n,o=x\ncn: k\n\n" +
+        "dn: ou=n,o=x\nou: n\n\n" +
+        "dn: cn=b,o=x\ncn: b\n";
+
+    @Test
+    public void testChanges()
+            throws IOException, LDAPException
+    {
+        Messages out = new Messages();
+        LDIFDiff diff = new LDIFDiff( out);
+        assertEquals( 5, diff.diff( reader( OLD), reader( NEW)));
+        assertEquals( 2, diff.getAddCount());
+        assertEquals( 1, diff.getModifyCount());
+        assertEquals( 2, diff.getDeleteCount());
+        assertEquals( 5, out.list.size());
+
+        // adds and modifies first, parents before children
+        LDAPModifyRequest modify = (LDAPModifyRequest)out.list.get( 0);
+        assertEquals( "cn=A, o=X", modify.getDN());
+        assertEquals( "ou=n,o=x",
+                ((LDAPAddRequest)out.list.get( 1)).getEntry().getDN());
+        assertEquals( "cn=k,ou=n,o=x",
+                ((LDAPAddRequest)out.list.get( 2)).getEntry().getDN());
+        // then deletes, children before parents
+        assertEquals( "cn=c,ou=old,o=x",
+                ((LDAPDeleteRequest)out.list.get( 3)).getDN());
+        assertEquals( "ou=old,o=x",
+                ((LDAPDeleteRequest)out.list.get( 4)).getDN());
+
+        LDAPModification[] mods = modify.getModifications();
+        assertEquals( 5, mods.length);
+        // only in the old entry
+        assertModification( LDAPModification.DELETE, "mail", new String[0],
+                            mods[0]);
+        // no value kept
+        assertModification( LDAPModification.REPLACE, "description",
+                            new String[] { "d3" }, mods[1]);
+        // some values kept
+        assertModification( LDAPModification.DELETE, "sn",
+                            new String[] { "1" }, mods[2]);
+        assertModification( LDAPModification.ADD, "sn",
+                            new String[] { "3" }, mods[3]);
+        // only in the new entry
+        assertModification( LDAPModification.ADD, "title",
+                            new String[] { "t" }, mods[4]);
+        return;
+    }
+
+    private static void assertModification( int op, String name,
+            String[] values, LDAPModification mod)
+    {
+        assertEquals( name, op, mod.getOp());
+        assertEquals( name, mod.getAttribute().getName());
+        assertArrayEquals( name, values,
+                           mod.getAttribute().getStringValueArray());
+        return;
+    }
+
+    @Test
+    public void testSame()
+            throws IOException, LDAPException
+    {
+        Messages out = new Messages();
+        assertEquals( 0, new LDIFDiff( out).diff( reader( OLD), reader( OLD)));
+        assertTrue( out.list.isEmpty());
+        return;
+    }
+
+    @Test
+    public void testEmpty()
+            throws IOException, LDAPException
+    {
+        Messages out = new Messages();
+        LDIFDiff diff = new LDIFDiff( out);
+        assertEquals( 5, diff.diff( reader( ""), reader( OLD)));
+        assertEquals( 5, diff.getAddCount());
+        assertEquals( 5, diff.diff( reader( OLD), reader( "")));
+        assertEquals( 5, diff.getDeleteCount());
+        assertEquals( 0, diff.getAddCount());
+        return;
+    }
+
+    @Test(expected = LDAPLocalException.class)
+    public void testDuplicateDN()
+            throws IOException, LDAPException
+    {
+        new LDIFDiff( new Messages()).diff(
+                reader( "dn: cn=a,o=x\ncn: a\n\ndn: CN=A,o=x\ncn: b\n"),
+                reader( NEW));
+        return;
+    }
+
+    @Test(expected = LDAPLocalException.class)
+    public void testChangeRecord()
+            throws IOException, LDAPException
+    {
+        new LDIFDiff( new Messages()).diff(
+                reader( "dn: cn=a,o=x\nchangetype: delete\n"), reader( NEW));
+        return;
+    }
+
+    @Test(expected = LDAPException.class)
+    public void testNotSorted()
+            throws IOException, LDAPException
+    {
+        LDIFDiff diff = new LDIFDiff( new Messages());
+        diff.setSorted( true);
+        diff.diff( reader( NEW), reader( NEW));
+        return;
+    }
+
+    @Test
+    public void testSortedSources()
+            throws IOException, LDAPException
+    {
+        String sorted = "dn: o=x\no: x\n\ndn: cn=a,o=x\ncn: a\n\n" +
+                        "dn: cn=k,cn=a,o=x\ncn: k\n\ndn: cn=b,o=x\ncn: b\n";
+        LDIFDiff diff = new LDIFDiff( new Messages());
+        diff.setSorted( true);
+        assertEquals( 0, diff.diff( reader( sorted), reader( sorted)));
+        return;
+    }
+
+    /* Random entries below o=x, with values from a small set */
+    private static ArrayList randomEntries( Random random, int count)
+    {
+        ArrayList entries = new ArrayList();
+        entries.add( entry( "o=x", "o", new String[] { "x" }));
+        for( int i = 0; i < 5; i++) {
+            if( random.nextInt( 4) != 0) {
+                entries.add( entry( "ou=u" + i + ",o=x", "ou",
+                                    new String[] { "u" + i }));
+            }
+        }
+        for( int i = 0; i < count; i++) {
+            if( random.nextInt( 3) == 0) {
+                continue;
+            }
+            String parent = "ou=u" + i % 5 + ",o=x";
+            if( ! contains( entries, parent)) {
+                continue;
+            }
+            LDAPEntry entry = entry( "cn=e" + i + "," + parent, "cn",
+                                     new String[] { "e" + i });
+            for( int j = 0; j < 3; j++) {
+                String[] values = new String[ random.nextInt( 4) ];
+                for( int k = 0; k < values.length; k++) {
+                    values[k] = "v" + (k * 4 + random.nextInt( 4));
+                }
+                if( values.length > 0) {
+                    entry.getAttributeSet().add(
+                                new LDAPAttribute( "a" + j, values));
+                }
+            }
+            entries.add( entry);
+        }
+        Collections.shuffle( entries, random);
+        return entries;
+    }
+
+    private static LDAPEntry entry( String dn, String name, String[] values)
+    {
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        attrs.add( new LDAPAttribute( name, values));
+        return new LDAPEntry( dn, attrs);
+    }
+
+    private static boolean contains( ArrayList entries, String dn)
+    {
+        for( int i = 0; i < entries.size(); i++) {
+            if( ((LDAPEntry)entries.get( i)).getDN().equals( dn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static LDIFByteReader reader( ArrayList entries)
+            throws IOException, LDAPException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LDIFByteWriter writer = new LDIFByteWriter( out, "1", false);
+        for( int i = 0; i < entries.size(); i++) {
+            writer.writeEntry( (LDAPEntry)entries.get( i));
+        }
+        writer.finish();
+        return new LDIFByteReader( ByteBuffer.wrap( out.toByteArray()));
+    }
+
+    /* The entries by DN, as sets of "name: value" strings */
+    private static HashMap toMap( ArrayList entries)
+    {
+        HashMap map = new HashMap();
+        for( int i = 0; i < entries.size(); i++) {
+            LDAPEntry entry = (LDAPEntry)entries.get( i);
+            HashSet values = new HashSet();
+            Iterator itr = entry.getAttributeSet().iterator();
+            while( itr.hasNext()) {
+                LDAPAttribute attr = (LDAPAttribute)itr.next();
+                String[] strings = attr.getStringValueArray();
+                for( int j = 0; j < strings.length; j++) {
+                    values.add( attr.getName() + ": " + strings[j]);
+                }
+            }
+            map.put( entry.getDN(), values);
+        }
+        return map;
+    }
+
+    /*
+     * Applies change records to entries, checking that each one can be
+     * applied: the parent of an added entry exists, a deleted entry has no
+     * children.
+     */
+    private static void apply( HashMap entries, ArrayList messages)
+    {
+        for( int i = 0; i < messages.size(); i++) {
+            Object message = messages.get( i);
+            if( message instanceof LDAPAddRequest) {
+                LDAPEntry entry = ((LDAPAddRequest)message).getEntry();
+                String dn = entry.getDN();
+                assertFalse( dn, entries.containsKey( dn));
+                int comma = dn.indexOf( ',');
+                assertTrue( dn, comma < 0 ||
+                            entries.containsKey( dn.substring( comma + 1)));
+                ArrayList one = new ArrayList();
+                one.add( entry);
+                entries.putAll( toMap( one));
+            } else if( message instanceof LDAPDeleteRequest) {
+                String dn = ((LDAPDeleteRequest)message).getDN();
+                assertTrue( dn, entries.containsKey( dn));
+                Iterator itr = entries.keySet().iterator();
+                while( itr.hasNext()) {
+                    assertFalse( dn, ((String)itr.next()).endsWith( "," + dn));
+                }
+                entries.remove( dn);
+            } else {
+                LDAPModifyRequest modify = (LDAPModifyRequest)message;
+                HashSet values = (HashSet)entries.get( modify.getDN());
+                LDAPModification[] mods = modify.getModifications();
+                for( int j = 0; j < mods.length; j++) {
+                    modify( values, mods[j]);
+                }
+            }
+        }
+        return;
+    }
+
+    private static void modify( HashSet values, LDAPModification mod)
+    {
+        String prefix = mod.getAttribute().getName() + ": ";
+        String[] strings = mod.getAttribute().getStringValueArray();
+        if( mod.getOp() == LDAPModification.REPLACE ||
+            (mod.getOp() == LDAPModification.DELETE && strings.length == 0)) {
+            Iterator itr = values.iterator();
+            while( itr.hasNext()) {
+                if( ((String)itr.next()).startsWith( prefix)) {
+                    itr.remove();
+                }
+            }
+        }
+        for( int i = 0; i < strings.length; i++) {
+            if( mod.getOp() == LDAPModification.DELETE) {
+                assertTrue( values.remove( prefix + strings[i]));
+            } else {
+                assertTrue( values.add( prefix + strings[i]));
+            }
+        }
+        return;
+    }
+
+    @Test
+    public void testRandomSources()
+            throws IOException, LDAPException
+    {
+        File temp = Files.createTempDirectory( "ldifdiff").toFile();
+        try {
+            Random random = new Random( 4);
+            for( int round = 0; round < 10; round++) {
+                ArrayList from = randomEntries( random, 300);
+                ArrayList to = randomEntries( random, 300);
+
+                Messages inMemory = new Messages();
+                new LDIFDiff( inMemory).diff( reader( from), reader( to));
+
+                // sorted in runs of a few entries, written to files
+                Messages external = new Messages();
+                LDIFDiff diff = new LDIFDiff( external);
+                diff.setMaxMemory( 8192);
+                diff.setTempDirectory( temp);
+                diff.diff( reader( from), reader( to));
+                assertEquals( inMemory.list.size(), external.list.size());
+
+                HashMap entries = toMap( from);
+                apply( entries, external.list);
+                assertEquals( toMap( to), entries);
+            }
+            // the temporary files are deleted
+            assertEquals( Arrays.asList( new String[0]),
+                          Arrays.asList( temp.list()));
+        } finally {
+            File[] files = temp.listFiles();
+            for( int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+            temp.delete();
+        }
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxMemory()
+    {
+        new LDIFDiff( new Messages()).setMaxMemory( 0);
+        return;
+    }
+
+    @Test
+    public void testNoChangeRecordForSameEntry()
+            throws IOException, LDAPException
+    {
+        // values in another order are the same
+        Messages out = new Messages();
+        new LDIFDiff( out).diff( reader( "dn: cn=a\nsn: 1\nsn: 2\n"),
+                                 reader( "dn: CN=a\nsn: 2\nsn: 1\n"));
+        assertTrue( out.list.isEmpty());
+        return;
+    }
+}
@@ -0,0 +1,251 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.github.terefang.jldap.ldap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.terefang.jldap.ldap.LDAPDeleteRequest;
+import com.github.terefang.jldap.ldap.LDAPEntry;
+import com.github.terefang.jldap.ldap.LDAPException;
+import com.github.terefang.jldap.ldap.LDAPLocalException;
+
+/**
+ * Tests of {@link LDIFIndex}.
+ */
+public class LDIFIndexTest
+{
+    private static final String LDIF =
+        "version: 1\n" +
+        "\n" +
+        "dn: cn=e1,o=x\n" +
+        "cn: e1\n" +
+        "\n" +
+        "dn: CN=Foo Bar+uid=7, O=X\n" +
+        "cn: first\n" +
+        "\n" +
+        "dn: cn=foo bar+uid=7,o=x\n" +
+        "cn: second\n" +
+        "\n" +
+        "dn:: Y249SsO2cmcsbz14\n" +
+        "cn: j\n";
+
+    private File dir;
+    private File ldif;
+    private File index;
+
+    @Before
+    public void createFiles()
+            throws IOException
+    {
+        this.dir = Files.createTempDirectory( "ldifindex").toFile();
+        this.ldif = new File( this.dir, "data.ldif");
+        this.index = new File( this.dir, "data.ldif.idx");
+        write( this.ldif, LDIF, false);
+        return;
+    }
+
+    @After
+    public void deleteFiles()
+    {
+        File[] files = this.dir.listFiles();
+        for( int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        this.dir.delete();
+        return;
+    }
+
+    private static void write( File file, String data, boolean append)
+            throws IOException
+    {
+        OutputStream out = new FileOutputStream( file, append);
+        try {
+            out.write( data.getBytes( "UTF-8"));
+        } finally {
+            out.close();
+        }
+        return;
+    }
+
+    private static String cn( LDAPEntry entry)
+    {
+        return entry.getAttribute( "cn").getStringValue();
+    }
+
+    @Test
+    public void testLookup()
+            throws IOException, LDAPException
+    {
+        assertEquals( 4, LDIFIndex.build( this.ldif, this.index));
+        LDIFIndex idx = new LDIFIndex( this.ldif, this.index);
+        try {
+            assertEquals( 4, idx.size());
+            assertEquals( "e1", cn( idx.getEntry( "cn=e1,o=x")));
+            assertEquals( "j", cn( idx.getEntry( "cn=Jörg,o=x")));
+            assertNull( idx.getEntry( "cn=e2,o=x"));
+            assertNull( idx.getEntry( "cn=e1"));
+        } finally {
+            idx.close();
+        }
+        return;
+    }
+
+    @Test
+    public void testNormalizedDN()
+            throws IOException, LDAPException
+    {
+        LDIFIndex idx = LDIFIndex.open( this.ldif, this.index);
+        try {
+            assertEquals( "e1", cn( idx.getEntry( "CN=E1, O=X")));
+            // the first of the records with the same DN
+            LDAPEntry entry = idx.getEntry( "uid=7+cn=FOO BAR,o=x");
+            assertEquals( "CN=Foo Bar+uid=7, O=X", entry.getDN());
+            assertEquals( "first", cn( entry));
+        } finally {
+            idx.close();
+        }
+        return;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDN()
+            throws IOException, LDAPException
+    {
+        LDIFIndex idx = LDIFIndex.open( this.ldif, this.index);
+        try {
+            idx.getEntry( "not a dn");
+        } finally {
+            idx.close();
+        }
+        return;
+    }
+
+    @Test
+    public void testOutOfDate()
+            throws IOException, LDAPException
+    {
+        LDIFIndex.build( this.ldif, this.index);
+        write( this.ldif, "\ndn: cn=e9,o=x\ncn: e9\n", true);
+        try {
+            new LDIFIndex( this.ldif, this.index).close();
+            fail( "out of date index opened");
+        } catch( IOException e) {
+            // expected
+        }
+        // open() builds the index again
+        LDIFIndex idx = LDIFIndex.open( this.ldif, this.index);
+        try {
+            assertEquals( 5, idx.size());
+            assertEquals( "e9", cn( idx.getEntry( "cn=e9,o=x")));
+        } finally {
+            idx.close();
+        }
+        return;
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnIndex()
+            throws IOException
+    {
+        new LDIFIndex( this.ldif, this.ldif);
+        return;
+    }
+
+    @Test
+    public void testChangeRecords()
+            throws IOException, LDAPException
+    {
+        write( this.ldif, "version: 1\n\n" +
+                          "dn: cn=a,o=x\nchangetype: delete\n", false);
+        LDIFIndex idx = LDIFIndex.open( this.ldif, this.index);
+        try {
+            assertTrue( idx.getMessage( "cn=a,o=x")
+                                        instanceof LDAPDeleteRequest);
+            try {
+                idx.getEntry( "cn=a,o=x");
+                fail( "change record read as an entry");
+            } catch( LDAPLocalException e) {
+                // expected
+            }
+        } finally {
+            idx.close();
+        }
+        return;
+    }
+
+    @Test
+    public void testEmpty()
+            throws IOException, LDAPException
+    {
+        write( this.ldif, "version: 1\n", false);
+        LDIFIndex idx = LDIFIndex.open( this.ldif, this.index);
+        try {
+            assertEquals( 0, idx.size());
+            assertNull( idx.getEntry( "cn=e1,o=x"));
+        } finally {
+            idx.close();
+        }
+        return;
+    }
+
+    @Test
+    public void testMany()
+            throws IOException, LDAPException
+    {
+        StringBuffer data = new StringBuffer( "version: 1\n");
+        int count = 5000;
+        for( int i = 0; i < count; i++) {
+            data.append( "\ndn: cn=e").append( i).append( ",o=x\n");
+            data.append( "cn: v").append( i).append( '\n');
+        }
+        write( this.ldif, data.toString(), false);
+        LDIFIndex idx = LDIFIndex.open( this.ldif, this.index);
+        try {
+            assertEquals( count, idx.size());
+            for( int i = 0; i < count; i += 7) {
+                assertEquals( "v" + i, cn( idx.getEntry( "cn=e" + i + ",o=x")));
+            }
+            assertEquals( "v" + (count - 1),
+                    cn( idx.getEntry( "cn=e" + (count - 1) + ",o=x")));
+            assertNull( idx.getEntry( "cn=e" + count + ",o=x"));
+        } finally {
+            idx.close();
+        }
+        return;
+    }
+
+    @Test(expected = LDAPLocalException.class)
+    public void testInvalidDNInFile()
+            throws IOException, LDAPException
+    {
+        write( this.ldif, "version: 1\n\ndn: not a dn\ncn: x\n", false);
+        LDIFIndex.build( this.ldif, this.index);
+        return;
+    }
+}